@@ -15,6 +15,9 @@
  */
 package com.google.jenkins.plugins.cloudbackup;
 
+import com.google.jenkins.plugins.cloudbackup.metrics.BackupMetrics;
+import com.google.jenkins.plugins.cloudbackup.metrics.BackupRun;
+
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
@@ -22,13 +25,16 @@ import hudson.Extension;
 import hudson.model.ManagementLink;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
 
 /**
  * Provides UI for backup management. Currently allows a user to trigger a full
- * backup, with more config/management options to be added in future versions.
+ * backup and shows backup and restore metrics, with more config/management
+ * options to be added in future versions.
  */
 @Extension
 public class BackupManager extends ManagementLink {
@@ -64,6 +70,28 @@ public class BackupManager extends ManagementLink {
     return Messages.BackupManager_DisplayName();
   }
 
+  /**
+   * Returns the metrics of backups and restores since Jenkins was started.
+   *
+   * <p>The method is used by Jenkins via index.jelly.
+   */
+  public BackupMetrics getMetrics() {
+    return BackupMetrics.get();
+  }
+
+  /**
+   * Returns the recent backup and restore runs, most recent first.
+   *
+   * <p>The method is used by Jenkins via index.jelly.
+   */
+  public List<BackupRun> getRuns() {
+    CloudBackupPlugin plugin = CloudBackupPlugin.getInstance();
+    if (plugin == null) {
+      return Collections.emptyList();
+    }
+    return plugin.getBackupRuns();
+  }
+
   public void doBackupNow(StaplerRequest req, StaplerResponse res)
       throws IOException, ServletException {
     LOGGER.info("Full backup manually triggered.");
@@ -22,6 +22,8 @@ import java.util.logging.Logger;
 import org.joda.time.DateTime;
 
 import com.google.jenkins.plugins.cloudbackup.backup.BackupProcedure;
+import com.google.jenkins.plugins.cloudbackup.metrics.BackupMetrics;
+import com.google.jenkins.plugins.cloudbackup.metrics.BackupRun;
 import hudson.Extension;
 import hudson.model.AsyncPeriodicWork;
 import hudson.model.PeriodicWork;
@@ -106,6 +108,9 @@ public class CloudBackupAsyncPeriodicWork extends AsyncPeriodicWork {
     if (!plugin.beginBackupOrRestore()) {
       return;  // another thread already started a backup
     }
+    BackupRun.Recorder runRecorder = BackupRun.start(
+        fullBackup ? "Full" : "Incremental", BackupMetrics.get());
+    boolean success = false;
     try {
       try {
         BackupProcedure backupProcedure;
@@ -115,17 +120,27 @@ public class CloudBackupAsyncPeriodicWork extends AsyncPeriodicWork {
           backupProcedure = plugin.getIncrementalBackupProcedure();
         }
         DateTime backupTime = backupProcedure.performBackup();
+        plugin.recordBackupVolume(
+            fullBackup, backupProcedure.getLastVolumeSizeBytes());
         plugin.setLastBackupTime(backupTime);
         if (fullBackup) {
           plugin.setLastFullBackupTime(backupTime);
         }
         plugin.setLastBackupFailed(false);
+        BackupMetrics.get().increment(BackupMetrics.Counter.BACKUPS, 1);
+        success = true;
+        if (!fullBackup) {
+          plugin.scheduleChainCompaction();
+        }
       } catch (IOException e) {
         // this will trigger a new backup in the next execution
         plugin.setLastBackupFailed(true);
+        BackupMetrics.get().increment(
+            BackupMetrics.Counter.BACKUP_FAILURES, 1);
         LOGGER.log(Level.SEVERE, "IOException while creating backup", e);
       }
     } finally {
+      plugin.recordBackupRun(runRecorder.finish(success));
       if (fullBackup && !plugin.isLastBackupFailed()) {
         // We completed a full backup. Clear the manual-request flag.
         plugin.setManualBackupRequested(false);
@@ -26,6 +26,8 @@ import com.google.jenkins.plugins.cloudbackup.trigger.BackupTrigger;
 import com.google.jenkins.plugins.cloudbackup.trigger.BackupTriggers;
 import com.google.jenkins.plugins.cloudbackup.trigger.ConfigFileChangedBackupTrigger;
 import com.google.jenkins.plugins.cloudbackup.trigger.FailureBackupTrigger;
+import com.google.jenkins.plugins.cloudbackup.trigger.IncrementalBackupsExistBackupTrigger;
+import com.google.jenkins.plugins.cloudbackup.trigger.IncrementalChainCostBackupTrigger;
 import com.google.jenkins.plugins.cloudbackup.trigger.PeriodicBackupTrigger;
 
 /**
@@ -36,18 +38,41 @@ public class CloudBackupJenkinsModule extends CloudBackupMainModule {
 
   private ReadablePeriod fullBackupInterval = Hours.hours(1);
   private ReadablePeriod incrementalBackupInterval = Minutes.minutes(3);
+  private int fullBackupIncrementalSizePercent = 0;
+  private int fullBackupMaxIncrementalBackups = 0;
 
-  private final BackupHistory backupHistory;
-  private final BackupTrigger fullBackupTrigger;
-  private final BackupTrigger incrementalBackupTrigger;
+  private BackupHistory backupHistory;
+  private BackupTrigger fullBackupTrigger;
+  private BackupTrigger incrementalBackupTrigger;
 
   public CloudBackupJenkinsModule() {
     backupHistory = new KeepLatestBackupHistory();
+    updateTriggers();
+  }
 
-    // trigger a full backup if any of those triggers fires
-    fullBackupTrigger = BackupTriggers.or(
-        new FailureBackupTrigger(),
-        new PeriodicBackupTrigger(fullBackupInterval));
+  /**
+   * Creates the triggers for the current settings. Must be called whenever
+   * one of the settings changes, because the triggers copy them.
+   */
+  private void updateTriggers() {
+    if (fullBackupIncrementalSizePercent > 0
+        || fullBackupMaxIncrementalBackups > 0) {
+      // trigger a full backup if any of those triggers fires, but only
+      // periodically if something changed since the last full backup
+      fullBackupTrigger = BackupTriggers.or(
+          new FailureBackupTrigger(),
+          new IncrementalChainCostBackupTrigger(
+              fullBackupIncrementalSizePercent,
+              fullBackupMaxIncrementalBackups),
+          BackupTriggers.and(
+              new PeriodicBackupTrigger(fullBackupInterval),
+              new IncrementalBackupsExistBackupTrigger()));
+    } else {
+      // trigger a full backup if any of those triggers fires
+      fullBackupTrigger = BackupTriggers.or(
+          new FailureBackupTrigger(),
+          new PeriodicBackupTrigger(fullBackupInterval));
+    }
 
     incrementalBackupTrigger = BackupTriggers.or(
         new ConfigFileChangedBackupTrigger(),
@@ -58,6 +83,13 @@ public class CloudBackupJenkinsModule extends CloudBackupMainModule {
     return backupHistory;
   }
 
+  /**
+   * Sets the policy for dealing with historic backups after a full backup.
+   */
+  public void setBackupHistory(BackupHistory backupHistory) {
+    this.backupHistory = backupHistory;
+  }
+
   public BackupTrigger getFullBackupTrigger() {
     return fullBackupTrigger;
   }
@@ -75,6 +107,7 @@ public class CloudBackupJenkinsModule extends CloudBackupMainModule {
    */
   public void setFullBackupIntervalHours(int hours) {
     fullBackupInterval = Hours.hours(hours);
+    updateTriggers();
   }
 
   /**
@@ -95,6 +128,23 @@ public class CloudBackupJenkinsModule extends CloudBackupMainModule {
    */
   public void setIncrementalBackupIntervalMinutes(int minutes) {
     incrementalBackupInterval = Minutes.minutes(minutes);
+    updateTriggers();
+  }
+
+  /**
+   * Sets the limits on the incremental backups since the last full backup,
+   * which trigger a new full backup regardless of the full backup interval.
+   *
+   * @param sizePercent the size of all incremental backups, in percent of the
+   * size of the last full backup. Zero disables the limit.
+   * @param maxIncrementalBackups the number of incremental backups. Zero
+   * disables the limit.
+   */
+  public void setFullBackupIncrementalLimits(
+      int sizePercent, int maxIncrementalBackups) {
+    fullBackupIncrementalSizePercent = sizePercent;
+    fullBackupMaxIncrementalBackups = maxIncrementalBackups;
+    updateTriggers();
   }
 
   /**
@@ -15,18 +15,50 @@
  */
 package com.google.jenkins.plugins.cloudbackup;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.jenkins.plugins.cloudbackup.backup.BackupProcedure;
+import com.google.jenkins.plugins.cloudbackup.backup.BlockDeltaVolume;
+import com.google.jenkins.plugins.cloudbackup.backup.ChainCompactionProcedure;
+import com.google.jenkins.plugins.cloudbackup.backup.FileSignatures;
+import com.google.jenkins.plugins.cloudbackup.backup.FingerprintingVolume;
+import com.google.jenkins.plugins.cloudbackup.backup.PipelinedBackupProcedure;
+import com.google.jenkins.plugins.cloudbackup.backup.SyntheticFullBackupProcedure;
+import com.google.jenkins.plugins.cloudbackup.backup.TailDeltaVolume;
+import com.google.jenkins.plugins.cloudbackup.history.BackupHistory;
+import com.google.jenkins.plugins.cloudbackup.history.GrandfatherFatherSonBackupHistory;
 import com.google.jenkins.plugins.cloudbackup.history.KeepAllBackupHistory;
+import com.google.jenkins.plugins.cloudbackup.history.KeepLatestBackupHistory;
+import com.google.jenkins.plugins.cloudbackup.metrics.BackupMetrics;
+import com.google.jenkins.plugins.cloudbackup.metrics.BackupRun;
+import com.google.jenkins.plugins.cloudbackup.metrics.BackupRunHistory;
+import com.google.jenkins.plugins.cloudbackup.metrics.MeteredStorage;
+import com.google.jenkins.plugins.cloudbackup.metrics.MeteredVolume;
+import com.google.jenkins.plugins.cloudbackup.restore.RestoreProcedure;
+import com.google.jenkins.plugins.cloudbackup.scope.CompletedBuilds;
+import com.google.jenkins.plugins.cloudbackup.scope.CompletedBuildsScope;
 import com.google.jenkins.plugins.cloudbackup.scope.ConfigurableScope;
 import com.google.jenkins.plugins.cloudbackup.scope.DefaultBackupScope;
 import com.google.jenkins.plugins.cloudbackup.scope.FilteringScope;
 import com.google.jenkins.plugins.cloudbackup.scope.IncrementalScope;
 import com.google.jenkins.plugins.cloudbackup.scope.MultiScope;
+import com.google.jenkins.plugins.cloudbackup.scope.ScheduledScope;
+import com.google.jenkins.plugins.cloudbackup.scope.Scope;
+import com.google.jenkins.plugins.cloudbackup.scope.ScopeSchedules;
 import com.google.jenkins.plugins.cloudbackup.storage.AbstractStorageProvider;
+import com.google.jenkins.plugins.cloudbackup.storage.CachingStorage;
+import com.google.jenkins.plugins.cloudbackup.storage.GcloudGcsStorage;
 import com.google.jenkins.plugins.cloudbackup.storage.IncrementalBackupStorage;
+import com.google.jenkins.plugins.cloudbackup.storage.LocalFileStorage;
 import com.google.jenkins.plugins.cloudbackup.storage.LocalFileStorageProvider;
+import com.google.jenkins.plugins.cloudbackup.storage.RetryingStorage;
 import com.google.jenkins.plugins.cloudbackup.storage.Storage;
+import com.google.jenkins.plugins.cloudbackup.throttle.JenkinsLoadProbe;
+import com.google.jenkins.plugins.cloudbackup.throttle.ResourceGovernor;
 import com.google.jenkins.plugins.cloudbackup.trigger.BackupTrigger;
+import com.google.jenkins.plugins.cloudbackup.volume.BufferPool;
+import com.google.jenkins.plugins.cloudbackup.volume.ReadThrottle;
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+import com.google.jenkins.plugins.cloudbackup.volume.zip.ZipVolume;
 
 import net.sf.json.JSONObject;
 
@@ -46,8 +78,12 @@ import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
@@ -63,9 +99,15 @@ public class CloudBackupPlugin extends Plugin {
       Logger.getLogger(CloudBackupPlugin.class.getName());
 
   private static final String SCRATCH_DIRECTORY = "backup-tmp";
+  private static final String CACHE_DIRECTORY = "backup-cache";
   private static final String INCREMENTAL_BACKUP_NAME_SUFFIX = "-incremental";
   private static final int DEFAULT_FULL_BACKUP_INTERVAL_HOURS = 1;
   private static final int DEFAULT_INCREMENTAL_BACKUP_INTERVAL_MINUTES = 3;
+  private static final int DEFAULT_LOCAL_CACHE_SIZE_MEGABYTES = 0;
+  private static final int DEFAULT_STORAGE_RETRIES = 3;
+  private static final long STORAGE_RETRY_BACKOFF_MILLIS = 10L * 1000L;
+  private static final long BYTES_PER_MEGABYTE = 1024L * 1024L;
+  private static final int BYTES_PER_KILOBYTE = 1024;
 
   /**
    * Returns the instance of this plugin created by Jenkins.
@@ -78,9 +120,38 @@ public class CloudBackupPlugin extends Plugin {
   private boolean enableBackup = false;
   private boolean enableAutoRestore = false;
   private boolean restoreOverwritesData = false;
+  private boolean syntheticFullBackups = false;
   private int fullBackupIntervalHours = DEFAULT_FULL_BACKUP_INTERVAL_HOURS;
   private int incrementalBackupIntervalMinutes =
       DEFAULT_INCREMENTAL_BACKUP_INTERVAL_MINUTES;
+  private int localCacheSizeMegabytes = DEFAULT_LOCAL_CACHE_SIZE_MEGABYTES;
+  private int storageRetries = DEFAULT_STORAGE_RETRIES;
+  private int keepHourlyBackups = 0;
+  private int keepDailyBackups = 0;
+  private int keepWeeklyBackups = 0;
+  private int maxIncrementalChainLength = 0;
+  private int fullBackupIncrementalSizePercent = 0;
+  private int fullBackupMaxIncrementalBackups = 0;
+  private int maxReadMegabytesPerSecond = 0;
+  private int maxUploadMegabytesPerSecond = 0;
+  private int backupCompressionThreads = 0;
+  private int backupSegmentSizeMegabytes = 0;
+  private int backupUploadThreads = 1;
+  private boolean shardBackupsByScope = false;
+  private int restoreDownloadThreads =
+      RestoreProcedure.DEFAULT_DOWNLOAD_THREADS;
+  private int restorePrefetchVolumes =
+      RestoreProcedure.DEFAULT_PREFETCH_VOLUMES;
+  private int restorePrefetchMegabytes = (int)
+      (RestoreProcedure.DEFAULT_PREFETCH_BYTES / BYTES_PER_MEGABYTE);
+  private int restoreExtractionThreads = 1;
+  private int volumeBufferKilobytes =
+      BufferPool.DEFAULT_BUFFER_SIZE / BYTES_PER_KILOBYTE;
+  private boolean directVolumeBuffers = false;
+  private boolean storeBuildLogTails = false;
+  private int fileDeltaMinKilobytes = 0;
+  private boolean skipUnchangedFiles = false;
+  private boolean skipCompletedBuilds = false;
   private AbstractStorageProvider storageProvider =
       new LocalFileStorageProvider();
   private List<ConfigurableScope> backupScopes = new ArrayList<>(
@@ -92,12 +163,42 @@ public class CloudBackupPlugin extends Plugin {
   private final transient AtomicBoolean manualBackupRequested =
       new AtomicBoolean(false);
   private final transient CloudBackupJenkinsModule module;
+  // deletes old backups and compacts the backup chain in the background,
+  // one task at a time, without attributing the work to backup runs
+  private final transient Executor historyExecutor =
+      BackupMetrics.get().backgroundExecutor(Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder().setNameFormat("cloud-backup-history-%d")
+              .setDaemon(true).build()));
+  private final transient AtomicBoolean chainCompactionPending =
+      new AtomicBoolean(false);
+  // limits disk and network usage of backups, adapting to the load
+  private final transient ResourceGovernor resourceGovernor =
+      new ResourceGovernor(new JenkinsLoadProbe());
+  // charges the files read by backups to the read limit, and counts them
+  private final transient ReadThrottle readThrottle = new ReadThrottle() {
+    @Override
+    public void acquire(int bytes) {
+      BackupMetrics.get().increment(BackupMetrics.Counter.BYTES_READ, bytes);
+      resourceGovernor.acquireRead(bytes);
+    }
+  };
+  private final transient ScopeSchedules scopeSchedules =
+      new ScopeSchedules();
   private transient BackupProcedure fullBackupProcedure;
+  private transient AbstractStorageProvider storageProviderInUse;
+  private transient int localCacheSizeMegabytesInUse;
+  private transient int storageRetriesInUse;
   private transient boolean loaded = false;
   private transient DateTime lastBackupTime;
   private transient DateTime lastFullBackupTime;
   private transient boolean lastBackupFailed = false;
   private transient boolean skipBackupOnNextRestart = false;
+  private transient long fullBackupSizeBytes;
+  private transient long incrementalBackupsSizeBytes;
+  private transient int incrementalBackupCount;
+  private transient BackupRunHistory runHistory;
+  private transient FileSignatures fileSignatures;
+  private transient CompletedBuilds completedBuilds;
 
   public CloudBackupPlugin() {
     module = new CloudBackupJenkinsModule();
@@ -108,6 +209,18 @@ public class CloudBackupPlugin extends Plugin {
     return restoreOverwritesData;
   }
 
+  /**
+   * Returns whether full backups are synthesized from the last full backup
+   * and its incremental backups instead of reading all of JENKINS_HOME.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  whether synthetic full backups are enabled.
+   */
+  public boolean getSyntheticFullBackups() {
+    return syntheticFullBackups;
+  }
+
   /**
    * Get the list of all registered {@link AbstractStorageProvider}.
    */
@@ -139,19 +252,68 @@ public class CloudBackupPlugin extends Plugin {
     module.setFullBackupIntervalHours(fullBackupIntervalHours);
     module.setIncrementalBackupIntervalMinutes(
         incrementalBackupIntervalMinutes);
-    module.setStorage(storageProvider.getStorage());
+    module.setFullBackupIncrementalLimits(
+        fullBackupIncrementalSizePercent, fullBackupMaxIncrementalBackups);
+    resourceGovernor.setLimits(
+        maxReadMegabytesPerSecond * BYTES_PER_MEGABYTE,
+        maxUploadMegabytesPerSecond * BYTES_PER_MEGABYTE);
+    // keep the storage, and the metadata it caches, unless its configuration
+    // has changed
+    if (module.getStorage() == null
+        || !storageProvider.equals(storageProviderInUse)
+        || localCacheSizeMegabytes != localCacheSizeMegabytesInUse
+        || storageRetries != storageRetriesInUse) {
+      Storage storage = storageProvider.getStorage();
+      if (storage instanceof GcloudGcsStorage) {
+        ((GcloudGcsStorage) storage).setResourceGovernor(resourceGovernor);
+      }
+      boolean localStorage = storage instanceof LocalFileStorage;
+      // record every attempt to transfer a file, below retries and caching
+      storage = new MeteredStorage(storage);
+      if (storageRetries > 0 && !localStorage) {
+        storage = new RetryingStorage(storage, storageRetries,
+            STORAGE_RETRY_BACKOFF_MILLIS);
+      }
+      if (localCacheSizeMegabytes > 0 && !localStorage) {
+        storage = new CachingStorage(storage,
+            calculateJenkinsHome().resolve(CACHE_DIRECTORY),
+            localCacheSizeMegabytes * BYTES_PER_MEGABYTE);
+      }
+      module.setStorage(storage);
+      storageProviderInUse = storageProvider;
+      localCacheSizeMegabytesInUse = localCacheSizeMegabytes;
+      storageRetriesInUse = storageRetries;
+    }
+    if (module.getVolume() instanceof ZipVolume) {
+      ZipVolume zipVolume = (ZipVolume) module.getVolume();
+      zipVolume.setBufferPool(new BufferPool(
+          volumeBufferKilobytes * BYTES_PER_KILOBYTE, directVolumeBuffers));
+      zipVolume.setReadThrottle(readThrottle);
+    }
     MultiScope combinedScope = new MultiScope();
     for (ConfigurableScope scope : backupScopes) {
       combinedScope.addSubScope(scope, scope.getScopeName() + "/");
     }
     module.setScope(combinedScope);
+    if (keepHourlyBackups > 0 || keepDailyBackups > 0
+        || keepWeeklyBackups > 0) {
+      module.setBackupHistory(new GrandfatherFatherSonBackupHistory(
+          keepHourlyBackups, keepDailyBackups, keepWeeklyBackups));
+    } else {
+      module.setBackupHistory(new KeepLatestBackupHistory());
+    }
 
     if (enableBackup) {
-      fullBackupProcedure = new BackupProcedure(
-          module.getVolume(), module.getScope(), module.getStorage(),
-          module.getBackupHistory(), calculateJenkinsHome(),
-          getScratchDirectory(), null);
-      lastBackupTime = calculateLastBackupTime(module.getStorage());
+      // full backups walk all scopes and verify the completed builds
+      fullBackupProcedure = createBackupProcedure(
+          createScheduledScope(false, true),
+          module.getStorage(), module.getBackupHistory(), null, false);
+      if (skipCompletedBuilds) {
+        fullBackupProcedure.setCompletedBuilds(getCompletedBuilds(), true);
+      }
+      if (lastBackupTime == null) {
+        lastBackupTime = calculateLastBackupTime(module.getStorage());
+      }
     }
   }
 
@@ -170,11 +332,68 @@ public class CloudBackupPlugin extends Plugin {
         "enableAutoRestore", false);
     restoreOverwritesData = formData.optBoolean(
         "restoreOverwritesData", false);
+    syntheticFullBackups = formData.optBoolean("syntheticFullBackups", false);
     fullBackupIntervalHours = formData.optInt(
         "fullBackupIntervalHours", DEFAULT_FULL_BACKUP_INTERVAL_HOURS);
     incrementalBackupIntervalMinutes = formData.optInt(
         "incrementalBackupIntervalMinutes",
         DEFAULT_INCREMENTAL_BACKUP_INTERVAL_MINUTES);
+    localCacheSizeMegabytes = formData.optInt(
+        "localCacheSizeMegabytes", DEFAULT_LOCAL_CACHE_SIZE_MEGABYTES);
+    storageRetries = Math.max(0,
+        formData.optInt("storageRetries", DEFAULT_STORAGE_RETRIES));
+    keepHourlyBackups = Math.max(0, formData.optInt("keepHourlyBackups", 0));
+    keepDailyBackups = Math.max(0, formData.optInt("keepDailyBackups", 0));
+    keepWeeklyBackups = Math.max(0, formData.optInt("keepWeeklyBackups", 0));
+    maxIncrementalChainLength = Math.max(0,
+        formData.optInt("maxIncrementalChainLength", 0));
+    fullBackupIncrementalSizePercent = Math.max(0,
+        formData.optInt("fullBackupIncrementalSizePercent", 0));
+    fullBackupMaxIncrementalBackups = Math.max(0,
+        formData.optInt("fullBackupMaxIncrementalBackups", 0));
+    maxReadMegabytesPerSecond = Math.max(0,
+        formData.optInt("maxReadMegabytesPerSecond", 0));
+    maxUploadMegabytesPerSecond = Math.max(0,
+        formData.optInt("maxUploadMegabytesPerSecond", 0));
+    backupCompressionThreads = Math.max(0,
+        formData.optInt("backupCompressionThreads", 0));
+    backupSegmentSizeMegabytes = Math.max(0,
+        formData.optInt("backupSegmentSizeMegabytes", 0));
+    backupUploadThreads = Math.max(1,
+        formData.optInt("backupUploadThreads", 1));
+    shardBackupsByScope = formData.optBoolean("shardBackupsByScope", false);
+    restoreDownloadThreads = Math.max(1, formData.optInt(
+        "restoreDownloadThreads", RestoreProcedure.DEFAULT_DOWNLOAD_THREADS));
+    restorePrefetchVolumes = Math.max(1, formData.optInt(
+        "restorePrefetchVolumes", RestoreProcedure.DEFAULT_PREFETCH_VOLUMES));
+    restorePrefetchMegabytes = Math.max(0, formData.optInt(
+        "restorePrefetchMegabytes", (int)
+            (RestoreProcedure.DEFAULT_PREFETCH_BYTES / BYTES_PER_MEGABYTE)));
+    restoreExtractionThreads = Math.max(1,
+        formData.optInt("restoreExtractionThreads", 1));
+    volumeBufferKilobytes = Math.max(1, formData.optInt(
+        "volumeBufferKilobytes",
+        BufferPool.DEFAULT_BUFFER_SIZE / BYTES_PER_KILOBYTE));
+    directVolumeBuffers = formData.optBoolean("directVolumeBuffers", false);
+    boolean previousStoreBuildLogTails = storeBuildLogTails;
+    int previousFileDeltaMinKilobytes = fileDeltaMinKilobytes;
+    boolean previousSkipUnchangedFiles = skipUnchangedFiles;
+    storeBuildLogTails = formData.optBoolean("storeBuildLogTails", false);
+    fileDeltaMinKilobytes = Math.max(0,
+        formData.optInt("fileDeltaMinKilobytes", 0));
+    skipUnchangedFiles = formData.optBoolean("skipUnchangedFiles", false);
+    boolean previousSkipCompletedBuilds = skipCompletedBuilds;
+    skipCompletedBuilds = formData.optBoolean("skipCompletedBuilds", false);
+    if (skipCompletedBuilds != previousSkipCompletedBuilds) {
+      // builds would be outdated by backups not recording them
+      getCompletedBuilds().clear();
+    }
+    if (storeBuildLogTails != previousStoreBuildLogTails
+        || fileDeltaMinKilobytes != previousFileDeltaMinKilobytes
+        || skipUnchangedFiles != previousSkipUnchangedFiles) {
+      // signatures would be outdated by backups storing whole files
+      getFileSignatures().clear();
+    }
     String providerClazz = formData.optJSONObject("storageProvider")
         .getString("stapler-class");
     Descriptor<?> descriptor =
@@ -192,6 +411,8 @@ public class CloudBackupPlugin extends Plugin {
       newScopes.add(scope);
     }
     this.backupScopes = newScopes;
+    // the existing files of a scope depend on its configuration
+    scopeSchedules.forgetExistingFiles();
 
     // If the user incorrectly configured the storage provider do not enable
     // backups or restores.
@@ -208,6 +429,10 @@ public class CloudBackupPlugin extends Plugin {
       lastBackupTime = null;
       lastFullBackupTime = null;
       lastBackupFailed = false;
+      // the new location has none of the files the signatures were stored in
+      getFileSignatures().clear();
+      getCompletedBuilds().clear();
+      scopeSchedules.clear();
     }
 
     // Enable backups/restores if specified.
@@ -224,6 +449,9 @@ public class CloudBackupPlugin extends Plugin {
    */
   @Override
   public void start() throws Exception {
+    BackupMetrics.get().register();
+    runHistory = new BackupRunHistory(calculateJenkinsHome());
+    runHistory.load();
     load();
     updateBackupProcedure();
     save();
@@ -313,6 +541,296 @@ public class CloudBackupPlugin extends Plugin {
     return incrementalBackupIntervalMinutes;
   }
 
+  /**
+   * Returns the maximum size of the local cache of backup volumes, in
+   * megabytes. A size of zero disables the cache.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the maximum size of the local cache in megabytes.
+   */
+  public int getLocalCacheSizeMegabytes() {
+    return localCacheSizeMegabytes;
+  }
+
+  /**
+   * Returns how often a failed operation of the backup storage is retried,
+   * with increasing delays. Zero disables retries.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the number of retries of a failed storage operation.
+   */
+  public int getStorageRetries() {
+    return storageRetries;
+  }
+
+  /**
+   * Returns the number of hours for which the latest full backup is kept, in
+   * addition to the current backup.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the number of hourly full backups to keep.
+   */
+  public int getKeepHourlyBackups() {
+    return keepHourlyBackups;
+  }
+
+  /**
+   * Returns the number of days for which the latest full backup is kept, in
+   * addition to the current backup.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the number of daily full backups to keep.
+   */
+  public int getKeepDailyBackups() {
+    return keepDailyBackups;
+  }
+
+  /**
+   * Returns the number of weeks for which the latest full backup is kept, in
+   * addition to the current backup.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the number of weekly full backups to keep.
+   */
+  public int getKeepWeeklyBackups() {
+    return keepWeeklyBackups;
+  }
+
+  /**
+   * Returns the number of backup volumes in the latest backup chain above
+   * which the incremental backups are compacted. Zero disables compaction.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the maximum length of the backup chain.
+   */
+  public int getMaxIncrementalChainLength() {
+    return maxIncrementalChainLength;
+  }
+
+  /**
+   * Returns the size of all incremental backups since the last full backup,
+   * in percent of the size of the full backup, that triggers a new full
+   * backup. Zero disables the limit.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the size limit in percent.
+   */
+  public int getFullBackupIncrementalSizePercent() {
+    return fullBackupIncrementalSizePercent;
+  }
+
+  /**
+   * Returns the number of incremental backups since the last full backup that
+   * triggers a new full backup. Zero disables the limit.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the maximum number of incremental backups.
+   */
+  public int getFullBackupMaxIncrementalBackups() {
+    return fullBackupMaxIncrementalBackups;
+  }
+
+  /**
+   * Returns the maximum number of megabytes per second backups read from
+   * disk. Zero means unlimited.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the read limit in megabytes per second.
+   */
+  public int getMaxReadMegabytesPerSecond() {
+    return maxReadMegabytesPerSecond;
+  }
+
+  /**
+   * Returns the maximum number of megabytes per second backups upload to the
+   * storage. Zero means unlimited.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the upload limit in megabytes per second.
+   */
+  public int getMaxUploadMegabytesPerSecond() {
+    return maxUploadMegabytesPerSecond;
+  }
+
+  /**
+   * Returns the number of threads compressing files during a backup. Zero
+   * means backups are not pipelined.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the number of compression threads.
+   */
+  public int getBackupCompressionThreads() {
+    return backupCompressionThreads;
+  }
+
+  /**
+   * Returns the uncompressed size of the files in a volume segment of a
+   * pipelined backup, in megabytes. Zero means unlimited.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the segment size in megabytes.
+   */
+  public int getBackupSegmentSizeMegabytes() {
+    return backupSegmentSizeMegabytes;
+  }
+
+  /**
+   * Returns the number of threads uploading the volume segments of a
+   * pipelined backup.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the number of upload threads.
+   */
+  public int getBackupUploadThreads() {
+    return backupUploadThreads;
+  }
+
+  /**
+   * Returns whether pipelined backups write separate volume segments for
+   * every backup scope.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  whether backups are sharded by scope.
+   */
+  public boolean getShardBackupsByScope() {
+    return shardBackupsByScope;
+  }
+
+  /**
+   * Returns the number of backup volumes downloaded at the same time during
+   * a restore.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the number of restore download threads.
+   */
+  public int getRestoreDownloadThreads() {
+    return restoreDownloadThreads;
+  }
+
+  /**
+   * Returns the maximum number of backup volumes downloaded ahead of their
+   * extraction during a restore.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the maximum number of prefetched volumes.
+   */
+  public int getRestorePrefetchVolumes() {
+    return restorePrefetchVolumes;
+  }
+
+  /**
+   * Returns the size of the downloaded backup volumes waiting for extraction
+   * from which a restore stops downloading further volumes.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the maximum size of prefetched volumes, in megabytes.
+   */
+  public int getRestorePrefetchMegabytes() {
+    return restorePrefetchMegabytes;
+  }
+
+  /**
+   * Returns the number of threads writing the files of a single backup
+   * volume during a restore.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the number of extraction threads per volume.
+   */
+  public int getRestoreExtractionThreads() {
+    return restoreExtractionThreads;
+  }
+
+  /**
+   * Returns the size of the buffers through which file contents are copied
+   * into and out of backup volumes.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the size of the volume buffers, in kilobytes.
+   */
+  public int getVolumeBufferKilobytes() {
+    return volumeBufferKilobytes;
+  }
+
+  /**
+   * Returns whether the buffers for file contents of backup volumes are
+   * allocated outside of the Java heap.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  whether direct volume buffers are used.
+   */
+  public boolean getDirectVolumeBuffers() {
+    return directVolumeBuffers;
+  }
+
+  /**
+   * Returns whether incremental backups only store the bytes appended to
+   * build logs since the previous backup.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  whether build log tails are stored.
+   */
+  public boolean getStoreBuildLogTails() {
+    return storeBuildLogTails;
+  }
+
+  /**
+   * Returns the minimum size, in kilobytes, of files which incremental
+   * backups store as deltas against their previous version, or 0 if no
+   * deltas are stored.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  the minimum size of files stored as deltas.
+   */
+  public int getFileDeltaMinKilobytes() {
+    return fileDeltaMinKilobytes;
+  }
+
+  /**
+   * Returns whether incremental backups skip files whose content has not
+   * changed since the previous backup, although they have been modified.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  whether unchanged files are skipped.
+   */
+  public boolean getSkipUnchangedFiles() {
+    return skipUnchangedFiles;
+  }
+
+  /**
+   * Returns whether incremental backups skip walking the directories of
+   * builds that were complete when the previous backup walked them.
+   *
+   * <p>The method is used by Jenkins via config.jelly.
+   *
+   * @return  whether completed builds are skipped.
+   */
+  public boolean getSkipCompletedBuilds() {
+    return skipCompletedBuilds;
+  }
+
   public Path calculateJenkinsHome() {
     return Jenkins.getActiveInstance().getRootDir().toPath();
   }
@@ -373,10 +891,33 @@ public class CloudBackupPlugin extends Plugin {
     manualBackupRequested.set(requested);
   }
 
+  /**
+   * Returns the procedure for the next full backup. If synthetic full backups
+   * are enabled and the backup chain is in a good state, the full backup is
+   * merged from the existing chain. A full backup requested by an admin, or
+   * following a failed backup, always reads JENKINS_HOME.
+   */
   public BackupProcedure getFullBackupProcedure() {
+    if (syntheticFullBackups && lastBackupTime != null
+        && lastFullBackupTime != null
+        && lastBackupTime.isAfter(lastFullBackupTime)
+        && !lastBackupFailed && !manualBackupRequested.get()) {
+      return new SyntheticFullBackupProcedure(
+          getBackupVolume(), module.getScope(), module.getStorage(),
+          module.getBackupHistory(), calculateJenkinsHome(),
+          getScratchDirectory(), lastBackupTime, historyExecutor);
+    }
     return fullBackupProcedure;
   }
 
+  /**
+   * Returns the volume used for creating backups, which records metrics.
+   * Files are read through the read throttle set on the module's volume.
+   */
+  private Volume getBackupVolume() {
+    return new MeteredVolume(module.getVolume(), BackupMetrics.get());
+  }
+
   public CloudBackupMainModule getCloudBackupMainModule() {
     return module;
   }
@@ -386,23 +927,264 @@ public class CloudBackupPlugin extends Plugin {
   }
 
   public BackupProcedure getIncrementalBackupProcedure() {
-    FilteringScope filteringScope = new FilteringScope(
-        new IncrementalScope(
-            module.getScope(),
-            FileTime.fromMillis(lastBackupTime.getMillis())));
+    boolean verification = false;
+    if (skipCompletedBuilds) {
+      // walk all builds once in a while, in case synthetic full backups
+      // replace the full backups, which always do
+      verification = getCompletedBuilds().isVerificationDue();
+    }
+    FilteringScope filteringScope =
+        new FilteringScope(createScheduledScope(true, verification));
     // exclude the log file of the periodic worker, because this file will
     // always be dirty when checking for incremental updates.
     filteringScope.addExclusion(
             CloudBackupAsyncPeriodicWork.getLogFileName());
 
-    return new BackupProcedure(
-        module.getVolume(),
+    BackupProcedure procedure = createBackupProcedure(
         filteringScope,
         new IncrementalBackupStorage(module.getStorage()),
         new KeepAllBackupHistory(),  // keep backups until next full backup
-        calculateJenkinsHome(),
-        getScratchDirectory(),
-        INCREMENTAL_BACKUP_NAME_SUFFIX);
+        INCREMENTAL_BACKUP_NAME_SUFFIX, true);
+    if (skipCompletedBuilds) {
+      procedure.setCompletedBuilds(getCompletedBuilds(), verification);
+    }
+    return procedure;
+  }
+
+  /**
+   * Creates the scope of a backup, combining the configured scopes, each of
+   * which is walked on its own schedule by incremental backups.
+   *
+   * @param incremental whether the scope is for an incremental backup, which
+   * only adds the files modified since the latest walk of their scope.
+   * @param verification whether to walk all scopes and all build directories,
+   * e.g. for a full backup.
+   */
+  private Scope createScheduledScope(boolean incremental,
+      boolean verification) {
+    MultiScope combinedScope = new MultiScope();
+    for (ConfigurableScope configurableScope : backupScopes) {
+      String scopeName = configurableScope.getScopeName();
+      Scope scope = configurableScope;
+      if (skipCompletedBuilds) {
+        scope = new CompletedBuildsScope(scope, getCompletedBuilds(),
+            !verification);
+      }
+      if (incremental) {
+        DateTime since = scopeSchedules.getLastWalkTime(scopeName);
+        if (since == null || since.isAfter(lastBackupTime)) {
+          since = lastBackupTime;
+        }
+        scope = new IncrementalScope(scope,
+            FileTime.fromMillis(since.getMillis()));
+      }
+      scope = new ScheduledScope(scope, scopeName,
+          configurableScope.getIncrementalBackupIntervalMinutes(),
+          scopeSchedules, verification || !incremental);
+      combinedScope.addSubScope(scope, scopeName + "/");
+    }
+    return combinedScope;
+  }
+
+  /**
+   * Creates a procedure backing up the given scope, which is pipelined if
+   * compression threads are configured. If configured, incremental backups
+   * store large files as deltas and build logs as tails, and full backups
+   * record the signatures the next incremental backup needs for that.
+   */
+  private BackupProcedure createBackupProcedure(Scope scope, Storage storage,
+      BackupHistory backupHistory, @Nullable String backupNameSuffix,
+      boolean incremental) {
+    Volume volume = getBackupVolume();
+    FileSignatures fileSignatures = null;
+    if (fileDeltaMinKilobytes > 0) {
+      fileSignatures = getFileSignatures();
+      BlockDeltaVolume blockDeltaVolume = new BlockDeltaVolume(volume,
+          fileSignatures, (long) fileDeltaMinKilobytes * BYTES_PER_KILOBYTE,
+          incremental);
+      blockDeltaVolume.setReadThrottle(readThrottle);
+      volume = blockDeltaVolume;
+    }
+    if (skipUnchangedFiles) {
+      fileSignatures = getFileSignatures();
+      // larger files are fingerprinted by their block signatures
+      long maxSizeBytes = fileDeltaMinKilobytes > 0
+          ? (long) fileDeltaMinKilobytes * BYTES_PER_KILOBYTE
+          : FingerprintingVolume.DEFAULT_MAX_SIZE_BYTES;
+      FingerprintingVolume fingerprintingVolume = new FingerprintingVolume(
+          volume, fileSignatures, maxSizeBytes, incremental);
+      fingerprintingVolume.setReadThrottle(readThrottle);
+      volume = fingerprintingVolume;
+    }
+    if (storeBuildLogTails && incremental) {
+      fileSignatures = getFileSignatures();
+      TailDeltaVolume tailDeltaVolume =
+          new TailDeltaVolume(volume, fileSignatures);
+      tailDeltaVolume.setReadThrottle(readThrottle);
+      volume = tailDeltaVolume;
+    }
+    BackupProcedure procedure;
+    if (backupCompressionThreads > 0) {
+      procedure = new PipelinedBackupProcedure(volume, scope, storage,
+          backupHistory, calculateJenkinsHome(), getScratchDirectory(),
+          backupNameSuffix, historyExecutor, backupCompressionThreads,
+          backupSegmentSizeMegabytes * BYTES_PER_MEGABYTE,
+          backupUploadThreads, shardBackupsByScope);
+    } else {
+      procedure = new BackupProcedure(volume, scope, storage, backupHistory,
+          calculateJenkinsHome(), getScratchDirectory(), backupNameSuffix,
+          historyExecutor);
+    }
+    procedure.setFileSignatures(fileSignatures, !incremental);
+    procedure.setScopeSchedules(scopeSchedules);
+    return procedure;
+  }
+
+  /**
+   * Returns the signatures of the files stored by the latest backups, which
+   * are kept in the scratch directory.
+   */
+  private synchronized FileSignatures getFileSignatures() {
+    if (fileSignatures == null) {
+      fileSignatures = new FileSignatures(getScratchDirectory());
+      fileSignatures.load();
+    }
+    return fileSignatures;
+  }
+
+  /**
+   * Returns the builds the latest backups found complete, which are kept in
+   * the scratch directory.
+   */
+  private synchronized CompletedBuilds getCompletedBuilds() {
+    if (completedBuilds == null) {
+      completedBuilds = new CompletedBuilds(getScratchDirectory());
+      completedBuilds.load();
+    }
+    return completedBuilds;
+  }
+
+  /**
+   * Returns the procedure compacting the latest backup chain, or null if
+   * compaction is disabled.
+   */
+  @Nullable
+  public ChainCompactionProcedure getChainCompactionProcedure() {
+    if (maxIncrementalChainLength <= 0) {
+      return null;
+    }
+    return new ChainCompactionProcedure(
+        getBackupVolume(), module.getScope(), module.getStorage(),
+        getScratchDirectory(), maxIncrementalChainLength);
+  }
+
+  /**
+   * Compacts the latest backup chain in the background if it grew too long,
+   * so that backups and restores are not held up by the merge. At most one
+   * compaction is pending at a time, and failures are only logged.
+   */
+  public void scheduleChainCompaction() {
+    final ChainCompactionProcedure compactionProcedure =
+        getChainCompactionProcedure();
+    if (compactionProcedure == null
+        || !chainCompactionPending.compareAndSet(false, true)) {
+      return;
+    }
+    historyExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (compactionProcedure.compactIfNeeded(
+              new ChainCompactionProcedure.BackupExclusion() {
+                @Override
+                public boolean begin() {
+                  return beginBackupOrRestore();
+                }
+
+                @Override
+                public void end() {
+                  endBackupOrRestore();
+                }
+              })) {
+            recordBackupChainCompacted();
+          }
+        } catch (IOException e) {
+          logger.log(Level.WARNING,
+              "IOException while compacting backup chain", e);
+        } finally {
+          chainCompactionPending.set(false);
+        }
+      }
+    });
+  }
+
+  /**
+   * Records the size of a newly stored backup volume. A full backup starts a
+   * new chain of incremental backups.
+   */
+  public synchronized void recordBackupVolume(boolean fullBackup,
+      long sizeBytes) {
+    if (fullBackup) {
+      fullBackupSizeBytes = sizeBytes;
+      incrementalBackupsSizeBytes = 0;
+      incrementalBackupCount = 0;
+    } else if (sizeBytes > 0) {
+      incrementalBackupsSizeBytes += sizeBytes;
+      incrementalBackupCount++;
+    }
+    BackupMetrics.get().set(BackupMetrics.Gauge.INCREMENTAL_CHAIN_LENGTH,
+        incrementalBackupCount);
+  }
+
+  /**
+   * Records that the incremental backups since the last full backup have been
+   * merged into a single volume. Their total size is kept as an upper bound.
+   */
+  public synchronized void recordBackupChainCompacted() {
+    incrementalBackupCount = Math.min(incrementalBackupCount, 1);
+    BackupMetrics.get().set(BackupMetrics.Gauge.INCREMENTAL_CHAIN_LENGTH,
+        incrementalBackupCount);
+  }
+
+  /**
+   * Adds a finished backup or restore run to the history of recent runs.
+   */
+  public void recordBackupRun(BackupRun run) {
+    if (runHistory != null) {
+      runHistory.add(run);
+    }
+  }
+
+  /**
+   * Returns the recent backup and restore runs, most recent first.
+   */
+  public List<BackupRun> getBackupRuns() {
+    if (runHistory == null) {
+      return Collections.emptyList();
+    }
+    return runHistory.getRuns();
+  }
+
+  /**
+   * Returns the size of the last full backup, or zero if unknown.
+   */
+  public synchronized long getFullBackupSizeBytes() {
+    return fullBackupSizeBytes;
+  }
+
+  /**
+   * Returns the total size of the incremental backups since the last full
+   * backup.
+   */
+  public synchronized long getIncrementalBackupsSizeBytes() {
+    return incrementalBackupsSizeBytes;
+  }
+
+  /**
+   * Returns the number of incremental backups since the last full backup.
+   */
+  public synchronized int getIncrementalBackupCount() {
+    return incrementalBackupCount;
   }
 
   public void setLastBackupFailed(boolean lastBackupFailed) {
@@ -23,7 +23,11 @@ import static hudson.init.InitMilestone.EXTENSIONS_AUGMENTED;
 
 import com.google.jenkins.plugins.cloudbackup.CloudBackupMainModule;
 import com.google.jenkins.plugins.cloudbackup.CloudBackupPlugin;
+import com.google.jenkins.plugins.cloudbackup.metrics.BackupMetrics;
+import com.google.jenkins.plugins.cloudbackup.metrics.BackupRun;
+import com.google.jenkins.plugins.cloudbackup.restore.RestoreJournal;
 import com.google.jenkins.plugins.cloudbackup.restore.RestoreProcedure;
+import com.google.jenkins.plugins.cloudbackup.volume.zip.ZipVolume;
 
 import hudson.init.Initializer;
 
@@ -74,17 +78,32 @@ public class AutoRestoreInitializer {
         return;
       }
 
+      if (module.getVolume() instanceof ZipVolume) {
+        ((ZipVolume) module.getVolume()).setExtractionThreads(
+            plugin.getRestoreExtractionThreads());
+      }
+
       synchronized (RestoreLog.getLock()) {
         RestoreProcedure restoreProcedure = new RestoreProcedure(
             module.getVolume(), module.getScope(), module.getStorage(),
             new RestartAfterRestoreStrategy(new RestoreLog(
                 jenkinsHomePath)), jenkinsHomePath, scratchDirectory,
-            plugin.getRestoreOverwritesData());
+            plugin.getRestoreOverwritesData(),
+            new RestoreJournal(jenkinsHomePath));
+        restoreProcedure.setPrefetchLimits(plugin.getRestoreDownloadThreads(),
+            plugin.getRestorePrefetchVolumes(),
+            plugin.getRestorePrefetchMegabytes() * 1024L * 1024L);
+        BackupRun.Recorder runRecorder =
+            BackupRun.start("Restore", BackupMetrics.get());
+        boolean success = false;
         try {
           restoreProcedure.performRestore();
+          success = true;
         } catch (IOException | RuntimeException e) {
           throw new IllegalStateException(
               "Could not restore and initialize jenkins", e);
+        } finally {
+          plugin.recordBackupRun(runRecorder.finish(success));
         }
       }
     } finally {
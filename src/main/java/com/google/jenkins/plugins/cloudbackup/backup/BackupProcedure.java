@@ -15,9 +15,16 @@
  */
 package com.google.jenkins.plugins.cloudbackup.backup;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.jenkins.plugins.cloudbackup.VersionUtility;
 import com.google.jenkins.plugins.cloudbackup.history.BackupHistory;
+import com.google.jenkins.plugins.cloudbackup.metrics.BackupMetrics;
+import com.google.jenkins.plugins.cloudbackup.metrics.FlightRecorderEvent;
+import com.google.jenkins.plugins.cloudbackup.scope.CompletedBuilds;
+import com.google.jenkins.plugins.cloudbackup.scope.CompletedBuildsScope;
+import com.google.jenkins.plugins.cloudbackup.scope.ScheduledScope;
 import com.google.jenkins.plugins.cloudbackup.scope.Scope;
+import com.google.jenkins.plugins.cloudbackup.scope.ScopeSchedules;
 import com.google.jenkins.plugins.cloudbackup.storage.Storage;
 import com.google.jenkins.plugins.cloudbackup.volume.Volume;
 
@@ -25,12 +32,20 @@ import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,6 +65,8 @@ public class BackupProcedure {
 
   private static final String TMP_DIR_PREFIX
       = "google-cloud-backup-plugin";
+  private static final String PENDING_UPLOAD_DIRECTORY = "pending-upload";
+  private static final String EXISTING_FILES_HASH_ALGORITHM = "SHA-1";
 
   private final Volume volume;
   private final Scope scope;
@@ -58,6 +75,18 @@ public class BackupProcedure {
   private final Path jenkinsHome;
   private final Path tempDir;
   private final String backupNameSuffix;
+  private final Executor historyExecutor;
+  private final AtomicLong lastVolumeSizeBytes = new AtomicLong();
+  private final BackupMetrics metrics = BackupMetrics.get();
+  private DateTime backupTime;
+  @Nullable
+  private FileSignatures fileSignatures;
+  private boolean fullBackup;
+  @Nullable
+  private CompletedBuilds completedBuilds;
+  private boolean verifyCompletedBuilds;
+  @Nullable
+  private ScopeSchedules scopeSchedules;
 
   /**
    * Creates a new backup procedure with the given extension point
@@ -76,6 +105,31 @@ public class BackupProcedure {
       BackupHistory backupHistory, Path jenkinsHome,
       @Nullable Path tempDir,
       @Nullable String backupNameSuffix) {
+    this(volume, scope, storage, backupHistory, jenkinsHome, tempDir,
+        backupNameSuffix, MoreExecutors.sameThreadExecutor());
+  }
+
+  /**
+   * Creates a new backup procedure with the given extension point
+   * implementations, applying the backup history policy using the given
+   * executor. This allows deleting old backups in the background, after the
+   * new backup has been stored and recorded as the latest backup.
+   *
+   * @param volume the {@link Volume} to use for the backup.
+   * @param scope the {@link Scope} to use for the backup.
+   * @param storage  the {@link Storage} to use for the backup.
+   * @param backupHistory the {@link BackupHistory} to use for the backup.
+   * @param jenkinsHome path to the JENKINS_HOME directory.
+   * @param tempDir optional path to the directory to use for scratch files.
+   * @param backupNameSuffix an optional suffix to the backup filename
+   * @param historyExecutor the executor to apply the backup history policy.
+   */
+  public BackupProcedure(
+      Volume volume, Scope scope, Storage storage,
+      BackupHistory backupHistory, Path jenkinsHome,
+      @Nullable Path tempDir,
+      @Nullable String backupNameSuffix,
+      Executor historyExecutor) {
     this.volume = volume;
     this.scope = scope;
     this.storage = storage;
@@ -83,18 +137,76 @@ public class BackupProcedure {
     this.jenkinsHome = jenkinsHome;
     this.tempDir = tempDir;
     this.backupNameSuffix = backupNameSuffix;
+    this.historyExecutor = historyExecutor;
+  }
+
+  /**
+   * Sets the signatures recorded by the volume of this procedure, e.g. a
+   * {@link TailDeltaVolume}. They are committed once a backup has been
+   * recorded. If nothing changed since the backup that recorded them, the
+   * backup is not recorded at all.
+   *
+   * @param fileSignatures the signatures, or null.
+   * @param fullBackup whether this procedure creates full backups, whose
+   * signatures replace the earlier ones.
+   */
+  public void setFileSignatures(@Nullable FileSignatures fileSignatures,
+      boolean fullBackup) {
+    this.fileSignatures = fileSignatures;
+    this.fullBackup = fullBackup;
+  }
+
+  /**
+   * Sets the completed builds recorded by the scope of this procedure, see
+   * {@link CompletedBuildsScope}. They are committed once a backup has been
+   * recorded.
+   *
+   * @param completedBuilds the completed builds, or null.
+   * @param verification whether the scope walks all build directories, so
+   * that the builds it records replace the earlier ones.
+   */
+  public void setCompletedBuilds(@Nullable CompletedBuilds completedBuilds,
+      boolean verification) {
+    this.completedBuilds = completedBuilds;
+    this.verifyCompletedBuilds = verification;
+  }
+
+  /**
+   * Sets the schedules recorded by the scope of this procedure, see
+   * {@link ScheduledScope}. They are committed once a backup has been
+   * recorded.
+   */
+  public void setScopeSchedules(@Nullable ScopeSchedules scopeSchedules) {
+    this.scopeSchedules = scopeSchedules;
   }
 
   /**
    * Performs a backup employing the extension point implementations provided
    * in the constructor.
    *
+   * If a volume of the same kind of backup was completed before, but could
+   * not be stored, that volume is stored instead of creating a new one.
+   *
    * @return the date and time the backup was taken.
    * @throws IOException if backup creation fails.
    */
   public DateTime performBackup() throws IOException {
+    PendingUpload pendingUpload = getPendingUpload();
+    if (pendingUpload != null) {
+      return resumePendingUpload(pendingUpload);
+    }
+
     logger.fine("Start creating backup");
-    final DateTime backupTime = new DateTime(DateTimeZone.UTC);
+    backupTime = new DateTime(DateTimeZone.UTC);
+    if (fileSignatures != null) {
+      fileSignatures.begin(fullBackup);
+    }
+    if (completedBuilds != null) {
+      completedBuilds.begin(verifyCompletedBuilds);
+    }
+    if (scopeSchedules != null) {
+      scopeSchedules.begin(backupTime);
+    }
     // This is a no-op if the scratch directory already exists.
     if (tempDir != null) {
       Files.createDirectories(tempDir);
@@ -102,58 +214,316 @@ public class BackupProcedure {
     final Path tempDirectory = tempDir == null
         ? Files.createTempDirectory(TMP_DIR_PREFIX)
         : Files.createTempDirectory(tempDir, TMP_DIR_PREFIX);
-    final String backupVolumeName = calculateBackupName(backupTime)
-        + (backupNameSuffix != null ? backupNameSuffix : "")
-        + "." + volume.getFileExtension();
+    final String backupName = calculateBackupName(backupTime)
+        + getBackupNameSuffix();
     logger.fine("Using temporary directory: " + tempDirectory);
-    final Path volumePath = tempDirectory.resolve(Paths.get(backupVolumeName));
 
+    lastVolumeSizeBytes.set(0);
+    try {
+      Set<String> existingFileNames = new HashSet<>();
+      List<String> volumeNames =
+          createAndStoreVolumes(backupName, existingFileNames, tempDirectory);
+      metrics.increment(BackupMetrics.Counter.FILES_VISITED,
+          existingFileNames.size());
+      recordBackup(volumeNames, existingFileNames);
+    } finally {
+      // cleanup after ourselves
+      try {
+        logger.fine("Deleting temp directory");
+        Files.deleteIfExists(tempDirectory);
+      } catch (IOException e) {
+        // be silent about cleanup errors, only log them
+        logger.log(Level.FINE, "IOException while performing cleanup", e);
+      }
+    }
+    logger.fine("Finished creating backup");
+    return backupTime;
+  }
+
+  /**
+   * Returns the volume of this kind of backup that is still waiting to be
+   * stored, or null if there is none. A pending volume of another kind of
+   * backup is outdated by this backup, and is discarded.
+   */
+  @Nullable
+  private PendingUpload getPendingUpload() {
+    Path pendingUploadDirectory = getPendingUploadDirectory();
+    if (pendingUploadDirectory == null) {
+      return null;
+    }
+    PendingUpload pendingUpload = PendingUpload.load(pendingUploadDirectory);
+    if (pendingUpload != null && isResumable()
+        && pendingUpload.getBackupNameSuffix().equals(getBackupNameSuffix())
+        && pendingUpload.getVolumeName()
+            .endsWith("." + volume.getFileExtension())) {
+      return pendingUpload;
+    }
+    PendingUpload.discard(pendingUploadDirectory);
+    return null;
+  }
+
+  private DateTime resumePendingUpload(PendingUpload pendingUpload)
+      throws IOException {
+    logger.info("Resuming backup with pending volume "
+        + pendingUpload.getVolumeName());
+    lastVolumeSizeBytes.set(0);
+    storeVolume(pendingUpload.getVolumePath(), pendingUpload.getVolumeName());
+    recordBackup(Arrays.asList(pendingUpload.getVolumeName()),
+        pendingUpload.getExistingFileNames());
+    logger.fine("Finished resuming backup");
+    return pendingUpload.getBackupTime();
+  }
+
+  /**
+   * Records the stored volumes as the latest backup, updates the metadata
+   * and applies the backup history policy. A pending volume has been stored
+   * at this point, and is discarded.
+   */
+  private void recordBackup(List<String> volumeNames,
+      Set<String> existingFileNames) throws IOException {
+    metrics.set(BackupMetrics.Gauge.LAST_BACKUP_SIZE_BYTES,
+        lastVolumeSizeBytes.get());
+    String version = VersionUtility.getFileSystemVersion(jenkinsHome);
+    byte[] existingFilesHash = null;
+    if (fileSignatures != null) {
+      existingFilesHash = hashExistingFiles(existingFileNames, version);
+      if (volumeNames.isEmpty()
+          && fileSignatures.isRecorded(existingFilesHash)) {
+        logger.fine("Nothing changed, will skip updating metadata");
+        fileSignatures.commit(existingFilesHash);
+        commitScopeState();
+        return;
+      }
+    }
+    long start = System.nanoTime();
+    FlightRecorderEvent event =
+        FlightRecorderEvent.begin(FlightRecorderEvent.Type.METADATA_WRITE);
+    if (!volumeNames.isEmpty()) {
+      logger.fine("Updating last backup reference");
+      storage.updateLastBackup(volumeNames);
+    }
+
+    logger.fine("Updating list of existing files : Size " + existingFileNames.size());
+    storage.updateExistingFilesMetaData(existingFileNames);
+
+    logger.fine("Updating version : " + version);
+    storage.updateVersionInfo(version);
+    metrics.record(BackupMetrics.Phase.METADATA, System.nanoTime() - start);
+    event.commit((long) volumeNames.size(), (long) existingFileNames.size());
+
+    if (fileSignatures != null) {
+      // a resumed volume was created by an earlier run, whose signatures are
+      // only still known if Jenkins has not been restarted since
+      fileSignatures.commit(existingFilesHash);
+    }
+    commitScopeState();
+
+    Path pendingUploadDirectory = getPendingUploadDirectory();
+    if (pendingUploadDirectory != null) {
+      PendingUpload.discard(pendingUploadDirectory);
+    }
+
+    if (!volumeNames.isEmpty()) {
+      applyBackupHistory(volumeNames.get(0));
+    }
+  }
+
+  /**
+   * Commits the state recorded by the scope of this procedure.
+   */
+  private void commitScopeState() {
+    if (completedBuilds != null) {
+      completedBuilds.commit();
+    }
+    if (scopeSchedules != null) {
+      scopeSchedules.commit();
+    }
+  }
+
+  /**
+   * Returns a hash of the given existing files and Jenkins version, which
+   * identifies the metadata recorded for them.
+   */
+  private static byte[] hashExistingFiles(Set<String> existingFileNames,
+      String version) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(EXISTING_FILES_HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(
+          EXISTING_FILES_HASH_ALGORITHM + " is not available", e);
+    }
+    digest.update(String.valueOf(version).getBytes(StandardCharsets.UTF_8));
+    for (String name : new TreeSet<>(existingFileNames)) {
+      digest.update((byte) '\n');
+      digest.update(name.getBytes(StandardCharsets.UTF_8));
+    }
+    return digest.digest();
+  }
+
+  @Nullable
+  private Path getPendingUploadDirectory() {
+    return tempDir == null ? null : tempDir.resolve(PENDING_UPLOAD_DIRECTORY);
+  }
+
+  private String getBackupNameSuffix() {
+    return backupNameSuffix != null ? backupNameSuffix : "";
+  }
+
+  /**
+   * Returns whether a completed volume of this backup may be stored by a
+   * later backup, if storing it fails. The default implementation returns
+   * true.
+   */
+  protected boolean isResumable() {
+    return true;
+  }
+
+  /**
+   * Returns the total size of the volumes stored by the last call to
+   * {@link #performBackup}, or zero if no volume was stored.
+   */
+  public long getLastVolumeSizeBytes() {
+    return lastVolumeSizeBytes.get();
+  }
+
+  /**
+   * Creates the volumes of this backup and stores them. The default
+   * implementation creates a single volume, and stores it once it is
+   * complete. If the backup is resumable, the completed volume is kept as a
+   * pending upload until the backup has been recorded, so that a failed
+   * upload can be resumed by the next backup.
+   *
+   * @param backupName the name of the backup, without file extension.
+   * @param existingFileNames collects the names of all files that currently
+   * exist in the backup.
+   * @param tempDirectory the scratch directory of this backup run. Volumes
+   * created in it must be deleted before returning.
+   * @return the filenames of the stored volumes, in restore order. Empty if
+   * there was nothing to back up.
+   * @throws IOException if creating or storing a volume fails.
+   */
+  protected List<String> createAndStoreVolumes(String backupName,
+      Set<String> existingFileNames, Path tempDirectory) throws IOException {
+    final String backupVolumeName =
+        backupName + "." + volume.getFileExtension();
+    final Path volumePath = tempDirectory.resolve(Paths.get(backupVolumeName));
     try {
       logger.fine("Creating backup volume");
       int fileCount;
-      Set<String> existingFileNames = new HashSet<>();
       try (Volume.Creator creator = volume.createNew(volumePath)) {
-        scope.addFiles(jenkinsHome, creator, existingFileNames);
+        long compressNanos =
+            metrics.getForegroundTotalNanos(BackupMetrics.Phase.COMPRESS);
+        long directories =
+            metrics.get(BackupMetrics.Counter.DIRECTORIES_VISITED);
+        long start = System.nanoTime();
+        FlightRecorderEvent event =
+            FlightRecorderEvent.begin(FlightRecorderEvent.Type.SCOPE_WALK);
+        addFilesToVolume(creator, existingFileNames, tempDirectory);
+        event.commit(
+            metrics.get(BackupMetrics.Counter.DIRECTORIES_VISITED)
+                - directories,
+            (long) existingFileNames.size());
+        // files are compressed while walking, which is recorded separately
+        metrics.record(BackupMetrics.Phase.WALK, System.nanoTime() - start
+            - (metrics.getForegroundTotalNanos(BackupMetrics.Phase.COMPRESS)
+                - compressNanos));
         fileCount = creator.getFileCount();
       } // auto-close creator
 
-      if (fileCount > 0) {
-        logger.fine("Storing backup volume");
-        storage.storeFile(volumePath, backupVolumeName);
-
-        logger.fine("Updating last backup reference");
-        storage.updateLastBackup(Arrays.asList(backupVolumeName));
-
-        logger.fine("Applying backup history policy");
-        backupHistory.processHistoricBackups(storage, backupVolumeName);
-      } else {
+      if (fileCount == 0) {
         logger.fine("Volume is empty, will skip storing backup");
+        return Collections.emptyList();
       }
-
-      // This must happen after processHistoricBackups, which can delete files.
-      logger.fine("Updating list of existing files : Size " + existingFileNames.size());
-      storage.updateExistingFilesMetaData(existingFileNames);
-
-      String version = VersionUtility.getFileSystemVersion(jenkinsHome);
-      logger.fine("Updating version : " + version);
-      storage.updateVersionInfo(version);
+      Path uploadPath = volumePath;
+      Path pendingUploadDirectory = getPendingUploadDirectory();
+      if (pendingUploadDirectory != null && isResumable()) {
+        uploadPath = PendingUpload.create(pendingUploadDirectory, volumePath,
+            backupVolumeName, getBackupNameSuffix(), backupTime,
+            existingFileNames).getVolumePath();
+      }
+      storeVolume(uploadPath, backupVolumeName);
+      return Arrays.asList(backupVolumeName);
     } finally {
-      // cleanup after ourselves
       try {
         logger.fine("Deleting local backup volume");
         Files.deleteIfExists(volumePath);
-        logger.fine("Deleting temp directory");
-        Files.deleteIfExists(tempDirectory);
       } catch (IOException e) {
         // be silent about cleanup errors, only log them
         logger.log(Level.FINE, "IOException while performing cleanup", e);
       }
     }
-    logger.fine("Finished creating backup");
-    return backupTime;
   }
 
-  private static String calculateBackupName(DateTime backupTime) {
+  /**
+   * Stores a completed volume of this backup. May be called concurrently.
+   *
+   * @param volumePath the local volume file.
+   * @param volumeName the filename of the volume in the storage.
+   * @throws IOException if storing the volume fails.
+   */
+  protected final void storeVolume(Path volumePath, String volumeName)
+      throws IOException {
+    long size = sizeOf(volumePath);
+    lastVolumeSizeBytes.addAndGet(size);
+    logger.fine("Storing backup volume " + volumeName);
+    long start = System.nanoTime();
+    storage.storeFile(volumePath, volumeName);
+    metrics.record(BackupMetrics.Phase.UPLOAD, System.nanoTime() - start);
+    metrics.increment(BackupMetrics.Counter.BYTES_UPLOADED, size);
+  }
+
+  /**
+   * Returns the size of the given volume file. The size is only used for
+   * statistics, so it must not fail the backup.
+   */
+  private static long sizeOf(Path volumePath) {
+    try {
+      return Files.size(volumePath);
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Could not determine size of backup volume", e);
+      return 0;
+    }
+  }
+
+  /**
+   * Applies the backup history policy using the history executor. Old
+   * backups are no longer needed at this point, so failures are only logged.
+   */
+  private void applyBackupHistory(final String backupVolumeName) {
+    historyExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          logger.fine("Applying backup history policy");
+          long start = System.nanoTime();
+          backupHistory.processHistoricBackups(storage, backupVolumeName);
+          metrics.record(BackupMetrics.Phase.HISTORY,
+              System.nanoTime() - start);
+        } catch (IOException e) {
+          logger.log(Level.WARNING,
+              "IOException while applying backup history policy", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Adds the files that make up this backup to the new volume. The default
+   * implementation walks JENKINS_HOME using the configured {@link Scope}.
+   *
+   * @param creator the {@link Volume.Creator} of the new backup volume.
+   * @param existingFileNames collects the names of all files that currently
+   * exist in the backup.
+   * @param tempDirectory the scratch directory of this backup run.
+   * @throws IOException if adding the files fails.
+   */
+  protected void addFilesToVolume(Volume.Creator creator,
+      Set<String> existingFileNames, Path tempDirectory) throws IOException {
+    scope.addFiles(jenkinsHome, creator, existingFileNames);
+  }
+
+  static String calculateBackupName(DateTime backupTime) {
     return String.format("backup-%d%02d%02d%02d%02d%02d",
         backupTime.getYear(), backupTime.getMonthOfYear(),
         backupTime.getDayOfMonth(), backupTime.getHourOfDay(),
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.backup;
+
+import com.google.common.base.Preconditions;
+import com.google.jenkins.plugins.cloudbackup.metrics.BackupMetrics;
+import com.google.jenkins.plugins.cloudbackup.volume.BlockSignatures;
+import com.google.jenkins.plugins.cloudbackup.volume.ForwardingVolumeCreator;
+import com.google.jenkins.plugins.cloudbackup.volume.ReadThrottle;
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Volume wrapper, which adds large files as rsync-like deltas against the
+ * version stored by the previous backup, rather than whole.
+ *
+ * Files such as fingerprint databases or the configuration of matrix jobs are
+ * large, but only change in a few places. When such a file is added, the
+ * {@link BlockSignatures} of its current version are computed and recorded
+ * in its {@link FileSignatures.Signature}. If the signature recorded by the
+ * previous backup has block signatures, the file is added as a delta against
+ * them, see {@link Volume.Creator#addFileDelta}, or skipped if it has not
+ * changed at all. Otherwise, and always for full backups, which must not
+ * depend on earlier backups, the file is added whole. Build logs are left to
+ * {@link TailDeltaVolume}.
+ */
+public class BlockDeltaVolume implements Volume {
+
+  private static final Logger logger =
+      Logger.getLogger(BlockDeltaVolume.class.getName());
+
+  private static final String HASH_ALGORITHM = "SHA-1";
+
+  private final Volume volume;
+  private final FileSignatures signatures;
+  private final long minSizeBytes;
+  private final boolean storeDeltas;
+  private volatile ReadThrottle readThrottle = ReadThrottle.NONE;
+
+  /**
+   * @param volume the volume to wrap.
+   * @param signatures the signatures of the files in the latest backups.
+   * @param minSizeBytes the minimum size of files to record signatures of.
+   * @param storeDeltas whether to add deltas, or only to record the
+   * signatures of whole files, e.g. for a full backup.
+   */
+  public BlockDeltaVolume(Volume volume, FileSignatures signatures,
+      long minSizeBytes, boolean storeDeltas) {
+    this.volume = volume;
+    this.signatures = signatures;
+    this.minSizeBytes = minSizeBytes;
+    this.storeDeltas = storeDeltas;
+  }
+
+  /**
+   * Sets the throttle through which files are read for hashing.
+   *
+   * @param readThrottle the throttle for reading files.
+   */
+  public void setReadThrottle(ReadThrottle readThrottle) {
+    this.readThrottle = Preconditions.checkNotNull(readThrottle);
+  }
+
+  @Override
+  public String getFileExtension() {
+    return volume.getFileExtension();
+  }
+
+  @Override
+  public Volume.Creator createNew(Path volumePath) throws IOException {
+    return new BlockDeltaCreator(volume.createNew(volumePath));
+  }
+
+  @Override
+  public Volume.Extractor extract(Path volumePath) throws IOException {
+    return volume.extract(volumePath);
+  }
+
+  private class BlockDeltaCreator extends ForwardingVolumeCreator {
+
+    BlockDeltaCreator(Volume.Creator creator) {
+      super(creator);
+    }
+
+    @Override
+    public void addFile(Path file, String pathInVolume,
+        @Nullable BasicFileAttributes attrs) throws IOException {
+      if (attrs == null) {
+        attrs = Files.readAttributes(file, BasicFileAttributes.class);
+      }
+      if (!attrs.isRegularFile() || attrs.size() < minSizeBytes
+          || TailDeltaVolume.isBuildLog(pathInVolume)) {
+        super.addFile(file, pathInVolume, attrs);
+        return;
+      }
+      FileSignatures.Signature previous =
+          storeDeltas ? signatures.get(pathInVolume) : null;
+      BlockSignatures base = previous == null ? null : previous.getBlocks();
+
+      BasicFileAttributes before =
+          Files.readAttributes(file, BasicFileAttributes.class);
+      MessageDigest digest = newDigest();
+      BlockSignatures blocks;
+      try (FileChannel channel = FileChannel.open(file)) {
+        blocks = BlockSignatures.compute(
+            readThrottle.throttle(channel), before.size(), digest);
+      }
+      byte[] hash = digest.digest();
+      if (base != null && previous.getSize() == blocks.getFileSize()
+          && previous.hashEquals(hash)) {
+        // unchanged, the previous backup stored it already
+        logger.finer("Skipping unchanged file: " + file);
+        BackupMetrics.get().increment(BackupMetrics.Counter.FILES_SKIPPED, 1);
+        return;
+      }
+      if (base != null) {
+        logger.finer("Adding delta of file: " + file);
+        super.addFileDelta(file, pathInVolume, base);
+      } else {
+        super.addFile(file, pathInVolume, attrs);
+      }
+
+      // the stored file is only known to have these signatures if the file
+      // has not been modified while being read
+      BasicFileAttributes after =
+          Files.readAttributes(file, BasicFileAttributes.class);
+      if (after.size() == blocks.getFileSize()
+          && after.lastModifiedTime().equals(before.lastModifiedTime())) {
+        signatures.update(pathInVolume, new FileSignatures.Signature(
+            blocks.getFileSize(), hash, blocks));
+      } else {
+        signatures.remove(pathInVolume);
+      }
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(HASH_ALGORITHM + " is not available",
+          e);
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.backup;
+
+import com.google.jenkins.plugins.cloudbackup.scope.Scope;
+import com.google.jenkins.plugins.cloudbackup.storage.Storage;
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * The procedure that compacts the chain of incremental backups following the
+ * latest full backup.
+ *
+ * Once the chain is longer than the configured maximum, all incremental
+ * backups, recognized by the {@code -incremental} marker in their names, are
+ * merged into a single incremental volume that keeps only the newest copy of
+ * every file they contain. They are replayed on top of the full backup, so
+ * that files stored as tails or deltas are complete in the compacted volume.
+ * The latest backup reference is then replaced by the volumes of
+ * the full backup followed by the compacted volume in a single update, before
+ * the merged volumes are deleted, so a restore always sees a complete chain.
+ * The merge may run concurrently with backups, but the latest backup
+ * reference is only replaced while the given {@link BackupExclusion} is held,
+ * and only if no backup changed the chain in the meantime.
+ */
+public class ChainCompactionProcedure {
+
+  private static final Logger logger =
+      Logger.getLogger(ChainCompactionProcedure.class.getName());
+
+  private static final String TMP_DIR_PREFIX = "google-cloud-backup-plugin";
+  private static final String INCREMENTAL_MARKER = "-incremental";
+  private static final String COMPACTED_BACKUP_NAME_SUFFIX =
+      INCREMENTAL_MARKER + "-compacted";
+
+  /**
+   * Excludes backups and restores while the latest backup chain is replaced.
+   */
+  public interface BackupExclusion {
+    /**
+     * Returns false if a backup or restore is in progress.
+     */
+    boolean begin();
+
+    void end();
+  }
+
+  private static final BackupExclusion NO_CONCURRENT_BACKUPS =
+      new BackupExclusion() {
+        @Override
+        public boolean begin() {
+          return true;
+        }
+
+        @Override
+        public void end() {
+        }
+      };
+
+  private final Volume volume;
+  private final Storage storage;
+  private final Path tempDir;
+  private final int maxChainLength;
+  private final ChainMerger chainMerger;
+
+  /**
+   * Creates a new chain compaction procedure.
+   *
+   * @param volume the {@link Volume} the chain was created with.
+   * @param scope the {@link Scope} the chain was created with.
+   * @param storage the {@link Storage} holding the chain.
+   * @param tempDir optional path to the directory to use for scratch files.
+   * @param maxChainLength the number of volumes, including the full backup,
+   * above which the chain is compacted.
+   */
+  public ChainCompactionProcedure(Volume volume, Scope scope, Storage storage,
+      @Nullable Path tempDir, int maxChainLength) {
+    this.volume = volume;
+    this.storage = storage;
+    this.tempDir = tempDir;
+    this.maxChainLength = maxChainLength;
+    this.chainMerger = new ChainMerger(volume, scope, storage);
+  }
+
+  /**
+   * Compacts the latest backup chain if it exceeds the maximum length. Must
+   * not run concurrently with a backup.
+   *
+   * @return whether the chain was compacted.
+   * @throws IOException if the compaction fails. The chain is left unchanged
+   * in this case.
+   */
+  public boolean compactIfNeeded() throws IOException {
+    return compactIfNeeded(NO_CONCURRENT_BACKUPS);
+  }
+
+  /**
+   * Compacts the latest backup chain if it exceeds the maximum length. The
+   * compacted chain is discarded if a backup or restore is in progress when
+   * it is complete, or if a backup changed the chain in the meantime.
+   *
+   * @param exclusion excludes backups while the chain is replaced.
+   * @return whether the chain was compacted.
+   * @throws IOException if the compaction fails. The chain is left unchanged
+   * in this case.
+   */
+  public boolean compactIfNeeded(BackupExclusion exclusion)
+      throws IOException {
+    List<String> latestBackup = storage.findLatestBackup();
+    if (latestBackup == null || latestBackup.size() <= maxChainLength) {
+      return false;
+    }
+    List<String> chain = new ArrayList<>(latestBackup);
+    // a full backup may consist of several segments
+    int fullVolumes = 1;
+    while (fullVolumes < chain.size()
+        && !chain.get(fullVolumes).contains(INCREMENTAL_MARKER)) {
+      fullVolumes++;
+    }
+    if (fullVolumes == chain.size()) {
+      return false;
+    }
+    List<String> existingFiles = storage.listMetadataForExistingFiles();
+    if (existingFiles.isEmpty()) {
+      logger.warning("No list of existing files, cannot compact backup chain");
+      return false;
+    }
+    List<String> incrementals =
+        new ArrayList<>(chain.subList(fullVolumes, chain.size()));
+    logger.fine("Compacting " + incrementals.size() + " incremental backups");
+
+    if (tempDir != null) {
+      Files.createDirectories(tempDir);
+    }
+    final Path tempDirectory = tempDir == null
+        ? Files.createTempDirectory(TMP_DIR_PREFIX)
+        : Files.createTempDirectory(tempDir, TMP_DIR_PREFIX);
+    final String compactedVolumeName =
+        BackupProcedure.calculateBackupName(new DateTime(DateTimeZone.UTC))
+        + COMPACTED_BACKUP_NAME_SUFFIX + "." + volume.getFileExtension();
+    final Path volumePath = tempDirectory.resolve(compactedVolumeName);
+    try {
+      int fileCount;
+      try (Volume.Creator creator = volume.createNew(volumePath)) {
+        chainMerger.merge(chain.subList(0, fullVolumes), incrementals,
+            existingFiles, tempDirectory, creator, new HashSet<String>());
+        fileCount = creator.getFileCount();
+      } // auto-close creator
+
+      List<String> compactedChain =
+          new ArrayList<>(chain.subList(0, fullVolumes));
+      if (fileCount > 0) {
+        storage.storeFile(volumePath, compactedVolumeName);
+        compactedChain.add(compactedVolumeName);
+      }
+      if (!exclusion.begin()) {
+        logger.fine("Backup in progress, discarding compacted backup chain");
+        if (fileCount > 0) {
+          deleteQuietly(compactedVolumeName);
+        }
+        return false;
+      }
+      try {
+        if (!chain.equals(storage.findLatestBackup())) {
+          logger.fine("Backup chain changed while compacting, discarding "
+              + "compacted backup chain");
+          if (fileCount > 0) {
+            deleteQuietly(compactedVolumeName);
+          }
+          return false;
+        }
+        storage.updateLastBackup(compactedChain);
+      } catch (IOException e) {
+        if (fileCount > 0) {
+          deleteQuietly(compactedVolumeName);
+        }
+        throw e;
+      } finally {
+        exclusion.end();
+      }
+    } finally {
+      // cleanup after ourselves
+      try {
+        Files.deleteIfExists(volumePath);
+        Files.deleteIfExists(tempDirectory);
+      } catch (IOException e) {
+        // be silent about cleanup errors, only log them
+        logger.log(Level.FINE, "IOException while performing cleanup", e);
+      }
+    }
+
+    try {
+      storage.deleteFiles(incrementals);
+    } catch (IOException e) {
+      // the chain no longer refers to these, they are only wasting space
+      logger.log(Level.WARNING, "Failed to delete compacted backups", e);
+    }
+    logger.fine("Finished compacting backup chain");
+    return true;
+  }
+
+  private void deleteQuietly(String filename) {
+    try {
+      storage.deleteFile(filename);
+    } catch (IOException e) {
+      // be silent about cleanup errors, only log them
+      logger.log(Level.FINE, "IOException while performing cleanup", e);
+    }
+  }
+}
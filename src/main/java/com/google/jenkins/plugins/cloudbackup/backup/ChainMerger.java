@@ -0,0 +1,307 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.backup;
+
+import com.google.common.base.Preconditions;
+import com.google.jenkins.plugins.cloudbackup.scope.Scope;
+import com.google.jenkins.plugins.cloudbackup.storage.Storage;
+import com.google.jenkins.plugins.cloudbackup.volume.ForwardingVolumeCreator;
+import com.google.jenkins.plugins.cloudbackup.volume.ForwardingVolumeExtractor;
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Merges a chain of backup volumes, i.e. a full backup followed by its
+ * incremental backups, into a single new volume.
+ *
+ * The volumes are replayed in order into a scratch directory, using the same
+ * {@link Scope} that is used for restoring them, so only the newest copy of
+ * every file survives and files missing from the catalog of existing files
+ * are dropped. The resulting file tree is then added to the new volume.
+ * Volumes may also be merged on top of base volumes, e.g. incremental backups
+ * on top of their full backup, so that tails and deltas of files are
+ * resolved, adding only the files contained in the merged volumes. Only the
+ * files the merged volumes hold parts of are extracted from the base volumes,
+ * which are not loaded at all if there are none.
+ * JENKINS_HOME is never read or written.
+ */
+public class ChainMerger {
+
+  private static final Logger logger =
+      Logger.getLogger(ChainMerger.class.getName());
+
+  private static final String MERGE_DIR_PREFIX = "merge";
+
+  private final Volume volume;
+  private final Scope scope;
+  private final Storage storage;
+
+  /**
+   * Creates a new merger for volumes of the given {@link Volume} type.
+   *
+   * @param volume the {@link Volume} the chain was created with.
+   * @param scope the {@link Scope} the chain was created with.
+   * @param storage the {@link Storage} the chain is stored in.
+   */
+  public ChainMerger(Volume volume, Scope scope, Storage storage) {
+    this.volume = volume;
+    this.scope = scope;
+    this.storage = storage;
+  }
+
+  /**
+   * Merges the given backup volumes into the volume of the given creator.
+   *
+   * @param backupFiles the filenames of the volumes to merge, oldest first.
+   * @param existingFiles the catalog of files that currently exist. Must not
+   * be empty, because a {@link Scope} only replays files listed in a non-empty
+   * catalog correctly.
+   * @param scratchDir the directory to use for scratch files.
+   * @param creator the {@link Volume.Creator} of the merged volume.
+   * @param existingFileNames collects the names of all files added to the
+   * merged volume.
+   * @throws IOException if loading, extracting or adding files fails.
+   */
+  public void merge(List<String> backupFiles, Collection<String> existingFiles,
+      Path scratchDir, Volume.Creator creator, Set<String> existingFileNames)
+      throws IOException {
+    merge(Collections.<String>emptyList(), backupFiles, existingFiles,
+        scratchDir, creator, existingFileNames, null);
+  }
+
+  /**
+   * Merges the given backup volumes into the volume of the given creator, on
+   * top of the given base volumes. Only the files contained in the backup
+   * volumes are added, as whole files, so that files stored as tails or
+   * deltas are complete, while the other files of the base volumes are not.
+   *
+   * @param baseFiles the filenames of the volumes the backup volumes follow,
+   * oldest first, e.g. those of a full backup.
+   * @param backupFiles the filenames of the volumes to merge, oldest first.
+   * @param existingFiles the catalog of files that currently exist. Must not
+   * be empty, because a {@link Scope} only replays files listed in a non-empty
+   * catalog correctly.
+   * @param scratchDir the directory to use for scratch files.
+   * @param creator the {@link Volume.Creator} of the merged volume.
+   * @param existingFileNames collects the names of all files added to the
+   * merged volume.
+   * @throws IOException if loading, extracting or adding files fails.
+   */
+  public void merge(List<String> baseFiles, List<String> backupFiles,
+      Collection<String> existingFiles, Path scratchDir,
+      Volume.Creator creator, Set<String> existingFileNames)
+      throws IOException {
+    merge(baseFiles, backupFiles, existingFiles, scratchDir, creator,
+        existingFileNames, new HashSet<String>());
+  }
+
+  /**
+   * @param mergedNames collects the names of the entries of the backup
+   * volumes, which are the only files added, or null to add all files.
+   */
+  private void merge(List<String> baseFiles, List<String> backupFiles,
+      Collection<String> existingFiles, Path scratchDir,
+      Volume.Creator creator, Set<String> existingFileNames,
+      @Nullable final Set<String> mergedNames) throws IOException {
+    Preconditions.checkArgument(!existingFiles.isEmpty(),
+        "Catalog of existing files is empty");
+    final Path mergeDirectory =
+        Files.createTempDirectory(scratchDir, MERGE_DIR_PREFIX);
+    logger.fine("Merging " + backupFiles.size() + " volume(s) on top of "
+        + baseFiles.size() + " volume(s) in: " + mergeDirectory);
+    List<Path> volumePaths = new ArrayList<>();
+    try {
+      Map<String, Boolean> existingFileMetadataMap = new HashMap<>();
+      for (String filename : existingFiles) {
+        existingFileMetadataMap.put(filename, true);
+      }
+      if (mergedNames == null) {
+        for (String backupFile : backupFiles) {
+          replay(backupFile, scratchDir, mergeDirectory,
+              existingFileMetadataMap, null);
+        }
+      } else {
+        // load the merged volumes first, to learn which files they hold only
+        // parts of, which are the only files needed from the base volumes
+        Set<String> partialNames = new HashSet<>();
+        for (String backupFile : backupFiles) {
+          Path volumePath = load(backupFile, scratchDir);
+          volumePaths.add(volumePath);
+          collectNames(volumePath, mergedNames, partialNames);
+        }
+        if (!partialNames.isEmpty()) {
+          logger.fine("Replaying " + partialNames.size()
+              + " file(s) from base volumes");
+          for (String baseFile : baseFiles) {
+            replay(baseFile, scratchDir, mergeDirectory,
+                existingFileMetadataMap, partialNames);
+          }
+        }
+        for (Path volumePath : volumePaths) {
+          extract(volumePath, mergeDirectory, existingFileMetadataMap, null);
+          Files.deleteIfExists(volumePath);
+        }
+      }
+      logger.fine("Adding merged files to new volume");
+      if (mergedNames != null) {
+        creator = new ForwardingVolumeCreator(creator) {
+          @Override
+          public void addFile(Path file, String pathInVolume,
+              BasicFileAttributes attrs) throws IOException {
+            if (mergedNames.contains(pathInVolume)) {
+              super.addFile(file, pathInVolume, attrs);
+            }
+          }
+        };
+      }
+      scope.addFiles(mergeDirectory, creator, existingFileNames);
+    } finally {
+      for (Path volumePath : volumePaths) {
+        deleteQuietly(volumePath);
+      }
+      deleteRecursively(mergeDirectory);
+    }
+  }
+
+  /**
+   * Loads the given backup volume and extracts it into the merge directory.
+   *
+   * @param names the names of the entries to extract, or null for all.
+   */
+  private void replay(String backupFile, Path scratchDir, Path mergeDirectory,
+      Map<String, Boolean> existingFileMetadataMap,
+      @Nullable Set<String> names) throws IOException {
+    Path volumePath = load(backupFile, scratchDir);
+    try {
+      extract(volumePath, mergeDirectory, existingFileMetadataMap, names);
+    } finally {
+      Files.deleteIfExists(volumePath);
+    }
+  }
+
+  private Path load(String backupFile, Path scratchDir) throws IOException {
+    Path volumePath = scratchDir.resolve(backupFile);
+    logger.fine("Loading backup volume: " + backupFile);
+    try {
+      storage.loadFile(backupFile, volumePath);
+    } catch (IOException e) {
+      deleteQuietly(volumePath);
+      throw e;
+    }
+    return volumePath;
+  }
+
+  /**
+   * Collects the names of the entries of the given volume, and the names of
+   * the files whose first entry in the merged volumes holds part of a file.
+   */
+  private void collectNames(Path volumePath, Set<String> mergedNames,
+      Set<String> partialNames) throws IOException {
+    try (Volume.Extractor extractor = volume.extract(volumePath)) {
+      for (Volume.Entry entry : extractor) {
+        if (mergedNames.add(entry.getName()) && entry.isPartial()) {
+          partialNames.add(entry.getName());
+        }
+      }
+    } // auto-close extractor
+  }
+
+  /**
+   * Extracts the given backup volume into the merge directory.
+   *
+   * @param names the names of the entries to extract, or null for all.
+   */
+  private void extract(Path volumePath, Path mergeDirectory,
+      Map<String, Boolean> existingFileMetadataMap,
+      @Nullable final Set<String> names) throws IOException {
+    logger.fine("Replaying backup volume: " + volumePath.getFileName());
+    try (Volume.Extractor extractor = volume.extract(volumePath)) {
+      Volume.Extractor entries = extractor;
+      if (names != null) {
+        entries = new ForwardingVolumeExtractor(extractor) {
+          @Override
+          public Iterator<Volume.Entry> iterator() {
+            List<Volume.Entry> matching = new ArrayList<>();
+            Iterator<Volume.Entry> all = super.iterator();
+            while (all.hasNext()) {
+              Volume.Entry entry = all.next();
+              if (names.contains(entry.getName())) {
+                matching.add(entry);
+              }
+            }
+            return matching.iterator();
+          }
+        };
+      }
+      scope.extractFiles(mergeDirectory, entries, true,
+          existingFileMetadataMap);
+    } // auto-close extractor
+  }
+
+  private static void deleteQuietly(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      // be silent about cleanup errors, only log them
+      logger.log(Level.FINE, "IOException while performing cleanup", e);
+    }
+  }
+
+  private static void deleteRecursively(Path directory) {
+    try {
+      Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+            throws IOException {
+          Files.delete(file);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException e)
+            throws IOException {
+          if (e != null) {
+            throw e;
+          }
+          Files.delete(dir);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      // be silent about cleanup errors, only log them
+      logger.log(Level.FINE, "IOException while performing cleanup", e);
+    }
+  }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.backup;
+
+import com.google.common.io.BaseEncoding;
+import com.google.jenkins.plugins.cloudbackup.volume.BlockSignatures;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * The signatures of files as stored by the latest backups, i.e. the size of
+ * each file and a hash of its contents up to that size, and optionally the
+ * {@link BlockSignatures} of the file, kept in memory and in a file with one
+ * line per file.
+ *
+ * A backup records the signatures of the files it stores between
+ * {@link #begin} and {@link #commit}, which it calls once the backup has
+ * been recorded, so the signatures only ever describe stored backups. A full
+ * backup replaces all signatures but those of build logs, which are dropped
+ * once they have not been updated for {@link #MAX_IDLE_MILLIS}, i.e. once
+ * their builds have finished. A hash of the list of existing files recorded
+ * by the latest backup is kept in memory, so that a backup which would not
+ * change anything can skip updating it.
+ */
+public class FileSignatures {
+
+  private static final Logger logger =
+      Logger.getLogger(FileSignatures.class.getName());
+
+  public static final String SIGNATURES_FILENAME = "file-signatures";
+  public static final long MAX_IDLE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  private static final String SEPARATOR = "\t";
+
+  private final Path signaturesPath;
+  // guarded by this
+  private final Map<String, Signature> signatures = new HashMap<>();
+  // the signatures recorded by the running backup, null values mark removed
+  // signatures, guarded by this
+  @Nullable
+  private Map<String, Signature> pending;
+  // whether the running backup is a full backup, guarded by this
+  private boolean pendingFullBackup;
+  // the hash of the existing files recorded by the latest backup, if known,
+  // guarded by this
+  @Nullable
+  private byte[] existingFilesHash;
+
+  /**
+   * @param directory the directory to keep the signatures file in.
+   */
+  public FileSignatures(Path directory) {
+    this.signaturesPath = directory.resolve(SIGNATURES_FILENAME);
+  }
+
+  /**
+   * Loads the signatures persisted by a previous Jenkins instance. Malformed
+   * lines are ignored.
+   */
+  public synchronized void load() {
+    signatures.clear();
+    if (!Files.exists(signaturesPath)) {
+      return;
+    }
+    try {
+      for (String line
+          : Files.readAllLines(signaturesPath, StandardCharsets.UTF_8)) {
+        // the block signatures are an optional fourth field
+        String[] fields = line.split(SEPARATOR, 5);
+        if (fields.length < 4) {
+          continue;
+        }
+        try {
+          BlockSignatures blocks = fields.length < 5 ? null
+              : BlockSignatures.fromByteArray(
+                  BaseEncoding.base64().decode(fields[3]));
+          signatures.put(fields[fields.length - 1],
+              new Signature(Long.parseLong(fields[0]),
+                  BaseEncoding.base16().lowerCase().decode(fields[1]),
+                  blocks, Long.parseLong(fields[2])));
+        } catch (IllegalArgumentException e) {
+          logger.fine("Ignoring malformed file signature: " + line);
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "IOException while reading file signatures",
+          e);
+    }
+  }
+
+  /**
+   * Returns the signature of the given file as stored by the latest backups,
+   * or null if there is none.
+   *
+   * @param pathInVolume the path of the file in the backup volumes.
+   */
+  @Nullable
+  public synchronized Signature get(String pathInVolume) {
+    return signatures.get(pathInVolume);
+  }
+
+  /**
+   * Starts recording the signatures of a new incremental backup, discarding
+   * those of a backup that failed.
+   */
+  public void begin() {
+    begin(false);
+  }
+
+  /**
+   * Starts recording the signatures of a new backup, discarding those of a
+   * backup that failed.
+   *
+   * @param fullBackup whether the backup is a full backup, whose signatures
+   * replace all but those of build logs.
+   */
+  public synchronized void begin(boolean fullBackup) {
+    pending = new HashMap<>();
+    pendingFullBackup = fullBackup;
+  }
+
+  /**
+   * Records the signature of a file stored by the running backup. Files
+   * whose path cannot be persisted are ignored.
+   *
+   * @param pathInVolume the path of the file in the backup volumes.
+   * @param signature the signature of the stored file.
+   */
+  public synchronized void update(String pathInVolume, Signature signature) {
+    if (pending != null && !pathInVolume.contains(SEPARATOR)
+        && !pathInVolume.contains("\n") && !pathInVolume.contains("\r")) {
+      pending.put(pathInVolume, signature);
+    }
+  }
+
+  /**
+   * Records that the running backup stored a file without knowing its
+   * signature, so that the next backup does not rely on an earlier one.
+   *
+   * @param pathInVolume the path of the file in the backup volumes.
+   */
+  public synchronized void remove(String pathInVolume) {
+    if (pending != null) {
+      pending.put(pathInVolume, null);
+    }
+  }
+
+  /**
+   * Returns whether the latest backup is known to have recorded the list of
+   * existing files with the given hash.
+   */
+  public synchronized boolean isRecorded(byte[] existingFilesHash) {
+    return Arrays.equals(this.existingFilesHash, existingFilesHash);
+  }
+
+  /**
+   * Makes the signatures recorded since {@link #begin()} the signatures of
+   * the latest backups, see {@link #commit(byte[])}.
+   */
+  public void commit() {
+    commit(null);
+  }
+
+  /**
+   * Makes the signatures recorded since {@link #begin()} the signatures of
+   * the latest backups, and persists them. If no backup was begun, i.e. a
+   * volume of an earlier backup has been stored, whose signatures are lost,
+   * all signatures are cleared. Failing to persist the signatures is only
+   * logged.
+   *
+   * @param existingFilesHash the hash of the list of existing files the
+   * backup recorded, or null if unknown.
+   */
+  public synchronized void commit(@Nullable byte[] existingFilesHash) {
+    if (pending == null) {
+      clear();
+      return;
+    }
+    this.existingFilesHash =
+        existingFilesHash == null ? null : existingFilesHash.clone();
+    long now = System.currentTimeMillis();
+    for (Iterator<Map.Entry<String, Signature>> it =
+        signatures.entrySet().iterator(); it.hasNext();) {
+      Map.Entry<String, Signature> entry = it.next();
+      if (TailDeltaVolume.isBuildLog(entry.getKey())
+          ? now - entry.getValue().updateTimeMillis > MAX_IDLE_MILLIS
+          : pendingFullBackup) {
+        it.remove();
+      }
+    }
+    for (Map.Entry<String, Signature> entry : pending.entrySet()) {
+      if (entry.getValue() == null) {
+        signatures.remove(entry.getKey());
+      } else {
+        signatures.put(entry.getKey(), entry.getValue());
+      }
+    }
+    pending = null;
+    List<String> lines = new ArrayList<>(signatures.size());
+    for (Map.Entry<String, Signature> entry : signatures.entrySet()) {
+      Signature signature = entry.getValue();
+      StringBuilder line = new StringBuilder();
+      line.append(signature.size).append(SEPARATOR)
+          .append(BaseEncoding.base16().lowerCase().encode(signature.hash))
+          .append(SEPARATOR).append(signature.updateTimeMillis)
+          .append(SEPARATOR);
+      if (signature.blocks != null) {
+        line.append(BaseEncoding.base64().encode(
+            signature.blocks.toByteArray())).append(SEPARATOR);
+      }
+      lines.add(line.append(entry.getKey()).toString());
+    }
+    Path tempPath =
+        signaturesPath.resolveSibling(SIGNATURES_FILENAME + ".tmp");
+    try {
+      Files.createDirectories(signaturesPath.getParent());
+      Files.write(tempPath, lines, StandardCharsets.UTF_8);
+      Files.move(tempPath, signaturesPath,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "IOException while writing file signatures",
+          e);
+      // the persisted signatures are outdated now
+      deleteQuietly(signaturesPath);
+    }
+  }
+
+  /**
+   * Discards all signatures, so that the next backup stores whole files.
+   */
+  public synchronized void clear() {
+    signatures.clear();
+    pending = null;
+    existingFilesHash = null;
+    deleteQuietly(signaturesPath);
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      // be silent about cleanup errors, only log them
+      logger.log(Level.FINE, "IOException while performing cleanup", e);
+    }
+  }
+
+  /**
+   * The size of a stored file, the hash of its contents up to that size, and
+   * optionally the signatures of its blocks.
+   */
+  public static final class Signature {
+    private final long size;
+    private final byte[] hash;
+    @Nullable
+    private final BlockSignatures blocks;
+    private final long updateTimeMillis;
+
+    public Signature(long size, byte[] hash) {
+      this(size, hash, null);
+    }
+
+    public Signature(long size, byte[] hash, @Nullable BlockSignatures blocks) {
+      this(size, hash, blocks, System.currentTimeMillis());
+    }
+
+    private Signature(long size, byte[] hash, @Nullable BlockSignatures blocks,
+        long updateTimeMillis) {
+      this.size = size;
+      this.hash = hash.clone();
+      this.blocks = blocks;
+      this.updateTimeMillis = updateTimeMillis;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * Returns the signatures of the blocks of the file, or null if they are
+     * not known.
+     */
+    @Nullable
+    public BlockSignatures getBlocks() {
+      return blocks;
+    }
+
+    /**
+     * Returns whether the given hash equals the hash of this signature.
+     */
+    public boolean hashEquals(byte[] otherHash) {
+      return Arrays.equals(hash, otherHash);
+    }
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.backup;
+
+import com.google.common.base.Preconditions;
+import com.google.jenkins.plugins.cloudbackup.metrics.BackupMetrics;
+import com.google.jenkins.plugins.cloudbackup.volume.ForwardingVolumeCreator;
+import com.google.jenkins.plugins.cloudbackup.volume.ReadThrottle;
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Volume wrapper, which skips files whose content has not changed since the
+ * previous backup, although they have been modified.
+ *
+ * Jenkins rewrites files such as job configurations and queue state all the
+ * time, often with the same content, and the modification time then makes
+ * incremental backups store them again. When such a file is added, it is
+ * hashed, and if the hash and size match its {@link FileSignatures.Signature}
+ * it is not added to the volume. Either way, the new signature is recorded
+ * for the next backup, which for full backups is all this wrapper does.
+ *
+ * Only files smaller than a maximum size are hashed, larger files are left to
+ * {@link BlockDeltaVolume}. Build logs are left to {@link TailDeltaVolume},
+ * and the other files of builds are hardly ever rewritten, so they are not
+ * hashed either, which keeps the signatures small.
+ */
+public class FingerprintingVolume implements Volume {
+
+  private static final Logger logger =
+      Logger.getLogger(FingerprintingVolume.class.getName());
+
+  public static final long DEFAULT_MAX_SIZE_BYTES = 1024 * 1024;
+
+  private static final String HASH_ALGORITHM = "SHA-1";
+  private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+  private final Volume volume;
+  private final FileSignatures signatures;
+  private final long maxSizeBytes;
+  private final boolean skipUnchanged;
+  private volatile ReadThrottle readThrottle = ReadThrottle.NONE;
+
+  /**
+   * @param volume the volume to wrap.
+   * @param signatures the signatures of the files in the latest backups.
+   * @param maxSizeBytes the size of files from which on they are not hashed.
+   * @param skipUnchanged whether to skip unchanged files, or only to record
+   * the signatures of the files, e.g. for a full backup.
+   */
+  public FingerprintingVolume(Volume volume, FileSignatures signatures,
+      long maxSizeBytes, boolean skipUnchanged) {
+    this.volume = volume;
+    this.signatures = signatures;
+    this.maxSizeBytes = maxSizeBytes;
+    this.skipUnchanged = skipUnchanged;
+  }
+
+  /**
+   * Sets the throttle through which files are read for hashing.
+   *
+   * @param readThrottle the throttle for reading files.
+   */
+  public void setReadThrottle(ReadThrottle readThrottle) {
+    this.readThrottle = Preconditions.checkNotNull(readThrottle);
+  }
+
+  @Override
+  public String getFileExtension() {
+    return volume.getFileExtension();
+  }
+
+  @Override
+  public Volume.Creator createNew(Path volumePath) throws IOException {
+    return new FingerprintingCreator(volume.createNew(volumePath));
+  }
+
+  @Override
+  public Volume.Extractor extract(Path volumePath) throws IOException {
+    return volume.extract(volumePath);
+  }
+
+  /**
+   * Returns whether the given path in a volume is inside the directory of a
+   * build, i.e. {@code builds/<number>/} of a job, at any depth of folders.
+   */
+  static boolean isInBuildDirectory(String pathInVolume) {
+    String[] segments = pathInVolume.split("/");
+    for (int i = 0; i < segments.length - 2; i++) {
+      if (segments[i].equals("builds") && isNumber(segments[i + 1])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isNumber(String segment) {
+    if (segment.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < segment.length(); i++) {
+      if (!Character.isDigit(segment.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private class FingerprintingCreator extends ForwardingVolumeCreator {
+
+    // the buffer for hashing, a creator is used by one thread at a time
+    private final ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+
+    FingerprintingCreator(Volume.Creator creator) {
+      super(creator);
+    }
+
+    @Override
+    public void addFile(Path file, String pathInVolume,
+        @Nullable BasicFileAttributes attrs) throws IOException {
+      if (attrs == null) {
+        attrs = Files.readAttributes(file, BasicFileAttributes.class);
+      }
+      if (!attrs.isRegularFile() || attrs.size() >= maxSizeBytes
+          || TailDeltaVolume.isBuildLog(pathInVolume)
+          || isInBuildDirectory(pathInVolume)) {
+        super.addFile(file, pathInVolume, attrs);
+        return;
+      }
+      BasicFileAttributes before =
+          Files.readAttributes(file, BasicFileAttributes.class);
+      byte[] hash = hash(file, before.size());
+      if (hash == null) {
+        // the file shrank while being hashed
+        super.addFile(file, pathInVolume, attrs);
+        signatures.remove(pathInVolume);
+        return;
+      }
+      FileSignatures.Signature previous =
+          skipUnchanged ? signatures.get(pathInVolume) : null;
+      if (previous != null && previous.getSize() == before.size()
+          && previous.hashEquals(hash)) {
+        logger.finer("Skipping unchanged file: " + file);
+        BackupMetrics.get().increment(BackupMetrics.Counter.FILES_SKIPPED, 1);
+        return;
+      }
+      super.addFile(file, pathInVolume, attrs);
+
+      // the stored file is only known to have this signature if the file
+      // has not been modified while being read
+      BasicFileAttributes after =
+          Files.readAttributes(file, BasicFileAttributes.class);
+      if (after.size() == before.size()
+          && after.lastModifiedTime().equals(before.lastModifiedTime())) {
+        signatures.update(pathInVolume,
+            new FileSignatures.Signature(before.size(), hash));
+      } else {
+        signatures.remove(pathInVolume);
+      }
+    }
+
+    /**
+     * Hashes the given file up to the given size.
+     *
+     * @return the hash, or null if the file is smaller than the size.
+     */
+    @Nullable
+    private byte[] hash(Path file, long size) throws IOException {
+      MessageDigest digest = newDigest();
+      long position = 0;
+      try (FileChannel fileChannel = FileChannel.open(file)) {
+        ReadableByteChannel channel = readThrottle.throttle(fileChannel);
+        while (position < size) {
+          buffer.clear();
+          buffer.limit((int) Math.min(buffer.capacity(), size - position));
+          int n = channel.read(buffer);
+          if (n < 0) {
+            return null;
+          }
+          digest.update(buffer.array(), 0, n);
+          position += n;
+        }
+      }
+      return digest.digest();
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(HASH_ALGORITHM + " is not available",
+          e);
+    }
+  }
+}
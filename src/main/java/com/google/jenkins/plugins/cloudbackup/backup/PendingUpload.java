@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.backup;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A completed backup volume that has not been stored yet.
+ *
+ * The volume is kept in a directory of its own, together with a record of
+ * everything needed to finish the backup later: the name of the volume, the
+ * kind of backup, the time the backup was taken and the files it covers. If
+ * storing the volume fails, the next backup of the same kind stores this
+ * volume instead of creating a new one. Uploading the same local file under
+ * the same name again also allows the storage to resume an interrupted
+ * upload, e.g. gsutil resumes large uploads using its tracker files.
+ */
+class PendingUpload {
+
+  private static final Logger logger =
+      Logger.getLogger(PendingUpload.class.getName());
+
+  private static final String RECORD_FILE = "pending-upload";
+  private static final String RECORD_COMMENT_LINE =
+      "# volume, backup name suffix, backup time, existing files";
+
+  private final Path directory;
+  private final String volumeName;
+  private final String backupNameSuffix;
+  private final DateTime backupTime;
+  private final Set<String> existingFileNames;
+
+  private PendingUpload(Path directory, String volumeName,
+      String backupNameSuffix, DateTime backupTime,
+      Set<String> existingFileNames) {
+    this.directory = directory;
+    this.volumeName = volumeName;
+    this.backupNameSuffix = backupNameSuffix;
+    this.backupTime = backupTime;
+    this.existingFileNames = existingFileNames;
+  }
+
+  /**
+   * Moves a completed volume into the given directory and records it as
+   * pending, replacing any previously pending upload.
+   *
+   * @param directory the directory to keep the pending upload in.
+   * @param volumePath the completed local volume.
+   * @param volumeName the filename of the volume in the storage.
+   * @param backupNameSuffix the suffix of the backup, may be empty.
+   * @param backupTime the time the backup was taken.
+   * @param existingFileNames the names of all files existing in the backup.
+   * @return the pending upload.
+   * @throws IOException if the volume cannot be moved or recorded.
+   */
+  static PendingUpload create(Path directory, Path volumePath,
+      String volumeName, String backupNameSuffix, DateTime backupTime,
+      Set<String> existingFileNames) throws IOException {
+    discard(directory);
+    Files.createDirectories(directory);
+    Files.move(volumePath, directory.resolve(volumeName),
+        StandardCopyOption.REPLACE_EXISTING);
+
+    List<String> content = new ArrayList<>();
+    content.add(RECORD_COMMENT_LINE);
+    content.add(volumeName);
+    content.add(backupNameSuffix);
+    content.add(Long.toString(backupTime.getMillis()));
+    content.addAll(existingFileNames);
+    // the volume is only pending once the record is complete
+    Path tempRecord = directory.resolve(RECORD_FILE + ".tmp");
+    Files.write(tempRecord, content, StandardCharsets.UTF_8);
+    Files.move(tempRecord, directory.resolve(RECORD_FILE),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return new PendingUpload(directory, volumeName, backupNameSuffix,
+        backupTime, existingFileNames);
+  }
+
+  /**
+   * Returns the upload pending in the given directory, or null if there is no
+   * complete pending upload.
+   */
+  @Nullable
+  static PendingUpload load(Path directory) {
+    Path record = directory.resolve(RECORD_FILE);
+    if (!Files.exists(record)) {
+      return null;
+    }
+    try {
+      List<String> lines = Files.readAllLines(record, StandardCharsets.UTF_8);
+      if (lines.size() < 4 || !Files.exists(directory.resolve(lines.get(1)))) {
+        logger.warning("Ignoring incomplete pending backup upload");
+        return null;
+      }
+      Set<String> existingFileNames =
+          new HashSet<>(lines.subList(4, lines.size()));
+      return new PendingUpload(directory, lines.get(1), lines.get(2),
+          new DateTime(Long.parseLong(lines.get(3)), DateTimeZone.UTC),
+          existingFileNames);
+    } catch (IOException | NumberFormatException e) {
+      logger.log(Level.WARNING, "Ignoring unreadable pending backup upload",
+          e);
+      return null;
+    }
+  }
+
+  /**
+   * Deletes the pending upload in the given directory, if any. Errors are
+   * only logged, a stale pending upload is replaced by the next one anyway.
+   */
+  static void discard(Path directory) {
+    if (!Files.isDirectory(directory)) {
+      return;
+    }
+    // delete the record first, so that a partial deletion is not resumed
+    try {
+      Files.deleteIfExists(directory.resolve(RECORD_FILE));
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+        for (Path file : files) {
+          Files.deleteIfExists(file);
+        }
+      }
+    } catch (IOException e) {
+      // be silent about cleanup errors, only log them
+      logger.log(Level.FINE, "IOException while performing cleanup", e);
+    }
+  }
+
+  Path getVolumePath() {
+    return directory.resolve(volumeName);
+  }
+
+  String getVolumeName() {
+    return volumeName;
+  }
+
+  String getBackupNameSuffix() {
+    return backupNameSuffix;
+  }
+
+  DateTime getBackupTime() {
+    return backupTime;
+  }
+
+  Set<String> getExistingFileNames() {
+    return existingFileNames;
+  }
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.backup;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.jenkins.plugins.cloudbackup.history.BackupHistory;
+import com.google.jenkins.plugins.cloudbackup.metrics.BackupMetrics;
+import com.google.jenkins.plugins.cloudbackup.metrics.FlightRecorderEvent;
+import com.google.jenkins.plugins.cloudbackup.scope.Scope;
+import com.google.jenkins.plugins.cloudbackup.storage.Storage;
+import com.google.jenkins.plugins.cloudbackup.volume.BlockSignatures;
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A backup procedure that overlaps walking JENKINS_HOME, compressing files
+ * and uploading volumes, so that a backup takes about as long as its slowest
+ * stage rather than the sum of all stages.
+ *
+ * <ol>
+ * <li>A walker thread runs the {@link Scope}, and queues every file it finds
+ * together with its attributes.</li>
+ * <li>Compression threads take files off that queue, and add them to volume
+ * segments of their own. A segment is completed once the files added to it
+ * exceed the segment size, and a new one is started.</li>
+ * <li>Upload threads store completed segments, and delete the local
+ * copies.</li>
+ * </ol>
+ *
+ * If sharding by sub-scope is enabled, a segment only holds files of a
+ * single sub-scope, i.e. files whose paths in the volume start with the same
+ * directory, so the segments of a backup can be restored in parallel with
+ * little contention.
+ *
+ * Both queues are bounded, so a slow stage slows down the stages feeding it
+ * instead of filling up memory or the scratch directory. Segments are named
+ * after the backup with a {@code -partNNN} suffix, and are recorded together
+ * as the latest backup once all of them are stored. If any stage fails, the
+ * others are stopped and the segments stored so far are deleted.
+ */
+public class PipelinedBackupProcedure extends BackupProcedure {
+
+  private static final Logger logger =
+      Logger.getLogger(PipelinedBackupProcedure.class.getName());
+
+  private static final int FILE_QUEUE_CAPACITY = 1024;
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+
+  // marks the end of the files or segments in a queue
+  private static final QueuedFile NO_MORE_FILES =
+      new QueuedFile(null, null, null);
+  private static final Segment NO_MORE_SEGMENTS = new Segment(-1, null, null);
+
+  private final Volume volume;
+  private final Storage storage;
+  private final int compressionThreads;
+  private final long segmentSizeBytes;
+  private final int uploadThreads;
+  private final boolean shardBySubScope;
+
+  /**
+   * Creates a new pipelined backup procedure.
+   *
+   * @param volume the {@link Volume} to use for the backup.
+   * @param scope the {@link Scope} to use for the backup.
+   * @param storage  the {@link Storage} to use for the backup.
+   * @param backupHistory the {@link BackupHistory} to use for the backup.
+   * @param jenkinsHome path to the JENKINS_HOME directory.
+   * @param tempDir optional path to the directory to use for scratch files.
+   * @param backupNameSuffix an optional suffix to the backup filename
+   * @param historyExecutor the executor to apply the backup history policy.
+   * @param compressionThreads the number of threads compressing files.
+   * @param segmentSizeBytes the uncompressed size after which a volume
+   * segment is completed. Zero means each compression thread writes a single
+   * segment.
+   */
+  public PipelinedBackupProcedure(
+      Volume volume, Scope scope, Storage storage,
+      BackupHistory backupHistory, Path jenkinsHome,
+      @Nullable Path tempDir,
+      @Nullable String backupNameSuffix,
+      Executor historyExecutor,
+      int compressionThreads, long segmentSizeBytes) {
+    this(volume, scope, storage, backupHistory, jenkinsHome, tempDir,
+        backupNameSuffix, historyExecutor, compressionThreads,
+        segmentSizeBytes, 1, false);
+  }
+
+  /**
+   * Creates a new pipelined backup procedure, which uploads segments in
+   * parallel, and optionally shards the backup by sub-scope.
+   *
+   * @param volume the {@link Volume} to use for the backup.
+   * @param scope the {@link Scope} to use for the backup.
+   * @param storage  the {@link Storage} to use for the backup.
+   * @param backupHistory the {@link BackupHistory} to use for the backup.
+   * @param jenkinsHome path to the JENKINS_HOME directory.
+   * @param tempDir optional path to the directory to use for scratch files.
+   * @param backupNameSuffix an optional suffix to the backup filename
+   * @param historyExecutor the executor to apply the backup history policy.
+   * @param compressionThreads the number of threads compressing files.
+   * @param segmentSizeBytes the uncompressed size after which a volume
+   * segment is completed. Zero means each compression thread writes a single
+   * segment, or a single segment per sub-scope.
+   * @param uploadThreads the number of threads storing segments.
+   * @param shardBySubScope whether to start a new segment for every
+   * sub-scope.
+   */
+  public PipelinedBackupProcedure(
+      Volume volume, Scope scope, Storage storage,
+      BackupHistory backupHistory, Path jenkinsHome,
+      @Nullable Path tempDir,
+      @Nullable String backupNameSuffix,
+      Executor historyExecutor,
+      int compressionThreads, long segmentSizeBytes,
+      int uploadThreads, boolean shardBySubScope) {
+    super(volume, scope, storage, backupHistory, jenkinsHome, tempDir,
+        backupNameSuffix, historyExecutor);
+    Preconditions.checkArgument(compressionThreads > 0,
+        "at least one compression thread required");
+    Preconditions.checkArgument(uploadThreads > 0,
+        "at least one upload thread required");
+    this.volume = volume;
+    this.storage = storage;
+    this.compressionThreads = compressionThreads;
+    this.segmentSizeBytes = segmentSizeBytes;
+    this.uploadThreads = uploadThreads;
+    this.shardBySubScope = shardBySubScope;
+  }
+
+  @Override
+  protected List<String> createAndStoreVolumes(final String backupName,
+      final Set<String> existingFileNames, final Path tempDirectory)
+      throws IOException {
+    final BlockingQueue<QueuedFile> files =
+        new ArrayBlockingQueue<>(FILE_QUEUE_CAPACITY);
+    // bounds the completed segments waiting for upload, and the scratch space
+    final BlockingQueue<Segment> segments =
+        new ArrayBlockingQueue<>(compressionThreads + uploadThreads);
+    final AtomicInteger segmentCounter = new AtomicInteger();
+    final AtomicInteger runningCompressors =
+        new AtomicInteger(compressionThreads);
+    final Map<Path, Boolean> localSegments = new ConcurrentHashMap<>();
+    final Map<Integer, String> storedSegments = new TreeMap<>();
+
+    ExecutorService executor = Executors.newFixedThreadPool(
+        compressionThreads + uploadThreads + 1, new ThreadFactoryBuilder()
+            .setNameFormat("cloud-backup-pipeline-%d").setDaemon(true).build());
+    CompletionService<Void> stages =
+        new ExecutorCompletionService<>(executor);
+    boolean success = false;
+    try {
+      stages.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          logger.fine("Walking files to back up");
+          BackupMetrics metrics = BackupMetrics.get();
+          long directories =
+              metrics.get(BackupMetrics.Counter.DIRECTORIES_VISITED);
+          long start = System.nanoTime();
+          FlightRecorderEvent event =
+              FlightRecorderEvent.begin(FlightRecorderEvent.Type.SCOPE_WALK);
+          addFilesToVolume(new QueueingCreator(files), existingFileNames,
+              tempDirectory);
+          metrics.record(BackupMetrics.Phase.WALK, System.nanoTime() - start);
+          event.commit(
+              metrics.get(BackupMetrics.Counter.DIRECTORIES_VISITED)
+                  - directories,
+              (long) existingFileNames.size());
+          for (int i = 0; i < compressionThreads; i++) {
+            put(files, NO_MORE_FILES);
+          }
+          return null;
+        }
+      });
+      for (int i = 0; i < compressionThreads; i++) {
+        stages.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            compress(backupName, tempDirectory, files, segments,
+                segmentCounter, localSegments);
+            if (runningCompressors.decrementAndGet() == 0) {
+              for (int i = 0; i < uploadThreads; i++) {
+                put(segments, NO_MORE_SEGMENTS);
+              }
+            }
+            return null;
+          }
+        });
+      }
+      for (int i = 0; i < uploadThreads; i++) {
+        stages.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            upload(segments, localSegments, storedSegments);
+            return null;
+          }
+        });
+      }
+
+      for (int i = 0; i < compressionThreads + uploadThreads + 1; i++) {
+        awaitStage(stages);
+      }
+      success = true;
+    } finally {
+      executor.shutdownNow();
+      awaitTermination(executor);
+      for (Path segmentPath : localSegments.keySet()) {
+        deleteQuietly(segmentPath);
+      }
+      if (!success) {
+        synchronized (storedSegments) {
+          for (String segmentName : storedSegments.values()) {
+            deleteStoredQuietly(segmentName);
+          }
+        }
+      }
+    }
+    synchronized (storedSegments) {
+      logger.fine("Stored " + storedSegments.size() + " backup segment(s)");
+      return new ArrayList<>(storedSegments.values());
+    }
+  }
+
+  /**
+   * The compression stage: adds queued files to segments until there are no
+   * more files, and hands completed segments to the upload stage.
+   */
+  private void compress(String backupName, Path tempDirectory,
+      BlockingQueue<QueuedFile> files, BlockingQueue<Segment> segments,
+      AtomicInteger segmentCounter, Map<Path, Boolean> localSegments)
+      throws IOException {
+    Segment segment = null;
+    Volume.Creator creator = null;
+    long segmentBytes = 0;
+    String segmentSubScope = null;
+    try {
+      while (true) {
+        QueuedFile file = take(files);
+        if (file == NO_MORE_FILES) {
+          break;
+        }
+        String subScope = shardBySubScope ? subScopeOf(file.pathInVolume) : "";
+        if (creator != null && !subScope.equals(segmentSubScope)) {
+          completeSegment(creator, segment, segments, localSegments);
+          creator = null;
+        }
+        if (creator == null) {
+          int index = segmentCounter.getAndIncrement();
+          String segmentName = String.format("%s-part%03d.%s", backupName,
+              index, volume.getFileExtension());
+          segment = new Segment(index, segmentName,
+              tempDirectory.resolve(segmentName));
+          localSegments.put(segment.path, Boolean.TRUE);
+          creator = volume.createNew(segment.path);
+          segmentBytes = 0;
+          segmentSubScope = subScope;
+        }
+        if (file.tailOffset >= 0) {
+          creator.addFileTail(file.path, file.pathInVolume, file.tailOffset,
+              file.tailSize);
+          segmentBytes += file.tailSize - file.tailOffset;
+        } else if (file.deltaBase != null) {
+          creator.addFileDelta(file.path, file.pathInVolume, file.deltaBase);
+          segmentBytes += file.attrs.size();
+        } else {
+          creator.addFile(file.path, file.pathInVolume, file.attrs);
+          if (file.attrs.isRegularFile()) {
+            segmentBytes += file.attrs.size();
+          }
+        }
+        if (segmentSizeBytes > 0 && segmentBytes >= segmentSizeBytes) {
+          completeSegment(creator, segment, segments, localSegments);
+          creator = null;
+        }
+      }
+      if (creator != null) {
+        completeSegment(creator, segment, segments, localSegments);
+        creator = null;
+      }
+    } finally {
+      if (creator != null) {
+        try {
+          creator.close();
+        } catch (IOException e) {
+          // be silent about cleanup errors, only log them
+          logger.log(Level.FINE, "IOException while performing cleanup", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the sub-scope of a file, which is the first directory of its path
+   * in the volume, as created by a
+   * {@link com.google.jenkins.plugins.cloudbackup.scope.MultiScope}.
+   */
+  private static String subScopeOf(String pathInVolume) {
+    int separator = pathInVolume.indexOf('/');
+    return separator < 0 ? "" : pathInVolume.substring(0, separator);
+  }
+
+  /**
+   * Closes the given segment, and hands it to the upload stage unless it is
+   * empty, e.g. because all of its files were skipped as unchanged.
+   */
+  private static void completeSegment(Volume.Creator creator, Segment segment,
+      BlockingQueue<Segment> segments, Map<Path, Boolean> localSegments)
+      throws IOException {
+    int fileCount = creator.getFileCount();
+    creator.close();
+    if (fileCount == 0) {
+      logger.fine("Discarding empty backup segment " + segment.name);
+      deleteQuietly(segment.path);
+      localSegments.remove(segment.path);
+      return;
+    }
+    logger.fine("Completed backup segment " + segment.name);
+    put(segments, segment);
+  }
+
+  /**
+   * The upload stage: stores completed segments until all compression threads
+   * are finished. Runs on each upload thread.
+   */
+  private void upload(BlockingQueue<Segment> segments,
+      Map<Path, Boolean> localSegments, Map<Integer, String> storedSegments)
+      throws IOException {
+    while (true) {
+      Segment segment = take(segments);
+      if (segment == NO_MORE_SEGMENTS) {
+        return;
+      }
+      try {
+        storeVolume(segment.path, segment.name);
+        synchronized (storedSegments) {
+          storedSegments.put(segment.index, segment.name);
+        }
+      } finally {
+        deleteQuietly(segment.path);
+        localSegments.remove(segment.path);
+      }
+    }
+  }
+
+  private static void awaitStage(CompletionService<Void> stages)
+      throws IOException {
+    try {
+      stages.take().get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while creating backup");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private static void awaitTermination(ExecutorService executor) {
+    try {
+      if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS,
+          TimeUnit.SECONDS)) {
+        logger.warning("Backup pipeline threads did not stop in time");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static <T> void put(BlockingQueue<T> queue, T element)
+      throws InterruptedIOException {
+    try {
+      queue.put(element);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Backup pipeline stopped");
+    }
+  }
+
+  private static <T> T take(BlockingQueue<T> queue)
+      throws InterruptedIOException {
+    try {
+      return queue.take();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Backup pipeline stopped");
+    }
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      // be silent about cleanup errors, only log them
+      logger.log(Level.FINE, "IOException while performing cleanup", e);
+    }
+  }
+
+  private void deleteStoredQuietly(String filename) {
+    try {
+      storage.deleteFile(filename);
+    } catch (IOException e) {
+      // be silent about cleanup errors, only log them
+      logger.log(Level.FINE, "IOException while performing cleanup", e);
+    }
+  }
+
+  /**
+   * A {@link Volume.Creator} queueing the added files for compression.
+   */
+  private static class QueueingCreator implements Volume.Creator {
+    private final BlockingQueue<QueuedFile> files;
+    private int fileCount = 0;
+
+    QueueingCreator(BlockingQueue<QueuedFile> files) {
+      this.files = files;
+    }
+
+    @Override
+    public void addFile(Path file, String pathInVolume,
+        @Nullable BasicFileAttributes attrs) throws IOException {
+      if (attrs == null) {  // the compression stage needs the size
+        attrs = Files.readAttributes(file, BasicFileAttributes.class);
+      }
+      put(files, new QueuedFile(file, pathInVolume, attrs));
+      fileCount++;
+    }
+
+    @Override
+    public void addFileTail(Path file, String pathInVolume, long offset,
+        long size) throws IOException {
+      put(files, new QueuedFile(file, pathInVolume, null, offset, size));
+      fileCount++;
+    }
+
+    @Override
+    public void addFileDelta(Path file, String pathInVolume,
+        BlockSignatures base) throws IOException {
+      put(files, new QueuedFile(file, pathInVolume,
+          Files.readAttributes(file, BasicFileAttributes.class), -1, 0, base));
+      fileCount++;
+    }
+
+    @Override
+    @Nullable
+    public Collection<String> getUnchangedFiles(Path dir, String pathInVolume,
+        BasicFileAttributes attrs) {
+      return null;
+    }
+
+    @Override
+    public int getFileCount() {
+      return fileCount;
+    }
+
+    @Override
+    public void close() {
+      // nothing to do, the walker ends the queue
+    }
+  }
+
+  /**
+   * A file found by the walker, waiting to be compressed.
+   */
+  private static final class QueuedFile {
+    private final Path path;
+    private final String pathInVolume;
+    private final BasicFileAttributes attrs;
+    // the offset of the tail to add, or -1 to add the whole file
+    private final long tailOffset;
+    private final long tailSize;
+    // the signatures of the earlier version to add a delta against, if any
+    @Nullable
+    private final BlockSignatures deltaBase;
+
+    private QueuedFile(Path path, String pathInVolume,
+        BasicFileAttributes attrs) {
+      this(path, pathInVolume, attrs, -1, 0);
+    }
+
+    private QueuedFile(Path path, String pathInVolume,
+        BasicFileAttributes attrs, long tailOffset, long tailSize) {
+      this(path, pathInVolume, attrs, tailOffset, tailSize, null);
+    }
+
+    private QueuedFile(Path path, String pathInVolume,
+        BasicFileAttributes attrs, long tailOffset, long tailSize,
+        @Nullable BlockSignatures deltaBase) {
+      this.path = path;
+      this.pathInVolume = pathInVolume;
+      this.attrs = attrs;
+      this.tailOffset = tailOffset;
+      this.tailSize = tailSize;
+      this.deltaBase = deltaBase;
+    }
+  }
+
+  /**
+   * A volume segment of the backup.
+   */
+  private static final class Segment {
+    private final int index;
+    private final String name;
+    private final Path path;
+
+    private Segment(int index, String name, Path path) {
+      this.index = index;
+      this.name = name;
+      this.path = path;
+    }
+  }
+}
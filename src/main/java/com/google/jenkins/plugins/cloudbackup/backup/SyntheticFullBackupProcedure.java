@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.backup;
+
+import com.google.jenkins.plugins.cloudbackup.history.BackupHistory;
+import com.google.jenkins.plugins.cloudbackup.scope.Scope;
+import com.google.jenkins.plugins.cloudbackup.storage.Storage;
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+
+import org.joda.time.DateTime;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A backup procedure that creates a full backup by merging the latest full
+ * backup with its incremental backups, rather than by walking JENKINS_HOME.
+ *
+ * The catalog of existing files written by the last backup decides which
+ * files are carried over into the new volume. If there is no backup chain to
+ * merge, a regular full backup is performed instead.
+ */
+public class SyntheticFullBackupProcedure extends BackupProcedure {
+
+  private static final Logger logger =
+      Logger.getLogger(SyntheticFullBackupProcedure.class.getName());
+
+  private static final String SYNTHETIC_BACKUP_NAME_SUFFIX = "-synthetic";
+
+  private final Storage storage;
+  private final ChainMerger chainMerger;
+  private final DateTime lastBackupTime;
+  private boolean merged;
+
+  /**
+   * Creates a new synthetic full backup procedure.
+   *
+   * @param volume the {@link Volume} to use for the backup.
+   * @param scope the {@link Scope} the backup chain was created with.
+   * @param storage  the {@link Storage} holding the backup chain.
+   * @param backupHistory the {@link BackupHistory} to use for the backup.
+   * @param jenkinsHome path to the JENKINS_HOME directory.
+   * @param tempDir optional path to the directory to use for scratch files.
+   * @param lastBackupTime the time of the last backup in the chain. Changes
+   * made after this time are not contained in the merged volume.
+   * @param historyExecutor the executor to apply the backup history policy.
+   */
+  public SyntheticFullBackupProcedure(
+      Volume volume, Scope scope, Storage storage,
+      BackupHistory backupHistory, Path jenkinsHome,
+      @Nullable Path tempDir, DateTime lastBackupTime,
+      Executor historyExecutor) {
+    super(volume, scope, storage, backupHistory, jenkinsHome, tempDir,
+        SYNTHETIC_BACKUP_NAME_SUFFIX, historyExecutor);
+    this.storage = storage;
+    this.chainMerger = new ChainMerger(volume, scope, storage);
+    this.lastBackupTime = lastBackupTime;
+  }
+
+  /**
+   * Performs the synthetic full backup.
+   *
+   * @return the time of the last backup in the merged chain, because the new
+   * volume only contains changes up to that time. If no chain was merged, the
+   * time the regular full backup was taken.
+   * @throws IOException if backup creation fails.
+   */
+  @Override
+  public DateTime performBackup() throws IOException {
+    merged = false;
+    DateTime backupTime = super.performBackup();
+    return merged ? lastBackupTime : backupTime;
+  }
+
+  /**
+   * A merged volume only covers changes up to the end of the merged chain,
+   * which a resumed backup cannot tell, so synthetic full backups are not
+   * resumed. A regular full backup follows a failed one anyway.
+   */
+  @Override
+  protected boolean isResumable() {
+    return false;
+  }
+
+  @Override
+  protected void addFilesToVolume(Volume.Creator creator,
+      Set<String> existingFileNames, Path tempDirectory) throws IOException {
+    List<String> latestBackupFiles = storage.findLatestBackup();
+    List<String> existingFiles = storage.listMetadataForExistingFiles();
+    if (latestBackupFiles == null || latestBackupFiles.isEmpty()
+        || existingFiles.isEmpty()) {
+      logger.info("No backup chain to merge, creating regular full backup");
+      super.addFilesToVolume(creator, existingFileNames, tempDirectory);
+      return;
+    }
+    logger.fine("Merging backup chain of " + latestBackupFiles.size()
+        + " volume(s) into synthetic full backup");
+    chainMerger.merge(latestBackupFiles, existingFiles, tempDirectory,
+        creator, existingFileNames);
+    merged = true;
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.backup;
+
+import com.google.common.base.Preconditions;
+import com.google.jenkins.plugins.cloudbackup.volume.ForwardingVolumeCreator;
+import com.google.jenkins.plugins.cloudbackup.volume.ReadThrottle;
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Volume wrapper for incremental backups, which only adds the bytes appended
+ * to a build log since the previous backup, rather than the whole log.
+ *
+ * Running builds append to their logs all the time, so every incremental
+ * backup would store them again. When a log is added, its contents up to the
+ * size recorded in its {@link FileSignatures.Signature} are hashed. If the
+ * hash still matches, only the bytes after that size are added as the tail
+ * of the file, see {@link Volume.Creator#addFileTail}. Either way, the new
+ * size and hash are recorded for the next backup. Logs smaller than
+ * {@link #MIN_SIZE_BYTES} are always added whole.
+ */
+public class TailDeltaVolume implements Volume {
+
+  private static final Logger logger =
+      Logger.getLogger(TailDeltaVolume.class.getName());
+
+  public static final long MIN_SIZE_BYTES = 1024 * 1024;
+
+  private static final String HASH_ALGORITHM = "SHA-1";
+  private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+  private final Volume volume;
+  private final FileSignatures signatures;
+  private volatile ReadThrottle readThrottle = ReadThrottle.NONE;
+
+  /**
+   * @param volume the volume to wrap.
+   * @param signatures the signatures of the files in the latest backups.
+   */
+  public TailDeltaVolume(Volume volume, FileSignatures signatures) {
+    this.volume = volume;
+    this.signatures = signatures;
+  }
+
+  /**
+   * Sets the throttle through which files are read for hashing.
+   *
+   * @param readThrottle the throttle for reading files.
+   */
+  public void setReadThrottle(ReadThrottle readThrottle) {
+    this.readThrottle = Preconditions.checkNotNull(readThrottle);
+  }
+
+  @Override
+  public String getFileExtension() {
+    return volume.getFileExtension();
+  }
+
+  @Override
+  public Volume.Creator createNew(Path volumePath) throws IOException {
+    return new TailDeltaCreator(volume.createNew(volumePath));
+  }
+
+  @Override
+  public Volume.Extractor extract(Path volumePath) throws IOException {
+    return volume.extract(volumePath);
+  }
+
+  /**
+   * Returns whether the given path in a volume is the log of a build, i.e.
+   * {@code builds/<number>/log} of a job, at any depth of folders.
+   */
+  static boolean isBuildLog(String pathInVolume) {
+    String[] segments = pathInVolume.split("/");
+    return segments.length >= 3 && segments[segments.length - 1].equals("log")
+        && segments[segments.length - 3].equals("builds");
+  }
+
+  private class TailDeltaCreator extends ForwardingVolumeCreator {
+
+    // the buffer for hashing, a creator is used by one thread at a time
+    private final ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+
+    TailDeltaCreator(Volume.Creator creator) {
+      super(creator);
+    }
+
+    @Override
+    public void addFile(Path file, String pathInVolume,
+        @Nullable BasicFileAttributes attrs) throws IOException {
+      if (attrs == null) {
+        attrs = Files.readAttributes(file, BasicFileAttributes.class);
+      }
+      if (!attrs.isRegularFile() || attrs.size() < MIN_SIZE_BYTES
+          || !isBuildLog(pathInVolume)) {
+        super.addFile(file, pathInVolume, attrs);
+        return;
+      }
+      long size = attrs.size();
+      FileSignatures.Signature previous = signatures.get(pathInVolume);
+      if (previous != null && previous.getSize() > size) {
+        previous = null;
+      }
+      byte[][] hashes = hash(file, previous == null ? -1 : previous.getSize(),
+          size);
+      if (hashes == null) {
+        // the file shrank, so it is not append-only
+        super.addFile(file, pathInVolume, attrs);
+        signatures.remove(pathInVolume);
+        return;
+      }
+      if (previous != null && previous.hashEquals(hashes[0])) {
+        logger.finer("Adding tail of file: " + file + " from offset: "
+            + previous.getSize());
+        super.addFileTail(file, pathInVolume, previous.getSize(), size);
+      } else {
+        super.addFile(file, pathInVolume, attrs);
+      }
+      signatures.update(pathInVolume,
+          new FileSignatures.Signature(size, hashes[1]));
+    }
+
+    /**
+     * Hashes the given file up to the given size, and up to the given offset
+     * on the way, unless it is negative.
+     *
+     * @return the hash up to the offset, or null if it is negative, and the
+     * hash up to the size. Null if the file is smaller than the size.
+     */
+    @Nullable
+    private byte[][] hash(Path file, long offset, long size)
+        throws IOException {
+      MessageDigest digest = newDigest();
+      byte[] offsetHash = offset == 0 ? digest(digest) : null;
+      long position = 0;
+      try (FileChannel fileChannel = FileChannel.open(file)) {
+        ReadableByteChannel channel = readThrottle.throttle(fileChannel);
+        while (position < size) {
+          long end = position < offset ? offset : size;
+          buffer.clear();
+          buffer.limit((int) Math.min(buffer.capacity(), end - position));
+          int n = channel.read(buffer);
+          if (n < 0) {
+            return null;
+          }
+          digest.update(buffer.array(), 0, n);
+          position += n;
+          if (position == offset) {
+            offsetHash = digest(digest);
+          }
+        }
+      }
+      return new byte[][] {offsetHash, digest.digest()};
+    }
+  }
+
+  /**
+   * Returns the hash of the bytes the given digest has been updated with so
+   * far, leaving the digest unchanged.
+   */
+  private static byte[] digest(MessageDigest digest) {
+    try {
+      return ((MessageDigest) digest.clone()).digest();
+    } catch (CloneNotSupportedException e) {
+      throw new IllegalStateException(HASH_ALGORITHM + " is not cloneable", e);
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(HASH_ALGORITHM + " is not available",
+          e);
+    }
+  }
+}
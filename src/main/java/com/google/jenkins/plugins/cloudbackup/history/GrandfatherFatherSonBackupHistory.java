@@ -0,0 +1,202 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.history;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import com.google.jenkins.plugins.cloudbackup.storage.Storage;
+
+/**
+ * Implementation of {@link BackupHistory} that keeps the latest full backup of
+ * each of the last hours, days and weeks, together with their incremental
+ * backups.
+ *
+ * A full backup and the incremental backups following it form a chain. The
+ * newest chain is always kept, as are backups newer than the latest backup.
+ * Of all older chains, the newest chain of each of the configured number of
+ * most recent hours, days and weeks that contain a full backup is kept; all
+ * other chains are deleted. The number of kept chains is therefore bounded by
+ * the sum of the configured numbers plus one. The segments of a full backup
+ * share its time and belong to the same chain. Files that are not named like
+ * backups are left alone.
+ *
+ * The decision is made in memory from a single listing of the storage, and
+ * all files are deleted with a single batch request.
+ */
+public class GrandfatherFatherSonBackupHistory implements BackupHistory {
+
+  private static final Logger logger =
+      Logger.getLogger(GrandfatherFatherSonBackupHistory.class.getName());
+
+  private static final Pattern BACKUP_NAME_PATTERN =
+      Pattern.compile("^backup-(\\d{14})(.*)\\.[^.]+$");
+  private static final String INCREMENTAL_MARKER = "-incremental";
+  private static final DateTimeFormatter BACKUP_TIME_FORMAT =
+      DateTimeFormat.forPattern("yyyyMMddHHmmss").withZoneUTC();
+
+  private final int hourlyBackups;
+  private final int dailyBackups;
+  private final int weeklyBackups;
+
+  /**
+   * Creates a new retention policy.
+   *
+   * @param hourlyBackups the number of hours to keep a full backup for.
+   * @param dailyBackups the number of days to keep a full backup for.
+   * @param weeklyBackups the number of weeks to keep a full backup for.
+   */
+  public GrandfatherFatherSonBackupHistory(
+      int hourlyBackups, int dailyBackups, int weeklyBackups) {
+    this.hourlyBackups = hourlyBackups;
+    this.dailyBackups = dailyBackups;
+    this.weeklyBackups = weeklyBackups;
+  }
+
+  @Override
+  public void processHistoricBackups(Storage storage, String latestBackupName)
+      throws IOException {
+    Set<String> keep = new HashSet<>();
+    keep.add(latestBackupName);
+    List<String> latestBackup = storage.findLatestBackup();
+    if (latestBackup != null) {
+      keep.addAll(latestBackup);
+    }
+
+    // group all backups older than the latest backup into chains
+    List<BackupFile> backups = new ArrayList<>();
+    for (String filename : storage.listFiles()) {
+      BackupFile backup = BackupFile.parse(filename);
+      if (backup != null && filename.compareTo(latestBackupName) < 0) {
+        backups.add(backup);
+      }
+    }
+    Collections.sort(backups);
+    List<List<BackupFile>> chains = new ArrayList<>();
+    List<BackupFile> chain = null;
+    for (BackupFile backup : backups) {
+      if (chain == null
+          || (!backup.incremental && !isSegmentOf(backup, chain.get(0)))) {
+        chain = new ArrayList<>();
+        chains.add(chain);
+      }
+      chain.add(backup);
+    }
+
+    // walk the chains from newest to oldest, keeping the newest per period
+    Set<Long> hours = new HashSet<>();
+    Set<Long> days = new HashSet<>();
+    Set<Long> weeks = new HashSet<>();
+    List<String> filesToDelete = new ArrayList<>();
+    for (int i = chains.size() - 1; i >= 0; i--) {
+      chain = chains.get(i);
+      BackupFile head = chain.get(0);
+      boolean keepChain = false;
+      if (!head.incremental) {
+        DateTime time = head.time;
+        keepChain |= select(hours, hourlyBackups,
+            time.hourOfDay().roundFloorCopy().getMillis());
+        keepChain |= select(days, dailyBackups,
+            time.withTimeAtStartOfDay().getMillis());
+        keepChain |= select(weeks, weeklyBackups,
+            time.weekOfWeekyear().roundFloorCopy().getMillis());
+      }
+      for (BackupFile backup : chain) {
+        if (keepChain || keep.contains(backup.filename)) {
+          continue;
+        }
+        filesToDelete.add(backup.filename);
+      }
+    }
+
+    logger.fine("Deleting " + filesToDelete.size() + " of " + backups.size()
+        + " historic backup files");
+    storage.deleteFiles(filesToDelete);
+  }
+
+  /**
+   * Returns whether the given full backup file is another segment of the full
+   * backup starting the given chain.
+   */
+  private static boolean isSegmentOf(BackupFile backup, BackupFile head) {
+    return !head.incremental && head.time.equals(backup.time);
+  }
+
+  /**
+   * Selects the given period if it has not been selected yet and fewer than
+   * the maximum number of periods have been selected.
+   */
+  private static boolean select(Set<Long> periods, int max, long period) {
+    if (periods.contains(period) || periods.size() >= max) {
+      return false;
+    }
+    periods.add(period);
+    return true;
+  }
+
+  /**
+   * A backup file, as identified by its filename.
+   */
+  private static final class BackupFile implements Comparable<BackupFile> {
+    private final String filename;
+    private final DateTime time;
+    private final boolean incremental;
+
+    private BackupFile(String filename, DateTime time, boolean incremental) {
+      this.filename = filename;
+      this.time = time;
+      this.incremental = incremental;
+    }
+
+    private static BackupFile parse(String filename) {
+      Matcher matcher = BACKUP_NAME_PATTERN.matcher(filename);
+      if (!matcher.matches()) {
+        return null;
+      }
+      try {
+        return new BackupFile(filename,
+            BACKUP_TIME_FORMAT.parseDateTime(matcher.group(1)),
+            matcher.group(2).contains(INCREMENTAL_MARKER));
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+
+    @Override
+    public int compareTo(BackupFile other) {
+      int result = time.compareTo(other.time);
+      if (result != 0) {
+        return result;
+      }
+      // a full backup starts a chain, so sort it before its incrementals
+      if (incremental != other.incremental) {
+        return incremental ? 1 : -1;
+      }
+      return filename.compareTo(other.filename);
+    }
+  }
+}
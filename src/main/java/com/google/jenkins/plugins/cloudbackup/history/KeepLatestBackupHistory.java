@@ -16,25 +16,40 @@
 package com.google.jenkins.plugins.cloudbackup.history;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import com.google.jenkins.plugins.cloudbackup.storage.Storage;
 
 /**
  * Implementation of {@link BackupHistory} that removes all but the latest
  * backup.
+ *
+ * The files of the current backup chain, and backups newer than the latest
+ * backup, are never removed, so this policy can run concurrently with the
+ * next incremental backup. Backup filenames start with the time of the backup,
+ * so newer backups sort after the latest backup.
  */
 public class KeepLatestBackupHistory implements BackupHistory {
 
   @Override
   public void processHistoricBackups(Storage storage, String latestBackupName)
       throws IOException {
-    List<String> filesInStorage = storage.listFiles();
-    for (String filename : filesInStorage) {
-      if (!filename.equals(latestBackupName)) {
-        storage.deleteFile(filename);
+    Set<String> keep = new HashSet<>();
+    keep.add(latestBackupName);
+    List<String> latestBackup = storage.findLatestBackup();
+    if (latestBackup != null) {
+      keep.addAll(latestBackup);
+    }
+    List<String> filesToDelete = new ArrayList<>();
+    for (String filename : storage.listFiles()) {
+      if (!keep.contains(filename) && filename.compareTo(latestBackupName) < 0) {
+        filesToDelete.add(filename);
       }
     }
+    storage.deleteFiles(filesToDelete);
   }
 
 }
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.metrics;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.CaseFormat;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Counters, timers and gauges of the backups and restores of this Jenkins
+ * instance.
+ *
+ * All values are kept in memory since the start of Jenkins. They are exposed
+ * as attributes of a JMX MBean named
+ * {@code com.google.jenkins.plugins.cloudbackup:type=BackupMetrics}, e.g. for
+ * scraping by the Prometheus JMX exporter, and shown on the backup console
+ * page. Recording a value is a single atomic update, so instrumented code may
+ * record from any thread.
+ *
+ * Background work, e.g. pruning the backup history or compacting the backup
+ * chain, runs alongside backups and restores. Values recorded by tasks of a
+ * {@link #backgroundExecutor} are kept apart as well, so that the
+ * {@link BackupRun}s exclude them, see {@link #getForeground}.
+ */
+public final class BackupMetrics implements DynamicMBean {
+
+  private static final Logger logger =
+      Logger.getLogger(BackupMetrics.class.getName());
+
+  private static final String OBJECT_NAME =
+      "com.google.jenkins.plugins.cloudbackup:type=BackupMetrics";
+  private static final BackupMetrics INSTANCE = new BackupMetrics();
+  private static final int SLOWEST_PATHS = 10;
+
+  /**
+   * Monotonic counters.
+   */
+  public enum Counter {
+    BYTES_READ,
+    BYTES_COMPRESSED,
+    BYTES_UPLOADED,
+    FILES_VISITED,
+    DIRECTORIES_VISITED,
+    FILES_SKIPPED,
+    BACKUPS,
+    BACKUP_FAILURES,
+    RESTORES
+  }
+
+  /**
+   * Timed phases of backups and restores. Every phase counts its executions,
+   * and keeps their total, maximum and last duration.
+   */
+  public enum Phase {
+    WALK,
+    COMPRESS,
+    UPLOAD,
+    METADATA,
+    HISTORY,
+    RESTORE
+  }
+
+  /**
+   * Values that are replaced rather than accumulated.
+   */
+  public enum Gauge {
+    LAST_BACKUP_SIZE_BYTES,
+    INCREMENTAL_CHAIN_LENGTH
+  }
+
+  private final Map<Counter, AtomicLong> counters =
+      new EnumMap<>(Counter.class);
+  private final Map<Phase, Timer> timers = new EnumMap<>(Phase.class);
+  private final Map<Gauge, AtomicLong> gauges = new EnumMap<>(Gauge.class);
+  private final Map<Counter, AtomicLong> backgroundCounters =
+      new EnumMap<>(Counter.class);
+  private final Map<Phase, AtomicLong> backgroundNanos =
+      new EnumMap<>(Phase.class);
+  private final ThreadLocal<Boolean> background = new ThreadLocal<>();
+  private volatile SlowestPaths slowestPaths = new SlowestPaths(SLOWEST_PATHS);
+
+  @VisibleForTesting
+  BackupMetrics() {
+    for (Counter counter : Counter.values()) {
+      counters.put(counter, new AtomicLong());
+      backgroundCounters.put(counter, new AtomicLong());
+    }
+    for (Phase phase : Phase.values()) {
+      timers.put(phase, new Timer());
+      backgroundNanos.put(phase, new AtomicLong());
+    }
+    for (Gauge gauge : Gauge.values()) {
+      gauges.put(gauge, new AtomicLong());
+    }
+  }
+
+  /**
+   * Returns the metrics of this Jenkins instance.
+   */
+  public static BackupMetrics get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Wraps the given executor, so that the values recorded by its tasks are
+   * attributed to background work.
+   *
+   * @param executor the executor running background work.
+   * @return the wrapping executor.
+   */
+  public Executor backgroundExecutor(final Executor executor) {
+    return new Executor() {
+      @Override
+      public void execute(final Runnable command) {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            background.set(true);
+            try {
+              command.run();
+            } finally {
+              background.remove();
+            }
+          }
+        });
+      }
+    };
+  }
+
+  private boolean isBackground() {
+    return background.get() != null;
+  }
+
+  public void increment(Counter counter, long delta) {
+    counters.get(counter).addAndGet(delta);
+    if (isBackground()) {
+      backgroundCounters.get(counter).addAndGet(delta);
+    }
+  }
+
+  public long get(Counter counter) {
+    return counters.get(counter).get();
+  }
+
+  /**
+   * Returns the value of the given counter without the background work.
+   */
+  public long getForeground(Counter counter) {
+    // read the background value first, so that the result never falls short
+    long backgroundValue = backgroundCounters.get(counter).get();
+    return counters.get(counter).get() - backgroundValue;
+  }
+
+  /**
+   * Records one execution of the given phase.
+   *
+   * @param phase the phase that was executed.
+   * @param nanos the duration of the execution, in nanoseconds.
+   */
+  public void record(Phase phase, long nanos) {
+    timers.get(phase).record(nanos);
+    if (isBackground()) {
+      backgroundNanos.get(phase).addAndGet(nanos);
+    }
+  }
+
+  /**
+   * Returns the total duration of all executions of the given phase, in
+   * nanoseconds.
+   */
+  public long getTotalNanos(Phase phase) {
+    return timers.get(phase).totalNanos.get();
+  }
+
+  /**
+   * Returns the total duration of all executions of the given phase without
+   * the background work, in nanoseconds.
+   */
+  public long getForegroundTotalNanos(Phase phase) {
+    long backgroundValue = backgroundNanos.get(phase).get();
+    return timers.get(phase).totalNanos.get() - backgroundValue;
+  }
+
+  public long getCount(Phase phase) {
+    return timers.get(phase).count.get();
+  }
+
+  /**
+   * Records the time it took to add a file to a backup, for finding the
+   * slowest files and directories of the current backup run. Files added by
+   * background work are ignored.
+   *
+   * @param pathInVolume the path of the file in the volume.
+   * @param nanos the time in nanoseconds.
+   */
+  public void recordFile(String pathInVolume, long nanos) {
+    if (isBackground()) {
+      return;
+    }
+    slowestPaths.record(pathInVolume, nanos);
+  }
+
+  /**
+   * Starts collecting the slowest files of a new backup run.
+   *
+   * @return the slowest files of the previous run.
+   */
+  SlowestPaths resetSlowestPaths() {
+    SlowestPaths previous = slowestPaths;
+    slowestPaths = new SlowestPaths(SLOWEST_PATHS);
+    return previous;
+  }
+
+  public void set(Gauge gauge, long value) {
+    gauges.get(gauge).set(value);
+  }
+
+  public long get(Gauge gauge) {
+    return gauges.get(gauge).get();
+  }
+
+  /**
+   * Returns all current values by their attribute names, e.g.
+   * {@code BytesUploaded} or {@code UploadTotalMillis}, in a stable order.
+   *
+   * <p>The method is used by Jenkins via index.jelly of the backup console.
+   */
+  public Map<String, Long> getSnapshot() {
+    Map<String, Long> snapshot = new LinkedHashMap<>();
+    for (Map.Entry<Counter, AtomicLong> counter : counters.entrySet()) {
+      snapshot.put(attributeName(counter.getKey()),
+          counter.getValue().get());
+    }
+    for (Map.Entry<Phase, Timer> timer : timers.entrySet()) {
+      String prefix = attributeName(timer.getKey());
+      Timer value = timer.getValue();
+      snapshot.put(prefix + "Count", value.count.get());
+      snapshot.put(prefix + "TotalMillis", toMillis(value.totalNanos.get()));
+      snapshot.put(prefix + "MaxMillis", toMillis(value.maxNanos.get()));
+      snapshot.put(prefix + "LastMillis", toMillis(value.lastNanos.get()));
+    }
+    for (Map.Entry<Gauge, AtomicLong> gauge : gauges.entrySet()) {
+      snapshot.put(attributeName(gauge.getKey()), gauge.getValue().get());
+    }
+    return snapshot;
+  }
+
+  /**
+   * Registers the metrics with the platform MBean server. Failures are only
+   * logged, metrics are not essential for backups.
+   */
+  public void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(this, name);
+      }
+    } catch (JMException | RuntimeException e) {
+      logger.log(Level.WARNING, "Could not register backup metrics MBean", e);
+    }
+  }
+
+  @Override
+  public Object getAttribute(String attribute)
+      throws AttributeNotFoundException {
+    Long value = getSnapshot().get(attribute);
+    if (value == null) {
+      throw new AttributeNotFoundException(attribute);
+    }
+    return value;
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute)
+      throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Read-only: " + attribute.getName());
+  }
+
+  @Override
+  public AttributeList getAttributes(String[] attributes) {
+    Map<String, Long> snapshot = getSnapshot();
+    AttributeList list = new AttributeList();
+    for (String attribute : attributes) {
+      Long value = snapshot.get(attribute);
+      if (value != null) {
+        list.add(new Attribute(attribute, value));
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params,
+      String[] signature) throws ReflectionException {
+    // there are no operations
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    Map<String, Long> snapshot = getSnapshot();
+    MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+    int i = 0;
+    for (String name : snapshot.keySet()) {
+      attributes[i++] = new MBeanAttributeInfo(name, Long.class.getName(),
+          name, true, false, false);
+    }
+    return new MBeanInfo(getClass().getName(),
+        "Metrics of the Google Cloud Backup plugin", attributes, null,
+        new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+  }
+
+  private static String attributeName(Enum<?> metric) {
+    return CaseFormat.UPPER_UNDERSCORE.to(
+        CaseFormat.UPPER_CAMEL, metric.name());
+  }
+
+  private static long toMillis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+  private static class Timer {
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLong lastNanos = new AtomicLong();
+
+    private void record(long nanos) {
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      lastNanos.set(nanos);
+      long max = maxNanos.get();
+      while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+        max = maxNanos.get();
+      }
+    }
+  }
+}
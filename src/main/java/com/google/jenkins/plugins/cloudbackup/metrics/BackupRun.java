@@ -0,0 +1,309 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.metrics;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Summary of one backup or restore run: its duration, the time spent in every
+ * phase, the bytes and files processed, and the slowest files and directories.
+ *
+ * Runs are recorded by a {@link Recorder} from the differences of
+ * {@link BackupMetrics} before and after the run, and persisted as one line
+ * of tab separated fields by {@link BackupRunHistory}.
+ */
+public final class BackupRun {
+
+  private static final Joiner.MapJoiner MAP_JOINER =
+      Joiner.on(',').withKeyValueSeparator("=");
+  private static final Splitter.MapSplitter MAP_SPLITTER =
+      Splitter.on(',').omitEmptyStrings().withKeyValueSeparator('=');
+  private static final int FIELDS = 12;
+
+  private final String kind;
+  private final long startMillis;
+  private final long durationMillis;
+  private final boolean success;
+  private final long bytesRead;
+  private final long bytesCompressed;
+  private final long bytesUploaded;
+  private final long filesVisited;
+  private final long filesSkipped;
+  private final Map<String, Long> phaseMillis;
+  private final Map<String, Long> slowestFiles;
+  private final Map<String, Long> slowestDirectories;
+
+  private BackupRun(String kind, long startMillis, long durationMillis,
+      boolean success, long bytesRead, long bytesCompressed,
+      long bytesUploaded, long filesVisited, long filesSkipped,
+      Map<String, Long> phaseMillis, Map<String, Long> slowestFiles,
+      Map<String, Long> slowestDirectories) {
+    this.kind = kind;
+    this.startMillis = startMillis;
+    this.durationMillis = durationMillis;
+    this.success = success;
+    this.bytesRead = bytesRead;
+    this.bytesCompressed = bytesCompressed;
+    this.bytesUploaded = bytesUploaded;
+    this.filesVisited = filesVisited;
+    this.filesSkipped = filesSkipped;
+    this.phaseMillis = Collections.unmodifiableMap(phaseMillis);
+    this.slowestFiles = Collections.unmodifiableMap(slowestFiles);
+    this.slowestDirectories = Collections.unmodifiableMap(slowestDirectories);
+  }
+
+  /**
+   * Starts recording a run.
+   *
+   * @param kind the kind of the run, e.g. "Full", "Incremental" or "Restore".
+   * @param metrics the metrics the run records in.
+   * @return the recorder, to be finished when the run has ended.
+   */
+  public static Recorder start(String kind, BackupMetrics metrics) {
+    return new Recorder(kind, metrics);
+  }
+
+  /**
+   * Records a single run from the changes of {@link BackupMetrics}, excluding
+   * background work. Runs must not overlap, otherwise they are attributed the
+   * values of each other.
+   */
+  public static final class Recorder {
+    private final String kind;
+    private final BackupMetrics metrics;
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final Map<BackupMetrics.Counter, Long> counters =
+        new EnumMap<>(BackupMetrics.Counter.class);
+    private final Map<BackupMetrics.Phase, Long> phaseNanos =
+        new EnumMap<>(BackupMetrics.Phase.class);
+
+    private Recorder(String kind, BackupMetrics metrics) {
+      this.kind = kind;
+      this.metrics = metrics;
+      for (BackupMetrics.Counter counter : BackupMetrics.Counter.values()) {
+        counters.put(counter, metrics.getForeground(counter));
+      }
+      for (BackupMetrics.Phase phase : BackupMetrics.Phase.values()) {
+        phaseNanos.put(phase, metrics.getForegroundTotalNanos(phase));
+      }
+      metrics.resetSlowestPaths();
+    }
+
+    /**
+     * Finishes recording.
+     *
+     * @param success whether the run succeeded.
+     * @return the recorded run.
+     */
+    public BackupRun finish(boolean success) {
+      long durationMillis =
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+      Map<String, Long> phaseMillis = new LinkedHashMap<>();
+      for (BackupMetrics.Phase phase : BackupMetrics.Phase.values()) {
+        long nanos =
+            metrics.getForegroundTotalNanos(phase) - phaseNanos.get(phase);
+        if (nanos > 0) {
+          phaseMillis.put(phaseName(phase),
+              TimeUnit.NANOSECONDS.toMillis(nanos));
+        }
+      }
+      SlowestPaths slowestPaths = metrics.resetSlowestPaths();
+      return new BackupRun(kind, startMillis, durationMillis, success,
+          delta(BackupMetrics.Counter.BYTES_READ),
+          delta(BackupMetrics.Counter.BYTES_COMPRESSED),
+          delta(BackupMetrics.Counter.BYTES_UPLOADED),
+          delta(BackupMetrics.Counter.FILES_VISITED),
+          delta(BackupMetrics.Counter.FILES_SKIPPED),
+          phaseMillis, slowestPaths.getSlowestFiles(),
+          slowestPaths.getSlowestDirectories());
+    }
+
+    private long delta(BackupMetrics.Counter counter) {
+      return metrics.getForeground(counter) - counters.get(counter);
+    }
+  }
+
+  public String getKind() {
+    return kind;
+  }
+
+  public long getStartMillis() {
+    return startMillis;
+  }
+
+  /**
+   * Returns the start of the run.
+   *
+   * <p>The method is used by Jenkins via index.jelly of the backup console.
+   */
+  public Date getStart() {
+    return new Date(startMillis);
+  }
+
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  /**
+   * Returns the duration of the run, e.g. {@code 1h 10m 05s}.
+   *
+   * <p>The method is used by Jenkins via index.jelly of the backup console.
+   */
+  public String getDuration() {
+    long seconds = TimeUnit.MILLISECONDS.toSeconds(durationMillis);
+    return String.format(Locale.ENGLISH, "%dh %02dm %02ds", seconds / 3600,
+        seconds / 60 % 60, seconds % 60);
+  }
+
+  public boolean isSuccess() {
+    return success;
+  }
+
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  public long getBytesCompressed() {
+    return bytesCompressed;
+  }
+
+  public long getBytesUploaded() {
+    return bytesUploaded;
+  }
+
+  public long getFilesVisited() {
+    return filesVisited;
+  }
+
+  public long getFilesSkipped() {
+    return filesSkipped;
+  }
+
+  /**
+   * Returns the bytes read per second of the run, in MB/s.
+   *
+   * <p>The method is used by Jenkins via index.jelly of the backup console.
+   */
+  public String getThroughput() {
+    double megabytes = bytesRead / (1024.0 * 1024.0);
+    double seconds = Math.max(durationMillis, 1) / 1000.0;
+    return String.format(Locale.ENGLISH, "%.1f MB/s", megabytes / seconds);
+  }
+
+  /**
+   * Returns the time spent in every phase of the run, in milliseconds.
+   * Phases run concurrently, so their sum may exceed the duration of the run.
+   */
+  public Map<String, Long> getPhaseMillis() {
+    return phaseMillis;
+  }
+
+  /**
+   * Returns the files that took longest to back up, in milliseconds.
+   */
+  public Map<String, Long> getSlowestFiles() {
+    return slowestFiles;
+  }
+
+  /**
+   * Returns the directories whose files took longest to back up in total, in
+   * milliseconds.
+   */
+  public Map<String, Long> getSlowestDirectories() {
+    return slowestDirectories;
+  }
+
+  /**
+   * Returns the run as a single line of tab separated fields.
+   */
+  String toLine() {
+    return Joiner.on('\t').join(kind, startMillis, durationMillis, success,
+        bytesRead, bytesCompressed, bytesUploaded, filesVisited, filesSkipped,
+        MAP_JOINER.join(phaseMillis), MAP_JOINER.join(encode(slowestFiles)),
+        MAP_JOINER.join(encode(slowestDirectories)));
+  }
+
+  /**
+   * Parses a line written by {@link #toLine()}.
+   *
+   * @return the run, or {@code null} if the line is malformed.
+   */
+  @Nullable
+  static BackupRun fromLine(String line) {
+    List<String> fields = Splitter.on('\t').splitToList(line);
+    if (fields.size() != FIELDS) {
+      return null;
+    }
+    try {
+      return new BackupRun(fields.get(0), Long.parseLong(fields.get(1)),
+          Long.parseLong(fields.get(2)), Boolean.parseBoolean(fields.get(3)),
+          Long.parseLong(fields.get(4)), Long.parseLong(fields.get(5)),
+          Long.parseLong(fields.get(6)), Long.parseLong(fields.get(7)),
+          Long.parseLong(fields.get(8)), parseMap(fields.get(9), false),
+          parseMap(fields.get(10), true), parseMap(fields.get(11), true));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static String phaseName(BackupMetrics.Phase phase) {
+    String name = phase.name().toLowerCase(Locale.ENGLISH);
+    return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+  }
+
+  private static Map<String, Long> encode(Map<String, Long> paths) {
+    Map<String, Long> encoded = new LinkedHashMap<>();
+    try {
+      for (Map.Entry<String, Long> path : paths.entrySet()) {
+        encoded.put(URLEncoder.encode(path.getKey(), "UTF-8"), path.getValue());
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+    return encoded;
+  }
+
+  private static Map<String, Long> parseMap(String field, boolean decode) {
+    Map<String, Long> map = new LinkedHashMap<>();
+    try {
+      for (Map.Entry<String, String> entry
+          : MAP_SPLITTER.split(field).entrySet()) {
+        String key = decode
+            ? URLDecoder.decode(entry.getKey(), "UTF-8") : entry.getKey();
+        map.put(key, Long.parseLong(entry.getValue()));
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+    return map;
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The most recent backup and restore runs, kept in memory and in a file in
+ * the Jenkins home directory with one line per run. Older runs are dropped.
+ */
+public class BackupRunHistory {
+
+  private static final Logger logger =
+      Logger.getLogger(BackupRunHistory.class.getName());
+
+  public static final String HISTORY_FILENAME = ".backup-runs";
+  private static final int MAX_RUNS = 50;
+
+  private final Path historyPath;
+  private final int maxRuns;
+  // the runs, oldest first
+  private final Deque<BackupRun> runs = new ArrayDeque<>();
+
+  public BackupRunHistory(Path jenkinsHome) {
+    this(jenkinsHome, MAX_RUNS);
+  }
+
+  BackupRunHistory(Path jenkinsHome, int maxRuns) {
+    this.historyPath = jenkinsHome.resolve(HISTORY_FILENAME);
+    this.maxRuns = maxRuns;
+  }
+
+  /**
+   * Loads the runs persisted by a previous Jenkins instance. Malformed lines
+   * are ignored.
+   */
+  public synchronized void load() {
+    runs.clear();
+    if (!Files.exists(historyPath)) {
+      return;
+    }
+    try {
+      for (String line
+          : Files.readAllLines(historyPath, StandardCharsets.UTF_8)) {
+        BackupRun run = BackupRun.fromLine(line);
+        if (run != null) {
+          addRun(run);
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "IOException while reading backup run history",
+          e);
+    }
+  }
+
+  /**
+   * Adds a run and persists the history. Failing to persist the history is
+   * only logged.
+   */
+  public synchronized void add(BackupRun run) {
+    addRun(run);
+    List<String> lines = new ArrayList<>();
+    for (BackupRun each : runs) {
+      lines.add(each.toLine());
+    }
+    Path tempPath = historyPath.resolveSibling(HISTORY_FILENAME + ".tmp");
+    try {
+      Files.write(tempPath, lines, StandardCharsets.UTF_8);
+      Files.move(tempPath, historyPath, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "IOException while writing backup run history",
+          e);
+    }
+  }
+
+  /**
+   * Returns the runs, most recent first.
+   */
+  public synchronized List<BackupRun> getRuns() {
+    List<BackupRun> result = new ArrayList<>(runs.size());
+    for (BackupRun run : runs) {
+      result.add(0, run);
+    }
+    return result;
+  }
+
+  private void addRun(BackupRun run) {
+    runs.addLast(run);
+    while (runs.size() > maxRuns) {
+      runs.removeFirst();
+    }
+  }
+}
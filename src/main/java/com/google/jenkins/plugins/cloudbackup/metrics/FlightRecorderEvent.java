@@ -0,0 +1,277 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.metrics;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A JDK Flight Recorder event of a backup or restore step.
+ *
+ * The plugin is compiled for Java 7, so it cannot declare subclasses of
+ * {@code jdk.jfr.Event}. The event types are defined at runtime instead, via
+ * {@code jdk.jfr.EventFactory}, which is available since Java 9. On older
+ * JVMs, and whenever no recording has enabled an event type, {@link #begin}
+ * returns a disabled event without allocating, and committing it does
+ * nothing. Callers building expensive field values should check
+ * {@link #isEnabled()} first.
+ *
+ * <pre>
+ * FlightRecorderEvent event =
+ *     FlightRecorderEvent.begin(FlightRecorderEvent.Type.METADATA_WRITE);
+ * ...
+ * event.commit(fileCount);
+ * </pre>
+ */
+public final class FlightRecorderEvent {
+
+  private static final Logger logger =
+      Logger.getLogger(FlightRecorderEvent.class.getName());
+
+  private static final String NAME_PREFIX =
+      "com.google.jenkins.plugins.cloudbackup.";
+  private static final String[] CATEGORY = {"Jenkins", "Cloud Backup"};
+  private static final FlightRecorderEvent DISABLED =
+      new FlightRecorderEvent(null);
+  private static final Object[] NO_ARGS = new Object[0];
+
+  /**
+   * The kinds of a field value.
+   */
+  private enum Kind {
+    TEXT, COUNT, BYTES
+  }
+
+  /**
+   * The event types, with the fields that must be passed to
+   * {@link #commit}, in this order.
+   */
+  public enum Type {
+    /** A walk of the backup scope. Fields: directories, files. */
+    SCOPE_WALK("ScopeWalk", "Backup Scope Walk",
+        "Walking the backup scope and adding its files to volumes",
+        "directories", Kind.COUNT, "files", Kind.COUNT),
+    /** A large file added to a backup volume. Fields: path, bytes. */
+    VOLUME_ENTRY("VolumeEntry", "Backup Volume Entry",
+        "Adding a large file to a backup volume",
+        "path", Kind.TEXT, "bytes", Kind.BYTES),
+    /** A transfer from or to the storage. Fields: operation, file, bytes. */
+    STORAGE_TRANSFER("StorageTransfer", "Backup Storage Transfer",
+        "Storing a file in or loading a file from the backup storage",
+        "operation", Kind.TEXT, "file", Kind.TEXT, "bytes", Kind.BYTES),
+    /** Writing the metadata of a backup. Fields: volumes, files. */
+    METADATA_WRITE("MetadataWrite", "Backup Metadata Write",
+        "Writing the latest backup, the existing files and the version",
+        "volumes", Kind.COUNT, "files", Kind.COUNT),
+    /** Fetching a volume to restore. Fields: volume, bytes. */
+    RESTORE_FETCH("RestoreFetch", "Restore Volume Fetch",
+        "Loading a backup volume to restore from the storage",
+        "volume", Kind.TEXT, "bytes", Kind.BYTES),
+    /** Extracting a restored volume. Fields: volume. */
+    RESTORE_EXTRACT("RestoreExtract", "Restore Volume Extract",
+        "Extracting a restored backup volume into the Jenkins home",
+        "volume", Kind.TEXT);
+
+    private final Object factory;
+    private final Object eventType;
+
+    Type(String name, String label, String description, Object... fields) {
+      factory = Jfr.createFactory(name, label, description, fields);
+      eventType = factory == null
+          ? null : Jfr.invoke(Jfr.getEventType, factory, NO_ARGS);
+    }
+
+    /**
+     * Returns whether a recording is running that has enabled this event
+     * type.
+     */
+    public boolean isEnabled() {
+      return eventType != null
+          && Boolean.TRUE.equals(
+              Jfr.invoke(Jfr.isTypeEnabled, eventType, NO_ARGS));
+    }
+  }
+
+  @Nullable
+  private final Object event;
+
+  private FlightRecorderEvent(@Nullable Object event) {
+    this.event = event;
+  }
+
+  /**
+   * Begins timing an event of the given type.
+   *
+   * @return the event, which is disabled if the type is not enabled.
+   */
+  public static FlightRecorderEvent begin(Type type) {
+    if (!type.isEnabled()) {
+      return DISABLED;
+    }
+    Object event = Jfr.invoke(Jfr.newEvent, type.factory, NO_ARGS);
+    if (event == null) {
+      return DISABLED;
+    }
+    Jfr.invoke(Jfr.beginEvent, event, NO_ARGS);
+    return new FlightRecorderEvent(event);
+  }
+
+  public boolean isEnabled() {
+    return event != null;
+  }
+
+  /**
+   * Ends timing the event, and commits it to the running recordings.
+   *
+   * @param values the values of the fields of the event type, in order.
+   */
+  public void commit(Object... values) {
+    if (event == null) {
+      return;
+    }
+    for (int i = 0; i < values.length; i++) {
+      Jfr.invoke(Jfr.setField, event, i, values[i]);
+    }
+    Jfr.invoke(Jfr.commitEvent, event, NO_ARGS);
+  }
+
+  /**
+   * The reflective access to the JFR API. All members are null if JFR is not
+   * available.
+   */
+  private static final class Jfr {
+    private static Method create;
+    private static Method getEventType;
+    private static Method newEvent;
+    private static Method isTypeEnabled;
+    private static Method beginEvent;
+    private static Method setField;
+    private static Method commitEvent;
+    private static Constructor<?> annotationElement;
+    private static Constructor<?> valueDescriptor;
+    private static Class<? extends Annotation> nameAnnotation;
+    private static Class<? extends Annotation> labelAnnotation;
+    private static Class<? extends Annotation> descriptionAnnotation;
+    private static Class<? extends Annotation> categoryAnnotation;
+    private static Class<? extends Annotation> dataAmountAnnotation;
+    private static Class<? extends Annotation> stackTraceAnnotation;
+
+    static {
+      try {
+        Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+        Class<?> eventClass = Class.forName("jdk.jfr.Event");
+        Class<?> elementClass = Class.forName("jdk.jfr.AnnotationElement");
+        create = factoryClass.getMethod("create", List.class, List.class);
+        getEventType = factoryClass.getMethod("getEventType");
+        newEvent = factoryClass.getMethod("newEvent");
+        isTypeEnabled =
+            Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+        beginEvent = eventClass.getMethod("begin");
+        setField = eventClass.getMethod("set", int.class, Object.class);
+        commitEvent = eventClass.getMethod("commit");
+        annotationElement =
+            elementClass.getConstructor(Class.class, Object.class);
+        valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor")
+            .getConstructor(Class.class, String.class, List.class);
+        nameAnnotation = annotation("jdk.jfr.Name");
+        labelAnnotation = annotation("jdk.jfr.Label");
+        descriptionAnnotation = annotation("jdk.jfr.Description");
+        categoryAnnotation = annotation("jdk.jfr.Category");
+        dataAmountAnnotation = annotation("jdk.jfr.DataAmount");
+        stackTraceAnnotation = annotation("jdk.jfr.StackTrace");
+      } catch (ClassNotFoundException | NoSuchMethodException
+          | RuntimeException e) {
+        logger.log(Level.FINE, "JDK Flight Recorder is not available", e);
+        create = null;
+      }
+    }
+
+    private static Class<? extends Annotation> annotation(String className)
+        throws ClassNotFoundException {
+      return Class.forName(className).asSubclass(Annotation.class);
+    }
+
+    /**
+     * Defines an event type.
+     *
+     * @param fields the names and {@link Kind}s of the fields, alternating.
+     * @return the {@code jdk.jfr.EventFactory}, or null if JFR is not
+     * available.
+     */
+    @Nullable
+    static Object createFactory(String name, String label,
+        String description, Object... fields) {
+      if (create == null) {
+        return null;
+      }
+      try {
+        List<Object> annotations = Arrays.asList(
+            annotationElement.newInstance(nameAnnotation, NAME_PREFIX + name),
+            annotationElement.newInstance(labelAnnotation, label),
+            annotationElement.newInstance(descriptionAnnotation, description),
+            annotationElement.newInstance(categoryAnnotation, CATEGORY),
+            // the stack trace would only show the reflective calls
+            annotationElement.newInstance(stackTraceAnnotation, false));
+        List<Object> descriptors = new ArrayList<>();
+        for (int i = 0; i < fields.length; i += 2) {
+          String fieldName = (String) fields[i];
+          Kind kind = (Kind) fields[i + 1];
+          List<Object> fieldAnnotations = new ArrayList<>();
+          fieldAnnotations.add(annotationElement.newInstance(labelAnnotation,
+              Character.toUpperCase(fieldName.charAt(0))
+                  + fieldName.substring(1)));
+          if (kind == Kind.BYTES) {
+            fieldAnnotations.add(annotationElement.newInstance(
+                dataAmountAnnotation, "BYTES"));
+          }
+          descriptors.add(valueDescriptor.newInstance(
+              kind == Kind.TEXT ? String.class : long.class, fieldName,
+              Collections.unmodifiableList(fieldAnnotations)));
+        }
+        return create.invoke(null, annotations, descriptors);
+      } catch (InstantiationException | IllegalAccessException
+          | InvocationTargetException | RuntimeException e) {
+        logger.log(Level.WARNING, "Could not define JFR event " + name, e);
+        return null;
+      }
+    }
+
+    /**
+     * Invokes a JFR method. Events are diagnostics only, so failures are
+     * only logged.
+     */
+    @Nullable
+    static Object invoke(Method method, Object target, Object... args) {
+      try {
+        return method.invoke(target, args);
+      } catch (IllegalAccessException | InvocationTargetException
+          | RuntimeException e) {
+        logger.log(Level.FINE, "Could not invoke JFR method " + method, e);
+        return null;
+      }
+    }
+  }
+}
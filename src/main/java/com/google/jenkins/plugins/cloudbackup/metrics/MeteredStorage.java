@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.metrics;
+
+import com.google.jenkins.plugins.cloudbackup.storage.ForwardingStorage;
+import com.google.jenkins.plugins.cloudbackup.storage.Storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Storage wrapper recording every file transfer as a
+ * {@link FlightRecorderEvent}. Transfers that fail are recorded with a size
+ * of zero.
+ */
+public class MeteredStorage extends ForwardingStorage {
+
+  public MeteredStorage(Storage storage) {
+    super(storage);
+  }
+
+  @Override
+  public void storeFile(Path localFile, String filename) throws IOException {
+    FlightRecorderEvent event =
+        FlightRecorderEvent.begin(FlightRecorderEvent.Type.STORAGE_TRANSFER);
+    long size = 0;
+    try {
+      super.storeFile(localFile, filename);
+      size = event.isEnabled() ? Files.size(localFile) : 0;
+    } finally {
+      event.commit("store", filename, size);
+    }
+  }
+
+  @Override
+  public void loadFile(String filename, Path target) throws IOException {
+    FlightRecorderEvent event =
+        FlightRecorderEvent.begin(FlightRecorderEvent.Type.STORAGE_TRANSFER);
+    long size = 0;
+    try {
+      super.loadFile(filename, target);
+      size = event.isEnabled() ? Files.size(target) : 0;
+    } finally {
+      event.commit("load", filename, size);
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.metrics;
+
+import com.google.jenkins.plugins.cloudbackup.volume.BlockSignatures;
+import com.google.jenkins.plugins.cloudbackup.volume.ForwardingVolumeCreator;
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import javax.annotation.Nullable;
+
+/**
+ * Volume wrapper recording the bytes written by new volumes, and the time
+ * spent adding files to them, in {@link BackupMetrics}. Adding a file of at
+ * least {@link #ENTRY_EVENT_THRESHOLD_BYTES} is also recorded as a
+ * {@link FlightRecorderEvent}. Extraction is not metered. The bytes read are
+ * counted as they are read, including reads for hashing, by the read throttle
+ * of the plugin.
+ */
+public class MeteredVolume implements Volume {
+
+  /**
+   * The size from which files added to a volume are recorded as events. Most
+   * files of a Jenkins home are small, and not worth an event each.
+   */
+  public static final long ENTRY_EVENT_THRESHOLD_BYTES = 1024 * 1024;
+
+  private final Volume volume;
+  private final BackupMetrics metrics;
+
+  /**
+   * @param volume the volume to wrap.
+   * @param metrics the metrics to record in.
+   */
+  public MeteredVolume(Volume volume, BackupMetrics metrics) {
+    this.volume = volume;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public String getFileExtension() {
+    return volume.getFileExtension();
+  }
+
+  @Override
+  public Volume.Creator createNew(Path volumePath) throws IOException {
+    return new MeteredCreator(volume.createNew(volumePath), volumePath);
+  }
+
+  @Override
+  public Volume.Extractor extract(Path volumePath) throws IOException {
+    return volume.extract(volumePath);
+  }
+
+  private class MeteredCreator extends ForwardingVolumeCreator {
+
+    private final Path volumePath;
+
+    MeteredCreator(Volume.Creator creator, Path volumePath) {
+      super(creator);
+      this.volumePath = volumePath;
+    }
+
+    @Override
+    public void addFile(Path file, String pathInVolume,
+        @Nullable BasicFileAttributes attrs) throws IOException {
+      long size = attrs != null && attrs.isRegularFile() ? attrs.size() : 0;
+      FlightRecorderEvent event = beginEntry(size);
+      long start = System.nanoTime();
+      super.addFile(file, pathInVolume, attrs);
+      recordEntry(pathInVolume, size, System.nanoTime() - start, event);
+    }
+
+    @Override
+    public void addFileTail(Path file, String pathInVolume, long offset,
+        long size) throws IOException {
+      FlightRecorderEvent event = beginEntry(size - offset);
+      long start = System.nanoTime();
+      super.addFileTail(file, pathInVolume, offset, size);
+      recordEntry(pathInVolume, size - offset, System.nanoTime() - start,
+          event);
+    }
+
+    @Override
+    public void addFileDelta(Path file, String pathInVolume,
+        BlockSignatures base) throws IOException {
+      long size = Files.size(file);
+      FlightRecorderEvent event = beginEntry(size);
+      long start = System.nanoTime();
+      super.addFileDelta(file, pathInVolume, base);
+      recordEntry(pathInVolume, size, System.nanoTime() - start, event);
+    }
+
+    @Nullable
+    private FlightRecorderEvent beginEntry(long size) {
+      return size >= ENTRY_EVENT_THRESHOLD_BYTES
+          ? FlightRecorderEvent.begin(FlightRecorderEvent.Type.VOLUME_ENTRY)
+          : null;
+    }
+
+    private void recordEntry(String pathInVolume, long size, long nanos,
+        @Nullable FlightRecorderEvent event) {
+      metrics.record(BackupMetrics.Phase.COMPRESS, nanos);
+      metrics.recordFile(pathInVolume, nanos);
+      if (event != null) {
+        event.commit(pathInVolume, size);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      long start = System.nanoTime();
+      super.close();
+      metrics.record(BackupMetrics.Phase.COMPRESS, System.nanoTime() - start);
+      if (Files.exists(volumePath)) {
+        metrics.increment(BackupMetrics.Counter.BYTES_COMPRESSED,
+            Files.size(volumePath));
+      }
+    }
+  }
+
+}
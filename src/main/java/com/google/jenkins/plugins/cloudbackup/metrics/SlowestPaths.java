@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the files that took longest to add to a backup, and the directories
+ * whose files took longest in total.
+ */
+class SlowestPaths {
+
+  private static final Comparator<Map.Entry<String, Long>> BY_TIME =
+      new Comparator<Map.Entry<String, Long>>() {
+        @Override
+        public int compare(Map.Entry<String, Long> a,
+            Map.Entry<String, Long> b) {
+          return Long.compare(a.getValue(), b.getValue());
+        }
+      };
+
+  private final int limit;
+  // the slowest files, fastest first
+  private final PriorityQueue<Map.Entry<String, Long>> slowestFiles;
+  private final Map<String, Long> directoryNanos = new HashMap<>();
+
+  /**
+   * @param limit the number of files and directories to keep.
+   */
+  SlowestPaths(int limit) {
+    this.limit = limit;
+    this.slowestFiles = new PriorityQueue<>(limit + 1, BY_TIME);
+  }
+
+  /**
+   * Records the time it took to add a file.
+   *
+   * @param path the path of the file in the volume.
+   * @param nanos the time in nanoseconds.
+   */
+  synchronized void record(String path, long nanos) {
+    if (slowestFiles.size() < limit || nanos > slowestFiles.peek().getValue()) {
+      slowestFiles.add(new TimedPath(path, nanos));
+      if (slowestFiles.size() > limit) {
+        slowestFiles.poll();
+      }
+    }
+    int separator = path.lastIndexOf('/');
+    String directory = separator > 0 ? path.substring(0, separator) : ".";
+    Long total = directoryNanos.get(directory);
+    directoryNanos.put(directory, total == null ? nanos : total + nanos);
+  }
+
+  /**
+   * Returns the slowest files with their times in milliseconds, slowest
+   * first.
+   */
+  synchronized Map<String, Long> getSlowestFiles() {
+    return toMillis(new ArrayList<>(slowestFiles));
+  }
+
+  /**
+   * Returns the directories with the highest total time of their files, in
+   * milliseconds, slowest first.
+   */
+  synchronized Map<String, Long> getSlowestDirectories() {
+    PriorityQueue<Map.Entry<String, Long>> slowest =
+        new PriorityQueue<>(limit + 1, BY_TIME);
+    for (Map.Entry<String, Long> directory : directoryNanos.entrySet()) {
+      slowest.add(directory);
+      if (slowest.size() > limit) {
+        slowest.poll();
+      }
+    }
+    return toMillis(new ArrayList<>(slowest));
+  }
+
+  private static Map<String, Long> toMillis(
+      List<Map.Entry<String, Long>> paths) {
+    Collections.sort(paths, Collections.reverseOrder(BY_TIME));
+    Map<String, Long> millis = new LinkedHashMap<>();
+    for (Map.Entry<String, Long> path : paths) {
+      millis.put(path.getKey(),
+          TimeUnit.NANOSECONDS.toMillis(path.getValue()));
+    }
+    return millis;
+  }
+
+  private static class TimedPath implements Map.Entry<String, Long> {
+    private final String path;
+    private final long nanos;
+
+    private TimedPath(String path, long nanos) {
+      this.path = path;
+      this.nanos = nanos;
+    }
+
+    @Override
+    public String getKey() {
+      return path;
+    }
+
+    @Override
+    public Long getValue() {
+      return nanos;
+    }
+
+    @Override
+    public Long setValue(Long value) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.restore;
+
+import com.google.common.base.Joiner;
+import com.google.jenkins.plugins.cloudbackup.volume.ForwardingVolumeExtractor;
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persists the progress of a restore in a journal file next to the restore
+ * log, so that an interrupted restore resumes where it stopped.
+ *
+ * The journal records the volumes of the restored backup chain, the volumes
+ * that have been extracted completely, and the position in every volume that
+ * is being extracted. The position counts the entries that have been
+ * processed, per iteration over the volume, since entries are the smallest
+ * unit a {@link Volume.Extractor} can skip. Entries are only counted once
+ * they have been extracted, so an entry that was being written when the
+ * restore was interrupted is extracted again. A journal of a different
+ * backup chain is ignored.
+ */
+public class RestoreJournal {
+
+  private static final Logger logger =
+      Logger.getLogger(RestoreJournal.class.getName());
+
+  private static final String JOURNAL_FILENAME = ".restore.journal";
+  private static final String COMMENT_LINE =
+      "# Progress of an unfinished restore, do not edit";
+  private static final String CHAIN_PREFIX = "chain ";
+  private static final String COMPLETED_PREFIX = "done ";
+  private static final String POSITION_PREFIX = "at ";
+  private static final int ENTRIES_PER_CHECKPOINT = 500;
+
+  private final Path journalPath;
+  private List<String> backupFiles = Collections.emptyList();
+  private final Set<String> completedVolumes = new HashSet<>();
+  // the position in every volume being extracted
+  private final Map<String, Position> positions = new HashMap<>();
+
+  public RestoreJournal(Path jenkinsHome) {
+    journalPath = jenkinsHome.resolve(JOURNAL_FILENAME);
+  }
+
+  /**
+   * Starts journaling the restore of the given backup chain. The progress of
+   * a previous, interrupted restore of the same chain is kept.
+   *
+   * @param backupFiles the volumes of the backup chain, in restore order.
+   */
+  public synchronized void start(List<String> backupFiles) {
+    this.backupFiles = new ArrayList<>(backupFiles);
+    completedVolumes.clear();
+    positions.clear();
+    if (read()) {
+      logger.info("Resuming interrupted restore, " + completedVolumes.size()
+          + " of " + backupFiles.size() + " backup volume(s) already restored");
+    }
+    write();
+  }
+
+  /**
+   * Returns whether the given volume has been extracted completely.
+   */
+  public synchronized boolean isCompleted(String volumeName) {
+    return completedVolumes.contains(volumeName);
+  }
+
+  /**
+   * Returns an extractor that skips the entries of the given volume that have
+   * been processed already, and records the progress of the extraction.
+   *
+   * @param volumeName the name of the volume being extracted.
+   * @param extractor the {@link Volume.Extractor} of the volume.
+   * @return the journaling extractor.
+   */
+  public Volume.Extractor journal(final String volumeName,
+      Volume.Extractor extractor) {
+    final Position start = getPosition(volumeName);
+    return new ForwardingVolumeExtractor(extractor) {
+      private int iterations = 0;
+
+      @Override
+      public Iterator<Volume.Entry> iterator() {
+        int iteration = iterations++;
+        if (iteration < start.iteration) {
+          // all entries of this iteration have been processed already
+          return Collections.<Volume.Entry>emptyIterator();
+        }
+        Iterator<Volume.Entry> entries = super.iterator();
+        long skip = iteration == start.iteration ? start.entries : 0;
+        for (long i = 0; i < skip && entries.hasNext(); i++) {
+          entries.next();
+        }
+        return new JournalingIterator(volumeName, iteration, skip, entries,
+            this);
+      }
+    };
+  }
+
+  /**
+   * Records that the given volume has been extracted completely.
+   */
+  public synchronized void markCompleted(String volumeName) {
+    completedVolumes.add(volumeName);
+    positions.remove(volumeName);
+    write();
+  }
+
+  /**
+   * Deletes the journal once the restore has finished.
+   */
+  public synchronized void delete() {
+    completedVolumes.clear();
+    positions.clear();
+    try {
+      Files.deleteIfExists(journalPath);
+    } catch (IOException e) {
+      // be silent about cleanup errors, only log them
+      logger.log(Level.FINE, "IOException while performing cleanup", e);
+    }
+  }
+
+  private synchronized Position getPosition(String volumeName) {
+    Position position = positions.get(volumeName);
+    return position != null ? position : new Position(0, 0);
+  }
+
+  private synchronized void recordPosition(String volumeName,
+      Position position) {
+    positions.put(volumeName, position);
+    write();
+  }
+
+  /**
+   * Reads the journal of a previous restore of the same backup chain.
+   *
+   * @return whether a previous restore was found.
+   */
+  private boolean read() {
+    if (!Files.exists(journalPath)) {
+      return false;
+    }
+    try {
+      List<String> lines =
+          Files.readAllLines(journalPath, StandardCharsets.UTF_8);
+      String chainLine = CHAIN_PREFIX + Joiner.on(' ').join(backupFiles);
+      if (lines.size() < 2 || !lines.get(1).equals(chainLine)) {
+        logger.fine("Ignoring restore journal of a different backup chain");
+        return false;
+      }
+      for (String line : lines.subList(2, lines.size())) {
+        if (line.startsWith(COMPLETED_PREFIX)) {
+          completedVolumes.add(line.substring(COMPLETED_PREFIX.length()));
+        } else if (line.startsWith(POSITION_PREFIX)) {
+          String[] parts =
+              line.substring(POSITION_PREFIX.length()).split(" ", 3);
+          positions.put(parts[2], new Position(
+              Integer.parseInt(parts[0]), Long.parseLong(parts[1])));
+        }
+      }
+      return true;
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.WARNING, "Ignoring unreadable restore journal", e);
+      completedVolumes.clear();
+      positions.clear();
+      return false;
+    }
+  }
+
+  /**
+   * Replaces the journal, so that it is always complete. Failing to write the
+   * journal only means that an interrupted restore starts over.
+   */
+  private void write() {
+    List<String> content = new ArrayList<>();
+    content.add(COMMENT_LINE);
+    content.add(CHAIN_PREFIX + Joiner.on(' ').join(backupFiles));
+    for (String volumeName : completedVolumes) {
+      content.add(COMPLETED_PREFIX + volumeName);
+    }
+    for (Map.Entry<String, Position> position : positions.entrySet()) {
+      content.add(POSITION_PREFIX + position.getValue().iteration + " "
+          + position.getValue().entries + " " + position.getKey());
+    }
+    Path tempPath = journalPath.resolveSibling(JOURNAL_FILENAME + ".tmp");
+    try {
+      Files.write(tempPath, content, StandardCharsets.UTF_8);
+      Files.move(tempPath, journalPath, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "IOException while writing restore journal",
+          e);
+    }
+  }
+
+  /**
+   * A position in a volume: the number of iterations over the volume that
+   * have been completed, and the number of entries processed in the current
+   * iteration.
+   */
+  private static class Position {
+    private final int iteration;
+    private final long entries;
+
+    private Position(int iteration, long entries) {
+      this.iteration = iteration;
+      this.entries = entries;
+    }
+  }
+
+  /**
+   * Iterates over the entries of a volume, recording a checkpoint every few
+   * entries. When the next entry is requested, all previous entries have been
+   * processed by the scope, but the extractor may still be writing them, so
+   * it is flushed before every checkpoint.
+   */
+  private class JournalingIterator implements Iterator<Volume.Entry> {
+    private final String volumeName;
+    private final int iteration;
+    private final Iterator<Volume.Entry> entries;
+    private final Volume.Extractor extractor;
+    private long processed;
+    private boolean finished;
+
+    private JournalingIterator(String volumeName, int iteration,
+        long processed, Iterator<Volume.Entry> entries,
+        Volume.Extractor extractor) {
+      this.volumeName = volumeName;
+      this.iteration = iteration;
+      this.processed = processed;
+      this.entries = entries;
+      this.extractor = extractor;
+    }
+
+    @Override
+    public boolean hasNext() {
+      boolean hasNext = entries.hasNext();
+      if (!hasNext && !finished) {
+        finished = true;
+        checkpoint(new Position(iteration + 1, 0));
+      }
+      return hasNext;
+    }
+
+    @Override
+    public Volume.Entry next() {
+      if (processed > 0 && processed % ENTRIES_PER_CHECKPOINT == 0) {
+        checkpoint(new Position(iteration, processed));
+      }
+      Volume.Entry entry = entries.next();
+      processed++;
+      return entry;
+    }
+
+    @Override
+    public void remove() {
+      entries.remove();
+    }
+
+    private void checkpoint(Position position) {
+      try {
+        extractor.flush();
+      } catch (IOException e) {
+        // the extraction fails with this exception when the extractor is
+        // closed, only skip the checkpoint
+        logger.log(Level.FINE, "Skipping restore journal checkpoint", e);
+        return;
+      }
+      recordPosition(volumeName, position);
+    }
+  }
+}
@@ -15,9 +15,12 @@
  */
 package com.google.jenkins.plugins.cloudbackup.restore;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.jenkins.plugins.cloudbackup.VersionComparator;
 import com.google.jenkins.plugins.cloudbackup.VersionUtility;
 import com.google.jenkins.plugins.cloudbackup.initiation.InitiationStrategy;
+import com.google.jenkins.plugins.cloudbackup.metrics.BackupMetrics;
+import com.google.jenkins.plugins.cloudbackup.metrics.FlightRecorderEvent;
 import com.google.jenkins.plugins.cloudbackup.scope.Scope;
 import com.google.jenkins.plugins.cloudbackup.storage.Storage;
 import com.google.jenkins.plugins.cloudbackup.volume.Volume;
@@ -25,14 +28,14 @@ import com.google.jenkins.plugins.cloudbackup.volume.Volume;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
@@ -48,6 +51,11 @@ public class RestoreProcedure {
 
   private static final String TMP_DIR_PREFIX
       = "cloud-backup-restore-tmp";
+  private static final Pattern SHARD_NAME_PATTERN =
+      Pattern.compile("^(.*)-part\\d+\\.[^/]+$");
+  public static final int DEFAULT_DOWNLOAD_THREADS = 4;
+  public static final int DEFAULT_PREFETCH_VOLUMES = 8;
+  public static final long DEFAULT_PREFETCH_BYTES = 2L * 1024 * 1024 * 1024;
 
   private final Volume volume;
   private final Scope scope;
@@ -56,11 +64,28 @@ public class RestoreProcedure {
   private final Path jenkinsHome;
   private final Path scratchDir;
   private final boolean overwrite;
+  private final RestoreJournal journal;
+  private int downloadThreads = DEFAULT_DOWNLOAD_THREADS;
+  private int maxPrefetchVolumes = DEFAULT_PREFETCH_VOLUMES;
+  private long maxPrefetchBytes = DEFAULT_PREFETCH_BYTES;
 
   public RestoreProcedure(
       Volume volume, Scope scope, Storage storage,
       InitiationStrategy initiationStrategy, Path jenkinsHome,
       @Nullable Path scratchDir, boolean overwrite) {
+    this(volume, scope, storage, initiationStrategy, jenkinsHome, scratchDir,
+        overwrite, null);
+  }
+
+  /**
+   * Creates a restore procedure that records its progress in the given
+   * journal, and resumes an interrupted restore of the same backup chain.
+   */
+  public RestoreProcedure(
+      Volume volume, Scope scope, Storage storage,
+      InitiationStrategy initiationStrategy, Path jenkinsHome,
+      @Nullable Path scratchDir, boolean overwrite,
+      @Nullable RestoreJournal journal) {
     this.volume = volume;
     this.scope = scope;
     this.storage = storage;
@@ -68,6 +93,23 @@ public class RestoreProcedure {
     this.jenkinsHome = jenkinsHome;
     this.scratchDir = scratchDir;
     this.overwrite = overwrite;
+    this.journal = journal;
+  }
+
+  /**
+   * Sets the limits for downloading volumes ahead of their extraction.
+   *
+   * @param downloadThreads the number of volumes downloaded at the same time.
+   * @param maxPrefetchVolumes the maximum number of volumes downloading or
+   * waiting for extraction.
+   * @param maxPrefetchBytes the size of the downloaded volumes waiting for
+   * extraction, from which no further download is started.
+   */
+  public void setPrefetchLimits(int downloadThreads, int maxPrefetchVolumes,
+      long maxPrefetchBytes) {
+    this.downloadThreads = downloadThreads;
+    this.maxPrefetchVolumes = maxPrefetchVolumes;
+    this.maxPrefetchBytes = maxPrefetchBytes;
   }
 
   public void performRestore() throws IOException {
@@ -93,6 +135,9 @@ public class RestoreProcedure {
 
     if (latestBackupFiles == null || latestBackupFiles.isEmpty()) {
       logger.warning("No backup files found, initializing new environment");
+      if (journal != null) {
+        journal.delete();
+      }
       initiationStrategy.initializeNewEnvironment(jenkinsHome);
     } else {
       String finalBackupFile = latestBackupFiles.get(
@@ -106,8 +151,22 @@ public class RestoreProcedure {
           ? Files.createTempDirectory(TMP_DIR_PREFIX)
           : Files.createTempDirectory(scratchDir, TMP_DIR_PREFIX);
       logger.fine("Using temp directory: " + tempDirectory);
+      RestoreJournal activeJournal = null;
+      if (journal != null) {
+        if (isResumable(restoreFromBackupMap)) {
+          journal.start(latestBackupFiles);
+          activeJournal = journal;
+        } else {
+          journal.delete();
+        }
+      }
+      long start = System.nanoTime();
       try {
-        parallelFetchAndExtract(latestBackupFiles, restoreFromBackupMap, tempDirectory);
+        parallelFetchAndExtract(latestBackupFiles, restoreFromBackupMap,
+            tempDirectory, activeJournal);
+        BackupMetrics metrics = BackupMetrics.get();
+        metrics.record(BackupMetrics.Phase.RESTORE, System.nanoTime() - start);
+        metrics.increment(BackupMetrics.Counter.RESTORES, 1);
       } finally {
         // cleanup after ourselves
         try {
@@ -118,6 +177,9 @@ public class RestoreProcedure {
           logger.log(Level.FINE, "IOException while performing cleanup", e);
         }
       }
+      if (activeJournal != null) {
+        activeJournal.delete();
+      }
       logger.fine("Backup restored, initializing restored environment");
       initiationStrategy.initializeRestoredEnvironment(jenkinsHome,
           finalBackupFile);
@@ -133,7 +195,8 @@ public class RestoreProcedure {
    */
   private Map<String, Boolean> buildRestoreFromBackupMap(
       String storageVersion, String fileSystemVersion) throws IOException {
-    Map<String, Boolean> restoreFromBackupMap = new HashMap<>();
+    // shards of a backup are extracted concurrently
+    Map<String, Boolean> restoreFromBackupMap = new ConcurrentHashMap<>();
     logger.info("FileSystem version is: " + fileSystemVersion + " and backup version is: " + storageVersion);
     VersionComparator comparator =  VersionComparator.get();
     int compare = comparator.compare(fileSystemVersion, storageVersion);
@@ -146,172 +209,85 @@ public class RestoreProcedure {
   }
 
 
-  private void parallelFetchAndExtract(List<String> latestBackupFiles, Map<String, Boolean> restoreFromBackupMap,
-      Path tempDirectory) throws IOException {
-    // A ForkJoinPool should usually be shared, rather than creating a new one
-    // every time. However, since the RestoreProcedure is only ever invoked
-    // once per VM, creating a shared pool is really not necessary.
-    ForkJoinPool forkJoinPool = new ForkJoinPool();
-    try {
-      forkJoinPool.invoke(new FetchExtractChain(latestBackupFiles, restoreFromBackupMap, storage,
-          volume, scope, tempDirectory, jenkinsHome, overwrite));
-    } catch (RuntimeException e) {
-      // fork join pool wraps original exception in RuntimeException(s)
-      Throwable cause = e.getCause();
-      while (cause != null) {
-        if (cause instanceof IOException) {
-          throw (IOException) cause;
-        }
-        cause = cause.getCause();
-      }
-      throw e;  // IOException not found, rethrow original exception
-    } finally {
-      forkJoinPool.shutdown();
-    }
-  }
-
   /**
-   * A ForkJoinTask that creates and forks a {@link FetchExtractTask} for every
-   * backup, which should be fetched and extracted.
-   *
-   * Every {@link FetchExtractTask} will get a reference to the preceding
-   * {@link FetchExtractTask}, in order to be able to perform backup extraction
-   * in order, however, fetching will be performed in parallel.
+   * Returns whether the files restored by a volume do not depend on the
+   * volumes extracted before it, so that extracted volumes can be skipped
+   * when resuming an interrupted restore. This is the case if the list of
+   * existing files is known, and every file in it is restored from the
+   * backup.
    */
-  private static class FetchExtractChain extends ForkJoinTask<Void> {
-
-    private final List<String> latestBackupFiles;
-    private final Map<String, Boolean> restoreFromBackupMap;
-    private final Storage storage;
-    private final Volume volume;
-    private final Scope scope;
-    private final Path tempDirectory;
-    private final Path jenkinsHome;
-    private final boolean overwrite;
-
-    private FetchExtractChain(List<String> latestBackupFiles,
-        Map<String, Boolean> restoreFromBackupMap, Storage storage, Volume volume, Scope scope,
-        Path tempDirectory, Path jenkinsHome, boolean overwrite) {
-      this.latestBackupFiles = latestBackupFiles;
-      this.restoreFromBackupMap = restoreFromBackupMap;
-      this.storage = storage;
-      this.volume = volume;
-      this.scope = scope;
-      this.tempDirectory = tempDirectory;
-      this.jenkinsHome = jenkinsHome;
-      this.overwrite = overwrite;
-    }
-
-    @Override
-    public Void getRawResult() {
-      return null;
-    }
-
-    @Override
-    protected void setRawResult(Void value) {
-    }
+  private boolean isResumable(Map<String, Boolean> restoreFromBackupMap) {
+    return !restoreFromBackupMap.isEmpty()
+        && (overwrite || !restoreFromBackupMap.containsValue(false));
+  }
 
-    @Override
-    protected boolean exec() {
-      FetchExtractTask previousTask = null;
-      logger.fine("Loading backup volume(s) from storage");
-      for (Iterator<String> it = latestBackupFiles.iterator(); it.hasNext(); ) {
-        String file = it.next();
-        FetchExtractTask fetchExtractTask = new FetchExtractTask(previousTask,
-            file, restoreFromBackupMap, volume, scope, storage, jenkinsHome, tempDirectory,
-            overwrite);
-        if (it.hasNext()) {
-          fetchExtractTask.fork();
-        } else {
-          fetchExtractTask.invoke(); // invoke the last task directly
-        }
-        previousTask = fetchExtractTask;
+  private void parallelFetchAndExtract(List<String> latestBackupFiles,
+      final Map<String, Boolean> restoreFromBackupMap, Path tempDirectory,
+      @Nullable final RestoreJournal journal) throws IOException {
+    // without a list of existing files, the first volume extracted decides
+    // which files are restored, so extract one volume after the other
+    boolean extractShardsInParallel = !restoreFromBackupMap.isEmpty();
+    List<List<String>> groups = new ArrayList<>();
+    String currentBackup = null;
+    for (String file : latestBackupFiles) {
+      if (journal != null && journal.isCompleted(file)) {
+        logger.fine("Skipping restored backup volume: " + file);
+        continue;
       }
-      return true;
+      String backup = extractShardsInParallel ? getBackupOfVolume(file) : file;
+      if (!backup.equals(currentBackup)) {
+        groups.add(new ArrayList<String>());
+        currentBackup = backup;
+      }
+      groups.get(groups.size() - 1).add(file);
     }
 
+    logger.fine("Loading backup volume(s) from storage");
+    new RestoreScheduler(downloadThreads,
+        Runtime.getRuntime().availableProcessors(), maxPrefetchVolumes,
+        maxPrefetchBytes).restore(groups, tempDirectory,
+        new RestoreScheduler.VolumeSteps() {
+          @Override
+          public void fetch(String volumeName, Path volumePath)
+              throws IOException {
+            logger.fine("Fetching backup volume for backup file: "
+                + volumePath);
+            FlightRecorderEvent event = FlightRecorderEvent.begin(
+                FlightRecorderEvent.Type.RESTORE_FETCH);
+            storage.loadFile(volumeName, volumePath);
+            if (event.isEnabled()) {
+              event.commit(volumeName, Files.exists(volumePath)
+                  ? Files.size(volumePath) : 0L);
+            }
+          }
+
+          @Override
+          public void extract(String volumeName, Path volumePath)
+              throws IOException {
+            logger.fine("Extracting backup volume " + volumeName);
+            FlightRecorderEvent event = FlightRecorderEvent.begin(
+                FlightRecorderEvent.Type.RESTORE_EXTRACT);
+            try (Volume.Extractor extractor = volume.extract(volumePath)) {
+              scope.extractFiles(jenkinsHome, journal == null
+                  ? extractor : journal.journal(volumeName, extractor),
+                  overwrite, restoreFromBackupMap);
+            }  // auto-close extractor
+            event.commit(volumeName);
+            if (journal != null) {
+              journal.markCompleted(volumeName);
+            }
+          }
+        });
   }
 
   /**
-   * A ForkJoinTask implementing fetching and extracting of a particular
-   * backup file.
-   *
-   * The task will immediately begin fetching the backup file, possibly in
-   * parallel with other {@link FetchExtractTask}s. After that it will join
-   * its preceding {@link FetchExtractTask} (if available) in order to wait
-   * for its completion, because backup extraction must be performed in order.
-   * As soon as the preceding task is finished extracting its backup file,
-   * this task will extract its backup file and finish (which again will trigger
-   * the extraction process of the next task in line).
+   * Returns the name of the backup the given volume belongs to. The shards
+   * of a backup are named after the backup, with a {@code -partNNN} suffix.
    */
-  private static class FetchExtractTask extends ForkJoinTask<Void> {
-
-    private final FetchExtractTask previousTask;
-    private final String backupFile;
-    private final Map<String,Boolean> restoreFromBackupMap;
-    private final Volume volume;
-    private final Scope scope;
-    private final Storage storage;
-    private final Path jenkinsHome;
-    private final Path tempDirectory;
-    private final boolean overwrite;
-
-    public FetchExtractTask(FetchExtractTask previousTask, String backupFile, Map<String, Boolean> restoreFromBackupMap,
-        Volume volume, Scope scope, Storage storage, Path jenkinsHome,
-        Path tempDirectory, boolean overwrite) {
-      this.previousTask = previousTask;
-      this.backupFile = backupFile;
-      this.restoreFromBackupMap = restoreFromBackupMap;
-      this.volume = volume;
-      this.scope = scope;
-      this.storage = storage;
-      this.jenkinsHome = jenkinsHome;
-      this.tempDirectory = tempDirectory;
-      this.overwrite = overwrite;
-    }
-
-    @Override
-    public Void getRawResult() {
-      return null;
-    }
-
-    @Override
-    protected void setRawResult(Void value) {
-    }
-
-    @Override
-    protected boolean exec() {
-      Path volumePath = tempDirectory.resolve(backupFile);
-
-      try {
-        logger.fine("Fetching backup volume for backup file: " + volumePath);
-        storage.loadFile(backupFile, volumePath);
-
-        // previous task must finish before this one can start extracting
-        if (previousTask != null) {
-          logger.fine("Waiting for previous task to complete");
-          previousTask.join();
-        }
-
-        logger.fine("Extracting backup volume");
-        try (Volume.Extractor extractor = volume.extract(volumePath)) {
-          scope.extractFiles(jenkinsHome, extractor, overwrite, restoreFromBackupMap);
-        }  // auto-close extractor
-      } catch (IOException e) {
-        completeExceptionally(e);  // causes consecutive tasks to stop
-        return false;
-      } finally {
-        // cleanup after ourselves
-        try {
-          Files.deleteIfExists(volumePath);
-        } catch (IOException e) {
-          // be silent about cleanup errors, only log them
-          logger.log(Level.FINE, "IOException while performing cleanup", e);
-        }
-      }
-      return true;
-    }
-
+  @VisibleForTesting
+  static String getBackupOfVolume(String backupFile) {
+    Matcher matcher = SHARD_NAME_PATTERN.matcher(backupFile);
+    return matcher.matches() ? matcher.group(1) : backupFile;
   }
 
 }
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.restore;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedules the downloads and extractions of the volumes of a restore.
+ *
+ * Volumes are downloaded in restore order by a dedicated pool of download
+ * threads, so that the number of parallel downloads depends on the network
+ * rather than on the CPU count. Downloads only run a bounded window ahead of
+ * extraction: at most {@code maxVolumesAhead} volumes are downloading or
+ * waiting for extraction, and no further download is started while the
+ * downloaded volumes waiting for extraction reach {@code maxBytesAhead}. A
+ * download is only started when a download thread is free, and the size of
+ * a volume is only known once it has been downloaded, so the byte limit may
+ * be exceeded by at most the downloads in progress. The next volume in line
+ * is always allowed, so a single volume larger than the window does not
+ * stall the restore.
+ *
+ * Volumes are extracted in groups: the volumes of a group are extracted in
+ * parallel, as soon as each has been downloaded, and a group is only started
+ * once the previous group has been extracted completely. An extracted volume
+ * is deleted right away, which frees its place in the window.
+ */
+class RestoreScheduler {
+
+  private static final Logger logger =
+      Logger.getLogger(RestoreScheduler.class.getName());
+
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+
+  /**
+   * The steps performed for every volume.
+   */
+  interface VolumeSteps {
+    /**
+     * Downloads the given volume to the given local path.
+     */
+    void fetch(String volumeName, Path volumePath) throws IOException;
+
+    /**
+     * Extracts the downloaded volume.
+     */
+    void extract(String volumeName, Path volumePath) throws IOException;
+  }
+
+  private final int downloadThreads;
+  private final int extractionThreads;
+  private final int maxVolumesAhead;
+  private final long maxBytesAhead;
+
+  /**
+   * @param downloadThreads the number of volumes downloaded at the same time.
+   * @param extractionThreads the number of volumes of a group extracted at
+   * the same time.
+   * @param maxVolumesAhead the maximum number of volumes downloading or
+   * waiting for extraction.
+   * @param maxBytesAhead the size of the downloaded volumes waiting for
+   * extraction, from which no further download is started.
+   */
+  RestoreScheduler(int downloadThreads, int extractionThreads,
+      int maxVolumesAhead, long maxBytesAhead) {
+    this.downloadThreads = Math.max(1, downloadThreads);
+    this.extractionThreads = Math.max(1, extractionThreads);
+    this.maxVolumesAhead = Math.max(1, maxVolumesAhead);
+    this.maxBytesAhead = maxBytesAhead;
+  }
+
+  /**
+   * Downloads and extracts the given groups of volumes, in order.
+   *
+   * @param groups the volumes of the restore, grouped by the volumes that may
+   * be extracted in parallel, in restore order.
+   * @param tempDirectory the directory to download the volumes to.
+   * @param steps the steps performed for every volume.
+   * @throws IOException if downloading or extracting any volume fails. No
+   * further volume is extracted then.
+   */
+  void restore(List<List<String>> groups, Path tempDirectory,
+      VolumeSteps steps) throws IOException {
+    new Run(groups, tempDirectory, steps).execute();
+  }
+
+  /**
+   * The state of a single restore. All fields are guarded by the run.
+   */
+  private class Run {
+    private final List<List<String>> groups;
+    private final List<String> volumes = new ArrayList<>();
+    private final Path tempDirectory;
+    private final VolumeSteps steps;
+    // the sizes of the volumes that have been downloaded
+    private final Map<String, Long> downloaded = new HashMap<>();
+    private final ExecutorService downloadPool;
+    private final ExecutorService extractionPool;
+    private int nextDownload = 0;
+    private int volumesAhead = 0;
+    private long bytesAhead = 0;
+    private int runningDownloads = 0;
+    private int runningExtractions = 0;
+    private Exception failure;
+
+    private Run(List<List<String>> groups, Path tempDirectory,
+        VolumeSteps steps) {
+      this.groups = groups;
+      for (List<String> group : groups) {
+        volumes.addAll(group);
+      }
+      this.tempDirectory = tempDirectory;
+      this.steps = steps;
+      downloadPool = Executors.newFixedThreadPool(downloadThreads,
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("cloud-backup-restore-download-%d").build());
+      extractionPool = Executors.newFixedThreadPool(extractionThreads,
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("cloud-backup-restore-extract-%d").build());
+    }
+
+    private void execute() throws IOException {
+      try {
+        for (List<String> group : groups) {
+          extractGroup(group);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while restoring");
+      } finally {
+        shutdown();
+      }
+    }
+
+    private synchronized void extractGroup(List<String> group)
+        throws IOException, InterruptedException {
+      List<String> waiting = new ArrayList<>(group);
+      while (true) {
+        rethrowFailure();
+        startDownloads();
+        for (Iterator<String> i = waiting.iterator(); i.hasNext();) {
+          String volumeName = i.next();
+          if (downloaded.containsKey(volumeName)) {
+            i.remove();
+            startExtraction(volumeName);
+          }
+        }
+        if (waiting.isEmpty() && runningExtractions == 0) {
+          return;
+        }
+        wait();
+      }
+    }
+
+    private void startDownloads() {
+      while (nextDownload < volumes.size()
+          && runningDownloads < downloadThreads && (volumesAhead == 0
+              || (volumesAhead < maxVolumesAhead
+                  && bytesAhead < maxBytesAhead))) {
+        final String volumeName = volumes.get(nextDownload++);
+        volumesAhead++;
+        runningDownloads++;
+        downloadPool.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              Path volumePath = tempDirectory.resolve(volumeName);
+              steps.fetch(volumeName, volumePath);
+              long size =
+                  Files.exists(volumePath) ? Files.size(volumePath) : 0;
+              synchronized (Run.this) {
+                downloaded.put(volumeName, size);
+                bytesAhead += size;
+              }
+            } catch (IOException | RuntimeException e) {
+              fail(e);
+            } finally {
+              synchronized (Run.this) {
+                runningDownloads--;
+                Run.this.notifyAll();
+              }
+            }
+          }
+        });
+      }
+    }
+
+    private void startExtraction(final String volumeName) {
+      runningExtractions++;
+      extractionPool.execute(new Runnable() {
+        @Override
+        public void run() {
+          Path volumePath = tempDirectory.resolve(volumeName);
+          try {
+            steps.extract(volumeName, volumePath);
+          } catch (IOException | RuntimeException e) {
+            fail(e);
+          } finally {
+            delete(volumePath);
+            synchronized (Run.this) {
+              runningExtractions--;
+              volumesAhead--;
+              bytesAhead -= downloaded.get(volumeName);
+              Run.this.notifyAll();
+            }
+          }
+        }
+      });
+    }
+
+    private synchronized void fail(Exception e) {
+      if (failure == null) {
+        failure = e;
+      }
+      notifyAll();
+    }
+
+    private void rethrowFailure() throws IOException {
+      if (failure instanceof IOException) {
+        throw (IOException) failure;
+      } else if (failure != null) {
+        throw (RuntimeException) failure;
+      }
+    }
+
+    /**
+     * Stops all downloads and extractions, and deletes the volumes that
+     * have not been extracted.
+     */
+    private void shutdown() {
+      downloadPool.shutdownNow();
+      extractionPool.shutdownNow();
+      try {
+        if (!downloadPool.awaitTermination(
+                SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            || !extractionPool.awaitTermination(
+                SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          logger.warning("Restore threads did not terminate in time");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      List<String> started;
+      synchronized (this) {
+        started = new ArrayList<>(volumes.subList(0, nextDownload));
+      }
+      for (String volumeName : started) {
+        delete(tempDirectory.resolve(volumeName));
+      }
+    }
+
+    private void delete(Path volumePath) {
+      try {
+        Files.deleteIfExists(volumePath);
+      } catch (IOException e) {
+        // be silent about cleanup errors, only log them
+        logger.log(Level.FINE, "IOException while performing cleanup", e);
+      }
+    }
+  }
+}
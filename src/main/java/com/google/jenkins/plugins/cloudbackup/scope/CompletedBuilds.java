@@ -0,0 +1,289 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.scope;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * The build directories the latest backups found complete, i.e. the state of
+ * each directory and of its {@code build.xml}, and the files in it, kept in
+ * memory and in a file with one line per build followed by one line per
+ * file.
+ *
+ * A backup records the builds it walks between {@link #begin} and
+ * {@link #commit}, which it calls once the backup has been recorded, so the
+ * builds only ever describe stored backups. A backup which walks all build
+ * directories, i.e. a verification walk, replaces all builds, so deleted
+ * builds are forgotten and builds that changed without it being noticed are
+ * walked again. Verification is due once the latest one is older than
+ * {@link #VERIFICATION_INTERVAL_MILLIS}.
+ */
+public class CompletedBuilds {
+
+  private static final Logger logger =
+      Logger.getLogger(CompletedBuilds.class.getName());
+
+  public static final String BUILDS_FILENAME = "completed-builds";
+  public static final long VERIFICATION_INTERVAL_MILLIS =
+      TimeUnit.DAYS.toMillis(1);
+
+  private static final String SEPARATOR = "\t";
+  private static final String VERIFICATION_PREFIX = "V";
+  private static final String BUILD_PREFIX = "B";
+  private static final String FILE_PREFIX = "F";
+
+  private final Path buildsPath;
+  // guarded by this
+  private final Map<String, Build> builds = new HashMap<>();
+  // the builds recorded by the running backup, guarded by this
+  @Nullable
+  private Map<String, Build> pending;
+  // whether the running backup walks all build directories, guarded by this
+  private boolean pendingVerification;
+  // the start of the latest verification walk, or 0, guarded by this
+  private long verificationTimeMillis;
+  // the start of the running backup, guarded by this
+  private long pendingStartTimeMillis;
+
+  /**
+   * @param directory the directory to keep the builds file in.
+   */
+  public CompletedBuilds(Path directory) {
+    this.buildsPath = directory.resolve(BUILDS_FILENAME);
+  }
+
+  /**
+   * Loads the builds persisted by a previous Jenkins instance. Malformed
+   * lines are ignored, along with the files following them.
+   */
+  public synchronized void load() {
+    builds.clear();
+    verificationTimeMillis = 0;
+    if (!Files.exists(buildsPath)) {
+      return;
+    }
+    try {
+      List<String> files = null;
+      for (String line
+          : Files.readAllLines(buildsPath, StandardCharsets.UTF_8)) {
+        String[] fields = line.split(SEPARATOR, 5);
+        try {
+          if (fields[0].equals(FILE_PREFIX) && fields.length == 2) {
+            if (files != null) {
+              files.add(fields[1]);
+            }
+          } else if (fields[0].equals(BUILD_PREFIX) && fields.length == 5) {
+            files = new ArrayList<>();
+            builds.put(fields[4], new Build(Long.parseLong(fields[1]),
+                Long.parseLong(fields[2]), Long.parseLong(fields[3]), files));
+          } else if (fields[0].equals(VERIFICATION_PREFIX)
+              && fields.length == 2) {
+            verificationTimeMillis = Long.parseLong(fields[1]);
+          } else {
+            logger.fine("Ignoring malformed completed build: " + line);
+            files = null;
+          }
+        } catch (NumberFormatException e) {
+          logger.fine("Ignoring malformed completed build: " + line);
+          files = null;
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "IOException while reading completed builds",
+          e);
+      builds.clear();
+      verificationTimeMillis = 0;
+    }
+  }
+
+  /**
+   * Returns whether the next backup should walk all build directories, and
+   * verify the builds recorded so far.
+   */
+  public synchronized boolean isVerificationDue() {
+    return System.currentTimeMillis() - verificationTimeMillis
+        >= VERIFICATION_INTERVAL_MILLIS;
+  }
+
+  /**
+   * Returns the given build as found complete by the latest backups, or null
+   * if there is none.
+   *
+   * @param pathInVolume the path of the build directory in the backup
+   * volumes.
+   */
+  @Nullable
+  public synchronized Build get(String pathInVolume) {
+    return builds.get(pathInVolume);
+  }
+
+  /**
+   * Starts recording the builds of a new backup, discarding those of a
+   * backup that failed.
+   *
+   * @param verification whether the backup walks all build directories,
+   * so that its builds replace the recorded ones.
+   */
+  public synchronized void begin(boolean verification) {
+    pending = new HashMap<>();
+    pendingVerification = verification;
+    pendingStartTimeMillis = System.currentTimeMillis();
+  }
+
+  /**
+   * Records a build the running backup found complete. Builds whose path
+   * cannot be persisted are ignored.
+   *
+   * @param pathInVolume the path of the build directory in the backup
+   * volumes.
+   * @param build the state of the build directory.
+   */
+  public synchronized void record(String pathInVolume, Build build) {
+    if (pending == null || !isPersistable(pathInVolume)) {
+      return;
+    }
+    for (String file : build.files) {
+      if (!isPersistable(file)) {
+        return;
+      }
+    }
+    pending.put(pathInVolume, build);
+  }
+
+  /**
+   * Makes the builds recorded since {@link #begin} the builds of the latest
+   * backups, and persists them. If no backup was begun, i.e. a volume of an
+   * earlier backup has been stored, whose builds are lost, all builds are
+   * cleared. Failing to persist the builds is only logged.
+   */
+  public synchronized void commit() {
+    if (pending == null) {
+      clear();
+      return;
+    }
+    if (pendingVerification) {
+      builds.clear();
+      verificationTimeMillis = pendingStartTimeMillis;
+    }
+    builds.putAll(pending);
+    pending = null;
+    List<String> lines = new ArrayList<>();
+    lines.add(VERIFICATION_PREFIX + SEPARATOR + verificationTimeMillis);
+    for (Map.Entry<String, Build> entry : builds.entrySet()) {
+      Build build = entry.getValue();
+      lines.add(BUILD_PREFIX + SEPARATOR + build.directoryModifiedMillis
+          + SEPARATOR + build.buildXmlSize + SEPARATOR
+          + build.buildXmlModifiedMillis + SEPARATOR + entry.getKey());
+      for (String file : build.files) {
+        lines.add(FILE_PREFIX + SEPARATOR + file);
+      }
+    }
+    Path tempPath = buildsPath.resolveSibling(BUILDS_FILENAME + ".tmp");
+    try {
+      Files.createDirectories(buildsPath.getParent());
+      Files.write(tempPath, lines, StandardCharsets.UTF_8);
+      Files.move(tempPath, buildsPath, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "IOException while writing completed builds",
+          e);
+      // the persisted builds are outdated now
+      deleteQuietly(buildsPath);
+    }
+  }
+
+  /**
+   * Discards all builds, so that the next backup walks all build
+   * directories.
+   */
+  public synchronized void clear() {
+    builds.clear();
+    pending = null;
+    verificationTimeMillis = 0;
+    deleteQuietly(buildsPath);
+  }
+
+  private static boolean isPersistable(String path) {
+    return !path.contains(SEPARATOR) && !path.contains("\n")
+        && !path.contains("\r");
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      // be silent about cleanup errors, only log them
+      logger.log(Level.FINE, "IOException while performing cleanup", e);
+    }
+  }
+
+  /**
+   * The modification time of a complete build directory, the size and
+   * modification time of its {@code build.xml}, and the files in it.
+   */
+  public static final class Build {
+    private final long directoryModifiedMillis;
+    private final long buildXmlSize;
+    private final long buildXmlModifiedMillis;
+    private final List<String> files;
+
+    /**
+     * @param directoryModifiedMillis the modification time of the build
+     * directory.
+     * @param buildXmlSize the size of the {@code build.xml} of the build.
+     * @param buildXmlModifiedMillis the modification time of the
+     * {@code build.xml} of the build.
+     * @param files the paths of the files and empty directories in the build
+     * directory, relative to it.
+     */
+    public Build(long directoryModifiedMillis, long buildXmlSize,
+        long buildXmlModifiedMillis, List<String> files) {
+      this.directoryModifiedMillis = directoryModifiedMillis;
+      this.buildXmlSize = buildXmlSize;
+      this.buildXmlModifiedMillis = buildXmlModifiedMillis;
+      this.files = files;
+    }
+
+    /**
+     * Returns whether the build directory and its {@code build.xml} are
+     * still in the given state.
+     */
+    public boolean matches(long directoryModifiedMillis, long buildXmlSize,
+        long buildXmlModifiedMillis) {
+      return this.directoryModifiedMillis == directoryModifiedMillis
+          && this.buildXmlSize == buildXmlSize
+          && this.buildXmlModifiedMillis == buildXmlModifiedMillis;
+    }
+
+    public List<String> getFiles() {
+      return Collections.unmodifiableList(files);
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.scope;
+
+import com.google.jenkins.plugins.cloudbackup.metrics.BackupMetrics;
+import com.google.jenkins.plugins.cloudbackup.volume.ForwardingVolumeCreator;
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A scope which skips walking the directories of builds that were complete
+ * when the previous backup walked them, see {@link CompletedBuilds}.
+ *
+ * Completed builds hardly ever change, yet there are many more of them than
+ * of running builds. A build directory, i.e. {@code builds/<number>} of a job
+ * at any depth of folders, is skipped if its modification time and the size
+ * and modification time of its {@code build.xml} are unchanged, so new or
+ * deleted files in it or a rewritten {@code build.xml} cause it to be walked
+ * again. The files of a skipped build still count as existing files. Other
+ * changes, such as a file rewritten in a subdirectory, are caught by the next
+ * verification walk, which does not skip any builds.
+ *
+ * This scope has to wrap the scope walking JENKINS_HOME directly, inside an
+ * {@link IncrementalScope}, so that it sees all files of the builds.
+ */
+public class CompletedBuildsScope extends ForwardingScope {
+  private static final Logger logger =
+      Logger.getLogger(CompletedBuildsScope.class.getName());
+
+  private static final String BUILD_XML = "build.xml";
+
+  private final CompletedBuilds completedBuilds;
+  private final boolean skipCompletedBuilds;
+
+  /**
+   * @param scope the scope to wrap.
+   * @param completedBuilds the builds the latest backups found complete.
+   * @param skipCompletedBuilds whether to skip completed builds, or only to
+   * record them, e.g. for a verification walk.
+   */
+  public CompletedBuildsScope(Scope scope, CompletedBuilds completedBuilds,
+      boolean skipCompletedBuilds) {
+    super(scope);
+    this.completedBuilds = completedBuilds;
+    this.skipCompletedBuilds = skipCompletedBuilds;
+  }
+
+  /**
+   * Returns whether the given path in a volume is the directory of a build,
+   * i.e. {@code builds/<number>} of a job, at any depth of folders.
+   */
+  static boolean isBuildDirectory(String pathInVolume) {
+    String[] segments = pathInVolume.split("/");
+    return segments.length >= 2
+        && segments[segments.length - 2].equals("builds")
+        && isNumber(segments[segments.length - 1]);
+  }
+
+  private static boolean isNumber(String segment) {
+    if (segment.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < segment.length(); i++) {
+      if (!Character.isDigit(segment.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void addFiles(Path jenkinsHome, Volume.Creator creator,
+      Set<String> existingFileMetadata) throws IOException {
+    final long startTimeMillis = System.currentTimeMillis();
+    // the build directories walked, by their path in the volume
+    final Map<String, WalkedBuild> walkedBuilds = new HashMap<>();
+    super.addFiles(jenkinsHome, new ForwardingVolumeCreator(creator) {
+      @Override
+      public Collection<String> getUnchangedFiles(Path dir,
+          String pathInVolume, BasicFileAttributes attrs) throws IOException {
+        if (!isBuildDirectory(pathInVolume)) {
+          return super.getUnchangedFiles(dir, pathInVolume, attrs);
+        }
+        CompletedBuilds.Build build = completedBuilds.get(pathInVolume);
+        if (skipCompletedBuilds && build != null) {
+          BasicFileAttributes buildXmlAttrs = readBuildXmlAttributes(dir);
+          if (buildXmlAttrs != null && build.matches(
+              attrs.lastModifiedTime().toMillis(), buildXmlAttrs.size(),
+              buildXmlAttrs.lastModifiedTime().toMillis())) {
+            logger.finer("Skipping completed build: " + dir);
+            BackupMetrics.get().increment(BackupMetrics.Counter.FILES_SKIPPED,
+                build.getFiles().size());
+            return build.getFiles();
+          }
+        }
+        walkedBuilds.put(pathInVolume,
+            new WalkedBuild(dir, pathInVolume, attrs));
+        return super.getUnchangedFiles(dir, pathInVolume, attrs);
+      }
+
+      @Override
+      public void addFile(Path file, String pathInVolume,
+          BasicFileAttributes attrs) throws IOException {
+        WalkedBuild walkedBuild = findWalkedBuild(walkedBuilds, pathInVolume);
+        if (walkedBuild != null) {
+          walkedBuild.files.add(pathInVolume.substring(
+              walkedBuild.pathInVolumeLength + 1));
+        }
+        super.addFile(file, pathInVolume, attrs);
+      }
+    }, existingFileMetadata);
+
+    for (Map.Entry<String, WalkedBuild> entry : walkedBuilds.entrySet()) {
+      CompletedBuilds.Build build =
+          entry.getValue().toCompletedBuild(startTimeMillis);
+      if (build != null) {
+        completedBuilds.record(entry.getKey(), build);
+      }
+    }
+  }
+
+  /**
+   * Returns the walked build directory containing the given path, or null
+   * if there is none.
+   */
+  @Nullable
+  private static WalkedBuild findWalkedBuild(
+      Map<String, WalkedBuild> walkedBuilds, String pathInVolume) {
+    String[] segments = pathInVolume.split("/");
+    int length = 0;
+    for (int i = 0; i < segments.length - 1; i++) {
+      length += segments[i].length();
+      if (i > 0 && segments[i - 1].equals("builds")
+          && isNumber(segments[i])) {
+        WalkedBuild walkedBuild =
+            walkedBuilds.get(pathInVolume.substring(0, length));
+        if (walkedBuild != null) {
+          return walkedBuild;
+        }
+      }
+      length++;  // the separator
+    }
+    return null;
+  }
+
+  @Nullable
+  private static BasicFileAttributes readBuildXmlAttributes(Path dir)
+      throws IOException {
+    try {
+      return Files.readAttributes(dir.resolve(BUILD_XML),
+          BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  /**
+   * A build directory walked by the running backup, and the files found in
+   * it.
+   */
+  private static final class WalkedBuild {
+    private final Path dir;
+    private final long directoryModifiedMillis;
+    private final int pathInVolumeLength;
+    private final List<String> files = new ArrayList<>();
+
+    WalkedBuild(Path dir, String pathInVolume, BasicFileAttributes attrs) {
+      this.dir = dir;
+      this.directoryModifiedMillis = attrs.lastModifiedTime().toMillis();
+      this.pathInVolumeLength = pathInVolume.length();
+    }
+
+    /**
+     * Returns the state of this build if it is complete, and has not changed
+     * since it was walked, or null otherwise.
+     *
+     * @param startTimeMillis the time the walk started. A build.xml written
+     * later may belong to a build that finished during the walk, after some
+     * of its files were walked.
+     */
+    @Nullable
+    CompletedBuilds.Build toCompletedBuild(long startTimeMillis)
+        throws IOException {
+      try {
+        BasicFileAttributes buildXmlAttrs = readBuildXmlAttributes(dir);
+        if (buildXmlAttrs == null
+            || buildXmlAttrs.lastModifiedTime().toMillis() >= startTimeMillis
+            || Files.getLastModifiedTime(dir).toMillis()
+                != directoryModifiedMillis) {
+          return null;
+        }
+        // running builds have no result yet, running pipelines may have one
+        String buildXml = new String(
+            Files.readAllBytes(dir.resolve(BUILD_XML)), StandardCharsets.UTF_8);
+        if (!buildXml.contains("<result>")
+            || buildXml.contains("<completed>false</completed>")) {
+          return null;
+        }
+        return new CompletedBuilds.Build(directoryModifiedMillis,
+            buildXmlAttrs.size(), buildXmlAttrs.lastModifiedTime().toMillis(),
+            files);
+      } catch (NoSuchFileException e) {
+        // the build has been deleted since it was walked
+        return null;
+      }
+    }
+  }
+}
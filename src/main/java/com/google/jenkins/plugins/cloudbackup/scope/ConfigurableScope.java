@@ -15,6 +15,8 @@
  */
 package com.google.jenkins.plugins.cloudbackup.scope;
 
+import org.kohsuke.stapler.DataBoundSetter;
+
 import hudson.DescriptorExtensionList;
 import hudson.ExtensionPoint;
 import hudson.model.Describable;
@@ -29,6 +31,8 @@ import jenkins.model.Jenkins;
 public abstract class ConfigurableScope
     implements Scope, Describable<ConfigurableScope>, ExtensionPoint {
 
+  private int incrementalBackupIntervalMinutes = 0;
+
   /**
    * Get the list of getAllDescriptors registered scopes.
    */
@@ -54,6 +58,21 @@ public abstract class ConfigurableScope
    */
   public abstract String getScopeName();
 
+  /**
+   * @return the minimum interval in minutes between incremental backups of
+   * this scope, or 0 to back it up with every incremental backup.
+   */
+  public int getIncrementalBackupIntervalMinutes() {
+    return incrementalBackupIntervalMinutes;
+  }
+
+  @DataBoundSetter
+  public void setIncrementalBackupIntervalMinutes(
+      int incrementalBackupIntervalMinutes) {
+    this.incrementalBackupIntervalMinutes =
+        Math.max(0, incrementalBackupIntervalMinutes);
+  }
+
   /**
    * The {@link Descriptor} for the scope.
    */
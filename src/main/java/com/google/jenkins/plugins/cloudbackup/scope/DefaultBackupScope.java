@@ -55,7 +55,10 @@ public class DefaultBackupScope extends ConfigurableScope {
     excludedDirs.add(jenkinsHome.resolve("garbage"));
     // exclude files and directories used by the backup/restore system
     excludedDirs.add(jenkinsHome.resolve("backup-tmp"));
+    excludedDirs.add(jenkinsHome.resolve("backup-cache"));
     excludedDirs.add(jenkinsHome.resolve(".restore.log"));
+    excludedDirs.add(jenkinsHome.resolve(".restore.journal"));
+    excludedDirs.add(jenkinsHome.resolve(".backup-runs"));
     // exclude system dirs not used by Jenkins
     excludedDirs.add(jenkinsHome.resolve("lost+found"));
     // exclude the maven repo (gets quite big!)
@@ -15,6 +15,7 @@
  */
 package com.google.jenkins.plugins.cloudbackup.scope;
 
+import com.google.jenkins.plugins.cloudbackup.metrics.BackupMetrics;
 import com.google.jenkins.plugins.cloudbackup.volume.ForwardingVolumeCreator;
 import com.google.jenkins.plugins.cloudbackup.volume.Volume;
 
@@ -58,6 +59,9 @@ public class IncrementalScope extends ForwardingScope {
         // add file only if it has been modified since the last backup
         if (attrs.lastModifiedTime().compareTo(lastBackupTime) > 0) {
           super.addFile(file, pathInVolume, attrs);
+        } else {
+          BackupMetrics.get().increment(
+              BackupMetrics.Counter.FILES_SKIPPED, 1);
         }
       }
     },
@@ -23,6 +23,7 @@ import com.google.jenkins.plugins.cloudbackup.volume.Volume;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -60,6 +61,13 @@ public class MultiScope implements Scope {
             throws IOException {
           super.addFile(file, subScope.getVolumePrefix() + pathInVolume, attrs);
         }
+
+        @Override
+        public Collection<String> getUnchangedFiles(Path dir,
+            String pathInVolume, BasicFileAttributes attrs) throws IOException {
+          return super.getUnchangedFiles(dir,
+              subScope.getVolumePrefix() + pathInVolume, attrs);
+        }
       },
           existingFileMetadata);
     }
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.scope;
+
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * A scope which is only walked once its own interval passed since its latest
+ * walk, see {@link ScopeSchedules}.
+ *
+ * Scopes differ a lot in how expensive walking them is and how much their
+ * files are worth, e.g. the configuration of jobs versus the history of
+ * their builds. A scope which is not due adds no files to the volume, and
+ * the existing files found by its latest walk are recorded again, so that
+ * restores keep them. Its next walk has to include every file modified since
+ * its latest walk, so the wrapped scope is usually an {@link IncrementalScope}
+ * starting at {@link ScopeSchedules#getLastWalkTime}, which keeps the backup
+ * chain consistent although its scopes are walked at different times.
+ */
+public class ScheduledScope extends ForwardingScope {
+  private static final Logger logger =
+      Logger.getLogger(ScheduledScope.class.getName());
+
+  private final String scopeName;
+  private final int intervalMinutes;
+  private final ScopeSchedules schedules;
+  private final boolean forceWalk;
+
+  /**
+   * @param scope the scope to wrap.
+   * @param scopeName the name of the scope.
+   * @param intervalMinutes the minimum interval between walks of the scope,
+   * or 0 to walk it with every backup.
+   * @param schedules the latest walks of the scopes.
+   * @param forceWalk whether to walk the scope even if it is not due, e.g.
+   * for a full backup.
+   */
+  public ScheduledScope(Scope scope, String scopeName, int intervalMinutes,
+      ScopeSchedules schedules, boolean forceWalk) {
+    super(scope);
+    this.scopeName = scopeName;
+    this.intervalMinutes = intervalMinutes;
+    this.schedules = schedules;
+    this.forceWalk = forceWalk;
+  }
+
+  @Override
+  public void addFiles(Path jenkinsHome, Volume.Creator creator,
+      Set<String> existingFileMetadata) throws IOException {
+    if (!forceWalk && !schedules.isDue(scopeName, intervalMinutes)) {
+      Set<String> names = schedules.getExistingFileNames(scopeName);
+      if (names != null) {
+        logger.fine("Skipping scope which is not due: " + scopeName);
+        existingFileMetadata.addAll(names);
+        return;
+      }
+    }
+    Set<String> names = new HashSet<>();
+    super.addFiles(jenkinsHome, creator, names);
+    existingFileMetadata.addAll(names);
+    // only scopes which may be skipped need their files kept
+    schedules.record(scopeName, intervalMinutes > 0 ? names : null);
+  }
+}
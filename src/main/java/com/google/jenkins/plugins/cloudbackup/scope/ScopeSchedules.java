@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.scope;
+
+import org.joda.time.DateTime;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * When each scope was last walked by a stored backup, and the existing files
+ * that walk found, kept in memory only, see {@link ScheduledScope}.
+ *
+ * A backup records the scopes it walks between {@link #begin} and
+ * {@link #commit}, which it calls once the backup has been recorded, so the
+ * schedules only ever describe stored backups. The time of the latest walk
+ * of a scope is never forgotten while Jenkins runs, because the next walk
+ * must include every file modified since. After a restart, the first backup
+ * is a full backup, which walks all scopes.
+ */
+public class ScopeSchedules {
+
+  // guarded by this
+  private final Map<String, DateTime> lastWalkTimes = new HashMap<>();
+  // guarded by this
+  private final Map<String, Set<String>> existingFileNames = new HashMap<>();
+  // the existing files of the scopes walked by the running backup, guarded
+  // by this
+  @Nullable
+  private Map<String, Set<String>> pending;
+  // guarded by this
+  private DateTime pendingBackupTime;
+
+  /**
+   * Returns the time of the backup which last walked the given scope, or null
+   * if it is not known.
+   */
+  @Nullable
+  public synchronized DateTime getLastWalkTime(String scopeName) {
+    return lastWalkTimes.get(scopeName);
+  }
+
+  /**
+   * Returns whether the given scope has to be walked, because the given
+   * interval passed since its latest walk, or because the existing files it
+   * contains are not known.
+   *
+   * @param scopeName the name of the scope.
+   * @param intervalMinutes the minimum interval between walks of the scope,
+   * or 0 to walk it with every backup.
+   */
+  public synchronized boolean isDue(String scopeName, int intervalMinutes) {
+    DateTime lastWalkTime = lastWalkTimes.get(scopeName);
+    return intervalMinutes <= 0 || lastWalkTime == null
+        || !existingFileNames.containsKey(scopeName)
+        || !lastWalkTime.plusMinutes(intervalMinutes).isAfterNow();
+  }
+
+  /**
+   * Returns the existing files the latest walk of the given scope found, or
+   * null if they are not known.
+   */
+  @Nullable
+  public synchronized Set<String> getExistingFileNames(String scopeName) {
+    Set<String> names = existingFileNames.get(scopeName);
+    return names == null ? null : Collections.unmodifiableSet(names);
+  }
+
+  /**
+   * Starts recording the scopes walked by a new backup, discarding those of a
+   * backup that failed.
+   *
+   * @param backupTime the time of the backup, from which on modified files
+   * are not contained in it.
+   */
+  public synchronized void begin(DateTime backupTime) {
+    pending = new HashMap<>();
+    pendingBackupTime = backupTime;
+  }
+
+  /**
+   * Records that the running backup walked the given scope.
+   *
+   * @param scopeName the name of the scope.
+   * @param names the existing files found in the scope, or null if they
+   * need not be kept, because the scope is walked by every backup.
+   */
+  public synchronized void record(String scopeName,
+      @Nullable Set<String> names) {
+    if (pending != null) {
+      pending.put(scopeName, names);
+    }
+  }
+
+  /**
+   * Makes the scopes recorded since {@link #begin} the latest walked ones.
+   * If no backup was begun, i.e. a volume of an earlier backup has been
+   * stored, the existing files of all scopes are forgotten, so that the next
+   * backup walks them again.
+   */
+  public synchronized void commit() {
+    if (pending == null) {
+      forgetExistingFiles();
+      return;
+    }
+    for (Map.Entry<String, Set<String>> entry : pending.entrySet()) {
+      lastWalkTimes.put(entry.getKey(), pendingBackupTime);
+      if (entry.getValue() == null) {
+        existingFileNames.remove(entry.getKey());
+      } else {
+        existingFileNames.put(entry.getKey(), entry.getValue());
+      }
+    }
+    pending = null;
+  }
+
+  /**
+   * Forgets the existing files of all scopes, so that the next backup walks
+   * them again, e.g. because the scopes have been reconfigured. The times of
+   * the latest walks are kept.
+   */
+  public synchronized void forgetExistingFiles() {
+    existingFileNames.clear();
+    pending = null;
+  }
+
+  /**
+   * Forgets everything, e.g. because backups are stored in a new location,
+   * where the first backup is a full backup.
+   */
+  public synchronized void clear() {
+    lastWalkTimes.clear();
+    forgetExistingFiles();
+  }
+}
@@ -15,6 +15,8 @@
  */
 package com.google.jenkins.plugins.cloudbackup.scope;
 
+import com.google.jenkins.plugins.cloudbackup.metrics.BackupMetrics;
+import com.google.jenkins.plugins.cloudbackup.volume.ExtractionSink;
 import com.google.jenkins.plugins.cloudbackup.volume.Volume;
 
 import java.io.IOException;
@@ -24,6 +26,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -65,6 +68,19 @@ public final class Scopes {
             logger.finer("Skipping excluded directory: " + dir);
             return FileVisitResult.SKIP_SUBTREE;
           }
+          Collection<String> unchangedFiles = creator.getUnchangedFiles(dir,
+              basePath.relativize(dir).toString(), attrs);
+          if (unchangedFiles != null) {
+            // the files still exist, although they are not walked
+            logger.finer("Skipping unchanged directory: " + dir);
+            for (String name : unchangedFiles) {
+              existingFileMetadata.add(
+                  basePath.relativize(dir.resolve(name)).toString());
+            }
+            return FileVisitResult.SKIP_SUBTREE;
+          }
+          BackupMetrics.get().increment(
+              BackupMetrics.Counter.DIRECTORIES_VISITED, 1);
           // check for an empty directory, because in that case we must
           // explicitly add the directory to the ZIP file, otherwise it will
           // get lost.
@@ -118,6 +134,7 @@ public final class Scopes {
     // If this is empty, there could be a bug during backup - but we should not block the rest of
     // the restoration. We have already logged this earlier, so just move on
     boolean isExistingFileMetadata = !existingFileMetadataMap.isEmpty();
+    ExtractionSink sink = new ExtractionSink();
     for (Volume.Entry entry : extractor) {
       if (isExistingFileMetadata && !existingFileMetadataMap.containsKey(entry.getName())) {
         logger.fine("File found in storage volume with no corresponding entry "
@@ -125,14 +142,14 @@ public final class Scopes {
         continue;
       }
       Path path = targetDir.resolve(entry.getName());
-      if (overwrite || !Files.exists(path)) {
+      if (overwrite || !sink.exists(path)) {
         //Either we are overwriting or path does not exist, so going forward we will always restore from backup
         existingFileMetadataMap.put(entry.getName(), true);
       }
 
       Boolean shouldRestoreFromBackup = existingFileMetadataMap.get(entry.getName());
       if (shouldRestoreFromBackup != null && shouldRestoreFromBackup) {
-        entry.extractTo(path);
+        entry.extractTo(path, sink);
       }
     }
   }
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.storage;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Storage wrapper keeping recently loaded files in a bounded local cache
+ * directory.
+ *
+ * All writes go through to the wrapped storage. Stored files are not copied
+ * into the cache, which would double the disk writes of every backup, but
+ * files loaded once, e.g. the volumes merged into synthetic full backups, are
+ * loaded from the cache the next time. Backup volumes are never modified once
+ * stored, so a cached copy of a file is valid for as long as the file is known
+ * to this storage; the least recently used files are evicted once the cache
+ * exceeds its maximum size. Metadata is not cached here, the wrapped storage
+ * is expected to validate its own cached metadata.
+ */
+public class CachingStorage extends ForwardingStorage {
+
+  private static final Logger logger =
+      Logger.getLogger(CachingStorage.class.getName());
+
+  private static final String STORAGE_ID_FILE = ".storage-id";
+  private static final String PARTIAL_FILE_SUFFIX = ".partial";
+
+  private final Path cacheDir;
+  private final long maxCacheSizeBytes;
+  private final String storageId;
+
+  // filenames and sizes of all cached files, in least recently used order
+  private final LinkedHashMap<String, Long> cachedFiles =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private long cacheSizeBytes;
+  private boolean cacheLoaded;
+
+  /**
+   * Creates a new caching wrapper around the given storage.
+   *
+   * @param storage the {@link Storage} to wrap.
+   * @param cacheDir the local directory to keep cached files in. Cached files
+   * of a different storage found in this directory are deleted.
+   * @param maxCacheSizeBytes the maximum size of all cached files.
+   */
+  public CachingStorage(
+      Storage storage, Path cacheDir, long maxCacheSizeBytes) {
+    super(storage);
+    this.cacheDir = cacheDir;
+    this.maxCacheSizeBytes = maxCacheSizeBytes;
+    this.storageId = storage.toString();
+  }
+
+  @Override
+  public void storeFile(Path localFile, String filename) throws IOException {
+    // a cached copy of a previous file of that name is outdated
+    evict(filename);
+    super.storeFile(localFile, filename);
+  }
+
+  @Override
+  public void loadFile(String filename, Path target) throws IOException {
+    if (isCached(filename)) {
+      try {
+        Files.copy(cacheDir.resolve(filename), target);
+        logger.fine("Loaded file from local cache: " + filename);
+        return;
+      } catch (FileAlreadyExistsException e) {
+        throw e;
+      } catch (IOException e) {
+        // fall back to the wrapped storage, the cached copy may be damaged
+        logger.log(Level.WARNING,
+            "Failed to load file from local cache: " + filename, e);
+        evict(filename);
+        Files.deleteIfExists(target);
+      }
+    }
+    super.loadFile(filename, target);
+    addToCache(target, filename);
+  }
+
+  @Override
+  public void deleteFile(String filename) throws IOException {
+    evict(filename);
+    super.deleteFile(filename);
+  }
+
+  @Override
+  public void deleteFiles(List<String> filenames) throws IOException {
+    for (String filename : filenames) {
+      evict(filename);
+    }
+    super.deleteFiles(filenames);
+  }
+
+  /**
+   * Returns the total size of all files currently in the cache.
+   */
+  @VisibleForTesting
+  synchronized long getCacheSizeBytes() throws IOException {
+    loadCache();
+    return cacheSizeBytes;
+  }
+
+  private synchronized boolean isCached(String filename) {
+    try {
+      loadCache();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to read local cache: " + cacheDir, e);
+      return false;
+    }
+    return cachedFiles.get(filename) != null;  // marks as recently used
+  }
+
+  private void addToCache(Path source, String filename) {
+    Path partialFile = cacheDir.resolve(filename + PARTIAL_FILE_SUFFIX);
+    try {
+      long size = Files.size(source);
+      if (size > maxCacheSizeBytes) {
+        logger.fine("File too large for local cache: " + filename);
+        return;
+      }
+      synchronized (this) {
+        loadCache();
+        if (cachedFiles.containsKey(filename)) {
+          return;
+        }
+      }
+      // copy outside of the lock, so parallel loads do not wait for each other
+      Files.copy(source, partialFile, StandardCopyOption.REPLACE_EXISTING);
+      Files.move(partialFile, cacheDir.resolve(filename),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      synchronized (this) {
+        Long previousSize = cachedFiles.put(filename, size);
+        if (previousSize != null) {
+          cacheSizeBytes -= previousSize;
+        }
+        cacheSizeBytes += size;
+        evictLeastRecentlyUsed();
+      }
+    } catch (IOException e) {
+      // the cache is an optimization only, do not fail the operation
+      logger.log(Level.WARNING,
+          "Failed to add file to local cache: " + filename, e);
+      deleteQuietly(partialFile);
+    }
+  }
+
+  private synchronized void evict(String filename) {
+    Long size = cachedFiles.remove(filename);
+    if (size != null) {
+      cacheSizeBytes -= size;
+    }
+    deleteQuietly(cacheDir.resolve(filename));
+  }
+
+  private synchronized void evictLeastRecentlyUsed() {
+    Iterator<Map.Entry<String, Long>> iterator =
+        cachedFiles.entrySet().iterator();
+    while (cacheSizeBytes > maxCacheSizeBytes && iterator.hasNext()) {
+      Map.Entry<String, Long> eldest = iterator.next();
+      logger.fine("Evicting file from local cache: " + eldest.getKey());
+      iterator.remove();
+      cacheSizeBytes -= eldest.getValue();
+      deleteQuietly(cacheDir.resolve(eldest.getKey()));
+    }
+  }
+
+  /**
+   * Rebuilds the index of cached files from the cache directory, using the
+   * file modification times as approximation of the last use.
+   */
+  private synchronized void loadCache() throws IOException {
+    if (cacheLoaded) {
+      return;
+    }
+    Files.createDirectories(cacheDir);
+    Path storageIdFile = cacheDir.resolve(STORAGE_ID_FILE);
+    boolean sameStorage = Files.exists(storageIdFile) && storageId.equals(
+        new String(Files.readAllBytes(storageIdFile), StandardCharsets.UTF_8));
+
+    final Map<Path, Long> lastModified = new LinkedHashMap<>();
+    try (DirectoryStream<Path> directoryStream =
+        Files.newDirectoryStream(cacheDir)) {
+      for (Path next : directoryStream) {
+        if (next.equals(storageIdFile)) {
+          continue;
+        }
+        if (!sameStorage
+            || next.getFileName().toString().endsWith(PARTIAL_FILE_SUFFIX)
+            || !Files.isRegularFile(next)) {
+          deleteQuietly(next);
+          continue;
+        }
+        lastModified.put(next, Files.getLastModifiedTime(next).toMillis());
+      }
+    } // auto-close directory stream
+    if (!sameStorage) {
+      logger.fine("Initializing local cache for storage: " + storageId);
+      Files.write(storageIdFile, storageId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    List<Path> files = new ArrayList<>(lastModified.keySet());
+    Collections.sort(files, new Comparator<Path>() {
+      @Override
+      public int compare(Path a, Path b) {
+        return lastModified.get(a).compareTo(lastModified.get(b));
+      }
+    });
+    for (Path file : files) {
+      long size = Files.size(file);
+      cachedFiles.put(file.getFileName().toString(), size);
+      cacheSizeBytes += size;
+    }
+    cacheLoaded = true;
+    evictLeastRecentlyUsed();
+  }
+
+  private static void deleteQuietly(@Nullable Path path) {
+    try {
+      if (path != null) {
+        Files.deleteIfExists(path);
+      }
+    } catch (IOException e) {
+      // be silent about cleanup errors, only log them
+      logger.log(Level.FINE, "IOException while performing cleanup", e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "CachingStorage{" +
+        "storage=" + storageId +
+        ", cacheDir=" + cacheDir +
+        '}';
+  }
+}
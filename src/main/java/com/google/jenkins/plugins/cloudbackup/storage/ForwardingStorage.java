@@ -47,6 +47,11 @@ public abstract class ForwardingStorage implements Storage {
     storage.deleteFile(filename);
   }
 
+  @Override
+  public void deleteFiles(List<String> filenames) throws IOException {
+    storage.deleteFiles(filenames);
+  }
+
   @Override
   public List<String> listFiles() throws IOException {
     return storage.listFiles();
@@ -82,4 +87,14 @@ public abstract class ForwardingStorage implements Storage {
     storage.updateVersionInfo(version);
   }
 
+  /**
+   * Returns the description of the wrapped storage, which identifies the
+   * location of the backups, e.g. for {@link CachingStorage}, no matter how
+   * the storage is wrapped.
+   */
+  @Override
+  public String toString() {
+    return storage.toString();
+  }
+
 }
@@ -16,22 +16,35 @@
 package com.google.jenkins.plugins.cloudbackup.storage;
 
 import com.google.api.client.util.Lists;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteStreams;
 import com.google.jenkins.plugins.cloudbackup.VersionUtility;
+import com.google.jenkins.plugins.cloudbackup.throttle.ResourceGovernor;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
 
 /**
  * Storage implementation using a Google Cloud Storage (GCS) bucket as storage
@@ -39,6 +52,17 @@ import java.util.logging.Logger;
  *
  * This implementation employs the command line tool gsutil (which is included
  * in gcloud) in order to perform the actual GCS access.
+ *
+ * The metadata objects and the listing of all files are cached in memory and
+ * kept up to date by the writes of this instance. Every cached metadata object
+ * remembers its GCS generation number, and updates are only applied if the
+ * object still has that generation. If someone else changed the object in the
+ * meantime, all cached data is discarded and a
+ * {@link StaleMetadataException} is thrown. Objects that were not read before
+ * are read first, so an update never overwrites a change it has not seen.
+ *
+ * If a {@link ResourceGovernor} with an upload limit is set, files are
+ * streamed to gsutil at the allowed rate instead of letting gsutil read them.
  */
 public class GcloudGcsStorage implements Storage {
   private static final Logger logger = Logger.getLogger(GcloudGcsStorage.class.getName());
@@ -52,18 +76,78 @@ public class GcloudGcsStorage implements Storage {
       COMMENT_PREFIX + " This file contains the existing files meta data.";
   private static final String GSUTIL_CMD = "gsutil";
   private static final String TMP_DIR_PREFIX = "cloud-backup-plugin";
+  private static final String GENERATION_MATCH_HEADER =
+      "x-goog-if-generation-match:";
+  private static final String PRECONDITION_FAILED = "PreconditionException";
+  private static final String NO_URLS_MATCHED = "No URLs matched";
+  private static final Pattern STAT_GENERATION_PATTERN =
+      Pattern.compile("^\\s*Generation:\\s*(\\d+)\\s*$");
+  private static final Pattern CREATED_GENERATION_PATTERN =
+      Pattern.compile("^Created: .*#(\\d+)\\s*$");
+  // generation used in preconditions for objects that do not exist
+  private static final long NO_GENERATION = 0L;
 
+  /**
+   * Runs gsutil. Allows tests to run without gsutil.
+   */
+  @VisibleForTesting
+  interface GsutilRunner {
+    /**
+     * Runs gsutil with the given parameters and returns its output lines.
+     *
+     * @param inputFile the file to redirect to the input of gsutil, or null.
+     * @param input the stream to copy to the input of gsutil, or null.
+     */
+    List<String> run(@Nullable Path inputFile, @Nullable InputStream input,
+        String... params) throws IOException;
+  }
 
   private final String gsUrlPrefix;
+  private final GsutilRunner gsutilRunner;
+
+  // guarded by this
+  private final Map<String, MetadataObject> metadataCache = new HashMap<>();
+  private List<String> cachedFileList;
+
+  private volatile ResourceGovernor resourceGovernor;
 
   public GcloudGcsStorage(String bucketName) {
+    this(bucketName, new ProcessGsutilRunner());
+  }
+
+  @VisibleForTesting
+  GcloudGcsStorage(String bucketName, GsutilRunner gsutilRunner) {
     this.gsUrlPrefix = "gs://" + bucketName + "/";
+    this.gsutilRunner = gsutilRunner;
+  }
+
+  /**
+   * Sets the governor whose upload limit applies to stored files.
+   *
+   * @param resourceGovernor the governor, or null for unlimited uploads.
+   */
+  public void setResourceGovernor(@Nullable ResourceGovernor resourceGovernor) {
+    this.resourceGovernor = resourceGovernor;
   }
 
   @Override
   public void storeFile(Path localFile, String filename) throws IOException {
     logger.finer("Storing local file: " + localFile + " with filename: " + filename);
-    gsutil("cp", localFile.toString(), gsUrlPrefix + filename);
+    ResourceGovernor governor = resourceGovernor;
+    if (governor != null && governor.isUploadLimited()) {
+      try (InputStream in =
+          governor.throttleUpload(Files.newInputStream(localFile))) {
+        // quiet, so that progress output cannot fill up the output pipe
+        gsutilWithStream(in, "-q", "cp", "-", gsUrlPrefix + filename);
+      }
+    } else {
+      gsutil("cp", localFile.toString(), gsUrlPrefix + filename);
+    }
+    synchronized (this) {
+      if (cachedFileList != null && !cachedFileList.contains(filename)) {
+        cachedFileList.add(filename);
+      }
+    }
   }
 
   @Override
@@ -75,11 +159,63 @@ public class GcloudGcsStorage implements Storage {
   @Override
   public void deleteFile(String filename) throws IOException {
     logger.finer("Deleting filename: " + filename);
-    gsutil("rm", gsUrlPrefix + filename);
+    try {
+      gsutil("rm", gsUrlPrefix + filename);
+    } catch (IOException e) {
+      // the file may have been deleted by someone else
+      synchronized (this) {
+        cachedFileList = null;
+      }
+      throw e;
+    }
+    synchronized (this) {
+      if (cachedFileList != null) {
+        cachedFileList.remove(filename);
+      }
+    }
+  }
+
+  @Override
+  public void deleteFiles(List<String> filenames) throws IOException {
+    if (filenames.isEmpty()) {
+      return;
+    }
+    logger.finer("Deleting " + filenames.size() + " files");
+    List<String> urls = new ArrayList<>(filenames.size());
+    for (String filename : filenames) {
+      urls.add(gsUrlPrefix + filename);
+    }
+    // let a single gsutil process delete all objects in parallel, reading
+    // the object URLs from stdin
+    final Path tempDirectory = Files.createTempDirectory(TMP_DIR_PREFIX);
+    final Path urlListPath = tempDirectory.resolve("delete-urls");
+    try {
+      Files.write(urlListPath, urls, StandardCharsets.UTF_8);
+      gsutilWithInput(urlListPath, "-m", "rm", "-I");
+    } catch (IOException e) {
+      // some files may have been deleted by someone else
+      synchronized (this) {
+        cachedFileList = null;
+      }
+      throw e;
+    } finally {
+      Files.deleteIfExists(urlListPath);
+      Files.deleteIfExists(tempDirectory);
+    }
+    synchronized (this) {
+      if (cachedFileList != null) {
+        cachedFileList.removeAll(filenames);
+      }
+    }
   }
 
   @Override
   public List<String> listFiles() throws IOException {
+    synchronized (this) {
+      if (cachedFileList != null) {
+        return new ArrayList<>(cachedFileList);
+      }
+    }
     List<String> gsutilOut = gsutil("ls", gsUrlPrefix);
     final int urlPrefixLength = gsUrlPrefix.length();
     List<String> files = new ArrayList<>(gsutilOut.size());
@@ -92,6 +228,9 @@ public class GcloudGcsStorage implements Storage {
         files.add(file);
       }
     }
+    synchronized (this) {
+      cachedFileList = new ArrayList<>(files);
+    }
     return files;
   }
 
@@ -149,13 +288,52 @@ public class GcloudGcsStorage implements Storage {
 
 
   private List<String> getObjectFromGCS(String name) throws IOException {
-    List<String> content = null;
-    List<String> files = new LinkedList<>();
-    content = gsutil("cat", gsUrlPrefix + name);
-    if (content.isEmpty()) {
-      return files;
+    MetadataObject object;
+    synchronized (this) {
+      object = metadataCache.get(name);
+    }
+    if (object == null) {
+      object = readObjectFromGCS(name);
+      synchronized (this) {
+        metadataCache.put(name, object);
+      }
     }
-    for (String line : content) {
+    if (object.generation == NO_GENERATION) {
+      throw new NoSuchFileException(gsUrlPrefix + name);
+    }
+    // callers are free to modify the returned list
+    return new LinkedList<>(object.content);
+  }
+
+  private MetadataObject readObjectFromGCS(String name) throws IOException {
+    logger.finer("Reading metadata object: " + name);
+    long generation = NO_GENERATION;
+    try {
+      for (String line : gsutil("stat", gsUrlPrefix + name)) {
+        Matcher matcher = STAT_GENERATION_PATTERN.matcher(line);
+        if (matcher.matches()) {
+          generation = Long.parseLong(matcher.group(1));
+        }
+      }
+    } catch (IOException e) {
+      if (e.getMessage() != null && e.getMessage().contains(NO_URLS_MATCHED)) {
+        return new MetadataObject(
+            Collections.<String>emptyList(), NO_GENERATION);
+      }
+      throw e;
+    }
+    if (generation == NO_GENERATION) {
+      throw new IOException("Could not determine generation of " + name);
+    }
+    // read exactly the generation that was found, so the pair is consistent
+    return new MetadataObject(
+        parseContent(gsutil("cat", gsUrlPrefix + name + "#" + generation)),
+        generation);
+  }
+
+  private static List<String> parseContent(List<String> lines) {
+    List<String> files = new LinkedList<>();
+    for (String line : lines) {
       if (!line.trim().isEmpty() && !line.startsWith(COMMENT_PREFIX)) {
         files.add(line.trim());
       }
@@ -186,6 +364,23 @@ public class GcloudGcsStorage implements Storage {
 
   public void uploadObjectToGCSS(List<String> filenames, String name, String comment)
       throws IOException {
+    List<String> newContent = parseContent(filenames);
+    MetadataObject cached;
+    synchronized (this) {
+      cached = metadataCache.get(name);
+    }
+    if (cached == null) {
+      // learn the current generation, even if the object does not exist
+      cached = readObjectFromGCS(name);
+      synchronized (this) {
+        metadataCache.put(name, cached);
+      }
+    }
+    if (cached.content.equals(newContent)
+        && cached.generation != NO_GENERATION) {
+      logger.fine("Content of " + name + " is unchanged, skipping update.");
+      return;
+    }
     List<String> content = new ArrayList<>(filenames.size() + 1);
     content.add(comment);
     content.addAll(filenames);
@@ -194,7 +389,31 @@ public class GcloudGcsStorage implements Storage {
     logger.fine("Using temp file: " + tempFilePath);
     try {
       Files.write(tempFilePath, content, StandardCharsets.UTF_8);
-      gsutil("cp", tempFilePath.toString(), gsUrlPrefix + name);
+      List<String> output;
+      try {
+        // generation 0 only matches if the object does not exist
+        output = gsutil("-h", GENERATION_MATCH_HEADER + cached.generation,
+            "cp", "-v", tempFilePath.toString(), gsUrlPrefix + name);
+      } catch (IOException e) {
+        if (e.getMessage() != null
+            && e.getMessage().contains(PRECONDITION_FAILED)) {
+          invalidateCache();
+          throw new StaleMetadataException(
+              "Metadata object " + name + " was changed concurrently", e);
+        }
+        synchronized (this) {
+          metadataCache.remove(name);
+        }
+        throw e;
+      }
+      Long generation = parseCreatedGeneration(output);
+      synchronized (this) {
+        if (generation != null) {
+          metadataCache.put(name, new MetadataObject(newContent, generation));
+        } else {
+          metadataCache.remove(name);
+        }
+      }
     } finally {
       logger.fine("Cleaning up temp file & directory.");
       Files.deleteIfExists(tempFilePath);
@@ -202,14 +421,68 @@ public class GcloudGcsStorage implements Storage {
     }
   }
 
+  @Nullable
+  private static Long parseCreatedGeneration(List<String> output) {
+    for (String line : output) {
+      Matcher matcher = CREATED_GENERATION_PATTERN.matcher(line);
+      if (matcher.matches()) {
+        return Long.parseLong(matcher.group(1));
+      }
+    }
+    return null;
+  }
+
+  private synchronized void invalidateCache() {
+    logger.info("Metadata changed concurrently, discarding cached metadata.");
+    metadataCache.clear();
+    cachedFileList = null;
+  }
+
   private List<String> gsutil(String... params) throws IOException {
-    ProcessBuilder builder = new ProcessBuilder(GSUTIL_CMD);
-    for (String param : params) {
-      builder.command().add(param);
+    return gsutilRunner.run(null, null, params);
+  }
+
+  private List<String> gsutilWithInput(@Nullable Path input, String... params)
+      throws IOException {
+    return gsutilRunner.run(input, null, params);
+  }
+
+  private List<String> gsutilWithStream(InputStream input, String... params)
+      throws IOException {
+    return gsutilRunner.run(null, input, params);
+  }
+
+  /**
+   * Runs gsutil as a sub-process.
+   */
+  private static final class ProcessGsutilRunner implements GsutilRunner {
+    @Override
+    public List<String> run(@Nullable Path inputFile,
+        @Nullable InputStream input, String... params) throws IOException {
+      ProcessBuilder builder = new ProcessBuilder(GSUTIL_CMD);
+      for (String param : params) {
+        builder.command().add(param);
+      }
+      builder.redirectErrorStream(true);
+      if (inputFile != null) {
+        builder.redirectInput(inputFile.toFile());
+      }
+      return runGsutil(builder.start(), input);
+    }
+  }
+
+  private static List<String> runGsutil(Process process,
+      @Nullable InputStream input) throws IOException {
+    IOException inputException = null;
+    if (input != null) {
+      try (OutputStream processInput = process.getOutputStream()) {
+        ByteStreams.copy(input, processInput);
+      } catch (IOException e) {
+        // gsutil may have exited early, its output tells why
+        inputException = e;
+      }
     }
-    builder.redirectErrorStream(true);
     List<String> output = new LinkedList<>();
-    Process process = builder.start();
     try (
         BufferedReader out = new BufferedReader(
             new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
@@ -225,7 +498,11 @@ public class GcloudGcsStorage implements Storage {
       throw new IOException("Could not wait for sub-process", e);
     }
     if (returnCode != 0) {
-      throw new IOException("gsutil failed: " + joinStrings(output));
+      throw new IOException("gsutil failed: " + joinStrings(output),
+          inputException);
+    }
+    if (inputException != null) {
+      throw inputException;
     }
     return output;
   }
@@ -266,4 +543,17 @@ public class GcloudGcsStorage implements Storage {
     return "GcloudGcsStorage{"
         + "gsUrlPrefix='" + gsUrlPrefix + '\'' + '}';
   }
+
+  /**
+   * The content of a metadata object, together with its GCS generation.
+   */
+  private static final class MetadataObject {
+    private final List<String> content;
+    private final long generation;
+
+    MetadataObject(List<String> content, long generation) {
+      this.content = Collections.unmodifiableList(new ArrayList<>(content));
+      this.generation = generation;
+    }
+  }
 }
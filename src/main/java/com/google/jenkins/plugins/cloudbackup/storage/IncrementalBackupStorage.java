@@ -17,6 +17,7 @@ package com.google.jenkins.plugins.cloudbackup.storage;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.logging.Logger;
 
 /**
  * Storage wrapper for handling incremental backups.
@@ -26,12 +27,26 @@ import java.util.List;
  */
 public class IncrementalBackupStorage extends ForwardingStorage {
 
+  private static final Logger logger =
+      Logger.getLogger(IncrementalBackupStorage.class.getName());
+
   public IncrementalBackupStorage(Storage storage) {
     super(storage);
   }
 
   @Override
   public void updateLastBackup(List<String> filenames) throws IOException {
+    try {
+      appendToLastBackup(filenames);
+    } catch (StaleMetadataException e) {
+      // the list of the latest backup files was changed by someone else, try
+      // again once on top of the current list
+      logger.warning("Retrying update of stale last backup: " + e.getMessage());
+      appendToLastBackup(filenames);
+    }
+  }
+
+  private void appendToLastBackup(List<String> filenames) throws IOException {
     List<String> latestBackupFilenames = super.findLatestBackup();
     if (latestBackupFilenames != null) {
       latestBackupFilenames.addAll(filenames);
@@ -25,10 +25,16 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Simple storage implementation using a directory in the local filesystem as
@@ -39,6 +45,7 @@ public class LocalFileStorage implements Storage {
   private static final String LAST_BACKUP_FILE = "last-backup";
   private static final String EXISTING_FILE_METADATA = "existing-files-metadata";
   private static final String COMMENT_PREFIX = "#";
+  private static final int MAX_DELETE_THREADS = 8;
   private static final String COMMENT_LINE =
       COMMENT_PREFIX + " This file contains the filename of the last backup.";
   private static final String EXISTING_FILES_COMMENT_LINE =
@@ -65,6 +72,47 @@ public class LocalFileStorage implements Storage {
     Files.delete(storageDir.resolve(filename));
   }
 
+  @Override
+  public void deleteFiles(List<String> filenames) throws IOException {
+    if (filenames.isEmpty()) {
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(filenames.size(), MAX_DELETE_THREADS));
+    try {
+      List<Future<Void>> deletions = new ArrayList<>(filenames.size());
+      for (final String filename : filenames) {
+        deletions.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            Files.delete(storageDir.resolve(filename));
+            return null;
+          }
+        }));
+      }
+      IOException failure = null;
+      for (Future<Void> deletion : deletions) {
+        try {
+          deletion.get();
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e.getCause() instanceof IOException
+                ? (IOException) e.getCause()
+                : new IOException("Failed to delete file", e.getCause());
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while deleting files", e);
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   @Override
   public List<String> listFiles() throws IOException {
     List<String> files = new LinkedList<>();
@@ -72,9 +120,12 @@ public class LocalFileStorage implements Storage {
         DirectoryStream<Path> directoryStream
             = Files.newDirectoryStream(storageDir)) {
       for (Path next : directoryStream) {
-        // exclude internal file
+        // exclude internal files
         Path fileName = next.getFileName();
-        if (fileName != null && !fileName.toString().equals(LAST_BACKUP_FILE)) {
+        if (fileName != null
+            && !fileName.toString().equals(LAST_BACKUP_FILE)
+            && !fileName.toString().equals(EXISTING_FILE_METADATA)
+            && !fileName.toString().equals(VersionUtility.VERSION_FILE)) {
           files.add(fileName.toString());
         }
       }
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.storage;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Storage wrapper retrying failed operations with exponential backoff.
+ *
+ * Transient failures, like a dropped connection during a long upload, no
+ * longer fail the whole backup. Every operation of {@link Storage} can be
+ * repeated safely: files and metadata are overwritten with the same content,
+ * and storing the same local file under the same name again allows the
+ * wrapped storage to resume an interrupted upload. A failed deletion may have
+ * deleted some of the files nonetheless, so it is retried for the files that
+ * are still listed only. Failures that a retry cannot fix are not retried:
+ * missing files, and metadata updates rejected with a
+ * {@link StaleMetadataException}, which callers handle by reading the metadata
+ * again.
+ */
+public class RetryingStorage extends ForwardingStorage {
+
+  private static final Logger logger =
+      Logger.getLogger(RetryingStorage.class.getName());
+
+  private static final long MAX_BACKOFF_MILLIS = 5L * 60L * 1000L;
+
+  /**
+   * Waits between attempts. Allows tests to run without delay.
+   */
+  @VisibleForTesting
+  interface Sleeper {
+    void sleep(long millis) throws InterruptedException;
+  }
+
+  /**
+   * An operation of the wrapped storage.
+   */
+  private interface StorageOperation<T> {
+    T run() throws IOException;
+  }
+
+  private final int maxRetries;
+  private final long initialBackoffMillis;
+  private final Sleeper sleeper;
+
+  /**
+   * @param storage the {@link Storage} to wrap.
+   * @param maxRetries how often a failed operation is retried.
+   * @param initialBackoffMillis the time to wait before the first retry,
+   * doubled for every further retry up to a maximum of five minutes.
+   */
+  public RetryingStorage(Storage storage, int maxRetries,
+      long initialBackoffMillis) {
+    this(storage, maxRetries, initialBackoffMillis, new Sleeper() {
+      @Override
+      public void sleep(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+      }
+    });
+  }
+
+  @VisibleForTesting
+  RetryingStorage(Storage storage, int maxRetries, long initialBackoffMillis,
+      Sleeper sleeper) {
+    super(storage);
+    Preconditions.checkArgument(maxRetries >= 0);
+    Preconditions.checkArgument(initialBackoffMillis >= 0);
+    this.maxRetries = maxRetries;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.sleeper = sleeper;
+  }
+
+  @Override
+  public void storeFile(final Path localFile, final String filename)
+      throws IOException {
+    retry("store " + filename, new StorageOperation<Void>() {
+      @Override
+      public Void run() throws IOException {
+        RetryingStorage.super.storeFile(localFile, filename);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void loadFile(final String filename, final Path target)
+      throws IOException {
+    retry("load " + filename, new StorageOperation<Void>() {
+      @Override
+      public Void run() throws IOException {
+        RetryingStorage.super.loadFile(filename, target);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void deleteFile(final String filename) throws IOException {
+    retry("delete " + filename, new StorageOperation<Void>() {
+      private boolean failed;
+
+      @Override
+      public Void run() throws IOException {
+        if (failed && !RetryingStorage.super.listFiles().contains(filename)) {
+          return null;
+        }
+        failed = true;
+        RetryingStorage.super.deleteFile(filename);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void deleteFiles(final List<String> filenames) throws IOException {
+    retry("delete files", new StorageOperation<Void>() {
+      private List<String> remaining = filenames;
+      private boolean failed;
+
+      @Override
+      public Void run() throws IOException {
+        if (failed) {
+          remaining = new ArrayList<>(remaining);
+          remaining.retainAll(
+              new HashSet<>(RetryingStorage.super.listFiles()));
+        }
+        failed = true;
+        RetryingStorage.super.deleteFiles(remaining);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public List<String> listFiles() throws IOException {
+    return retry("list files", new StorageOperation<List<String>>() {
+      @Override
+      public List<String> run() throws IOException {
+        return RetryingStorage.super.listFiles();
+      }
+    });
+  }
+
+  @Override
+  public void updateExistingFilesMetaData(final Set<String> filenames)
+      throws IOException {
+    retry("update existing files", new StorageOperation<Void>() {
+      @Override
+      public Void run() throws IOException {
+        RetryingStorage.super.updateExistingFilesMetaData(filenames);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public List<String> findLatestBackup() throws IOException {
+    return retry("find latest backup", new StorageOperation<List<String>>() {
+      @Override
+      public List<String> run() throws IOException {
+        return RetryingStorage.super.findLatestBackup();
+      }
+    });
+  }
+
+  @Override
+  public void updateLastBackup(final List<String> filenames)
+      throws IOException {
+    retry("update last backup", new StorageOperation<Void>() {
+      @Override
+      public Void run() throws IOException {
+        RetryingStorage.super.updateLastBackup(filenames);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public List<String> listMetadataForExistingFiles() throws IOException {
+    return retry("list existing files",
+        new StorageOperation<List<String>>() {
+          @Override
+          public List<String> run() throws IOException {
+            return RetryingStorage.super.listMetadataForExistingFiles();
+          }
+        });
+  }
+
+  @Override
+  public void updateVersionInfo(final String version) throws IOException {
+    retry("update version", new StorageOperation<Void>() {
+      @Override
+      public Void run() throws IOException {
+        RetryingStorage.super.updateVersionInfo(version);
+        return null;
+      }
+    });
+  }
+
+  private <T> T retry(String description, StorageOperation<T> operation)
+      throws IOException {
+    long backoffMillis = initialBackoffMillis;
+    for (int retries = 0;; retries++) {
+      try {
+        return operation.run();
+      } catch (IOException e) {
+        if (retries >= maxRetries || !isRetryable(e)) {
+          throw e;
+        }
+        logger.log(Level.WARNING, "Failed to " + description + ", retrying in "
+            + backoffMillis + " ms", e);
+      }
+      try {
+        sleeper.sleep(backoffMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(
+            "Interrupted while waiting to retry: " + description);
+      }
+      backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+    }
+  }
+
+  private static boolean isRetryable(IOException e) {
+    return !(e instanceof StaleMetadataException
+        || e instanceof NoSuchFileException
+        || e instanceof FileNotFoundException
+        || e instanceof InterruptedIOException);
+  }
+}
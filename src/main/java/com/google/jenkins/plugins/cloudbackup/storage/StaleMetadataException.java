@@ -0,0 +1,33 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.storage;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a {@link Storage} if a metadata update was rejected, because the
+ * metadata was changed by someone else since it was last read. The cached
+ * metadata has been discarded, so the update can be retried after reading the
+ * metadata again.
+ */
+public class StaleMetadataException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  public StaleMetadataException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
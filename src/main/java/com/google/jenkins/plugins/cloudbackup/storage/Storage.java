@@ -52,6 +52,15 @@ public interface Storage {
    */
   public void deleteFile(String filename) throws IOException;
 
+  /**
+   * Delete all given files from the storage. Implementations should delete
+   * the files in a batch or in parallel, rather than one by one.
+   *
+   * @param filenames the filenames of the files in the storage.
+   * @throws IOException if deleting any of the files fails.
+   */
+  public void deleteFiles(List<String> filenames) throws IOException;
+
   /**
    * Returns a list of the filenames of all files in the storage. Files that are
    * used internally by the storage implementation will be excluded.
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.throttle;
+
+import hudson.model.Queue;
+import jenkins.model.Jenkins;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+/**
+ * Considers Jenkins under load if builds are waiting in the queue for an
+ * executor, or if the system load average exceeds the number of processors.
+ */
+public class JenkinsLoadProbe implements LoadProbe {
+
+  private final OperatingSystemMXBean operatingSystem =
+      ManagementFactory.getOperatingSystemMXBean();
+
+  @Override
+  public boolean isUnderLoad() {
+    Jenkins jenkins = Jenkins.getInstance();
+    if (jenkins != null) {
+      Queue queue = jenkins.getQueue();
+      if (queue != null && queue.countBuildableItems() > 0) {
+        return true;
+      }
+    }
+    // negative if the load average is not available on this platform
+    double loadAverage = operatingSystem.getSystemLoadAverage();
+    return loadAverage > operatingSystem.getAvailableProcessors();
+  }
+
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.throttle;
+
+/**
+ * Tells the {@link ResourceGovernor} whether the machine is busy with more
+ * important work than backups.
+ */
+public interface LoadProbe {
+
+  /**
+   * Returns whether the machine is currently under load, in which case
+   * backups should slow down.
+   *
+   * @return true if backups should back off, false otherwise.
+   */
+  public boolean isUnderLoad();
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.throttle;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Limits the resources used by backups, so that they do not slow down the
+ * builds running on the same machine.
+ *
+ * The governor holds token buckets for the bytes read from disk and the bytes
+ * uploaded to the storage per second. A limit of zero disables the respective
+ * bucket. While the {@link LoadProbe} reports load, the configured rates are
+ * halved every few seconds, down to a tenth of the configured rate, and they
+ * are raised again in small steps once the load is gone.
+ */
+public class ResourceGovernor {
+
+  private static final Logger logger =
+      Logger.getLogger(ResourceGovernor.class.getName());
+
+  private static final long ADAPT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+  private static final double MIN_SCALE = 0.1;
+  private static final double SCALE_STEP = 0.1;
+  // acquire large amounts in chunks, so that rate changes apply quickly
+  private static final int MAX_PERMITS_PER_ACQUIRE = 1024 * 1024;
+
+  private final LoadProbe loadProbe;
+  private final Ticker ticker;
+  private final RateLimiter readLimiter = RateLimiter.create(1.0);
+  private final RateLimiter uploadLimiter = RateLimiter.create(1.0);
+
+  // guarded by this
+  private long readBytesPerSecond;
+  private long uploadBytesPerSecond;
+  private double scale = 1.0;
+  private boolean adapted;
+  private long lastAdaptNanos;
+
+  /**
+   * Creates a new governor without any limits.
+   *
+   * @param loadProbe the probe used to detect load.
+   */
+  public ResourceGovernor(LoadProbe loadProbe) {
+    this(loadProbe, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  ResourceGovernor(LoadProbe loadProbe, Ticker ticker) {
+    this.loadProbe = loadProbe;
+    this.ticker = ticker;
+  }
+
+  /**
+   * Sets the maximum rates. Zero disables the respective limit.
+   *
+   * @param readBytesPerSecond the bytes to read from disk per second.
+   * @param uploadBytesPerSecond the bytes to upload to the storage per second.
+   */
+  public synchronized void setLimits(long readBytesPerSecond,
+      long uploadBytesPerSecond) {
+    this.readBytesPerSecond = Math.max(0, readBytesPerSecond);
+    this.uploadBytesPerSecond = Math.max(0, uploadBytesPerSecond);
+    updateRates();
+  }
+
+  /**
+   * Returns whether reading from disk is limited.
+   */
+  public synchronized boolean isReadLimited() {
+    return readBytesPerSecond > 0;
+  }
+
+  /**
+   * Returns whether uploading to the storage is limited.
+   */
+  public synchronized boolean isUploadLimited() {
+    return uploadBytesPerSecond > 0;
+  }
+
+  /**
+   * Returns the fraction of the configured rates currently allowed.
+   */
+  @VisibleForTesting
+  synchronized double getScale() {
+    return scale;
+  }
+
+  /**
+   * Blocks until the given number of bytes may be read from disk.
+   *
+   * @param bytes the number of bytes to be read.
+   */
+  public void acquireRead(long bytes) {
+    acquire(readLimiter, true, bytes);
+  }
+
+  /**
+   * Blocks until the given number of bytes may be uploaded.
+   *
+   * @param bytes the number of bytes to be uploaded.
+   */
+  public void acquireUpload(long bytes) {
+    acquire(uploadLimiter, false, bytes);
+  }
+
+  /**
+   * Wraps the given stream, so that reading from it honors the upload limit.
+   *
+   * @param in the stream with the data to be uploaded.
+   * @return the throttled stream.
+   */
+  public InputStream throttleUpload(InputStream in) {
+    return new ThrottledInputStream(in, this);
+  }
+
+  private void acquire(RateLimiter limiter, boolean read, long bytes) {
+    while (bytes > 0) {
+      boolean adaptDue;
+      synchronized (this) {
+        if ((read ? readBytesPerSecond : uploadBytesPerSecond) <= 0) {
+          return;
+        }
+        adaptDue = claimAdapt();
+      }
+      if (adaptDue) {
+        // probe outside of the lock, the probe may be slow
+        adaptToLoad(loadProbe.isUnderLoad());
+      }
+      int permits = (int) Math.min(bytes, MAX_PERMITS_PER_ACQUIRE);
+      limiter.acquire(permits);
+      bytes -= permits;
+    }
+  }
+
+  /**
+   * Returns whether the rates are due to be adapted, and if so, records that
+   * they are being adapted now, so that concurrent callers do not probe, too.
+   */
+  private boolean claimAdapt() {
+    long now = ticker.read();
+    if (adapted && now - lastAdaptNanos < ADAPT_INTERVAL_NANOS) {
+      return false;
+    }
+    adapted = true;
+    lastAdaptNanos = now;
+    return true;
+  }
+
+  private synchronized void adaptToLoad(boolean underLoad) {
+    double newScale = underLoad
+        ? Math.max(MIN_SCALE, scale / 2)
+        : Math.min(1.0, scale + SCALE_STEP);
+    if (newScale != scale) {
+      logger.fine("Adjusting backup rates to " + Math.round(newScale * 100)
+          + "% of the configured limits");
+      scale = newScale;
+      updateRates();
+    }
+  }
+
+  private void updateRates() {
+    if (readBytesPerSecond > 0) {
+      readLimiter.setRate(readBytesPerSecond * scale);
+    }
+    if (uploadBytesPerSecond > 0) {
+      uploadLimiter.setRate(uploadBytesPerSecond * scale);
+    }
+  }
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.trigger;
+
+import org.joda.time.DateTime;
+
+import com.google.jenkins.plugins.cloudbackup.CloudBackupPlugin;
+
+/**
+ * Allows a new full backup only if anything changed since the last full
+ * backup, i.e. if at least one incremental backup has been stored since. Meant
+ * to be combined with other triggers, so that a quiet Jenkins instance does
+ * not create identical full backups.
+ */
+public class IncrementalBackupsExistBackupTrigger implements BackupTrigger {
+
+  @Override
+  public boolean shouldCreateBackup(DateTime lastBackupTime) {
+    CloudBackupPlugin plugin = CloudBackupPlugin.getInstance();
+    return plugin != null && plugin.getIncrementalBackupCount() > 0;
+  }
+
+}
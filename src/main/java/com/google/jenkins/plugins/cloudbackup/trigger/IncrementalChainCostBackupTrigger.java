@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.trigger;
+
+import org.joda.time.DateTime;
+
+import com.google.jenkins.plugins.cloudbackup.CloudBackupPlugin;
+
+/**
+ * Triggers a new full backup, if the incremental backups created since the
+ * last full backup have become too costly to restore.
+ *
+ * The cost is measured against the last full backup: a backup is triggered
+ * once the total size of the incremental backups reaches the given percentage
+ * of the size of the full backup, or once the number of incremental backups
+ * reaches the given maximum. A limit of zero disables the respective check.
+ */
+public class IncrementalChainCostBackupTrigger implements BackupTrigger {
+
+  private final int maxSizePercent;
+  private final int maxIncrementalBackups;
+
+  /**
+   * @param maxSizePercent the size of all incremental backups, in percent of
+   * the size of the full backup, that triggers a full backup.
+   * @param maxIncrementalBackups the number of incremental backups that
+   * triggers a full backup.
+   */
+  public IncrementalChainCostBackupTrigger(
+      int maxSizePercent, int maxIncrementalBackups) {
+    this.maxSizePercent = maxSizePercent;
+    this.maxIncrementalBackups = maxIncrementalBackups;
+  }
+
+  @Override
+  public boolean shouldCreateBackup(DateTime lastBackupTime) {
+    CloudBackupPlugin plugin = CloudBackupPlugin.getInstance();
+    if (plugin == null) {
+      return false;
+    }
+    long fullBackupSize = plugin.getFullBackupSizeBytes();
+    if (maxSizePercent > 0 && fullBackupSize > 0
+        && plugin.getIncrementalBackupsSizeBytes() * 100
+            >= fullBackupSize * maxSizePercent) {
+      return true;
+    }
+    return maxIncrementalBackups > 0
+        && plugin.getIncrementalBackupCount() >= maxIncrementalBackups;
+  }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.volume;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+/**
+ * The signatures of the blocks of a file, i.e. a weak, rolling hash and a
+ * strong hash of each block, like rsync uses them. Given the signatures of
+ * an earlier version of a file, {@link FileDeltas} finds the blocks the
+ * current version still contains, so that only the remaining bytes need to
+ * be stored.
+ *
+ * The block size is about the square root of the file size, so that the
+ * signatures of large files stay small, while changes to them still only
+ * cost a small block each.
+ */
+public final class BlockSignatures {
+
+  public static final int MIN_BLOCK_SIZE = 1024;
+  public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+  static final String STRONG_HASH_ALGORITHM = "MD5";
+  private static final int STRONG_HASH_LENGTH = 16;
+  private static final int FORMAT_VERSION = 1;
+
+  private final long fileSize;
+  private final int blockSize;
+  private final int[] weakHashes;
+  // the strong hashes of all blocks, one after the other
+  private final byte[] strongHashes;
+
+  private BlockSignatures(long fileSize, int blockSize, int[] weakHashes,
+      byte[] strongHashes) {
+    this.fileSize = fileSize;
+    this.blockSize = blockSize;
+    this.weakHashes = weakHashes;
+    this.strongHashes = strongHashes;
+  }
+
+  /**
+   * Returns the block size for a file of the given size, a power of two.
+   */
+  public static int blockSizeFor(long fileSize) {
+    int blockSize = MIN_BLOCK_SIZE;
+    while (blockSize < MAX_BLOCK_SIZE
+        && (long) blockSize * blockSize < fileSize) {
+      blockSize *= 2;
+    }
+    return blockSize;
+  }
+
+  /**
+   * Computes the signatures of all bytes read from the given channel.
+   *
+   * @param source the channel to read the file from.
+   * @param expectedSize the expected size of the file, which determines the
+   * block size.
+   * @param digest a digest to update with all bytes read, or null.
+   * @return the signatures of the bytes read.
+   * @throws IOException if reading the file fails.
+   */
+  public static BlockSignatures compute(ReadableByteChannel source,
+      long expectedSize, @Nullable MessageDigest digest) throws IOException {
+    int blockSize = blockSizeFor(expectedSize);
+    MessageDigest strongDigest = newDigest(STRONG_HASH_ALGORITHM);
+    ByteBuffer block = ByteBuffer.allocate(blockSize);
+    int[] weakHashes = new int[(int) (expectedSize / blockSize) + 1];
+    ByteArrayOutputStream strongHashes = new ByteArrayOutputStream(
+        weakHashes.length * STRONG_HASH_LENGTH);
+    int blockCount = 0;
+    long fileSize = 0;
+    boolean eof = false;
+    while (!eof) {
+      block.clear();
+      while (block.hasRemaining()) {
+        if (source.read(block) < 0) {
+          eof = true;
+          break;
+        }
+      }
+      int length = block.position();
+      if (length == 0) {
+        break;
+      }
+      if (digest != null) {
+        digest.update(block.array(), 0, length);
+      }
+      if (blockCount == weakHashes.length) {
+        weakHashes = Arrays.copyOf(weakHashes, blockCount * 2);
+      }
+      weakHashes[blockCount++] = weakHash(block.array(), 0, length);
+      strongDigest.update(block.array(), 0, length);
+      strongHashes.write(strongDigest.digest());
+      fileSize += length;
+    }
+    return new BlockSignatures(fileSize, blockSize,
+        Arrays.copyOf(weakHashes, blockCount), strongHashes.toByteArray());
+  }
+
+  public long getFileSize() {
+    return fileSize;
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  public int getBlockCount() {
+    return weakHashes.length;
+  }
+
+  /**
+   * Returns the length of the given block, which is the block size for all
+   * blocks but the last one.
+   */
+  int getBlockLength(int block) {
+    return (int) Math.min(blockSize, fileSize - (long) block * blockSize);
+  }
+
+  int getWeakHash(int block) {
+    return weakHashes[block];
+  }
+
+  /**
+   * Returns whether the given strong hash equals that of the given block.
+   */
+  boolean strongHashEquals(int block, byte[] strongHash) {
+    if (strongHash.length != STRONG_HASH_LENGTH) {
+      return false;
+    }
+    int offset = block * STRONG_HASH_LENGTH;
+    for (int i = 0; i < STRONG_HASH_LENGTH; i++) {
+      if (strongHashes[offset + i] != strongHash[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Serializes these signatures, see {@link #fromByteArray}.
+   */
+  public byte[] toByteArray() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+        17 + weakHashes.length * (4 + STRONG_HASH_LENGTH));
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(FORMAT_VERSION);
+      out.writeLong(fileSize);
+      out.writeInt(blockSize);
+      out.writeInt(weakHashes.length);
+      for (int weakHash : weakHashes) {
+        out.writeInt(weakHash);
+      }
+      out.write(strongHashes);
+    } catch (IOException e) {
+      throw new IllegalStateException("IOException writing to memory", e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Deserializes signatures serialized by {@link #toByteArray()}.
+   *
+   * @throws IllegalArgumentException if the given bytes are malformed.
+   */
+  public static BlockSignatures fromByteArray(byte[] bytes) {
+    try (DataInputStream in =
+        new DataInputStream(new ByteArrayInputStream(bytes))) {
+      if (in.readUnsignedByte() != FORMAT_VERSION) {
+        throw new IllegalArgumentException("Unknown block signatures format");
+      }
+      long fileSize = in.readLong();
+      int blockSize = in.readInt();
+      int blockCount = in.readInt();
+      if (fileSize < 0 || blockSize < MIN_BLOCK_SIZE
+          || blockSize > MAX_BLOCK_SIZE
+          || blockCount != (fileSize + blockSize - 1) / blockSize) {
+        throw new IllegalArgumentException("Malformed block signatures");
+      }
+      int[] weakHashes = new int[blockCount];
+      for (int i = 0; i < blockCount; i++) {
+        weakHashes[i] = in.readInt();
+      }
+      byte[] strongHashes = new byte[blockCount * STRONG_HASH_LENGTH];
+      in.readFully(strongHashes);
+      if (in.read() >= 0) {
+        throw new IllegalArgumentException("Malformed block signatures");
+      }
+      return new BlockSignatures(fileSize, blockSize, weakHashes,
+          strongHashes);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Truncated block signatures", e);
+    }
+  }
+
+  /**
+   * Returns the weak hash of the given bytes, see {@link RollingHash}.
+   */
+  static int weakHash(byte[] bytes, int offset, int length) {
+    return new RollingHash(bytes, offset, length).getValue();
+  }
+
+  static MessageDigest newDigest(String algorithm) {
+    try {
+      return MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(algorithm + " is not available", e);
+    }
+  }
+
+  /**
+   * The weak hash of rsync, an Adler-32 like checksum of a window of bytes,
+   * which can be rolled forward by a byte in constant time.
+   */
+  static final class RollingHash {
+    private final int length;
+    private int a;
+    private int b;
+
+    RollingHash(byte[] bytes, int offset, int length) {
+      this.length = length;
+      for (int i = 0; i < length; i++) {
+        int value = bytes[offset + i] & 0xff;
+        a += value;
+        b += (length - i) * value;
+      }
+      a &= 0xffff;
+      b &= 0xffff;
+    }
+
+    /**
+     * Moves the window forward by one byte.
+     *
+     * @param out the first byte of the window, which leaves it.
+     * @param in the byte after the window, which enters it.
+     */
+    void roll(byte out, byte in) {
+      int outValue = out & 0xff;
+      a = (a - outValue + (in & 0xff)) & 0xffff;
+      b = (b - length * outValue + a) & 0xffff;
+    }
+
+    int getValue() {
+      return (b << 16) | a;
+    }
+  }
+}
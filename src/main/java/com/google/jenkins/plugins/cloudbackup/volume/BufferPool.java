@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.volume;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A pool of equally sized buffers for copying file contents into and out of
+ * volumes, so that copying many files neither allocates a buffer per file nor
+ * is limited to the small buffers of {@link java.nio.file.Files#copy}.
+ *
+ * Heap buffers, the default, are copied into streams directly. Direct buffers
+ * spare the JDK a copy when reading from or writing to a file channel, but
+ * need one when the other end of the copy is a stream. The pool retains at
+ * most {@link #MAX_POOLED_BYTES} of free buffers; more buffers are allocated
+ * while many threads copy at the same time, and dropped when they are
+ * released. The pool may be used by several threads at the same time.
+ */
+public class BufferPool {
+
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+  public static final int MAX_POOLED_BYTES = 16 * 1024 * 1024;
+
+  private final int bufferSize;
+  private final boolean direct;
+  private final int maxPooledBuffers;
+  // guarded by itself
+  private final Deque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+
+  /**
+   * Creates a pool of heap buffers of the default size.
+   */
+  public BufferPool() {
+    this(DEFAULT_BUFFER_SIZE, false);
+  }
+
+  /**
+   * @param bufferSize the size of each buffer, in bytes.
+   * @param direct whether to allocate direct buffers.
+   */
+  public BufferPool(int bufferSize, boolean direct) {
+    Preconditions.checkArgument(bufferSize > 0, "bufferSize must be positive");
+    this.bufferSize = bufferSize;
+    this.direct = direct;
+    this.maxPooledBuffers = Math.max(1, MAX_POOLED_BYTES / bufferSize);
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  public boolean isDirect() {
+    return direct;
+  }
+
+  /**
+   * Returns a cleared buffer, which should be handed back with
+   * {@link #release}.
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer;
+    synchronized (freeBuffers) {
+      buffer = freeBuffers.pollFirst();
+    }
+    if (buffer == null) {
+      buffer = direct ? ByteBuffer.allocateDirect(bufferSize)
+          : ByteBuffer.allocate(bufferSize);
+    }
+    return buffer;
+  }
+
+  /**
+   * Returns the given buffer, acquired from this pool, to the pool.
+   */
+  public void release(ByteBuffer buffer) {
+    buffer.clear();
+    synchronized (freeBuffers) {
+      if (freeBuffers.size() < maxPooledBuffers) {
+        freeBuffers.addFirst(buffer);
+      }
+    }
+  }
+
+  /**
+   * Copies all bytes from the given channel to the given stream.
+   *
+   * @return the number of bytes copied.
+   */
+  public long copy(ReadableByteChannel source, OutputStream target)
+      throws IOException {
+    return copy(source, target, Long.MAX_VALUE);
+  }
+
+  /**
+   * Copies at most the given number of bytes from the given channel to the
+   * given stream.
+   *
+   * @return the number of bytes copied.
+   */
+  public long copy(ReadableByteChannel source, OutputStream target,
+      long maxBytes) throws IOException {
+    ByteBuffer buffer = acquire();
+    try {
+      WritableByteChannel targetChannel =
+          buffer.hasArray() ? null : Channels.newChannel(target);
+      long copied = 0;
+      while (copied < maxBytes) {
+        buffer.limit((int) Math.min(buffer.capacity(), maxBytes - copied));
+        int n = source.read(buffer);
+        if (n < 0) {
+          break;
+        }
+        buffer.flip();
+        if (targetChannel == null) {
+          target.write(buffer.array(), buffer.arrayOffset(), n);
+        } else {
+          while (buffer.hasRemaining()) {
+            targetChannel.write(buffer);
+          }
+        }
+        buffer.clear();
+        copied += n;
+      }
+      return copied;
+    } finally {
+      release(buffer);
+    }
+  }
+
+  /**
+   * Copies all bytes from the given stream to the given channel.
+   *
+   * @return the number of bytes copied.
+   */
+  public long copy(InputStream source, WritableByteChannel target)
+      throws IOException {
+    ByteBuffer buffer = acquire();
+    try {
+      ReadableByteChannel sourceChannel =
+          buffer.hasArray() ? null : Channels.newChannel(source);
+      long copied = 0;
+      while (true) {
+        int n;
+        if (sourceChannel == null) {
+          // fill the buffer, as streams like inflaters return little at once
+          n = source.read(buffer.array(), buffer.arrayOffset()
+              + buffer.position(), buffer.remaining());
+          if (n > 0) {
+            buffer.position(buffer.position() + n);
+          }
+        } else {
+          n = sourceChannel.read(buffer);
+        }
+        if (n < 0 || !buffer.hasRemaining()) {
+          buffer.flip();
+          copied += buffer.remaining();
+          while (buffer.hasRemaining()) {
+            target.write(buffer);
+          }
+          buffer.clear();
+          if (n < 0) {
+            return copied;
+          }
+        }
+      }
+    } finally {
+      release(buffer);
+    }
+  }
+}
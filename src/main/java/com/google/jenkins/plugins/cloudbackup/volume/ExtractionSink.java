@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.volume;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The target of an extraction, which keeps track of the directories in the
+ * target so that extracting many files needs few file system calls.
+ *
+ * Directories that exist are remembered, so creating the parent directories
+ * of a file usually needs no call at all. The sink also keeps the listing of
+ * every directory it has created itself: such a directory was empty, so it
+ * only contains the files extracted into it, and existence checks in it need
+ * no call either. Only files in directories that existed before are checked
+ * one by one. The directories are bounded, evicted directories are checked
+ * and created again when needed.
+ *
+ * The sink assumes that no one else creates files in the target while it is
+ * in use. It may be used by several threads at the same time.
+ */
+public class ExtractionSink {
+
+  private static final int MAX_DIRECTORIES = 4096;
+
+  // the directories known to exist, mapped to the names in them if the sink
+  // has created them, guarded by this
+  private final Map<Path, Set<Path>> directories =
+      new LinkedHashMap<Path, Set<Path>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<Path, Set<Path>> eldest) {
+          return size() > MAX_DIRECTORIES;
+        }
+      };
+  private long fileSystemCalls = 0;
+
+  /**
+   * Creates the given directory and all nonexistent parent directories,
+   * unless they are known to exist already.
+   */
+  public void createDirectories(Path directory) throws IOException {
+    createDirectory(directory, true);
+  }
+
+  private void createDirectory(Path directory, boolean createParents)
+      throws IOException {
+    synchronized (this) {
+      if (directories.containsKey(directory)) {
+        return;
+      }
+      fileSystemCalls++;
+    }
+    try {
+      Files.createDirectory(directory);
+      synchronized (this) {
+        addToListing(directory);
+        directories.put(directory, new HashSet<Path>());
+      }
+    } catch (NoSuchFileException e) {
+      Path parent = directory.getParent();
+      if (!createParents || parent == null) {
+        throw e;
+      }
+      createDirectory(parent, true);
+      createDirectory(directory, false);
+    } catch (IOException e) {
+      // usually FileAlreadyExistsException
+      synchronized (this) {
+        fileSystemCalls++;
+      }
+      if (!Files.isDirectory(directory)) {
+        throw e;
+      }
+      synchronized (this) {
+        if (!directories.containsKey(directory)) {
+          directories.put(directory, null);
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates the parent directories of the given file, unless they are known
+   * to exist already.
+   */
+  public void createParentDirectories(Path file) throws IOException {
+    Path parent = file.getParent();
+    if (parent != null) {
+      createDirectories(parent);
+    }
+  }
+
+  /**
+   * Returns whether the given file exists, following symlinks like
+   * {@link Files#exists}.
+   */
+  public boolean exists(Path file) {
+    Path parent = file.getParent();
+    synchronized (this) {
+      Set<Path> listing = parent == null ? null : directories.get(parent);
+      if (listing != null && !listing.contains(file.getFileName())) {
+        return false;
+      }
+      fileSystemCalls++;
+    }
+    // an extracted symlink may be dangling
+    return Files.exists(file);
+  }
+
+  /**
+   * Records that the given file has been created.
+   */
+  public synchronized void created(Path file) {
+    addToListing(file);
+  }
+
+  /**
+   * Returns the number of file system operations the sink has performed,
+   * i.e. directory creations and existence checks.
+   */
+  public synchronized long getFileSystemCalls() {
+    return fileSystemCalls;
+  }
+
+  private void addToListing(Path file) {
+    Path parent = file.getParent();
+    Set<Path> listing = parent == null ? null : directories.get(parent);
+    if (listing != null) {
+      listing.add(file.getFileName());
+    }
+  }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.volume;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Encodes a file as a delta against the {@link BlockSignatures} of an earlier
+ * version of it, and rebuilds the file from the earlier version and the
+ * delta, like rsync does.
+ *
+ * A delta is a sequence of instructions, each either copying a run of blocks
+ * of the earlier version, or adding literal bytes. It ends with the size and
+ * the SHA-1 hash of the file it encodes, which are checked when the file is
+ * rebuilt, so a delta applied to the wrong base fails rather than leaving a
+ * corrupt file.
+ */
+public final class FileDeltas {
+
+  private static final Logger logger =
+      Logger.getLogger(FileDeltas.class.getName());
+
+  static final String HASH_ALGORITHM = "SHA-1";
+
+  private static final int FORMAT_VERSION = 1;
+  private static final int END = 0;
+  private static final int COPY = 1;
+  private static final int LITERAL = 2;
+  private static final int MAX_LITERAL_LENGTH = 64 * 1024;
+  private static final int BUFFER_SIZE = 256 * 1024;
+  private static final String TEMP_FILE_SUFFIX = ".delta-tmp";
+
+  private FileDeltas() {}
+
+  /**
+   * Writes the delta of all bytes read from the given channel against the
+   * file the given signatures describe.
+   *
+   * @param base the signatures of the earlier version of the file.
+   * @param source the channel to read the current version of the file from.
+   * @param target the stream to write the delta to, which is left open.
+   * @throws IOException if reading the file or writing the delta fails.
+   */
+  public static void encode(BlockSignatures base, ReadableByteChannel source,
+      OutputStream target) throws IOException {
+    int blockSize = base.getBlockSize();
+    Map<Integer, List<Integer>> blocksByWeakHash = indexBlocks(base);
+    MessageDigest digest = BlockSignatures.newDigest(HASH_ALGORITHM);
+    MessageDigest strongDigest =
+        BlockSignatures.newDigest(BlockSignatures.STRONG_HASH_ALGORITHM);
+    DeltaWriter writer = new DeltaWriter(target);
+    writer.start(base);
+
+    byte[] buffer = new byte[Math.max(4 * blockSize, BUFFER_SIZE)];
+    int length = 0;
+    // the start of the window of one block compared to the base blocks
+    int position = 0;
+    int literalStart = 0;
+    long size = 0;
+    boolean eof = false;
+    // the weak hash of the window, if known
+    BlockSignatures.RollingHash rollingHash = null;
+    while (true) {
+      if (length - position < blockSize && !eof) {
+        writer.literal(buffer, literalStart, position - literalStart);
+        System.arraycopy(buffer, position, buffer, 0, length - position);
+        length -= position;
+        position = 0;
+        literalStart = 0;
+        while (length < buffer.length && !eof) {
+          int n = source.read(
+              ByteBuffer.wrap(buffer, length, buffer.length - length));
+          if (n < 0) {
+            eof = true;
+          } else {
+            digest.update(buffer, length, n);
+            length += n;
+            size += n;
+          }
+        }
+        continue;
+      }
+      if (length - position < blockSize) {
+        // the end of the file, which can only match a shorter last block
+        int window = length - position;
+        int block = window == 0 ? -1 : findBlock(base, blocksByWeakHash,
+            BlockSignatures.weakHash(buffer, position, window), buffer,
+            position, window, strongDigest);
+        if (block >= 0) {
+          writer.literal(buffer, literalStart, position - literalStart);
+          writer.copy(block);
+          literalStart = length;
+        }
+        writer.literal(buffer, literalStart, length - literalStart);
+        break;
+      }
+      if (rollingHash == null) {
+        rollingHash =
+            new BlockSignatures.RollingHash(buffer, position, blockSize);
+      }
+      int block = findBlock(base, blocksByWeakHash, rollingHash.getValue(),
+          buffer, position, blockSize, strongDigest);
+      if (block >= 0) {
+        writer.literal(buffer, literalStart, position - literalStart);
+        writer.copy(block);
+        position += blockSize;
+        literalStart = position;
+        rollingHash = null;
+        continue;
+      }
+      if (position - literalStart >= MAX_LITERAL_LENGTH) {
+        writer.literal(buffer, literalStart, position - literalStart);
+        literalStart = position;
+      }
+      if (position + blockSize < length) {
+        rollingHash.roll(buffer[position], buffer[position + blockSize]);
+      } else {
+        // the window needs more bytes, which are read first
+        rollingHash = null;
+      }
+      position++;
+    }
+    writer.finish(size, digest.digest());
+  }
+
+  /**
+   * Rebuilds the given file from its earlier version, which it currently
+   * holds, and the given delta. The file is replaced once the delta has been
+   * applied completely. If the file already holds the version the delta
+   * encodes, e.g. because a resumed restore extracts the delta again, it is
+   * left unchanged.
+   *
+   * @param delta the stream to read the delta from.
+   * @param target the file to rebuild.
+   * @throws IOException if the file is not the earlier version the delta
+   * was encoded against, the delta is malformed, or some file operation
+   * fails.
+   */
+  public static void apply(InputStream delta, Path target) throws IOException {
+    DataInputStream in =
+        new DataInputStream(new BufferedInputStream(delta, BUFFER_SIZE));
+    if (in.readUnsignedByte() != FORMAT_VERSION) {
+      throw new IOException("Unknown delta format of file: " + target);
+    }
+    long baseSize = in.readLong();
+    int blockSize = in.readInt();
+    if (baseSize < 0 || blockSize <= 0) {
+      throw new IOException("Malformed delta of file: " + target);
+    }
+    Path tempFile =
+        target.resolveSibling(target.getFileName() + TEMP_FILE_SUFFIX);
+    boolean rebuilt = false;
+    try (FileChannel base = FileChannel.open(target,
+        StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS)) {
+      if (base.size() != baseSize) {
+        // only read the size and hash at the end of the delta
+        copyBlocks(in, target, null, baseSize, blockSize, null, null);
+        if (!hasContents(base, in.readLong(), readHash(in))) {
+          throw new IOException("Cannot apply delta to file: " + target
+              + ", expected " + baseSize + " bytes but found " + base.size());
+        }
+        return;
+      }
+      Files.deleteIfExists(tempFile);
+      try (FileChannel out = FileChannel.open(tempFile,
+          StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+        MessageDigest digest = BlockSignatures.newDigest(HASH_ALGORITHM);
+        long written = copyBlocks(in, target, base, baseSize, blockSize, out,
+            digest);
+        long size = in.readLong();
+        byte[] hash = readHash(in);
+        if (written == size && Arrays.equals(hash, digest.digest())) {
+          rebuilt = true;
+        } else if (!hasContents(base, size, hash)) {
+          throw new IOException("Delta of file: " + target
+              + " does not match the file it was applied to");
+        }
+      }
+    } catch (NoSuchFileException e) {
+      throw new IOException("Cannot apply delta to missing file: " + target,
+          e);
+    } finally {
+      if (!rebuilt) {
+        deleteQuietly(tempFile);
+      }
+    }
+    if (rebuilt) {
+      Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+
+  /**
+   * Executes the instructions of a delta up to its end, writing to the given
+   * channel, or only reading the delta if the channel is null.
+   *
+   * @return the number of bytes written.
+   */
+  private static long copyBlocks(DataInputStream in, Path target,
+      @Nullable FileChannel base, long baseSize, int blockSize,
+      @Nullable FileChannel out, @Nullable MessageDigest digest)
+      throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long written = 0;
+    while (true) {
+      int instruction = in.readUnsignedByte();
+      if (instruction == END) {
+        return written;
+      } else if (instruction == COPY) {
+        long offset = (long) in.readInt() * blockSize;
+        long length = Math.min((long) in.readInt() * blockSize,
+            baseSize - offset);
+        if (offset < 0 || length <= 0) {
+          throw new IOException("Malformed delta of file: " + target);
+        }
+        if (out == null) {
+          continue;
+        }
+        for (long copied = 0; copied < length;) {
+          int n = base.read(ByteBuffer.wrap(buffer, 0,
+              (int) Math.min(buffer.length, length - copied)),
+              offset + copied);
+          if (n < 0) {
+            throw new IOException("File shrank while applying delta: "
+                + target);
+          }
+          write(buffer, n, out, digest);
+          copied += n;
+        }
+        written += length;
+      } else if (instruction == LITERAL) {
+        int length = in.readInt();
+        if (length <= 0 || length > buffer.length) {
+          throw new IOException("Malformed delta of file: " + target);
+        }
+        in.readFully(buffer, 0, length);
+        if (out != null) {
+          write(buffer, length, out, digest);
+        }
+        written += length;
+      } else {
+        throw new IOException("Malformed delta of file: " + target);
+      }
+    }
+  }
+
+  private static void write(byte[] buffer, int length, FileChannel out,
+      MessageDigest digest) throws IOException {
+    digest.update(buffer, 0, length);
+    ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, length);
+    while (bytes.hasRemaining()) {
+      out.write(bytes);
+    }
+  }
+
+  private static byte[] readHash(DataInputStream in) throws IOException {
+    byte[] hash =
+        new byte[BlockSignatures.newDigest(HASH_ALGORITHM).getDigestLength()];
+    in.readFully(hash);
+    return hash;
+  }
+
+  /**
+   * Returns whether the given file has the given size and hash.
+   */
+  private static boolean hasContents(FileChannel file, long size, byte[] hash)
+      throws IOException {
+    if (file.size() != size) {
+      return false;
+    }
+    MessageDigest digest = BlockSignatures.newDigest(HASH_ALGORITHM);
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    long position = 0;
+    int n;
+    while ((n = file.read(buffer, position)) >= 0) {
+      digest.update(buffer.array(), 0, n);
+      position += n;
+      buffer.clear();
+    }
+    return Arrays.equals(hash, digest.digest());
+  }
+
+  private static Map<Integer, List<Integer>> indexBlocks(
+      BlockSignatures signatures) {
+    Map<Integer, List<Integer>> blocksByWeakHash = new HashMap<>();
+    for (int block = 0; block < signatures.getBlockCount(); block++) {
+      List<Integer> blocks = blocksByWeakHash.get(signatures.getWeakHash(block));
+      if (blocks == null) {
+        blocks = new ArrayList<>(1);
+        blocksByWeakHash.put(signatures.getWeakHash(block), blocks);
+      }
+      blocks.add(block);
+    }
+    return blocksByWeakHash;
+  }
+
+  /**
+   * Returns a block of the base with the given bytes, or -1 if there is
+   * none. The strong hash is only computed if a block has the weak hash.
+   */
+  private static int findBlock(BlockSignatures base,
+      Map<Integer, List<Integer>> blocksByWeakHash, int weakHash,
+      byte[] buffer, int offset, int length, MessageDigest strongDigest) {
+    List<Integer> blocks = blocksByWeakHash.get(weakHash);
+    if (blocks == null) {
+      return -1;
+    }
+    byte[] strongHash = null;
+    for (int block : blocks) {
+      if (base.getBlockLength(block) != length) {
+        continue;
+      }
+      if (strongHash == null) {
+        strongDigest.update(buffer, offset, length);
+        strongHash = strongDigest.digest();
+      }
+      if (base.strongHashEquals(block, strongHash)) {
+        return block;
+      }
+    }
+    return -1;
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      // be silent about cleanup errors, only log them
+      logger.log(Level.FINE, "IOException while performing cleanup", e);
+    }
+  }
+
+  /**
+   * Writes the instructions of a delta, merging copies of consecutive blocks
+   * into one instruction.
+   */
+  private static final class DeltaWriter {
+    private final DataOutputStream out;
+    private int copyStart;
+    private int copyCount = 0;
+
+    DeltaWriter(OutputStream target) {
+      out = new DataOutputStream(new BufferedOutputStream(target, BUFFER_SIZE));
+    }
+
+    void start(BlockSignatures base) throws IOException {
+      out.writeByte(FORMAT_VERSION);
+      out.writeLong(base.getFileSize());
+      out.writeInt(base.getBlockSize());
+    }
+
+    void copy(int block) throws IOException {
+      if (copyCount > 0 && copyStart + copyCount == block) {
+        copyCount++;
+        return;
+      }
+      flushCopy();
+      copyStart = block;
+      copyCount = 1;
+    }
+
+    void literal(byte[] bytes, int offset, int length) throws IOException {
+      if (length == 0) {
+        return;
+      }
+      flushCopy();
+      while (length > 0) {
+        int n = Math.min(length, MAX_LITERAL_LENGTH);
+        out.writeByte(LITERAL);
+        out.writeInt(n);
+        out.write(bytes, offset, n);
+        offset += n;
+        length -= n;
+      }
+    }
+
+    void finish(long size, byte[] hash) throws IOException {
+      flushCopy();
+      out.writeByte(END);
+      out.writeLong(size);
+      out.write(hash);
+      // flush rather than close, the target stays open
+      out.flush();
+    }
+
+    private void flushCopy() throws IOException {
+      if (copyCount > 0) {
+        out.writeByte(COPY);
+        out.writeInt(copyStart);
+        out.writeInt(copyCount);
+        copyCount = 0;
+      }
+    }
+  }
+}
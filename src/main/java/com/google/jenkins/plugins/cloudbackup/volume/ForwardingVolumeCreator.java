@@ -18,6 +18,7 @@ package com.google.jenkins.plugins.cloudbackup.volume;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
 
 /**
  * Forwarding class for {@link Volume.Creator}. Allows to wrap an instance of
@@ -43,6 +44,24 @@ public abstract class ForwardingVolumeCreator implements Volume.Creator {
     creator.addFile(file, pathInVolume, attrs);
   }
 
+  @Override
+  public void addFileTail(Path file, String pathInVolume, long offset,
+      long size) throws IOException {
+    creator.addFileTail(file, pathInVolume, offset, size);
+  }
+
+  @Override
+  public void addFileDelta(Path file, String pathInVolume,
+      BlockSignatures base) throws IOException {
+    creator.addFileDelta(file, pathInVolume, base);
+  }
+
+  @Override
+  public Collection<String> getUnchangedFiles(Path dir, String pathInVolume,
+      BasicFileAttributes attrs) throws IOException {
+    return creator.getUnchangedFiles(dir, pathInVolume, attrs);
+  }
+
   @Override
   public int getFileCount() {
     return creator.getFileCount();
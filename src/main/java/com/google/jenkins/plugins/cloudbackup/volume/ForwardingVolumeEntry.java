@@ -50,10 +50,20 @@ public abstract class ForwardingVolumeEntry implements Volume.Entry {
   public boolean isSymlink() {
     return entry.isSymlink();
   }
+
+  @Override
+  public boolean isPartial() {
+    return entry.isPartial();
+  }
   
   @Override
   public void extractTo(Path target) throws IOException {
     entry.extractTo(target);
   }
 
+  @Override
+  public void extractTo(Path target, ExtractionSink sink) throws IOException {
+    entry.extractTo(target, sink);
+  }
+
 }
@@ -41,6 +41,11 @@ public abstract class ForwardingVolumeExtractor implements Volume.Extractor {
     return extractor.iterator();
   }
 
+  @Override
+  public void flush() throws IOException {
+    extractor.flush();
+  }
+
   @Override
   public void close() throws IOException {
     extractor.close();
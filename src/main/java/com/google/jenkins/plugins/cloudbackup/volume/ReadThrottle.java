@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.volume;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Accounts for the bytes read from the files added to volumes, e.g. to limit
+ * the rate at which they are read. The bytes are charged as they are read, in
+ * chunks of at most one buffer, so that a large file is spread over time
+ * instead of being charged in full before the first byte is read.
+ */
+public abstract class ReadThrottle {
+
+  /**
+   * A throttle neither limiting nor counting any reads.
+   */
+  public static final ReadThrottle NONE = new ReadThrottle() {
+    @Override
+    public void acquire(int bytes) {
+    }
+
+    @Override
+    public ReadableByteChannel throttle(ReadableByteChannel channel) {
+      return channel;
+    }
+  };
+
+  /**
+   * Accounts for the given number of bytes, which have just been read, and
+   * blocks for as long as reading has to pause.
+   *
+   * @param bytes the number of bytes read.
+   */
+  public abstract void acquire(int bytes);
+
+  /**
+   * Wraps the given channel, so that every read from it is accounted for.
+   * Closing the returned channel closes the given one.
+   *
+   * @param channel the channel to read files from.
+   * @return the throttled channel.
+   */
+  public ReadableByteChannel throttle(final ReadableByteChannel channel) {
+    return new ReadableByteChannel() {
+      @Override
+      public int read(ByteBuffer dst) throws IOException {
+        int n = channel.read(dst);
+        if (n > 0) {
+          acquire(n);
+        }
+        return n;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return channel.isOpen();
+      }
+
+      @Override
+      public void close() throws IOException {
+        channel.close();
+      }
+    };
+  }
+}
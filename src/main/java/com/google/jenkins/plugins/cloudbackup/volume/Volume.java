@@ -19,6 +19,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
 import java.util.Iterator;
 
 import javax.annotation.Nullable;
@@ -83,6 +84,56 @@ public interface Volume {
     public void addFile(Path file, String pathInVolume,
         @Nullable BasicFileAttributes attrs) throws IOException;
 
+    /**
+     * Add the bytes of the given regular file from the given offset up to the
+     * given size to the Volume. When the entry is extracted, these bytes
+     * replace the contents of the target file from the offset on, so the
+     * first bytes of the file must have been extracted from an earlier volume
+     * of the same backup chain. This allows storing only the bytes appended
+     * to a file since the previous backup.
+     *
+     * @param file the regular file to be added to the Volume.
+     * @param pathInVolume the path to store the file in the Volume.
+     * @param offset the offset of the first byte to add.
+     * @param size the size of the file up to which bytes are added.
+     * @throws IOException if some file operation fails.
+     */
+    public void addFileTail(Path file, String pathInVolume, long offset,
+        long size) throws IOException;
+
+    /**
+     * Add the given regular file to the Volume as a delta against an earlier
+     * version of it, see {@link FileDeltas}. When the entry is extracted, the
+     * target file is rebuilt from the earlier version, which must have been
+     * extracted from earlier volumes of the same backup chain. This allows
+     * storing only the changed blocks of a large file.
+     *
+     * @param file the regular file to be added to the Volume.
+     * @param pathInVolume the path to store the file in the Volume.
+     * @param base the signatures of the earlier version of the file.
+     * @throws IOException if some file operation fails.
+     */
+    public void addFileDelta(Path file, String pathInVolume,
+        BlockSignatures base) throws IOException;
+
+    /**
+     * Returns the files in the given directory if it has not changed since
+     * the previous backup, so that walking the directory can be skipped, or
+     * null if the directory has to be walked. Only creators wrapped by a
+     * scope know this, e.g. for the completed builds of a job, so plain
+     * volumes return null.
+     *
+     * @param dir the directory about to be walked.
+     * @param pathInVolume the path of the directory in the Volume.
+     * @param attrs the file attributes of the directory.
+     * @return the paths of the files and empty directories in the directory,
+     * relative to it, or null.
+     * @throws IOException if some file operation fails.
+     */
+    @Nullable
+    public Collection<String> getUnchangedFiles(Path dir, String pathInVolume,
+        BasicFileAttributes attrs) throws IOException;
+
     /**
      * Returns the number of files that have been added to the volume.
      *
@@ -126,8 +177,18 @@ public interface Volume {
     public Iterator<Entry> iterator();
 
     /**
-     * Finishes the extraction process and closes the underlying volume file
-     * streams.
+     * Waits until all entries for which {@link Entry#extractTo(Path)} has
+     * been called are written to the file system. Extractors that extract
+     * entries in the background only report failures of those entries here
+     * and in {@link Extractor#close()}.
+     *
+     * @throws IOException if extracting any of the entries failed.
+     */
+    public void flush() throws IOException;
+
+    /**
+     * Finishes the extraction process, waiting for all pending extractions,
+     * and closes the underlying volume file streams.
      *
      * This method ends the lifecycle of the Extractor instance. Further method
      * invocations on this Extractor instance will result in an {@link
@@ -168,7 +229,18 @@ public interface Volume {
     public boolean isSymlink();
 
     /**
-     * Extract the contents of this entry to the given target path.
+     * Returns true if this entry holds only part of a file, e.g. its tail or
+     * its delta against an earlier version, which can only be extracted on top
+     * of the file extracted from an earlier volume.
+     *
+     * @return true if this entry holds only part of a file, false otherwise.
+     */
+    public boolean isPartial();
+
+    /**
+     * Extract the contents of this entry to the given target path. The
+     * extractor may write the contents in the background, see
+     * {@link Extractor#flush()}.
      *
      * @param target the target path, where the contents should be extracted.
      * when a conflict is detected.
@@ -176,6 +248,17 @@ public interface Volume {
      */
     public void extractTo(Path target) throws IOException;
 
+    /**
+     * Extract the contents of this entry to the given target path, creating
+     * directories through the given {@link ExtractionSink}. The extractor may
+     * write the contents in the background, see {@link Extractor#flush()}.
+     *
+     * @param target the target path, where the contents should be extracted.
+     * @param sink the sink of the extraction the entry is part of.
+     * @throws IOException if some file operation fails.
+     */
+    public void extractTo(Path target, ExtractionSink sink) throws IOException;
+
   }
 
 }
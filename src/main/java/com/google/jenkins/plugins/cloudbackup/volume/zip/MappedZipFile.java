@@ -0,0 +1,563 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.volume.zip;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * A read-only ZIP file backed by memory mappings of the file.
+ *
+ * The central directory is parsed straight from the mapping, and entries are
+ * read from the mapping without any system calls. Mappings are limited to
+ * 2 GB, so larger ZIP64 files are mapped in segments. Consecutive segments
+ * overlap by more than the largest possible header, so every header lies
+ * completely within one segment, while entry data is read across segments.
+ *
+ * Stored entries may also be written to a channel straight from the mapping.
+ * Entries may be read by several threads at the same time. The file is
+ * unmapped once it has been closed and all entry streams have been closed.
+ */
+class MappedZipFile implements Closeable {
+  private static final Logger logger =
+      Logger.getLogger(MappedZipFile.class.getName());
+
+  private static final long SEGMENT_SIZE = 1L << 30;
+  // larger than a central directory header with maximum name, extra field
+  // and comment lengths
+  private static final int SEGMENT_OVERLAP = 256 * 1024;
+  private static final int INFLATER_BUFFER_SIZE = 8192;
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int LOCAL_HEADER_LENGTH = 30;
+  private static final int CENTRAL_HEADER_LENGTH = 46;
+  private static final int END_LENGTH = 22;
+  private static final int ZIP64_END_LENGTH = 56;
+  private static final int ZIP64_LOCATOR_LENGTH = 20;
+  private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+  private static final int ZIP64_EXTRA_ID = 0x0001;
+  private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+  private static final int ZIP64_MAGIC_SHORT = 0xFFFF;
+
+  private static final int METHOD_STORED = 0;
+  private static final int METHOD_DEFLATED = 8;
+  private static final int PLATFORM_UNIX = 3;
+  private static final int UNIX_LINK_FLAG = 0120000;
+
+  private final Path path;
+  private final long segmentSize;
+  private final long size;
+  private final MappedByteBuffer[] segments;
+  private final List<Entry> entries;
+  // guarded by this
+  private int openStreams = 0;
+  private boolean closed = false;
+
+  MappedZipFile(Path path) throws IOException {
+    this(path, SEGMENT_SIZE);
+  }
+
+  MappedZipFile(Path path, long segmentSize) throws IOException {
+    this.path = Preconditions.checkNotNull(path);
+    this.segmentSize = segmentSize;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      size = channel.size();
+      segments = new MappedByteBuffer[(int) Math.max(1,
+          (size + segmentSize - 1) / segmentSize)];
+      for (int i = 0; i < segments.length; i++) {
+        long start = i * segmentSize;
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+            Math.min(size - start, segmentSize + SEGMENT_OVERLAP));
+      }
+    }
+    try {
+      entries = readCentralDirectory();
+    } catch (IOException | RuntimeException e) {
+      unmap();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the entries of the file, in the order of their data in the file.
+   */
+  List<Entry> getEntriesInPhysicalOrder() {
+    return entries;
+  }
+
+  /**
+   * Returns a stream of the uncompressed contents of the given entry. The
+   * stream must be closed.
+   */
+  InputStream getInputStream(Entry entry) throws IOException {
+    streamOpened();
+    try {
+      long dataOffset = dataOffset(entry);
+      if (entry.method == METHOD_STORED) {
+        return new SegmentedInputStream(dataOffset, entry.compressedSize,
+            false);
+      } else if (entry.method == METHOD_DEFLATED) {
+        final Inflater inflater = new Inflater(true);
+        // the inflater needs a dummy byte after the data in nowrap mode
+        return new InflaterInputStream(new SegmentedInputStream(dataOffset,
+            entry.compressedSize, true), inflater, INFLATER_BUFFER_SIZE) {
+          @Override
+          public void close() throws IOException {
+            try {
+              super.close();
+            } finally {
+              inflater.end();
+            }
+          }
+        };
+      }
+      throw new ZipException("Unsupported compression method "
+          + entry.method + " of " + entry.name + " in " + path);
+    } catch (IOException | RuntimeException e) {
+      streamClosed();
+      throw e;
+    }
+  }
+
+  /**
+   * Writes the contents of the given stored entry to the given channel
+   * straight from the mapping, without copying them into a buffer.
+   *
+   * @return the number of bytes written.
+   */
+  long transferTo(Entry entry, WritableByteChannel target)
+      throws IOException {
+    Preconditions.checkArgument(entry.isStored(), "not a stored entry");
+    streamOpened();
+    try {
+      long position = dataOffset(entry);
+      long end = position + entry.compressedSize;
+      if (end > size) {
+        throw new ZipException("Truncated zip file: " + path);
+      }
+      while (position < end) {
+        int segment = (int) (position / segmentSize);
+        ByteBuffer buffer = segments[segment].duplicate();
+        int start = (int) (position - segment * segmentSize);
+        buffer.position(start);
+        buffer.limit((int) Math.min(buffer.capacity(), start + end - position));
+        position += buffer.remaining();
+        while (buffer.hasRemaining()) {
+          target.write(buffer);
+        }
+      }
+      return entry.compressedSize;
+    } finally {
+      streamClosed();
+    }
+  }
+
+  /**
+   * Returns the target of the given symlink entry.
+   */
+  String getUnixSymlink(Entry entry) throws IOException {
+    Preconditions.checkArgument(entry.isUnixSymlink(), "not a symlink");
+    byte[] target = new byte[(int) entry.size];
+    try (InputStream inputStream = getInputStream(entry)) {
+      int read = 0;
+      while (read < target.length) {
+        int n = inputStream.read(target, read, target.length - read);
+        if (n < 0) {
+          throw new ZipException("Truncated symlink " + entry.name + " in "
+              + path);
+        }
+        read += n;
+      }
+    }
+    return new String(target, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public void close() {
+    boolean unmap;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      unmap = openStreams == 0;
+    }
+    if (unmap) {
+      unmap();
+    }
+  }
+
+  private synchronized void streamOpened() throws IOException {
+    if (closed) {
+      throw new IOException("Zip file closed: " + path);
+    }
+    openStreams++;
+  }
+
+  private void streamClosed() {
+    boolean unmap;
+    synchronized (this) {
+      openStreams--;
+      unmap = closed && openStreams == 0;
+    }
+    if (unmap) {
+      unmap();
+    }
+  }
+
+  private List<Entry> readCentralDirectory() throws IOException {
+    long endOffset = findEnd();
+    ByteBuffer end = buffer(endOffset, END_LENGTH);
+    long count = unsignedShort(end, 10);
+    long directorySize = unsignedInt(end, 12);
+    long directoryOffset = unsignedInt(end, 16);
+    if (count == ZIP64_MAGIC_SHORT || directorySize == ZIP64_MAGIC
+        || directoryOffset == ZIP64_MAGIC) {
+      ByteBuffer zip64End = findZip64End(endOffset);
+      count = zip64End.getLong(32);
+      directoryOffset = zip64End.getLong(48);
+    }
+    if (count < 0 || count > Integer.MAX_VALUE) {
+      throw new ZipException("Invalid entry count in " + path);
+    }
+    List<Entry> result = new ArrayList<>((int) count);
+    long offset = directoryOffset;
+    for (long i = 0; i < count; i++) {
+      ByteBuffer header = buffer(offset, CENTRAL_HEADER_LENGTH);
+      if (header.getInt(0) != CENTRAL_HEADER_SIGNATURE) {
+        throw new ZipException("Invalid central directory in " + path);
+      }
+      int nameLength = unsignedShort(header, 28);
+      int extraLength = unsignedShort(header, 30);
+      int commentLength = unsignedShort(header, 32);
+      ByteBuffer variable = buffer(offset + CENTRAL_HEADER_LENGTH,
+          nameLength + extraLength + commentLength);
+      byte[] name = new byte[nameLength];
+      variable.get(name);
+      Entry entry = new Entry(new String(name, StandardCharsets.UTF_8),
+          unsignedShort(header, 10), unsignedInt(header, 20),
+          unsignedInt(header, 24), unsignedInt(header, 42),
+          unsignedShort(header, 4) >> 8 == PLATFORM_UNIX
+              ? (int) (unsignedInt(header, 38) >> 16) : 0);
+      readZip64Extra(entry, variable, nameLength, extraLength);
+      if (commentLength > 0) {
+        byte[] comment = new byte[commentLength];
+        variable.position(nameLength + extraLength);
+        variable.get(comment);
+        entry.comment = new String(comment, StandardCharsets.UTF_8);
+      }
+      result.add(entry);
+      offset += CENTRAL_HEADER_LENGTH + nameLength + extraLength
+          + commentLength;
+    }
+    Collections.sort(result, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry a, Entry b) {
+        return Long.compare(a.localHeaderOffset, b.localHeaderOffset);
+      }
+    });
+    return Collections.unmodifiableList(result);
+  }
+
+  /**
+   * Returns the offset of the end of central directory record, which is
+   * followed by a comment of at most 64 KB.
+   */
+  private long findEnd() throws IOException {
+    int length = (int) Math.min(size, END_LENGTH + MAX_COMMENT_LENGTH);
+    if (length < END_LENGTH) {
+      throw new ZipException("Not a zip file: " + path);
+    }
+    ByteBuffer tail = buffer(size - length, length);
+    for (int i = length - END_LENGTH; i >= 0; i--) {
+      if (tail.getInt(i) == END_SIGNATURE) {
+        return size - length + i;
+      }
+    }
+    throw new ZipException("Not a zip file: " + path);
+  }
+
+  private ByteBuffer findZip64End(long endOffset) throws IOException {
+    if (endOffset < ZIP64_LOCATOR_LENGTH) {
+      throw new ZipException("Missing ZIP64 end locator in " + path);
+    }
+    ByteBuffer locator = buffer(endOffset - ZIP64_LOCATOR_LENGTH,
+        ZIP64_LOCATOR_LENGTH);
+    if (locator.getInt(0) != ZIP64_LOCATOR_SIGNATURE) {
+      throw new ZipException("Missing ZIP64 end locator in " + path);
+    }
+    ByteBuffer zip64End = buffer(locator.getLong(8), ZIP64_END_LENGTH);
+    if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+      throw new ZipException("Invalid ZIP64 end record in " + path);
+    }
+    return zip64End;
+  }
+
+  /**
+   * Replaces the sizes and offset of the given entry that do not fit into
+   * the central directory header by their values in the ZIP64 extra field.
+   */
+  private void readZip64Extra(Entry entry, ByteBuffer variable,
+      int nameLength, int extraLength) throws ZipException {
+    if (entry.size != ZIP64_MAGIC && entry.compressedSize != ZIP64_MAGIC
+        && entry.localHeaderOffset != ZIP64_MAGIC) {
+      return;
+    }
+    int position = nameLength;
+    int extraEnd = nameLength + extraLength;
+    while (position + 4 <= extraEnd) {
+      int id = unsignedShort(variable, position);
+      int length = unsignedShort(variable, position + 2);
+      position += 4;
+      if (id == ZIP64_EXTRA_ID) {
+        int field = position;
+        int fieldEnd = Math.min(position + length, extraEnd);
+        if (entry.size == ZIP64_MAGIC && field + 8 <= fieldEnd) {
+          entry.size = variable.getLong(field);
+          field += 8;
+        }
+        if (entry.compressedSize == ZIP64_MAGIC && field + 8 <= fieldEnd) {
+          entry.compressedSize = variable.getLong(field);
+          field += 8;
+        }
+        if (entry.localHeaderOffset == ZIP64_MAGIC && field + 8 <= fieldEnd) {
+          entry.localHeaderOffset = variable.getLong(field);
+        }
+        return;
+      }
+      position += length;
+    }
+    throw new ZipException("Missing ZIP64 extra field of " + entry.name
+        + " in " + path);
+  }
+
+  /**
+   * Returns the offset of the data of the given entry, which follows its
+   * local header.
+   */
+  private long dataOffset(Entry entry) throws ZipException {
+    ByteBuffer header = buffer(entry.localHeaderOffset, LOCAL_HEADER_LENGTH);
+    if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+      throw new ZipException("Invalid local header of " + entry.name
+          + " in " + path);
+    }
+    return entry.localHeaderOffset + LOCAL_HEADER_LENGTH
+        + unsignedShort(header, 26) + unsignedShort(header, 28);
+  }
+
+  /**
+   * Returns a little endian view of the given range of the file, which must
+   * not be longer than the overlap of the segments.
+   */
+  private ByteBuffer buffer(long offset, int length) throws ZipException {
+    if (offset < 0 || offset + length > size) {
+      throw new ZipException("Truncated zip file: " + path);
+    }
+    int segment = (int) (offset / segmentSize);
+    int position = (int) (offset - segment * segmentSize);
+    ByteBuffer buffer = segments[segment].duplicate();
+    buffer.position(position);
+    buffer.limit(position + length);
+    return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static int unsignedShort(ByteBuffer buffer, int index) {
+    return buffer.getShort(index) & 0xFFFF;
+  }
+
+  private static long unsignedInt(ByteBuffer buffer, int index) {
+    return buffer.getInt(index) & 0xFFFFFFFFL;
+  }
+
+  /**
+   * Releases the mappings right away rather than when they are garbage
+   * collected, so that the volume file can be deleted on all platforms. The
+   * JDK offers no API for this, so failures are only logged.
+   */
+  private void unmap() {
+    for (MappedByteBuffer segment : segments) {
+      try {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Method invokeCleaner;
+        try {
+          invokeCleaner =
+              unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (NoSuchMethodException e) {
+          // before Java 9
+          Method cleanerMethod = segment.getClass().getMethod("cleaner");
+          cleanerMethod.setAccessible(true);
+          Object cleaner = cleanerMethod.invoke(segment);
+          if (cleaner != null) {
+            cleaner.getClass().getMethod("clean").invoke(cleaner);
+          }
+          continue;
+        }
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        invokeCleaner.invoke(theUnsafe.get(null), segment);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        logger.log(Level.FINE, "Could not unmap zip file: " + path, e);
+        return;
+      }
+    }
+  }
+
+  /**
+   * An entry of the central directory.
+   */
+  static final class Entry {
+    private final String name;
+    private final int method;
+    private final int unixMode;
+    private long compressedSize;
+    private long size;
+    private long localHeaderOffset;
+    private String comment = "";
+
+    private Entry(String name, int method, long compressedSize, long size,
+        long localHeaderOffset, int unixMode) {
+      this.name = name;
+      this.method = method;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.localHeaderOffset = localHeaderOffset;
+      this.unixMode = unixMode;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    long getSize() {
+      return size;
+    }
+
+    /**
+     * Returns the comment of the entry, or an empty string if it has none.
+     */
+    String getComment() {
+      return comment;
+    }
+
+    boolean isDirectory() {
+      return name.endsWith("/");
+    }
+
+    boolean isStored() {
+      return method == METHOD_STORED;
+    }
+
+    boolean isUnixSymlink() {
+      return (unixMode & UNIX_LINK_FLAG) == UNIX_LINK_FLAG;
+    }
+  }
+
+  /**
+   * Reads a range of the file across segments, optionally followed by a
+   * dummy zero byte.
+   */
+  private class SegmentedInputStream extends InputStream {
+    private long position;
+    private final long end;
+    private boolean dummyByte;
+    private boolean closed = false;
+
+    private SegmentedInputStream(long start, long length, boolean dummyByte)
+        throws ZipException {
+      if (start + length > size) {
+        throw new ZipException("Truncated zip file: " + path);
+      }
+      this.position = start;
+      this.end = start + length;
+      this.dummyByte = dummyByte;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (position >= end) {
+        if (dummyByte) {
+          dummyByte = false;
+          bytes[offset] = 0;
+          return 1;
+        }
+        return -1;
+      }
+      int segment = (int) (position / segmentSize);
+      ByteBuffer buffer = segments[segment].duplicate();
+      buffer.position((int) (position - segment * segmentSize));
+      int count = (int) Math.min(Math.min(length, end - position),
+          buffer.remaining());
+      buffer.get(bytes, offset, count);
+      position += count;
+      return count;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, end - position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        streamClosed();
+      }
+    }
+  }
+}
@@ -16,6 +16,10 @@
 package com.google.jenkins.plugins.cloudbackup.volume.zip;
 
 import com.google.common.base.Preconditions;
+import com.google.jenkins.plugins.cloudbackup.volume.BlockSignatures;
+import com.google.jenkins.plugins.cloudbackup.volume.BufferPool;
+import com.google.jenkins.plugins.cloudbackup.volume.FileDeltas;
+import com.google.jenkins.plugins.cloudbackup.volume.ReadThrottle;
 import com.google.jenkins.plugins.cloudbackup.volume.Volume;
 
 import org.apache.commons.compress.archivers.zip.UnixStat;
@@ -24,11 +28,13 @@ import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
@@ -45,11 +51,20 @@ class ZipCreator implements Volume.Creator {
 
   private final ZipArchiveOutputStream zipStream;
   private final Path zipPath;
+  private final BufferPool bufferPool;
+  private final ReadThrottle readThrottle;
   private boolean closed = false;
   private int fileCount = 0;
 
   ZipCreator(Path zip) throws IOException {
+    this(zip, new BufferPool(), ReadThrottle.NONE);
+  }
+
+  ZipCreator(Path zip, BufferPool bufferPool, ReadThrottle readThrottle)
+      throws IOException {
     zipPath = Preconditions.checkNotNull(zip);
+    this.bufferPool = Preconditions.checkNotNull(bufferPool);
+    this.readThrottle = Preconditions.checkNotNull(readThrottle);
     Preconditions.checkArgument(!Files.exists(zipPath), "zip file exists");
     logger.finer("Creating zip volume for path: " + zipPath);
     zipStream = new ZipArchiveOutputStream(
@@ -107,8 +122,58 @@ class ZipCreator implements Volume.Creator {
     logger.finer("Adding file: " + file + " with filename: " + filenameInZip);
     ZipArchiveEntry entry = new ZipArchiveEntry(filenameInZip);
     zipStream.putArchiveEntry(entry);
-    Files.copy(file, zipStream);
+    try (FileChannel channel = FileChannel.open(file)) {
+      bufferPool.copy(readThrottle.throttle(channel), zipStream);
+    }
+    zipStream.closeArchiveEntry();
+  }
+
+  @Override
+  public void addFileTail(Path file, String pathInVolume, long offset,
+      long size) throws IOException {
+    Preconditions.checkState(!closed, "Volume closed");
+    Preconditions.checkArgument(offset >= 0 && offset <= size,
+        "invalid offset");
+    logger.finer("Adding tail of file: " + file + " from offset: " + offset
+        + " with filename: " + pathInVolume);
+    // the offset is kept in the comment of the entry, which tools unaware of
+    // it extract as a regular file with the tail only
+    ZipArchiveEntry entry = new ZipArchiveEntry(pathInVolume);
+    entry.setComment(ZipVolume.TAIL_COMMENT_PREFIX + offset);
+    zipStream.putArchiveEntry(entry);
+    try (FileChannel channel = FileChannel.open(file)) {
+      channel.position(offset);
+      long copied = bufferPool.copy(
+          readThrottle.throttle(channel), zipStream, size - offset);
+      if (copied < size - offset) {
+        throw new IOException("File shrank while adding its tail: " + file);
+      }
+    }
     zipStream.closeArchiveEntry();
+    fileCount++;
+  }
+
+  @Override
+  public void addFileDelta(Path file, String pathInVolume,
+      BlockSignatures base) throws IOException {
+    Preconditions.checkState(!closed, "Volume closed");
+    logger.finer("Adding delta of file: " + file + " with filename: "
+        + pathInVolume);
+    ZipArchiveEntry entry = new ZipArchiveEntry(pathInVolume);
+    entry.setComment(ZipVolume.DELTA_COMMENT);
+    zipStream.putArchiveEntry(entry);
+    try (FileChannel channel = FileChannel.open(file)) {
+      FileDeltas.encode(base, readThrottle.throttle(channel), zipStream);
+    }
+    zipStream.closeArchiveEntry();
+    fileCount++;
+  }
+
+  @Override
+  @Nullable
+  public Collection<String> getUnchangedFiles(Path dir, String pathInVolume,
+      BasicFileAttributes attrs) {
+    return null;
   }
 
   @Override
@@ -16,52 +16,99 @@
 package com.google.jenkins.plugins.cloudbackup.volume.zip;
 
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.jenkins.plugins.cloudbackup.volume.BufferPool;
+import com.google.jenkins.plugins.cloudbackup.volume.ExtractionSink;
+import com.google.jenkins.plugins.cloudbackup.volume.FileDeltas;
 import com.google.jenkins.plugins.cloudbackup.volume.Volume;
 
-import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
-import org.apache.commons.compress.archivers.zip.ZipFile;
-
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
-import java.util.Enumeration;
+import java.nio.file.StandardOpenOption;
 import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
+import java.util.zip.ZipException;
+
+import javax.annotation.Nullable;
 
 /**
- * Implementation of {@link Volume.Extractor} for ZIP volumes.
+ * Implementation of {@link Volume.Extractor} for ZIP volumes. The volume is
+ * read through a {@link MappedZipFile}. Files are written through a file
+ * channel, straight from the mapping for stored entries, and through the
+ * pooled buffers of the volume for deflated ones.
+ *
+ * With more than one extraction thread, regular files are inflated and
+ * written by a pool of threads, which share the positional reads of the
+ * archive. Directories, symlinks and the parent directories of files are
+ * still created by the iterating thread, in archive order, so they exist
+ * before any of their children is written. {@link #flush()} and
+ * {@link #close()} wait for the queued files.
  */
 class ZipExtractor implements Volume.Extractor {
   private static final Logger logger = Logger.getLogger(ZipExtractor.class.getName());
 
-  private final ZipFile zipFile;
+  // the number of files queued per extraction thread, which bounds the
+  // memory held by queued entries
+  private static final int QUEUED_FILES_PER_THREAD = 16;
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+
+  private final MappedZipFile zipFile;
   private final Path zipPath;
+  private final BufferPool bufferPool;
+  @Nullable
+  private final ExecutorService extractionPool;
+  private final int maxQueuedFiles;
   private boolean closed = false;
+  // guarded by this
+  private int queuedFiles = 0;
+  private Exception failure;
 
   ZipExtractor(Path zip) throws IOException {
+    this(zip, 1, new BufferPool());
+  }
+
+  ZipExtractor(Path zip, int extractionThreads, BufferPool bufferPool) throws IOException {
     zipPath = Preconditions.checkNotNull(zip);
+    this.bufferPool = Preconditions.checkNotNull(bufferPool);
     logger.finer("Extracting zip volume for path: " + zipPath);
-    zipFile = new ZipFile(zipPath.toFile());
+    zipFile = new MappedZipFile(zipPath);
+    if (extractionThreads > 1) {
+      extractionPool = Executors.newFixedThreadPool(extractionThreads,
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("cloud-backup-zip-extract-%d").build());
+    } else {
+      extractionPool = null;
+    }
+    maxQueuedFiles = extractionThreads * QUEUED_FILES_PER_THREAD;
   }
 
   @Override
   public Iterator<Volume.Entry> iterator() {
-    final Enumeration<ZipArchiveEntry> entriesInPhysicalOrder = zipFile.getEntriesInPhysicalOrder();
+    final Iterator<MappedZipFile.Entry> entriesInPhysicalOrder =
+        zipFile.getEntriesInPhysicalOrder().iterator();
     return new Iterator<Volume.Entry>() {
       @Override
       public boolean hasNext() {
         Preconditions.checkState(!closed, "Volume closed");
-        return entriesInPhysicalOrder.hasMoreElements();
+        return entriesInPhysicalOrder.hasNext();
       }
 
       @Override
       public Volume.Entry next() {
         Preconditions.checkState(!closed, "Volume closed");
-        // nextElement() will throw NoSuchElementException if no next
+        // next() will throw NoSuchElementException if no next
         // element exists
-        return new ZipVolumeEntry(zipFile, entriesInPhysicalOrder.nextElement());
+        return new ZipVolumeEntry(entriesInPhysicalOrder.next());
       }
 
       @Override
@@ -71,29 +118,90 @@ class ZipExtractor implements Volume.Extractor {
     };
   }
 
+  @Override
+  public synchronized void flush() throws IOException {
+    Preconditions.checkState(!closed, "Volume closed");
+    try {
+      while (queuedFiles > 0) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while extracting " + zipPath);
+    }
+    rethrowFailure();
+  }
+
   @Override
   public void close() throws IOException {
     Preconditions.checkState(!closed, "Volume already closed");
     logger.finer("Closing zip extractor for path: " + zipPath);
-    zipFile.close();
-    closed = true;
+    try {
+      flush();
+    } finally {
+      if (extractionPool != null) {
+        shutdownExtractionPool();
+      }
+      zipFile.close();
+      closed = true;
+    }
+  }
+
+  private void shutdownExtractionPool() {
+    extractionPool.shutdownNow();
+    try {
+      if (!extractionPool.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        logger.warning("Extraction threads did not terminate in time: " + zipPath);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Waits for a free place in the queue of the extraction threads, and takes
+   * it.
+   */
+  private synchronized void queueFile() throws IOException {
+    try {
+      while (failure == null && queuedFiles >= maxQueuedFiles) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while extracting " + zipPath);
+    }
+    rethrowFailure();
+    queuedFiles++;
+  }
+
+  private synchronized void fileDone(@Nullable Exception e) {
+    if (e != null && failure == null) {
+      failure = e;
+    }
+    queuedFiles--;
+    notifyAll();
+  }
+
+  private void rethrowFailure() throws IOException {
+    if (failure != null) {
+      throw new IOException("Could not extract zip volume: " + zipPath, failure);
+    }
   }
 
   /**
    * Represents an entry in a ZIP volume.
    */
-  private static class ZipVolumeEntry implements Volume.Entry {
-    private final ZipFile zipFile;
-    private final ZipArchiveEntry zipArchiveEntry;
+  private class ZipVolumeEntry implements Volume.Entry {
+    private final MappedZipFile.Entry zipEntry;
 
-    private ZipVolumeEntry(ZipFile zipFile, ZipArchiveEntry zipArchiveEntry) {
-      this.zipFile = zipFile;
-      this.zipArchiveEntry = zipArchiveEntry;
+    private ZipVolumeEntry(MappedZipFile.Entry zipEntry) {
+      this.zipEntry = zipEntry;
     }
 
     @Override
     public String getName() {
-      String entryName = zipArchiveEntry.getName();
+      String entryName = zipEntry.getName();
       // directories in ZIP files are defined to end in /
       if (isDirectory() && entryName.endsWith("/")) {
         entryName = entryName.substring(0, entryName.length() - 1);
@@ -103,48 +211,156 @@ class ZipExtractor implements Volume.Extractor {
 
     @Override
     public boolean isDirectory() {
-      return zipArchiveEntry.isDirectory();
+      return zipEntry.isDirectory();
     }
 
     @Override
     public boolean isSymlink() {
-      return zipArchiveEntry.isUnixSymlink();
+      return zipEntry.isUnixSymlink();
+    }
+
+    @Override
+    public boolean isPartial() {
+      String comment = zipEntry.getComment();
+      return comment.equals(ZipVolume.DELTA_COMMENT)
+          || comment.startsWith(ZipVolume.TAIL_COMMENT_PREFIX);
     }
 
     @Override
     public void extractTo(Path target) throws IOException {
+      extractTo(target, new ExtractionSink());
+    }
+
+    @Override
+    public void extractTo(Path target, ExtractionSink sink) throws IOException {
       if (isDirectory()) {
-        extractDirectory(target);
+        extractDirectory(target, sink);
       } else {
-        Path parentDir = target.getParent();
-        if (parentDir != null) {
-          Files.createDirectories(parentDir);
-        }
+        sink.createParentDirectories(target);
         if (isSymlink()) {
-          extractSymlink(target);
+          extractSymlink(target, sink);
         } else {
-          extractRegularFile(target);
+          extractRegularFile(target, sink);
         }
       }
     }
 
-    private void extractDirectory(Path target) throws IOException {
+    private void extractDirectory(Path target, ExtractionSink sink) throws IOException {
       logger.finer("Extracting directory: " + target);
-      Files.createDirectories(target);
+      sink.createDirectories(target);
     }
 
-    private void extractSymlink(Path target) throws IOException {
+    private void extractSymlink(Path target, ExtractionSink sink) throws IOException {
       logger.finer("Extracting symlink: " + target);
-      String unixSymlink = zipFile.getUnixSymlink(zipArchiveEntry);
+      String unixSymlink = zipFile.getUnixSymlink(zipEntry);
       Path symlinkPath = target.getFileSystem().getPath(unixSymlink);
       Files.deleteIfExists(target);
       Files.createSymbolicLink(target, symlinkPath);
+      sink.created(target);
     }
 
-    private void extractRegularFile(Path target) throws IOException {
+    private void extractRegularFile(final Path target, final ExtractionSink sink)
+        throws IOException {
+      if (extractionPool == null) {
+        copyRegularFile(target, sink);
+        return;
+      }
+      queueFile();
+      try {
+        extractionPool.execute(new Runnable() {
+          @Override
+          public void run() {
+            Exception exception = null;
+            try {
+              copyRegularFile(target, sink);
+            } catch (IOException | RuntimeException e) {
+              exception = e;
+            } finally {
+              fileDone(exception);
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        fileDone(e);
+        throw new IOException("Could not queue extraction of file: " + target, e);
+      }
+    }
+
+    private void copyRegularFile(Path target, ExtractionSink sink) throws IOException {
+      if (zipEntry.getComment().equals(ZipVolume.DELTA_COMMENT)) {
+        copyDelta(target);
+        return;
+      }
+      long tailOffset = getTailOffset();
+      if (tailOffset >= 0) {
+        copyTail(target, tailOffset);
+        return;
+      }
       logger.finer("Extracting file: " + target);
-      try (InputStream inputStream = zipFile.getInputStream(zipArchiveEntry)) {
-        Files.copy(inputStream, target, StandardCopyOption.REPLACE_EXISTING);
+      // replace the target like Files.copy does, rather than writing through
+      // a symlink in its place
+      Files.deleteIfExists(target);
+      try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE_NEW,
+          StandardOpenOption.WRITE)) {
+        writeContents(channel);
+      }
+      sink.created(target);
+    }
+
+    /**
+     * Writes the tail of a file, whose first bytes have been extracted from an earlier volume,
+     * at its offset. Unlike appending, this leaves the same file when the tail is extracted
+     * again, e.g. by a resumed restore.
+     */
+    private void copyTail(Path target, long offset) throws IOException {
+      logger.finer("Extracting tail of file: " + target + " from offset: " + offset);
+      try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE,
+          LinkOption.NOFOLLOW_LINKS)) {
+        if (channel.size() < offset) {
+          throw new IOException("Cannot extract tail of file: " + target + ", expected at least "
+              + offset + " bytes but found " + channel.size());
+        }
+        channel.position(offset);
+        writeContents(channel);
+        channel.truncate(offset + zipEntry.getSize());
+      } catch (NoSuchFileException e) {
+        throw new IOException("Cannot extract tail of missing file: " + target, e);
+      }
+    }
+
+    /**
+     * Rebuilds a file, whose earlier version has been extracted from an earlier volume, from
+     * that version and the delta held by this entry.
+     */
+    private void copyDelta(Path target) throws IOException {
+      logger.finer("Extracting delta of file: " + target);
+      try (InputStream inputStream = zipFile.getInputStream(zipEntry)) {
+        FileDeltas.apply(inputStream, target);
+      }
+    }
+
+    private void writeContents(FileChannel channel) throws IOException {
+      if (zipEntry.isStored()) {
+        zipFile.transferTo(zipEntry, channel);
+      } else {
+        try (InputStream inputStream = zipFile.getInputStream(zipEntry)) {
+          bufferPool.copy(inputStream, channel);
+        }
+      }
+    }
+
+    /**
+     * Returns the offset of the tail held by this entry, or -1 if it holds a whole file.
+     */
+    private long getTailOffset() throws ZipException {
+      String comment = zipEntry.getComment();
+      if (!comment.startsWith(ZipVolume.TAIL_COMMENT_PREFIX)) {
+        return -1;
+      }
+      try {
+        return Long.parseLong(comment.substring(ZipVolume.TAIL_COMMENT_PREFIX.length()));
+      } catch (NumberFormatException e) {
+        throw new ZipException("Invalid tail offset of " + zipEntry.getName() + " in " + zipPath);
       }
     }
   }
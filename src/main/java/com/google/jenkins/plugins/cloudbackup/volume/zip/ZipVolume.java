@@ -18,6 +18,9 @@ package com.google.jenkins.plugins.cloudbackup.volume.zip;
 import java.io.IOException;
 import java.nio.file.Path;
 
+import com.google.common.base.Preconditions;
+import com.google.jenkins.plugins.cloudbackup.volume.BufferPool;
+import com.google.jenkins.plugins.cloudbackup.volume.ReadThrottle;
 import com.google.jenkins.plugins.cloudbackup.volume.Volume;
 
 /**
@@ -25,6 +28,54 @@ import com.google.jenkins.plugins.cloudbackup.volume.Volume;
  */
 public class ZipVolume implements Volume {
 
+  /**
+   * The prefix of the comment of entries holding the tail of a file, which
+   * is followed by the offset of the tail.
+   */
+  static final String TAIL_COMMENT_PREFIX = "tail-offset:";
+
+  /**
+   * The comment of entries holding the delta of a file against an earlier
+   * version of it.
+   */
+  static final String DELTA_COMMENT = "delta";
+
+  private volatile int extractionThreads = 1;
+  private volatile BufferPool bufferPool = new BufferPool();
+  private volatile ReadThrottle readThrottle = ReadThrottle.NONE;
+
+  /**
+   * Sets the number of threads writing the files of a single volume during
+   * extraction. With one thread, which is the default, files are extracted
+   * one after another by the thread iterating the entries.
+   *
+   * @param extractionThreads the number of extraction threads per volume.
+   */
+  public void setExtractionThreads(int extractionThreads) {
+    this.extractionThreads = Math.max(1, extractionThreads);
+  }
+
+  /**
+   * Sets the pool of buffers through which the contents of files are copied
+   * into and out of volumes.
+   *
+   * @param bufferPool the buffers for file contents.
+   */
+  public void setBufferPool(BufferPool bufferPool) {
+    this.bufferPool = Preconditions.checkNotNull(bufferPool);
+  }
+
+  /**
+   * Sets the throttle through which the files added to new volumes are read.
+   * Extraction is not throttled, since a restore should finish as quickly as
+   * possible.
+   *
+   * @param readThrottle the throttle for reading files.
+   */
+  public void setReadThrottle(ReadThrottle readThrottle) {
+    this.readThrottle = Preconditions.checkNotNull(readThrottle);
+  }
+
   /**
    * Returns the String {@literal zip}.
    *
@@ -37,12 +88,12 @@ public class ZipVolume implements Volume {
 
   @Override
   public Volume.Creator createNew(Path volume) throws IOException {
-    return new ZipCreator(volume);
+    return new ZipCreator(volume, bufferPool, readThrottle);
   }
 
   @Override
   public Volume.Extractor extract(Path volume) throws IOException {
-    return new ZipExtractor(volume);
+    return new ZipExtractor(volume, extractionThreads, bufferPool);
   }
 
 }
@@ -15,10 +15,17 @@
  */
 package com.google.jenkins.plugins.cloudbackup.backup;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -31,11 +38,17 @@ import com.google.jenkins.plugins.cloudbackup.volume.Volume;
 import org.joda.time.DateTime;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Set;
@@ -44,6 +57,9 @@ import java.util.Set;
  * Tests for {@link BackupProcedure}.
  */
 public class BackupProcedureTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
   @Mock
   private Volume volume;
 
@@ -112,4 +128,81 @@ public class BackupProcedureTest {
     verify(storage).storeFile(any(Path.class), backupVolumeNameCapture.capture());
     assertTrue(backupVolumeNameCapture.getValue().endsWith("-suffix.test"));
   }
+
+  @Test
+  public void testPerformBackup_storeFails_shouldResumeWithPendingVolume()
+      throws Exception {
+    Path tempDir = tempFolder.getRoot().toPath();
+    givenVolumeCreatingFiles();
+    doThrow(new IOException()).doNothing().when(storage)
+        .storeFile(any(Path.class), anyString());
+
+    BackupProcedure backupProcedure = new BackupProcedure(volume, scope,
+        storage, backupHistory, jenkinsHome, tempDir, null);
+    try {
+      backupProcedure.performBackup();
+      fail("IOException expected");
+    } catch (IOException expected) {
+      // expected
+    }
+    DateTime resumedBackupTime = backupProcedure.performBackup();
+
+    // the volume is created only once, and stored from the same local file
+    verify(volume).createNew(any(Path.class));
+    ArgumentCaptor<Path> pathCaptor = ArgumentCaptor.forClass(Path.class);
+    ArgumentCaptor<String> nameCaptor = ArgumentCaptor.forClass(String.class);
+    verify(storage, times(2))
+        .storeFile(pathCaptor.capture(), nameCaptor.capture());
+    assertEquals(pathCaptor.getAllValues().get(0),
+        pathCaptor.getAllValues().get(1));
+    assertEquals(nameCaptor.getAllValues().get(0),
+        nameCaptor.getAllValues().get(1));
+    verify(storage).updateLastBackup(
+        eq(Arrays.asList(nameCaptor.getValue())));
+    assertTrue(resumedBackupTime.isBeforeNow());
+    // the pending volume is gone once the backup is recorded
+    assertFalse(Files.exists(pathCaptor.getValue()));
+  }
+
+  @Test
+  public void testPerformBackup_pendingVolumeOfOtherKind_shouldCreateNew()
+      throws Exception {
+    Path tempDir = tempFolder.getRoot().toPath();
+    givenVolumeCreatingFiles();
+    doThrow(new IOException()).when(storage)
+        .storeFile(any(Path.class), anyString());
+    try {
+      new BackupProcedure(volume, scope, storage, backupHistory, jenkinsHome,
+          tempDir, "-incremental").performBackup();
+      fail("IOException expected");
+    } catch (IOException expected) {
+      // expected
+    }
+    doNothing().when(storage).storeFile(any(Path.class), anyString());
+
+    new BackupProcedure(volume, scope, storage, backupHistory, jenkinsHome,
+        tempDir, null).performBackup();
+
+    // the pending incremental volume is discarded, not stored
+    verify(volume, times(2)).createNew(any(Path.class));
+    ArgumentCaptor<String> nameCaptor = ArgumentCaptor.forClass(String.class);
+    verify(storage, times(2)).storeFile(any(Path.class), nameCaptor.capture());
+    assertTrue(nameCaptor.getAllValues().get(0).endsWith("-incremental.test"));
+    assertFalse(nameCaptor.getValue().endsWith("-incremental.test"));
+    verify(storage).updateLastBackup(eq(Arrays.asList(nameCaptor.getValue())));
+  }
+
+  private void givenVolumeCreatingFiles() throws Exception {
+    when(volume.getFileExtension()).thenReturn("test");
+    when(volume.createNew(any(Path.class))).thenAnswer(
+        new Answer<Volume.Creator>() {
+          @Override
+          public Volume.Creator answer(InvocationOnMock invocation)
+              throws Throwable {
+            Files.createFile((Path) invocation.getArguments()[0]);
+            return volumeCreator;
+          }
+        });
+    when(volumeCreator.getFileCount()).thenReturn(1);
+  }
 }
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.backup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+import com.google.jenkins.plugins.cloudbackup.volume.zip.ZipVolume;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * Tests for {@link BlockDeltaVolume}.
+ */
+public class BlockDeltaVolumeTest {
+
+  private static final String PATH = "fingerprints/fingerprints.xml";
+  private static final int SIZE = 1000 * 1000;
+
+  private Path tempDirectory;
+  private Path file;
+  private FileSignatures signatures;
+  private Random random;
+
+  @Before
+  public void setUp() throws Exception {
+    tempDirectory =
+        Files.createTempDirectory(BlockDeltaVolumeTest.class.getSimpleName());
+    file = tempDirectory.resolve("file");
+    signatures = new FileSignatures(tempDirectory);
+    random = new Random(42);
+    Files.write(file, randomBytes(SIZE));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    deleteDirectory(tempDirectory);
+  }
+
+  @Test
+  public void testStoreDeltaOfModifiedFile() throws Exception {
+    Path full = backup("full.zip", false);
+    byte[] content = Files.readAllBytes(file);
+    System.arraycopy(randomBytes(100), 0, content, SIZE / 2, 100);
+    Files.write(file, content);
+    Path incremental = backup("incremental.zip", true);
+
+    assertTrue(Files.size(incremental) < SIZE / 10);
+    Path target = tempDirectory.resolve("restored");
+    extract(full, target);
+    extract(incremental, target);
+    assertArrayEquals(content, Files.readAllBytes(target));
+  }
+
+  @Test
+  public void testSkipUnchangedFile() throws Exception {
+    backup("full.zip", false);
+    Files.write(file, Files.readAllBytes(file));
+    Path incremental = backup("incremental.zip", true);
+
+    try (Volume.Extractor extractor = new ZipVolume().extract(incremental)) {
+      assertFalse(extractor.iterator().hasNext());
+    }
+    assertNotNull(signatures.get(PATH).getBlocks());
+  }
+
+  @Test
+  public void testStoreWholeFileWithoutSignatures() throws Exception {
+    Path incremental = backup("incremental.zip", true);
+
+    assertTrue(Files.size(incremental) > SIZE);
+    assertNotNull(signatures.get(PATH).getBlocks());
+  }
+
+  @Test
+  public void testIgnoreSmallFilesAndBuildLogs() throws Exception {
+    signatures.begin();
+    try (Volume.Creator creator = newVolume(true)
+        .createNew(tempDirectory.resolve("volume.zip"))) {
+      creator.addFile(file, "jobs/job/builds/1/log", null);
+      Files.write(file, randomBytes(SIZE / 2));
+      creator.addFile(file, PATH, null);
+    }
+    signatures.commit();
+
+    assertNull(signatures.get("jobs/job/builds/1/log"));
+    assertNull(signatures.get(PATH));
+  }
+
+  private Volume newVolume(boolean storeDeltas) {
+    return new BlockDeltaVolume(new ZipVolume(), signatures, SIZE,
+        storeDeltas);
+  }
+
+  private Path backup(String volumeName, boolean storeDeltas)
+      throws IOException {
+    Path volumePath = tempDirectory.resolve(volumeName);
+    signatures.begin();
+    try (Volume.Creator creator = newVolume(storeDeltas)
+        .createNew(volumePath)) {
+      creator.addFile(file, PATH, null);
+    }
+    signatures.commit();
+    return volumePath;
+  }
+
+  private void extract(Path volumePath, Path target) throws IOException {
+    try (Volume.Extractor extractor = new ZipVolume().extract(volumePath)) {
+      for (Volume.Entry entry : extractor) {
+        entry.extractTo(target);
+      }
+    }
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static void deleteDirectory(Path dir) throws IOException {
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+          throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e)
+          throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
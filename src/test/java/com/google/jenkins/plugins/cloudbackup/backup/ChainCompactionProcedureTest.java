@@ -0,0 +1,428 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.backup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.jenkins.plugins.cloudbackup.scope.Scope;
+import com.google.jenkins.plugins.cloudbackup.scope.Scopes;
+import com.google.jenkins.plugins.cloudbackup.storage.ForwardingStorage;
+import com.google.jenkins.plugins.cloudbackup.storage.LocalFileStorage;
+import com.google.jenkins.plugins.cloudbackup.storage.Storage;
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+import com.google.jenkins.plugins.cloudbackup.volume.zip.ZipVolume;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests for {@link ChainCompactionProcedure}.
+ */
+public class ChainCompactionProcedureTest {
+  private static final String LOG_PATH = "jobs/job/builds/1/log";
+  private static final String DELTA_PATH = "fingerprints/fingerprints.xml";
+  private static final int DELTA_MIN_SIZE = 1000 * 1000;
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Mock
+  private Volume volume;
+
+  @Mock
+  private Volume.Creator volumeCreator;
+
+  @Mock
+  private Volume.Extractor extractor;
+
+  @Mock
+  private Scope scope;
+
+  @Mock
+  private Storage storage;
+
+  private ChainCompactionProcedure compactionProcedure;
+  private Random random = new Random(42);
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(volume.getFileExtension()).thenReturn("test");
+    when(volume.createNew(any(Path.class))).thenReturn(volumeCreator);
+    when(volume.extract(any(Path.class))).thenReturn(extractor);
+    when(extractor.iterator()).thenAnswer(
+        new Answer<Iterator<Volume.Entry>>() {
+      @Override
+      public Iterator<Volume.Entry> answer(InvocationOnMock invocation) {
+        return Collections.<Volume.Entry>emptyIterator();
+      }
+    });
+    when(volumeCreator.getFileCount()).thenReturn(1);
+    when(storage.listMetadataForExistingFiles())
+        .thenReturn(Arrays.asList("a", "b"));
+    compactionProcedure = new ChainCompactionProcedure(
+        volume, scope, storage, tempFolder.getRoot().toPath(), 3);
+  }
+
+  @Test
+  public void testCompactIfNeeded_shortChain_shouldDoNothing()
+      throws Exception {
+    when(storage.findLatestBackup()).thenReturn(Arrays.asList(
+        "backup-1.test", "backup-2-incremental.test",
+        "backup-3-incremental.test"));
+
+    assertFalse(compactionProcedure.compactIfNeeded());
+
+    verify(volume, never()).createNew(any(Path.class));
+    verify(storage, never()).updateLastBackup(anyListOf(String.class));
+  }
+
+  @Test
+  public void testCompactIfNeeded_longChain_shouldReplaceIncrementals()
+      throws Exception {
+    List<String> incrementals = Arrays.asList("backup-2-incremental.test",
+        "backup-3-incremental.test", "backup-4-incremental.test");
+    when(storage.findLatestBackup()).thenReturn(Arrays.asList(
+        "backup-1.test", "backup-2-incremental.test",
+        "backup-3-incremental.test", "backup-4-incremental.test"));
+
+    assertTrue(compactionProcedure.compactIfNeeded());
+
+    verify(scope).addFiles(
+        any(Path.class), any(Volume.Creator.class), any(Set.class));
+    ArgumentCaptor<String> nameCaptor = ArgumentCaptor.forClass(String.class);
+    InOrder inOrder = inOrder(storage);
+    for (String incremental : incrementals) {
+      inOrder.verify(storage).loadFile(eq(incremental), any(Path.class));
+    }
+    inOrder.verify(storage).storeFile(any(Path.class), nameCaptor.capture());
+    inOrder.verify(storage).updateLastBackup(
+        Arrays.asList("backup-1.test", nameCaptor.getValue()));
+    inOrder.verify(storage).deleteFiles(incrementals);
+    assertTrue(nameCaptor.getValue().endsWith("-incremental-compacted.test"));
+    // the incrementals hold no tails or deltas, which need the full backup
+    verify(storage, never()).loadFile(eq("backup-1.test"), any(Path.class));
+  }
+
+  @Test
+  public void testCompactIfNeeded_updateFails_shouldKeepChain()
+      throws Exception {
+    when(storage.findLatestBackup()).thenReturn(Arrays.asList(
+        "backup-1.test", "backup-2-incremental.test",
+        "backup-3-incremental.test", "backup-4-incremental.test"));
+    doThrow(new IOException()).when(storage)
+        .updateLastBackup(anyListOf(String.class));
+
+    try {
+      compactionProcedure.compactIfNeeded();
+      fail("IOException expected");
+    } catch (IOException expected) {
+      // expected
+    }
+
+    ArgumentCaptor<String> nameCaptor = ArgumentCaptor.forClass(String.class);
+    verify(storage).storeFile(any(Path.class), nameCaptor.capture());
+    verify(storage).deleteFile(nameCaptor.getValue());
+    verify(storage, never()).deleteFiles(anyListOf(String.class));
+    assertEquals(0, tempFolder.getRoot().list().length);
+  }
+
+  @Test
+  public void testCompactIfNeeded_backupInProgress_shouldKeepChain()
+      throws Exception {
+    when(storage.findLatestBackup()).thenReturn(Arrays.asList(
+        "backup-1.test", "backup-2-incremental.test",
+        "backup-3-incremental.test", "backup-4-incremental.test"));
+    ChainCompactionProcedure.BackupExclusion exclusion =
+        mock(ChainCompactionProcedure.BackupExclusion.class);
+    when(exclusion.begin()).thenReturn(false);
+
+    assertFalse(compactionProcedure.compactIfNeeded(exclusion));
+
+    ArgumentCaptor<String> nameCaptor = ArgumentCaptor.forClass(String.class);
+    verify(storage).storeFile(any(Path.class), nameCaptor.capture());
+    verify(storage).deleteFile(nameCaptor.getValue());
+    verify(storage, never()).updateLastBackup(anyListOf(String.class));
+    verify(storage, never()).deleteFiles(anyListOf(String.class));
+    verify(exclusion, never()).end();
+  }
+
+  @Test
+  public void testCompactIfNeeded_concurrentBackup_shouldKeepNewChain()
+      throws Exception {
+    // a backup completed while the chain was being merged
+    when(storage.findLatestBackup()).thenReturn(
+        Arrays.asList("backup-1.test", "backup-2-incremental.test",
+            "backup-3-incremental.test", "backup-4-incremental.test"),
+        Arrays.asList("backup-1.test", "backup-2-incremental.test",
+            "backup-3-incremental.test", "backup-4-incremental.test",
+            "backup-5-incremental.test"));
+    ChainCompactionProcedure.BackupExclusion exclusion =
+        mock(ChainCompactionProcedure.BackupExclusion.class);
+    when(exclusion.begin()).thenReturn(true);
+
+    assertFalse(compactionProcedure.compactIfNeeded(exclusion));
+
+    ArgumentCaptor<String> nameCaptor = ArgumentCaptor.forClass(String.class);
+    verify(storage).storeFile(any(Path.class), nameCaptor.capture());
+    verify(storage).deleteFile(nameCaptor.getValue());
+    verify(storage, never()).updateLastBackup(anyListOf(String.class));
+    verify(storage, never()).deleteFiles(anyListOf(String.class));
+    verify(exclusion).end();
+  }
+
+  @Test
+  public void testCompactIfNeeded_tailEntries_shouldStoreWholeFiles()
+      throws Exception {
+    Path home = tempFolder.newFolder("home").toPath();
+    Path log = home.resolve(LOG_PATH);
+    Files.createDirectories(log.getParent());
+    Files.write(log, randomBytes((int) TailDeltaVolume.MIN_SIZE_BYTES + 100));
+    Files.write(home.resolve("config.xml"), randomBytes(10));
+    ChainBuilder chain = new ChainBuilder(home);
+    Volume tailVolume = new TailDeltaVolume(new ZipVolume(), chain.signatures);
+    chain.backup("backup-1.zip", tailVolume, LOG_PATH, "config.xml");
+    for (int i = 2; i <= 4; i++) {
+      Files.write(log, randomBytes(100), StandardOpenOption.APPEND);
+      chain.backup("backup-" + i + "-incremental.zip", tailVolume, LOG_PATH);
+    }
+
+    assertTrue(chain.compact());
+
+    assertTrue(chain.loadedVolumes.contains("backup-1.zip"));
+    List<String> compactedChain = chain.storage.findLatestBackup();
+    assertEquals(2, compactedChain.size());
+    assertEquals(Collections.singletonList(LOG_PATH),
+        chain.entryNames(compactedChain.get(1)));
+    Path restored = chain.restore();
+    assertArrayEquals(Files.readAllBytes(log),
+        Files.readAllBytes(restored.resolve(LOG_PATH)));
+    assertArrayEquals(Files.readAllBytes(home.resolve("config.xml")),
+        Files.readAllBytes(restored.resolve("config.xml")));
+  }
+
+  @Test
+  public void testCompactIfNeeded_deltaEntries_shouldStoreWholeFiles()
+      throws Exception {
+    Path home = tempFolder.newFolder("home").toPath();
+    Path file = home.resolve(DELTA_PATH);
+    Files.createDirectories(file.getParent());
+    Files.write(file, randomBytes(DELTA_MIN_SIZE));
+    ChainBuilder chain = new ChainBuilder(home);
+    chain.backup("backup-1.zip", new BlockDeltaVolume(new ZipVolume(),
+        chain.signatures, DELTA_MIN_SIZE, false), DELTA_PATH);
+    Volume deltaVolume = new BlockDeltaVolume(new ZipVolume(),
+        chain.signatures, DELTA_MIN_SIZE, true);
+    for (int i = 2; i <= 4; i++) {
+      try (FileChannel channel =
+          FileChannel.open(file, StandardOpenOption.WRITE)) {
+        channel.write(ByteBuffer.wrap(randomBytes(100)), i * 100 * 1000);
+      }
+      chain.backup("backup-" + i + "-incremental.zip", deltaVolume,
+          DELTA_PATH);
+    }
+
+    assertTrue(chain.compact());
+
+    List<String> compactedChain = chain.storage.findLatestBackup();
+    assertEquals(2, compactedChain.size());
+    // a whole copy of the file, which does not compress
+    assertTrue(Files.size(chain.storageDir.resolve(compactedChain.get(1)))
+        > DELTA_MIN_SIZE);
+    assertArrayEquals(Files.readAllBytes(file),
+        Files.readAllBytes(chain.restore().resolve(DELTA_PATH)));
+  }
+
+  @Test
+  public void testCompactIfNeeded_wholeFiles_shouldNotLoadFullBackup()
+      throws Exception {
+    ChainBuilder chain = newIncrementalChain();
+
+    assertTrue(chain.compact());
+
+    assertEquals(Arrays.asList("backup-2-incremental.zip",
+        "backup-3-incremental.zip", "backup-4-incremental.zip"),
+        chain.loadedVolumes);
+    assertArrayEquals(Files.readAllBytes(chain.home.resolve("config.xml")),
+        Files.readAllBytes(chain.restore().resolve("config.xml")));
+  }
+
+  /**
+   * Returns a chain of a full backup followed by three incremental backups of
+   * a single file.
+   */
+  private ChainBuilder newIncrementalChain() throws IOException {
+    Path home = tempFolder.newFolder("home").toPath();
+    Files.write(home.resolve("config.xml"), randomBytes(10));
+    ChainBuilder chain = new ChainBuilder(home);
+    chain.backup("backup-1.zip", new ZipVolume(), "config.xml");
+    for (int i = 2; i <= 4; i++) {
+      Files.write(home.resolve("config.xml"), randomBytes(10));
+      chain.backup("backup-" + i + "-incremental.zip", new ZipVolume(),
+          "config.xml");
+    }
+    return chain;
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * A backup chain of real volumes in local storage, whose files are taken
+   * from a JENKINS_HOME.
+   */
+  private final class ChainBuilder {
+    private final Path home;
+    private final Path volumeDir;
+    private final Path storageDir;
+    private final Storage storage;
+    private final FileSignatures signatures;
+    private final Scope homeScope = new Scope() {
+      @Override
+      public void addFiles(Path jenkinsHome, Volume.Creator creator,
+          Set<String> existingFileNames) throws IOException {
+        Scopes.addAllFilesIn(jenkinsHome, creator,
+            Collections.<Path>emptySet(), existingFileNames);
+      }
+
+      @Override
+      public void extractFiles(Path jenkinsHome, Volume.Extractor extractor,
+          boolean overwrite, Map<String, Boolean> existingFileMetadataMap)
+          throws IOException {
+        Scopes.extractAllFilesTo(jenkinsHome, extractor, overwrite,
+            existingFileMetadataMap);
+      }
+    };
+    private final List<String> volumeNames = new ArrayList<>();
+    private final Set<String> existingFiles = new HashSet<>();
+    private final List<String> loadedVolumes = new ArrayList<>();
+
+    ChainBuilder(Path home) throws IOException {
+      this.home = home;
+      this.volumeDir = tempFolder.newFolder("volumes").toPath();
+      this.storageDir = tempFolder.newFolder("storage").toPath();
+      this.storage = new ForwardingStorage(new LocalFileStorage(storageDir)) {
+        @Override
+        public void loadFile(String filename, Path target)
+            throws IOException {
+          loadedVolumes.add(filename);
+          super.loadFile(filename, target);
+        }
+      };
+      this.signatures = new FileSignatures(tempFolder.newFolder().toPath());
+    }
+
+    /**
+     * Stores a backup of the given files of JENKINS_HOME at the end of the
+     * chain.
+     */
+    void backup(String volumeName, Volume backupVolume, String... paths)
+        throws IOException {
+      Path volumePath = volumeDir.resolve(volumeName);
+      signatures.begin();
+      try (Volume.Creator creator = backupVolume.createNew(volumePath)) {
+        for (String path : paths) {
+          creator.addFile(home.resolve(path), path, null);
+          existingFiles.add(path);
+        }
+      }
+      signatures.commit();
+      storage.storeFile(volumePath, volumeName);
+      volumeNames.add(volumeName);
+      storage.updateLastBackup(volumeNames);
+      storage.updateExistingFilesMetaData(existingFiles);
+    }
+
+    boolean compact() throws IOException {
+      return new ChainCompactionProcedure(new ZipVolume(), homeScope, storage,
+          tempFolder.newFolder().toPath(), 2).compactIfNeeded();
+    }
+
+    List<String> entryNames(String volumeName) throws IOException {
+      Path volumePath = volumeDir.resolve("loaded-" + volumeName);
+      storage.loadFile(volumeName, volumePath);
+      List<String> names = new ArrayList<>();
+      try (Volume.Extractor extractor = new ZipVolume().extract(volumePath)) {
+        for (Volume.Entry entry : extractor) {
+          names.add(entry.getName());
+        }
+      }
+      return names;
+    }
+
+    /**
+     * Restores the latest backup chain, and returns the restored directory.
+     */
+    Path restore() throws IOException {
+      Path target = tempFolder.newFolder().toPath();
+      Map<String, Boolean> existingFileMetadataMap = new HashMap<>();
+      for (String name : storage.listMetadataForExistingFiles()) {
+        existingFileMetadataMap.put(name, true);
+      }
+      for (String volumeName : storage.findLatestBackup()) {
+        Path volumePath = volumeDir.resolve("restored-" + volumeName);
+        storage.loadFile(volumeName, volumePath);
+        try (Volume.Extractor extractor =
+            new ZipVolume().extract(volumePath)) {
+          homeScope.extractFiles(target, extractor, true,
+              existingFileMetadataMap);
+        }
+      }
+      return target;
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.backup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.jenkins.plugins.cloudbackup.volume.BlockSignatures;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link FileSignatures}.
+ */
+public class FileSignaturesTest {
+
+  private static final byte[] HASH = {1, 2, 3};
+
+  private Path tempDirectory;
+  private Path signaturesPath;
+
+  @Before
+  public void setUp() throws Exception {
+    tempDirectory =
+        Files.createTempDirectory(FileSignaturesTest.class.getSimpleName());
+    signaturesPath = tempDirectory.resolve(FileSignatures.SIGNATURES_FILENAME);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Files.deleteIfExists(signaturesPath);
+    Files.delete(tempDirectory);
+  }
+
+  @Test
+  public void testCommitAndLoad() throws Exception {
+    FileSignatures signatures = new FileSignatures(tempDirectory);
+    signatures.begin();
+    signatures.update("a/log", new FileSignatures.Signature(10, HASH));
+    assertNull(signatures.get("a/log"));
+    signatures.commit();
+
+    FileSignatures loaded = new FileSignatures(tempDirectory);
+    loaded.load();
+    FileSignatures.Signature signature = loaded.get("a/log");
+    assertNotNull(signature);
+    assertEquals(10, signature.getSize());
+    assertTrue(signature.hashEquals(HASH));
+  }
+
+  @Test
+  public void testCommitAndLoadBlocks() throws Exception {
+    byte[] content = new byte[10 * 1000];
+    BlockSignatures blocks = BlockSignatures.compute(
+        Channels.newChannel(new ByteArrayInputStream(content)),
+        content.length, null);
+    FileSignatures signatures = new FileSignatures(tempDirectory);
+    signatures.begin();
+    signatures.update("a/file",
+        new FileSignatures.Signature(content.length, HASH, blocks));
+    signatures.commit();
+
+    FileSignatures loaded = new FileSignatures(tempDirectory);
+    loaded.load();
+    BlockSignatures loadedBlocks = loaded.get("a/file").getBlocks();
+    assertNotNull(loadedBlocks);
+    assertArrayEquals(blocks.toByteArray(), loadedBlocks.toByteArray());
+  }
+
+  @Test
+  public void testCommitWithoutBeginClears() throws Exception {
+    FileSignatures signatures = new FileSignatures(tempDirectory);
+    signatures.begin();
+    signatures.update("a/log", new FileSignatures.Signature(10, HASH));
+    signatures.commit();
+
+    signatures.commit();
+
+    assertNull(signatures.get("a/log"));
+    assertFalse(Files.exists(signaturesPath));
+  }
+
+  @Test
+  public void testRemove() throws Exception {
+    FileSignatures signatures = new FileSignatures(tempDirectory);
+    signatures.begin();
+    signatures.update("a/log", new FileSignatures.Signature(10, HASH));
+    signatures.update("b/log", new FileSignatures.Signature(10, HASH));
+    signatures.commit();
+
+    signatures.begin();
+    signatures.remove("a/log");
+    assertNotNull(signatures.get("a/log"));
+    signatures.commit();
+
+    assertNull(signatures.get("a/log"));
+    assertNotNull(signatures.get("b/log"));
+  }
+
+  @Test
+  public void testDropIdleAndMalformedSignatures() throws Exception {
+    long now = System.currentTimeMillis();
+    Files.write(signaturesPath, Arrays.asList(
+        "10\t010203\t" + now + "\tjobs/active/builds/1/log",
+        "10\t010203\t0\tjobs/idle/builds/1/log",
+        "10\t010203\t0\tjobs/idle/config.xml",
+        "malformed\t010203\t0\tmalformed/log",
+        "truncated"), StandardCharsets.UTF_8);
+    FileSignatures signatures = new FileSignatures(tempDirectory);
+    signatures.load();
+    assertNotNull(signatures.get("jobs/idle/builds/1/log"));
+    assertNull(signatures.get("malformed/log"));
+
+    signatures.begin();
+    signatures.commit();
+
+    assertNotNull(signatures.get("jobs/active/builds/1/log"));
+    assertNull(signatures.get("jobs/idle/builds/1/log"));
+    // only build logs become idle
+    assertNotNull(signatures.get("jobs/idle/config.xml"));
+  }
+
+  @Test
+  public void testFullBackupReplacesSignatures() throws Exception {
+    FileSignatures signatures = new FileSignatures(tempDirectory);
+    signatures.begin();
+    signatures.update("jobs/job/builds/1/log",
+        new FileSignatures.Signature(10, HASH));
+    signatures.update("jobs/job/config.xml",
+        new FileSignatures.Signature(10, HASH));
+    signatures.update("jobs/deleted/config.xml",
+        new FileSignatures.Signature(10, HASH));
+    signatures.commit();
+
+    signatures.begin(true);
+    signatures.update("jobs/job/config.xml",
+        new FileSignatures.Signature(20, HASH));
+    signatures.commit();
+
+    assertNotNull(signatures.get("jobs/job/builds/1/log"));
+    assertEquals(20, signatures.get("jobs/job/config.xml").getSize());
+    assertNull(signatures.get("jobs/deleted/config.xml"));
+  }
+
+  @Test
+  public void testRecordedExistingFiles() throws Exception {
+    byte[] existingFilesHash = {4, 5, 6};
+    FileSignatures signatures = new FileSignatures(tempDirectory);
+    assertFalse(signatures.isRecorded(existingFilesHash));
+
+    signatures.begin();
+    signatures.commit(existingFilesHash);
+    assertTrue(signatures.isRecorded(existingFilesHash));
+    assertFalse(signatures.isRecorded(HASH));
+
+    signatures.clear();
+    assertFalse(signatures.isRecorded(existingFilesHash));
+  }
+}
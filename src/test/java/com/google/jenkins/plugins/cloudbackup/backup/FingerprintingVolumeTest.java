@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.backup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+import com.google.jenkins.plugins.cloudbackup.volume.zip.ZipVolume;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link FingerprintingVolume}.
+ */
+public class FingerprintingVolumeTest {
+
+  private static final String PATH = "jobs/job/config.xml";
+
+  private Path tempDirectory;
+  private Path file;
+  private FileSignatures signatures;
+
+  @Before
+  public void setUp() throws Exception {
+    tempDirectory = Files.createTempDirectory(
+        FingerprintingVolumeTest.class.getSimpleName());
+    file = tempDirectory.resolve("file");
+    signatures = new FileSignatures(tempDirectory);
+    Files.write(file, "<project/>".getBytes(StandardCharsets.UTF_8));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    deleteDirectory(tempDirectory);
+  }
+
+  @Test
+  public void testSkipUnchangedFile() throws Exception {
+    backup("full.zip", PATH, false);
+    // rewritten with the same content
+    Files.write(file, "<project/>".getBytes(StandardCharsets.UTF_8));
+
+    assertTrue(backup("incremental.zip", PATH, true).isEmpty());
+  }
+
+  @Test
+  public void testAddChangedFile() throws Exception {
+    backup("full.zip", PATH, false);
+    Files.write(file, "<project />".getBytes(StandardCharsets.UTF_8));
+
+    assertEquals(1, backup("incremental.zip", PATH, true).size());
+    assertEquals(11, signatures.get(PATH).getSize());
+  }
+
+  @Test
+  public void testFullBackupAddsUnchangedFile() throws Exception {
+    backup("full.zip", PATH, false);
+
+    assertEquals(1, backup("full2.zip", PATH, false).size());
+  }
+
+  @Test
+  public void testIgnoreBuildDirectories() throws Exception {
+    String path = "jobs/job/builds/1/build.xml";
+    backup("full.zip", path, false);
+
+    assertNull(signatures.get(path));
+    assertEquals(1, backup("incremental.zip", path, true).size());
+  }
+
+  @Test
+  public void testIsInBuildDirectory() throws Exception {
+    assertTrue(FingerprintingVolume.isInBuildDirectory(
+        "jobs/job/builds/12/build.xml"));
+    assertTrue(FingerprintingVolume.isInBuildDirectory(
+        "jobs/folder/jobs/job/builds/1/archive/file"));
+    assertFalse(FingerprintingVolume.isInBuildDirectory(
+        "jobs/job/builds/legacyIds"));
+    assertFalse(FingerprintingVolume.isInBuildDirectory(
+        "jobs/job/builds/lastSuccessfulBuild/build.xml"));
+    assertFalse(FingerprintingVolume.isInBuildDirectory(PATH));
+  }
+
+  /**
+   * Backs up the file at the given path in the volume, and returns the paths
+   * of the entries in the volume.
+   */
+  private List<String> backup(String volumeName, String pathInVolume,
+      boolean skipUnchanged) throws IOException {
+    Path volumePath = tempDirectory.resolve(volumeName);
+    signatures.begin(!skipUnchanged);
+    try (Volume.Creator creator = new FingerprintingVolume(new ZipVolume(),
+        signatures, FingerprintingVolume.DEFAULT_MAX_SIZE_BYTES,
+        skipUnchanged).createNew(volumePath)) {
+      creator.addFile(file, pathInVolume, null);
+    }
+    signatures.commit();
+
+    List<String> entries = new ArrayList<>();
+    try (Volume.Extractor extractor = new ZipVolume().extract(volumePath)) {
+      for (Volume.Entry entry : extractor) {
+        entries.add(entry.getName());
+      }
+    }
+    return entries;
+  }
+
+  private static void deleteDirectory(Path dir) throws IOException {
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+          throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e)
+          throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
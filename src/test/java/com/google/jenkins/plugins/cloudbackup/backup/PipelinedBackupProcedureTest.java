@@ -0,0 +1,257 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.backup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anySetOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.jenkins.plugins.cloudbackup.history.BackupHistory;
+import com.google.jenkins.plugins.cloudbackup.scope.Scope;
+import com.google.jenkins.plugins.cloudbackup.storage.Storage;
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+import com.google.jenkins.plugins.cloudbackup.volume.zip.ZipVolume;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link PipelinedBackupProcedure}.
+ */
+public class PipelinedBackupProcedureTest {
+  private static final int FILE_COUNT = 5;
+  private static final int FILE_SIZE = 100;
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Mock
+  private Scope scope;
+
+  @Mock
+  private Storage storage;
+
+  @Mock
+  private BackupHistory backupHistory;
+
+  private Path jenkinsHome;
+  private Path scratchDir;
+  private Path storedDir;
+  private final Volume volume = new ZipVolume();
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    jenkinsHome = tempFolder.newFolder("home").toPath();
+    scratchDir = tempFolder.newFolder("scratch").toPath();
+    storedDir = tempFolder.newFolder("stored").toPath();
+    for (int i = 0; i < FILE_COUNT; i++) {
+      Files.write(jenkinsHome.resolve("file" + i), new byte[FILE_SIZE]);
+    }
+    doAnswer(new Answer<Void>() {
+      @Override
+      @SuppressWarnings("unchecked")
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        Volume.Creator creator = (Volume.Creator) invocation.getArguments()[1];
+        Set<String> existingFiles = (Set<String>) invocation.getArguments()[2];
+        for (int i = 0; i < FILE_COUNT; i++) {
+          existingFiles.add("file" + i);
+          creator.addFile(jenkinsHome.resolve("file" + i), "file" + i, null);
+        }
+        return null;
+      }
+    }).when(scope).addFiles(any(Path.class), any(Volume.Creator.class),
+        any(Set.class));
+  }
+
+  @Test
+  public void testPerformBackup_shouldStoreAllFilesInSegments()
+      throws Exception {
+    keepStoredFiles(Integer.MAX_VALUE);
+
+    newProcedure().performBackup();
+
+    List<String> segments = captureLastBackup();
+    assertTrue(segments.size() >= FILE_COUNT / 2);
+    List<String> sortedSegments = new ArrayList<>(segments);
+    Collections.sort(sortedSegments);
+    assertEquals(sortedSegments, segments);
+    List<String> entries = new ArrayList<>();
+    for (String segment : segments) {
+      assertTrue(segment.matches("backup-\\d{14}-part\\d{3}\\.zip"));
+      try (Volume.Extractor extractor =
+          volume.extract(storedDir.resolve(segment))) {
+        for (Volume.Entry entry : extractor) {
+          entries.add(entry.getName());
+        }
+      }
+    }
+    Collections.sort(entries);
+    assertEquals(FILE_COUNT, entries.size());
+    assertEquals("file0", entries.get(0));
+    assertEquals(0, scratchDir.toFile().list().length);
+  }
+
+  @Test
+  public void testPerformBackup_uploadFails_shouldDeleteStoredSegments()
+      throws Exception {
+    keepStoredFiles(1);
+
+    try {
+      newProcedure().performBackup();
+      fail("IOException expected");
+    } catch (IOException expected) {
+      // expected
+    }
+
+    ArgumentCaptor<String> storedCaptor = ArgumentCaptor.forClass(String.class);
+    verify(storage, atLeast(2))
+        .storeFile(any(Path.class), storedCaptor.capture());
+    verify(storage).deleteFile(storedCaptor.getAllValues().get(0));
+    verify(storage, never()).updateLastBackup(anyListOf(String.class));
+    assertEquals(0, scratchDir.toFile().list().length);
+  }
+
+  @Test
+  public void testPerformBackup_shardBySubScope_shouldNotMixSubScopes()
+      throws Exception {
+    keepStoredFiles(Integer.MAX_VALUE);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        Volume.Creator creator = (Volume.Creator) invocation.getArguments()[1];
+        for (int i = 0; i < FILE_COUNT; i++) {
+          String subScope = i < 2 ? "a/" : "b/";
+          creator.addFile(jenkinsHome.resolve("file" + i),
+              subScope + "file" + i, null);
+        }
+        return null;
+      }
+    }).when(scope).addFiles(any(Path.class), any(Volume.Creator.class),
+        any(Set.class));
+
+    // a single compression thread without a size limit
+    new PipelinedBackupProcedure(volume, scope, storage, backupHistory,
+        jenkinsHome, scratchDir, null, MoreExecutors.sameThreadExecutor(), 1,
+        0, 2, true).performBackup();
+
+    List<String> segments = captureLastBackup();
+    assertEquals(2, segments.size());
+    List<String> firstSegment = new ArrayList<>();
+    try (Volume.Extractor extractor =
+        volume.extract(storedDir.resolve(segments.get(0)))) {
+      for (Volume.Entry entry : extractor) {
+        firstSegment.add(entry.getName());
+      }
+    }
+    Collections.sort(firstSegment);
+    assertEquals(Arrays.asList("a/file0", "a/file1"), firstSegment);
+  }
+
+  @Test
+  public void testPerformBackup_unchangedFiles_shouldStoreNoSegments()
+      throws Exception {
+    keepStoredFiles(Integer.MAX_VALUE);
+    FileSignatures signatures =
+        new FileSignatures(tempFolder.newFolder("signatures").toPath());
+    PipelinedBackupProcedure fullBackup =
+        newProcedure(new FingerprintingVolume(volume, signatures,
+            FingerprintingVolume.DEFAULT_MAX_SIZE_BYTES, false));
+    fullBackup.setFileSignatures(signatures, true);
+    fullBackup.performBackup();
+    List<String> segments = captureLastBackup();
+
+    PipelinedBackupProcedure incrementalBackup =
+        newProcedure(new FingerprintingVolume(volume, signatures,
+            FingerprintingVolume.DEFAULT_MAX_SIZE_BYTES, true));
+    incrementalBackup.setFileSignatures(signatures, false);
+    incrementalBackup.performBackup();
+
+    // only the segments of the full backup are stored, and nothing else is
+    // updated by the incremental backup
+    verify(storage, times(segments.size()))
+        .storeFile(any(Path.class), anyString());
+    verify(storage).updateExistingFilesMetaData(anySetOf(String.class));
+    assertEquals(0, scratchDir.toFile().list().length);
+  }
+
+  private PipelinedBackupProcedure newProcedure() {
+    return newProcedure(volume);
+  }
+
+  private PipelinedBackupProcedure newProcedure(Volume backupVolume) {
+    // two files per segment
+    return new PipelinedBackupProcedure(backupVolume, scope, storage,
+        backupHistory, jenkinsHome, scratchDir, null,
+        MoreExecutors.sameThreadExecutor(), 2, 2 * FILE_SIZE);
+  }
+
+  /**
+   * Copies the given number of stored segments to the stored directory, and
+   * fails storing any further segment.
+   */
+  private void keepStoredFiles(final int maxStoredFiles) throws Exception {
+    final AtomicInteger storedFiles = new AtomicInteger();
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        if (storedFiles.incrementAndGet() > maxStoredFiles) {
+          throw new IOException("upload failed");
+        }
+        Path file = (Path) invocation.getArguments()[0];
+        String name = (String) invocation.getArguments()[1];
+        Files.copy(file, storedDir.resolve(name));
+        return null;
+      }
+    }).when(storage).storeFile(any(Path.class), anyString());
+  }
+
+  private List<String> captureLastBackup() throws Exception {
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<List<String>> captor =
+        (ArgumentCaptor<List<String>>) (ArgumentCaptor<?>)
+            ArgumentCaptor.forClass(List.class);
+    verify(storage).updateLastBackup(captor.capture());
+    return captor.getValue();
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.backup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.jenkins.plugins.cloudbackup.history.BackupHistory;
+import com.google.jenkins.plugins.cloudbackup.scope.Scope;
+import com.google.jenkins.plugins.cloudbackup.storage.Storage;
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Tests for {@link SyntheticFullBackupProcedure}.
+ */
+public class SyntheticFullBackupProcedureTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Mock
+  private Volume volume;
+
+  @Mock
+  private Volume.Creator volumeCreator;
+
+  @Mock
+  private Volume.Extractor fullExtractor;
+
+  @Mock
+  private Volume.Extractor incrementalExtractor;
+
+  @Mock
+  private Scope scope;
+
+  @Mock
+  private Storage storage;
+
+  @Mock
+  private BackupHistory backupHistory;
+
+  @Mock
+  private Path jenkinsHome;
+
+  private Path tempDir;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    tempDir = tempFolder.getRoot().toPath();
+    when(volume.getFileExtension()).thenReturn("test");
+    when(volume.createNew(any(Path.class))).thenReturn(volumeCreator);
+    when(volumeCreator.getFileCount()).thenReturn(1); // must be > 0
+  }
+
+  @Test
+  public void testPerformBackup_withChain_shouldMergeChain() throws Exception {
+    when(storage.findLatestBackup()).thenReturn(Arrays.asList(
+        "backup-1.test", "backup-2-incremental.test"));
+    when(storage.listMetadataForExistingFiles())
+        .thenReturn(Arrays.asList("a", "b"));
+    when(volume.extract(any(Path.class)))
+        .thenReturn(fullExtractor, incrementalExtractor);
+    DateTime lastBackupTime = new DateTime(2016, 1, 1, 0, 0);
+
+    BackupProcedure backupProcedure = new SyntheticFullBackupProcedure(
+        volume, scope, storage, backupHistory, jenkinsHome, tempDir,
+        lastBackupTime, MoreExecutors.sameThreadExecutor());
+    DateTime backupTime = backupProcedure.performBackup();
+
+    InOrder inOrder = inOrder(storage, scope);
+    inOrder.verify(storage).loadFile(eq("backup-1.test"), any(Path.class));
+    inOrder.verify(scope).extractFiles(
+        any(Path.class), same(fullExtractor), eq(true), anyMap());
+    inOrder.verify(storage).loadFile(
+        eq("backup-2-incremental.test"), any(Path.class));
+    inOrder.verify(scope).extractFiles(
+        any(Path.class), same(incrementalExtractor), eq(true), anyMap());
+    inOrder.verify(scope).addFiles(
+        any(Path.class), same(volumeCreator), any(Set.class));
+    verify(scope, never()).addFiles(
+        same(jenkinsHome), any(Volume.Creator.class), any(Set.class));
+    ArgumentCaptor<String> backupVolumeNameCapture =
+        ArgumentCaptor.forClass(String.class);
+    verify(storage).storeFile(
+        any(Path.class), backupVolumeNameCapture.capture());
+    assertTrue(backupVolumeNameCapture.getValue().endsWith("-synthetic.test"));
+    assertEquals(lastBackupTime, backupTime);
+  }
+
+  @Test
+  public void testPerformBackup_withoutChain_shouldReadJenkinsHome()
+      throws Exception {
+    when(storage.findLatestBackup()).thenReturn(
+        Collections.<String>emptyList());
+    DateTime lastBackupTime = new DateTime(2016, 1, 1, 0, 0);
+
+    BackupProcedure backupProcedure = new SyntheticFullBackupProcedure(
+        volume, scope, storage, backupHistory, jenkinsHome, tempDir,
+        lastBackupTime, MoreExecutors.sameThreadExecutor());
+    DateTime backupTime = backupProcedure.performBackup();
+
+    verify(scope).addFiles(
+        same(jenkinsHome), same(volumeCreator), any(Set.class));
+    assertTrue(backupTime.isAfter(lastBackupTime));
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.backup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+import com.google.jenkins.plugins.cloudbackup.volume.zip.ZipVolume;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * Tests for {@link TailDeltaVolume}.
+ */
+public class TailDeltaVolumeTest {
+
+  private static final String LOG_PATH = "jobs/job/builds/1/log";
+
+  private Path tempDirectory;
+  private Path log;
+  private FileSignatures signatures;
+  private Volume volume;
+  private Random random;
+
+  @Before
+  public void setUp() throws Exception {
+    tempDirectory =
+        Files.createTempDirectory(TailDeltaVolumeTest.class.getSimpleName());
+    log = tempDirectory.resolve("log");
+    signatures = new FileSignatures(tempDirectory);
+    volume = new TailDeltaVolume(new ZipVolume(), signatures);
+    random = new Random(42);
+    Files.write(log, randomBytes((int) TailDeltaVolume.MIN_SIZE_BYTES + 100));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    deleteDirectory(tempDirectory);
+  }
+
+  @Test
+  public void testIsBuildLog() throws Exception {
+    assertTrue(TailDeltaVolume.isBuildLog("jobs/job/builds/1/log"));
+    assertTrue(TailDeltaVolume.isBuildLog(
+        "jobs/folder/jobs/job/builds/12/log"));
+    assertFalse(TailDeltaVolume.isBuildLog("jobs/job/builds/1/build.xml"));
+    assertFalse(TailDeltaVolume.isBuildLog("jobs/job/log"));
+    assertFalse(TailDeltaVolume.isBuildLog("log"));
+  }
+
+  @Test
+  public void testStoreTailOfAppendedLog() throws Exception {
+    Path first = backup("first.zip");
+    Files.write(log, randomBytes(100), StandardOpenOption.APPEND);
+    Path second = backup("second.zip");
+
+    assertTrue(Files.size(second) < 1000);
+    Path target = tempDirectory.resolve("restored");
+    extract(first, target);
+    extract(second, target);
+    assertArrayEquals(Files.readAllBytes(log), Files.readAllBytes(target));
+    // extracting the tail again, e.g. when resuming a restore, is harmless
+    extract(second, target);
+    assertArrayEquals(Files.readAllBytes(log), Files.readAllBytes(target));
+  }
+
+  @Test
+  public void testStoreWholeLogIfPrefixChanged() throws Exception {
+    backup("first.zip");
+    byte[] content = randomBytes((int) TailDeltaVolume.MIN_SIZE_BYTES + 200);
+    Files.write(log, content);
+    Path second = backup("second.zip");
+
+    assertTrue(Files.size(second) > TailDeltaVolume.MIN_SIZE_BYTES);
+    Path target = tempDirectory.resolve("restored");
+    extract(second, target);
+    assertArrayEquals(content, Files.readAllBytes(target));
+  }
+
+  @Test
+  public void testStoreWholeLogWithoutCommittedSignature() throws Exception {
+    signatures.begin();
+    createVolume(tempDirectory.resolve("failed.zip"));
+    // the first backup failed, so it is not committed
+    Files.write(log, randomBytes(100), StandardOpenOption.APPEND);
+    Path second = backup("second.zip");
+
+    assertTrue(Files.size(second) > TailDeltaVolume.MIN_SIZE_BYTES);
+  }
+
+  @Test
+  public void testExtractTailWithoutBase() throws Exception {
+    backup("first.zip");
+    Files.write(log, randomBytes(100), StandardOpenOption.APPEND);
+    Path second = backup("second.zip");
+
+    try {
+      extract(second, tempDirectory.resolve("restored"));
+      fail("Expected IOException");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private Path backup(String volumeName) throws IOException {
+    Path volumePath = tempDirectory.resolve(volumeName);
+    signatures.begin();
+    createVolume(volumePath);
+    signatures.commit();
+    return volumePath;
+  }
+
+  private void createVolume(Path volumePath) throws IOException {
+    try (Volume.Creator creator = volume.createNew(volumePath)) {
+      creator.addFile(log, LOG_PATH, null);
+    }
+  }
+
+  private void extract(Path volumePath, Path target) throws IOException {
+    try (Volume.Extractor extractor = volume.extract(volumePath)) {
+      for (Volume.Entry entry : extractor) {
+        entry.extractTo(target);
+      }
+    }
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static void deleteDirectory(Path dir) throws IOException {
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+          throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e)
+          throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.jenkins.plugins.cloudbackup.storage.Storage;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link GrandfatherFatherSonBackupHistory}.
+ */
+public class GrandfatherFatherSonBackupHistoryTest {
+  private static final String LATEST = "backup-20160115120000.zip";
+
+  @Mock
+  private Storage storage;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(storage.findLatestBackup()).thenReturn(
+        new ArrayList<>(Arrays.asList(LATEST)));
+  }
+
+  @Test
+  public void testProcessHistoricBackups_shouldKeepNewestPerPeriod()
+      throws Exception {
+    when(storage.listFiles()).thenReturn(Arrays.asList(
+        // last week, kept as weekly backup
+        "backup-20160108120000.zip",
+        "backup-20160108120300-incremental.zip",
+        // two days ago, older backup of the day is deleted
+        "backup-20160113100000.zip",
+        "backup-20160113100300-incremental.zip",
+        "backup-20160113110000.zip",
+        // yesterday, kept as daily backup
+        "backup-20160114110000.zip",
+        // one hour ago, kept as hourly backup and also newest of the day
+        "backup-20160115110000.zip",
+        "backup-20160115110300-incremental.zip",
+        // current chain
+        LATEST,
+        // newer than the latest backup, not yet recorded
+        "backup-20160115120300-incremental.zip",
+        // not a backup
+        "README"));
+
+    new GrandfatherFatherSonBackupHistory(1, 3, 2)
+        .processHistoricBackups(storage, LATEST);
+
+    assertEquals(Arrays.asList(
+        "backup-20160113100000.zip",
+        "backup-20160113100300-incremental.zip"),
+        captureDeletedFiles());
+  }
+
+  @Test
+  public void testProcessHistoricBackups_segmentedBackups_shouldKeepChains()
+      throws Exception {
+    when(storage.listFiles()).thenReturn(Arrays.asList(
+        // two days ago, deleted with all its segments
+        "backup-20160113110000-part000.zip",
+        "backup-20160113110000-part001.zip",
+        "backup-20160113110300-incremental-part000.zip",
+        // yesterday, kept as daily backup with all its segments
+        "backup-20160114110000-part000.zip",
+        "backup-20160114110000-part001.zip",
+        "backup-20160114110300-incremental-part000.zip",
+        LATEST));
+
+    new GrandfatherFatherSonBackupHistory(0, 1, 0)
+        .processHistoricBackups(storage, LATEST);
+
+    assertEquals(Arrays.asList(
+        "backup-20160113110000-part000.zip",
+        "backup-20160113110000-part001.zip",
+        "backup-20160113110300-incremental-part000.zip"),
+        captureDeletedFiles());
+  }
+
+  @Test
+  public void testProcessHistoricBackups_manyBackups_shouldBoundKeptChains()
+      throws Exception {
+    List<String> files = new ArrayList<>();
+    // a full backup every hour for four weeks, each with incrementals
+    for (int day = 1; day <= 28; day++) {
+      for (int hour = 0; hour < 24; hour++) {
+        String prefix = String.format("backup-201512%02d%02d", day, hour);
+        files.add(prefix + "0000.zip");
+        for (int minute = 3; minute < 60; minute += 3) {
+          files.add(String.format("%s%02d00-incremental.zip", prefix, minute));
+        }
+      }
+    }
+    files.add(LATEST);
+    when(storage.listFiles()).thenReturn(files);
+
+    new GrandfatherFatherSonBackupHistory(24, 7, 4)
+        .processHistoricBackups(storage, LATEST);
+
+    // the current chain, plus at most one chain for each period
+    int maxKeptChains = 1 + 24 + 7 + 4;
+    int keptFiles = files.size() - captureDeletedFiles().size();
+    assertTrue(keptFiles <= 1 + (maxKeptChains - 1) * 20);
+    assertTrue(keptFiles > 1);
+  }
+
+  private List<String> captureDeletedFiles() throws Exception {
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<List<String>> captor =
+        (ArgumentCaptor<List<String>>) (ArgumentCaptor<?>)
+            ArgumentCaptor.forClass(List.class);
+    verify(storage).deleteFiles(captor.capture());
+    List<String> deleted = new ArrayList<>(captor.getValue());
+    Collections.sort(deleted);
+    return deleted;
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.history;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.jenkins.plugins.cloudbackup.storage.LocalFileStorage;
+import com.google.jenkins.plugins.cloudbackup.storage.Storage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link KeepLatestBackupHistory}.
+ */
+public class KeepLatestBackupHistoryTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Path storageDir;
+  private Storage storage;
+
+  @Before
+  public void setUp() throws Exception {
+    storageDir = tempFolder.getRoot().toPath();
+    storage = new LocalFileStorage(storageDir);
+  }
+
+  @Test
+  public void testProcessHistoricBackups_shouldDeleteOlderBackups()
+      throws Exception {
+    createFiles("backup-20160101000000.zip",
+        "backup-20160101000300-incremental.zip",
+        "backup-20160101010000.zip",
+        "backup-20160101010300-incremental.zip");
+    storage.updateLastBackup(Arrays.asList("backup-20160101010000.zip",
+        "backup-20160101010300-incremental.zip"));
+    storage.updateExistingFilesMetaData(
+        Collections.singleton("jobs/job/config.xml"));
+
+    new KeepLatestBackupHistory().processHistoricBackups(
+        storage, "backup-20160101010000.zip");
+
+    List<String> files = storage.listFiles();
+    Collections.sort(files);
+    assertEquals(Arrays.asList("backup-20160101010000.zip",
+        "backup-20160101010300-incremental.zip"), files);
+    // internal files must survive
+    assertEquals(Arrays.asList("jobs/job/config.xml"),
+        storage.listMetadataForExistingFiles());
+    assertEquals(2, storage.findLatestBackup().size());
+  }
+
+  @Test
+  public void testProcessHistoricBackups_shouldKeepNewerBackups()
+      throws Exception {
+    createFiles("backup-20160101000000.zip",
+        "backup-20160101010000.zip",
+        "backup-20160101010300-incremental.zip");
+    // the incremental was stored, but not yet recorded as part of the chain
+    storage.updateLastBackup(Arrays.asList("backup-20160101010000.zip"));
+
+    new KeepLatestBackupHistory().processHistoricBackups(
+        storage, "backup-20160101010000.zip");
+
+    List<String> files = storage.listFiles();
+    Collections.sort(files);
+    assertEquals(Arrays.asList("backup-20160101010000.zip",
+        "backup-20160101010300-incremental.zip"), files);
+  }
+
+  private void createFiles(String... filenames) throws Exception {
+    for (String filename : filenames) {
+      Files.createFile(storageDir.resolve(filename));
+    }
+  }
+}
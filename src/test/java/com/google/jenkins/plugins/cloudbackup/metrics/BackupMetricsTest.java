@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Tests for {@link BackupMetrics}.
+ */
+public class BackupMetricsTest {
+
+  private BackupMetrics metrics;
+
+  @Before
+  public void setUp() {
+    metrics = new BackupMetrics();
+  }
+
+  @Test
+  public void testRecord_shouldKeepCountTotalMaxAndLast() throws Exception {
+    metrics.record(BackupMetrics.Phase.UPLOAD, TimeUnit.SECONDS.toNanos(3));
+    metrics.record(BackupMetrics.Phase.UPLOAD, TimeUnit.SECONDS.toNanos(1));
+
+    Map<String, Long> snapshot = metrics.getSnapshot();
+    assertEquals(Long.valueOf(2), snapshot.get("UploadCount"));
+    assertEquals(Long.valueOf(4000), snapshot.get("UploadTotalMillis"));
+    assertEquals(Long.valueOf(3000), snapshot.get("UploadMaxMillis"));
+    assertEquals(Long.valueOf(1000), snapshot.get("UploadLastMillis"));
+    assertEquals(TimeUnit.SECONDS.toNanos(4),
+        metrics.getTotalNanos(BackupMetrics.Phase.UPLOAD));
+  }
+
+  @Test
+  public void testCountersAndGauges_shouldBeAttributes() throws Exception {
+    metrics.increment(BackupMetrics.Counter.BYTES_UPLOADED, 100);
+    metrics.increment(BackupMetrics.Counter.BYTES_UPLOADED, 20);
+    metrics.set(BackupMetrics.Gauge.INCREMENTAL_CHAIN_LENGTH, 5);
+    metrics.set(BackupMetrics.Gauge.INCREMENTAL_CHAIN_LENGTH, 2);
+
+    assertEquals(120L, metrics.getAttribute("BytesUploaded"));
+    assertEquals(2L, metrics.getAttribute("IncrementalChainLength"));
+    assertEquals(0L, metrics.getAttribute("FilesSkipped"));
+  }
+
+  @Test(expected = AttributeNotFoundException.class)
+  public void testGetAttribute_unknown_shouldThrow() throws Exception {
+    metrics.getAttribute("Unknown");
+  }
+
+  @Test
+  public void testInvoke_shouldThrowNoSuchMethod() throws Exception {
+    try {
+      metrics.invoke("reset", new Object[0], new String[0]);
+      fail("Expected ReflectionException");
+    } catch (ReflectionException e) {
+      assertTrue(e.getTargetException() instanceof NoSuchMethodException);
+    }
+  }
+
+  @Test
+  public void testGetMBeanInfo_shouldDescribeAllValues() {
+    MBeanAttributeInfo[] attributes =
+        metrics.getMBeanInfo().getAttributes();
+
+    assertEquals(metrics.getSnapshot().size(), attributes.length);
+    for (MBeanAttributeInfo attribute : attributes) {
+      assertTrue(attribute.isReadable());
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link BackupRun} and {@link BackupRunHistory}.
+ */
+public class BackupRunHistoryTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Path jenkinsHome;
+  private BackupMetrics metrics;
+
+  @Before
+  public void setUp() throws Exception {
+    jenkinsHome = tempFolder.newFolder().toPath();
+    metrics = new BackupMetrics();
+  }
+
+  @Test
+  public void testRecorder_shouldRecordDifferencesDuringRun()
+      throws Exception {
+    metrics.increment(BackupMetrics.Counter.BYTES_READ, 1000);
+    metrics.record(BackupMetrics.Phase.UPLOAD, TimeUnit.SECONDS.toNanos(5));
+    metrics.recordFile("jobs/old/config.xml", TimeUnit.SECONDS.toNanos(9));
+
+    BackupRun.Recorder recorder = BackupRun.start("Full", metrics);
+    metrics.increment(BackupMetrics.Counter.BYTES_READ, 300);
+    metrics.increment(BackupMetrics.Counter.FILES_VISITED, 3);
+    metrics.record(BackupMetrics.Phase.UPLOAD, TimeUnit.SECONDS.toNanos(2));
+    metrics.recordFile("jobs/a/builds/1/log", TimeUnit.SECONDS.toNanos(1));
+    metrics.recordFile("jobs/a/builds/1/build.xml",
+        TimeUnit.SECONDS.toNanos(3));
+    metrics.recordFile("config.xml", TimeUnit.SECONDS.toNanos(2));
+    BackupRun run = recorder.finish(true);
+
+    assertEquals("Full", run.getKind());
+    assertTrue(run.isSuccess());
+    assertEquals(300, run.getBytesRead());
+    assertEquals(3, run.getFilesVisited());
+    assertEquals(Long.valueOf(2000), run.getPhaseMillis().get("Upload"));
+    assertFalse(run.getPhaseMillis().containsKey("Walk"));
+    assertEquals("[jobs/a/builds/1/build.xml, config.xml, jobs/a/builds/1/log]",
+        run.getSlowestFiles().keySet().toString());
+    Map<String, Long> directories = run.getSlowestDirectories();
+    assertEquals("[jobs/a/builds/1, .]", directories.keySet().toString());
+    assertEquals(Long.valueOf(4000), directories.get("jobs/a/builds/1"));
+  }
+
+  @Test
+  public void testRecorder_shouldExcludeBackgroundWork() throws Exception {
+    Executor sameThread = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    };
+
+    BackupRun.Recorder recorder = BackupRun.start("Incremental", metrics);
+    metrics.increment(BackupMetrics.Counter.BYTES_READ, 300);
+    metrics.backgroundExecutor(sameThread).execute(new Runnable() {
+      @Override
+      public void run() {
+        // e.g. compacting the backup chain
+        metrics.increment(BackupMetrics.Counter.BYTES_READ, 5000);
+        metrics.record(BackupMetrics.Phase.COMPRESS,
+            TimeUnit.SECONDS.toNanos(7));
+        metrics.recordFile("jobs/a/config.xml", TimeUnit.SECONDS.toNanos(7));
+      }
+    });
+    BackupRun run = recorder.finish(true);
+
+    assertEquals(300, run.getBytesRead());
+    assertFalse(run.getPhaseMillis().containsKey("Compress"));
+    assertTrue(run.getSlowestFiles().isEmpty());
+    assertEquals(5300, metrics.get(BackupMetrics.Counter.BYTES_READ));
+    assertEquals(TimeUnit.SECONDS.toNanos(7),
+        metrics.getTotalNanos(BackupMetrics.Phase.COMPRESS));
+  }
+
+  @Test
+  public void testAdd_shouldPersistRuns() throws Exception {
+    BackupRunHistory history = new BackupRunHistory(jenkinsHome);
+    BackupRun.Recorder recorder = BackupRun.start("Incremental", metrics);
+    metrics.increment(BackupMetrics.Counter.BYTES_UPLOADED, 42);
+    metrics.record(BackupMetrics.Phase.WALK, TimeUnit.SECONDS.toNanos(1));
+    metrics.recordFile("jobs/with,comma=and\ttab/log", 0);
+    history.add(recorder.finish(false));
+
+    BackupRunHistory reloaded = new BackupRunHistory(jenkinsHome);
+    reloaded.load();
+
+    List<BackupRun> runs = reloaded.getRuns();
+    assertEquals(1, runs.size());
+    BackupRun run = runs.get(0);
+    assertEquals("Incremental", run.getKind());
+    assertFalse(run.isSuccess());
+    assertEquals(42, run.getBytesUploaded());
+    assertEquals(Long.valueOf(1000), run.getPhaseMillis().get("Walk"));
+    assertTrue(
+        run.getSlowestFiles().containsKey("jobs/with,comma=and\ttab/log"));
+  }
+
+  @Test
+  public void testAdd_shouldKeepMostRecentRuns() throws Exception {
+    BackupRunHistory history = new BackupRunHistory(jenkinsHome, 2);
+    history.add(BackupRun.start("Full", metrics).finish(true));
+    history.add(BackupRun.start("Incremental", metrics).finish(true));
+    history.add(BackupRun.start("Restore", metrics).finish(true));
+
+    List<BackupRun> runs = history.getRuns();
+    assertEquals(2, runs.size());
+    assertEquals("Restore", runs.get(0).getKind());
+    assertEquals("Incremental", runs.get(1).getKind());
+  }
+
+  @Test
+  public void testLoad_shouldIgnoreMalformedLines() throws Exception {
+    Files.write(
+        jenkinsHome.resolve(BackupRunHistory.HISTORY_FILENAME),
+        "garbage\n".getBytes("UTF-8"));
+    BackupRunHistory history = new BackupRunHistory(jenkinsHome);
+
+    history.load();
+
+    assertTrue(history.getRuns().isEmpty());
+  }
+}
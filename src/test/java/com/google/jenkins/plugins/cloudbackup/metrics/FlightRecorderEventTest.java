@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.metrics;
+
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import com.google.jenkins.plugins.cloudbackup.storage.Storage;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Tests for {@link FlightRecorderEvent} and {@link MeteredStorage}, without a
+ * running recording.
+ */
+public class FlightRecorderEventTest {
+
+  @Test
+  public void testBegin_withoutRecording_shouldBeDisabled() {
+    for (FlightRecorderEvent.Type type : FlightRecorderEvent.Type.values()) {
+      assertFalse(type.isEnabled());
+      FlightRecorderEvent event = FlightRecorderEvent.begin(type);
+      assertFalse(event.isEnabled());
+      event.commit("ignored", 1L);  // no-op
+    }
+  }
+
+  @Test
+  public void testMeteredStorage_shouldForwardTransfers() throws Exception {
+    Storage storage = mock(Storage.class);
+    Path path = Paths.get("volume.zip");
+    MeteredStorage meteredStorage = new MeteredStorage(storage);
+
+    meteredStorage.storeFile(path, "backup-1.zip");
+    meteredStorage.loadFile("backup-1.zip", path);
+
+    verify(storage).storeFile(path, "backup-1.zip");
+    verify(storage).loadFile("backup-1.zip", path);
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.restore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests for {@link RestoreJournal}.
+ */
+public class RestoreJournalTest {
+  private static final List<String> CHAIN =
+      Arrays.asList("backup-1.zip", "backup-2-incremental.zip");
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Path jenkinsHome;
+  private Volume.Extractor extractor;
+  private final List<Volume.Entry> entries = new ArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    jenkinsHome = tempFolder.getRoot().toPath();
+    for (int i = 0; i < 1200; i++) {
+      Volume.Entry entry = mock(Volume.Entry.class);
+      when(entry.getName()).thenReturn("file" + i);
+      entries.add(entry);
+    }
+    extractor = mock(Volume.Extractor.class);
+    when(extractor.iterator()).thenAnswer(new Answer<Iterator<Volume.Entry>>() {
+      @Override
+      public Iterator<Volume.Entry> answer(InvocationOnMock invocation) {
+        return entries.iterator();
+      }
+    });
+  }
+
+  @Test
+  public void testJournal_interrupted_shouldResumeAtLastCheckpoint()
+      throws Exception {
+    RestoreJournal journal = new RestoreJournal(jenkinsHome);
+    journal.start(CHAIN);
+    Iterator<Volume.Entry> iterator =
+        journal.journal("backup-1.zip", extractor).iterator();
+    for (int i = 0; i < 700; i++) {
+      iterator.next();
+    }
+    // interrupted, a new journal reads the progress from disk
+
+    RestoreJournal resumed = new RestoreJournal(jenkinsHome);
+    resumed.start(CHAIN);
+    assertFalse(resumed.isCompleted("backup-1.zip"));
+    iterator = resumed.journal("backup-1.zip", extractor).iterator();
+    assertEquals("file500", iterator.next().getName());
+  }
+
+  @Test
+  public void testJournal_completedIteration_shouldBeSkipped()
+      throws Exception {
+    RestoreJournal journal = new RestoreJournal(jenkinsHome);
+    journal.start(CHAIN);
+    Volume.Extractor journaled = journal.journal("backup-1.zip", extractor);
+    for (Iterator<Volume.Entry> it = journaled.iterator(); it.hasNext();) {
+      it.next();
+    }
+    journaled.iterator().next();
+
+    RestoreJournal resumed = new RestoreJournal(jenkinsHome);
+    resumed.start(CHAIN);
+    journaled = resumed.journal("backup-1.zip", extractor);
+    assertFalse(journaled.iterator().hasNext());
+    assertEquals("file0", journaled.iterator().next().getName());
+  }
+
+  @Test
+  public void testMarkCompleted_shouldSurviveRestart() throws Exception {
+    RestoreJournal journal = new RestoreJournal(jenkinsHome);
+    journal.start(CHAIN);
+    journal.markCompleted("backup-1.zip");
+
+    RestoreJournal resumed = new RestoreJournal(jenkinsHome);
+    resumed.start(CHAIN);
+    assertTrue(resumed.isCompleted("backup-1.zip"));
+    assertFalse(resumed.isCompleted("backup-2-incremental.zip"));
+  }
+
+  @Test
+  public void testStart_differentChain_shouldStartOver() throws Exception {
+    RestoreJournal journal = new RestoreJournal(jenkinsHome);
+    journal.start(CHAIN);
+    journal.markCompleted("backup-1.zip");
+
+    RestoreJournal resumed = new RestoreJournal(jenkinsHome);
+    resumed.start(Arrays.asList("backup-1.zip", "backup-3-incremental.zip"));
+    assertFalse(resumed.isCompleted("backup-1.zip"));
+  }
+
+  @Test
+  public void testDelete_shouldRemoveJournal() throws Exception {
+    RestoreJournal journal = new RestoreJournal(jenkinsHome);
+    journal.start(CHAIN);
+    journal.markCompleted("backup-1.zip");
+    journal.delete();
+
+    assertEquals(0, jenkinsHome.toFile().list().length);
+  }
+}
@@ -15,11 +15,13 @@
  */
 package com.google.jenkins.plugins.cloudbackup.restore;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -31,7 +33,9 @@ import com.google.jenkins.plugins.cloudbackup.volume.Volume;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.Mock;
@@ -43,6 +47,8 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -54,6 +60,9 @@ public class RestoreProcedureTest {
 
   private static final int MAX_SLEEP_TIME_MS = 50;
 
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
   @Mock private Volume volume;
   @Mock private Volume.Extractor volumeExtractor;
   @Mock private Scope scope;
@@ -159,6 +168,78 @@ public class RestoreProcedureTest {
     verifyNoMoreInteractions(initiationStrategy, volume, scope, storage);
   }
 
+  @Test
+  public void testShardedBackups_shouldExtractBackupsInOrder()
+      throws Exception {
+    final List<String> backups = Arrays.asList(
+        "backup-20160101000000-part000.zip",
+        "backup-20160101000000-part001.zip",
+        "backup-20160101000000-part002.zip",
+        "backup-20160101000300-incremental-part000.zip");
+    final List<String> extracted =
+        Collections.synchronizedList(new ArrayList<String>());
+    when(storage.findLatestBackup()).thenReturn(backups);
+    when(storage.listMetadataForExistingFiles())
+        .thenReturn(Arrays.asList("jobs/config.xml"));
+    doAnswer(new Answer<Volume.Extractor>() {
+      @Override
+      public Volume.Extractor answer(InvocationOnMock invocation)
+          throws Throwable {
+        Thread.sleep(new Random().nextInt(MAX_SLEEP_TIME_MS));
+        extracted.add(
+            ((Path) invocation.getArguments()[0]).getFileName().toString());
+        return volumeExtractor;
+      }
+    }).when(volume).extract(any(Path.class));
+
+    restoreProcedure.performRestore();
+
+    assertEquals(backups.size(), extracted.size());
+    assertEquals(new HashSet<>(backups.subList(0, 3)),
+        new HashSet<>(extracted.subList(0, 3)));
+    assertEquals(backups.get(3), extracted.get(3));
+  }
+
+  @Test
+  public void testInterruptedRestore_shouldSkipRestoredVolumes()
+      throws Exception {
+    final List<String> backups = Arrays.asList(
+        "backup-20160101000000.zip",
+        "backup-20160101000300-incremental.zip");
+    when(storage.findLatestBackup()).thenReturn(backups);
+    when(storage.listMetadataForExistingFiles())
+        .thenReturn(Arrays.asList("jobs/config.xml"));
+    when(volume.extract(any(Path.class))).thenReturn(volumeExtractor);
+    Path journalDir = tempFolder.getRoot().toPath();
+    RestoreJournal interrupted = new RestoreJournal(journalDir);
+    interrupted.start(backups);
+    interrupted.markCompleted(backups.get(0));
+
+    new RestoreProcedure(volume, scope, storage, initiationStrategy,
+        jenkinsHome, null, false, new RestoreJournal(journalDir))
+        .performRestore();
+
+    verify(storage, never()).loadFile(eq(backups.get(0)), any(Path.class));
+    verify(storage).loadFile(eq(backups.get(1)), any(Path.class));
+    verify(scope).extractFiles(eq(jenkinsHome), any(Volume.Extractor.class),
+        eq(false), any(Map.class));
+    verify(initiationStrategy).initializeRestoredEnvironment(eq(jenkinsHome),
+        eq(backups.get(1)));
+    // the journal is deleted once the restore has finished
+    assertEquals(0, journalDir.toFile().list().length);
+  }
+
+  @Test
+  public void testGetBackupOfVolume() {
+    assertEquals("backup-20160101000000",
+        RestoreProcedure.getBackupOfVolume("backup-20160101000000-part012.zip"));
+    assertEquals("backup-20160101000300-incremental",
+        RestoreProcedure.getBackupOfVolume(
+            "backup-20160101000300-incremental-part000.tar.gz"));
+    assertEquals("backup-20160101000000.zip",
+        RestoreProcedure.getBackupOfVolume("backup-20160101000000.zip"));
+  }
+
   @Test(expected = IOException.class)
   public void testMultipleBackups_shouldTerminateOnFail() throws Exception {
     final int backupCnt = 100;
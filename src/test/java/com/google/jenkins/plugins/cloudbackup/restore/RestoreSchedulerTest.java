@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.restore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link RestoreScheduler}.
+ */
+public class RestoreSchedulerTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Path tempDirectory;
+  private List<List<String>> groups;
+  private final List<String> extracted =
+      Collections.synchronizedList(new ArrayList<String>());
+  private final AtomicInteger volumesAhead = new AtomicInteger();
+  private final AtomicInteger maxVolumesAhead = new AtomicInteger();
+
+  @Before
+  public void setUp() throws Exception {
+    tempDirectory = tempFolder.newFolder().toPath();
+    groups = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      groups.add(Arrays.asList("backup" + i + "-part000",
+          "backup" + i + "-part001"));
+    }
+  }
+
+  @Test
+  public void testRestore_shouldExtractGroupsInOrder() throws Exception {
+    new RestoreScheduler(4, 4, 5, Long.MAX_VALUE)
+        .restore(groups, tempDirectory, new CountingSteps(100));
+
+    assertEquals(40, extracted.size());
+    for (int i = 0; i < extracted.size(); i++) {
+      assertTrue(extracted.get(i).startsWith("backup" + i / 2 + "-"));
+    }
+    assertEquals(0, tempDirectory.toFile().list().length);
+  }
+
+  @Test
+  public void testRestore_shouldBoundVolumesAhead() throws Exception {
+    new RestoreScheduler(8, 4, 3, Long.MAX_VALUE)
+        .restore(groups, tempDirectory, new CountingSteps(100));
+
+    assertEquals(40, extracted.size());
+    assertTrue(maxVolumesAhead.get() <= 3);
+  }
+
+  @Test
+  public void testRestore_shouldBoundBytesAhead() throws Exception {
+    // the next volume is always downloaded, the following ones wait until
+    // it has been extracted
+    new RestoreScheduler(1, 4, 10, 100)
+        .restore(groups, tempDirectory, new CountingSteps(1000));
+
+    assertEquals(40, extracted.size());
+    assertEquals(1, maxVolumesAhead.get());
+  }
+
+  @Test
+  public void testRestore_failedDownload_shouldStopAndCleanUp()
+      throws Exception {
+    try {
+      new RestoreScheduler(4, 4, 5, Long.MAX_VALUE).restore(groups,
+          tempDirectory, new CountingSteps(100) {
+            @Override
+            public void fetch(String volumeName, Path volumePath)
+                throws IOException {
+              if (volumeName.startsWith("backup3-")) {
+                throw new IOException("failed " + volumeName);
+              }
+              super.fetch(volumeName, volumePath);
+            }
+          });
+      throw new AssertionError("IOException expected");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().startsWith("failed backup3-"));
+    }
+    // volumes after the failed one are not extracted
+    for (String volumeName : extracted) {
+      assertTrue(Integer.parseInt(volumeName.substring(
+          "backup".length(), volumeName.indexOf('-'))) < 3);
+    }
+    assertEquals(0, tempDirectory.toFile().list().length);
+  }
+
+  private class CountingSteps implements RestoreScheduler.VolumeSteps {
+    private final int volumeSize;
+
+    private CountingSteps(int volumeSize) {
+      this.volumeSize = volumeSize;
+    }
+
+    @Override
+    public void fetch(String volumeName, Path volumePath)
+        throws IOException {
+      int ahead = volumesAhead.incrementAndGet();
+      synchronized (maxVolumesAhead) {
+        maxVolumesAhead.set(Math.max(maxVolumesAhead.get(), ahead));
+      }
+      Files.write(volumePath, new byte[volumeSize]);
+    }
+
+    @Override
+    public void extract(String volumeName, Path volumePath) {
+      extracted.add(volumeName);
+      volumesAhead.decrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.scope;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.jenkins.plugins.cloudbackup.volume.ForwardingVolumeCreator;
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+import com.google.jenkins.plugins.cloudbackup.volume.zip.ZipVolume;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests for {@link CompletedBuildsScope} and {@link CompletedBuilds}.
+ */
+public class CompletedBuildsScopeTest {
+
+  private static final String BUILD = "jobs/job/builds/1";
+  private static final long PAST_MILLIS = 1000L * 1000 * 1000 * 1000;
+
+  private Path tempDirectory;
+  private Path jenkinsHome;
+  private Path buildDirectory;
+  private CompletedBuilds completedBuilds;
+
+  @Before
+  public void setUp() throws Exception {
+    tempDirectory = Files.createTempDirectory(
+        CompletedBuildsScopeTest.class.getSimpleName());
+    jenkinsHome = tempDirectory.resolve("home");
+    buildDirectory = jenkinsHome.resolve(BUILD);
+    Files.createDirectories(buildDirectory.resolve("archive/empty"));
+    Files.write(buildDirectory.resolve("log"), new byte[10]);
+    Files.write(jenkinsHome.resolve("jobs/job/config.xml"), new byte[10]);
+    writeBuildXml("<build><result>SUCCESS</result></build>");
+    completedBuilds = new CompletedBuilds(tempDirectory);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    deleteDirectory(tempDirectory);
+  }
+
+  @Test
+  public void testSkipCompletedBuild() throws Exception {
+    Set<String> walkedExistingFiles = new HashSet<>();
+    backup(false, walkedExistingFiles);
+
+    Set<String> existingFiles = new HashSet<>();
+    Set<String> addedFiles = backup(true, existingFiles);
+
+    assertEquals(Collections.singleton("jobs/job/config.xml"), addedFiles);
+    assertEquals(walkedExistingFiles, existingFiles);
+    assertTrue(existingFiles.contains(BUILD + "/archive/empty"));
+  }
+
+  @Test
+  public void testWalkModifiedBuild() throws Exception {
+    backup(false, new HashSet<String>());
+    // e.g. marked to be kept forever
+    writeBuildXml("<build><result>SUCCESS</result><keepLog>true</keepLog>"
+        + "</build>");
+
+    Set<String> addedFiles = backup(true, new HashSet<String>());
+
+    assertTrue(addedFiles.contains(BUILD + "/build.xml"));
+    assertTrue(addedFiles.contains(BUILD + "/log"));
+  }
+
+  @Test
+  public void testWalkRunningBuild() throws Exception {
+    writeBuildXml("<build><completed>false</completed></build>");
+    backup(false, new HashSet<String>());
+
+    assertNull(completedBuilds.get(BUILD));
+    assertTrue(backup(true, new HashSet<String>())
+        .contains(BUILD + "/log"));
+  }
+
+  @Test
+  public void testVerificationReplacesBuilds() throws Exception {
+    completedBuilds.begin(false);
+    completedBuilds.record("jobs/deleted/builds/1",
+        new CompletedBuilds.Build(0, 0, 0, Collections.<String>emptyList()));
+    completedBuilds.commit();
+    assertTrue(completedBuilds.isVerificationDue());
+
+    backup(false, new HashSet<String>());
+
+    assertFalse(completedBuilds.isVerificationDue());
+    assertNull(completedBuilds.get("jobs/deleted/builds/1"));
+    assertNotNull(completedBuilds.get(BUILD));
+  }
+
+  @Test
+  public void testCommitAndLoad() throws Exception {
+    backup(false, new HashSet<String>());
+
+    CompletedBuilds loaded = new CompletedBuilds(tempDirectory);
+    loaded.load();
+
+    assertFalse(loaded.isVerificationDue());
+    assertEquals(completedBuilds.get(BUILD).getFiles(),
+        loaded.get(BUILD).getFiles());
+  }
+
+  @Test
+  public void testIsBuildDirectory() throws Exception {
+    assertTrue(CompletedBuildsScope.isBuildDirectory(BUILD));
+    assertTrue(CompletedBuildsScope.isBuildDirectory(
+        "scope/jobs/folder/jobs/job/builds/12"));
+    assertFalse(CompletedBuildsScope.isBuildDirectory(
+        "jobs/job/builds/lastSuccessfulBuild"));
+    assertFalse(CompletedBuildsScope.isBuildDirectory(BUILD + "/log"));
+  }
+
+  /**
+   * Backs up JENKINS_HOME, and returns the paths of the files added to the
+   * volume.
+   */
+  private Set<String> backup(boolean skipCompletedBuilds,
+      Set<String> existingFiles) throws IOException {
+    completedBuilds.begin(!skipCompletedBuilds);
+    Scope scope = new CompletedBuildsScope(new Scope() {
+      @Override
+      public void addFiles(Path home, Volume.Creator creator,
+          Set<String> existingFileNames) throws IOException {
+        Scopes.addAllFilesIn(home, creator, Collections.<Path>emptySet(),
+            existingFileNames);
+      }
+
+      @Override
+      public void extractFiles(Path home, Volume.Extractor extractor,
+          boolean overwrite, Map<String, Boolean> existingFileMetadataMap) {
+        throw new UnsupportedOperationException();
+      }
+    }, completedBuilds, skipCompletedBuilds);
+    final Set<String> addedFiles = new HashSet<>();
+    Path volumePath = Files.createTempFile(tempDirectory, "volume", ".zip");
+    Files.delete(volumePath);
+    try (Volume.Creator creator = new ZipVolume().createNew(volumePath)) {
+      scope.addFiles(jenkinsHome, new ForwardingVolumeCreator(creator) {
+        @Override
+        public void addFile(Path file, String pathInVolume,
+            BasicFileAttributes attrs) throws IOException {
+          if (!attrs.isDirectory()) {
+            addedFiles.add(pathInVolume);
+          }
+          super.addFile(file, pathInVolume, attrs);
+        }
+      }, existingFiles);
+    }
+    completedBuilds.commit();
+    return addedFiles;
+  }
+
+  private void writeBuildXml(String content) throws IOException {
+    Path buildXml = buildDirectory.resolve("build.xml");
+    Files.write(buildXml, content.getBytes(StandardCharsets.UTF_8));
+    // written before the backup starts, as it is by a completed build
+    Files.setLastModifiedTime(buildXml,
+        FileTime.fromMillis(PAST_MILLIS + content.length()));
+  }
+
+  private static void deleteDirectory(Path dir) throws IOException {
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+          throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e)
+          throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
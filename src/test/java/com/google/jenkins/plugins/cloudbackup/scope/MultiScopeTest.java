@@ -107,6 +107,18 @@ public class MultiScopeTest {
         same(jenkinsHome), eq("scope2/fileOfScope2"), any(BasicFileAttributes.class));
   }
 
+  @Test
+  public void testGetUnchangedFiles_prefixAdded() throws Exception {
+    multiScope.addFiles(jenkinsHome, creator, new HashSet<String>());
+
+    ArgumentCaptor<Volume.Creator> volumeCreatorCaptor =
+        ArgumentCaptor.forClass(Volume.Creator.class);
+    verify(scope1).addFiles(same(jenkinsHome), volumeCreatorCaptor.capture(), any(Set.class));
+    volumeCreatorCaptor.getValue().getUnchangedFiles(jenkinsHome, "dirOfScope1", null);
+    verify(creator).getUnchangedFiles(
+        same(jenkinsHome), eq("scope1/dirOfScope1"), any(BasicFileAttributes.class));
+  }
+
   @Test
   public void testExtractFiles_prefixRemovedAndSeparateIteratorsForEachScope() throws Exception {
     // use answer, b/c a new instance needs to be returned for each invocation
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.scope;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests for {@link ScheduledScope} and {@link ScopeSchedules}.
+ */
+public class ScheduledScopeTest {
+
+  private static final String SCOPE_NAME = "builds";
+  private static final int INTERVAL_MINUTES = 60;
+  private static final Path JENKINS_HOME = Paths.get("home");
+
+  private ScopeSchedules schedules;
+  private CountingScope wrappedScope;
+
+  @Before
+  public void setUp() throws Exception {
+    schedules = new ScopeSchedules();
+    wrappedScope = new CountingScope("a", "b");
+  }
+
+  @Test
+  public void testSkipScopeWhichIsNotDue() throws Exception {
+    DateTime backupTime = DateTime.now();
+    backup(backupTime, true);
+
+    Set<String> existingFiles = backup(DateTime.now(), false);
+
+    assertEquals(1, wrappedScope.walks);
+    assertEquals(new HashSet<>(Arrays.asList("a", "b")), existingFiles);
+    assertEquals(backupTime, schedules.getLastWalkTime(SCOPE_NAME));
+  }
+
+  @Test
+  public void testWalkScopeWhichIsDue() throws Exception {
+    backup(DateTime.now().minusMinutes(INTERVAL_MINUTES), true);
+    assertTrue(schedules.isDue(SCOPE_NAME, INTERVAL_MINUTES));
+
+    DateTime backupTime = DateTime.now();
+    backup(backupTime, false);
+
+    assertEquals(2, wrappedScope.walks);
+    assertEquals(backupTime, schedules.getLastWalkTime(SCOPE_NAME));
+  }
+
+  @Test
+  public void testWalkScopeWithoutInterval() throws Exception {
+    schedules.begin(DateTime.now());
+    new ScheduledScope(wrappedScope, SCOPE_NAME, 0, schedules, false)
+        .addFiles(JENKINS_HOME, null, new HashSet<String>());
+    schedules.commit();
+
+    assertTrue(schedules.isDue(SCOPE_NAME, 0));
+    // the existing files of scopes walked by every backup are not kept
+    assertNull(schedules.getExistingFileNames(SCOPE_NAME));
+  }
+
+  @Test
+  public void testFailedBackupIsNotRecorded() throws Exception {
+    DateTime backupTime = DateTime.now().minusMinutes(1);
+    backup(backupTime, true);
+    schedules.begin(DateTime.now());
+    new ScheduledScope(wrappedScope, SCOPE_NAME, INTERVAL_MINUTES, schedules,
+        true).addFiles(JENKINS_HOME, null, new HashSet<String>());
+
+    // the next backup begins without the failed one being committed
+    backup(DateTime.now(), false);
+
+    assertEquals(backupTime, schedules.getLastWalkTime(SCOPE_NAME));
+  }
+
+  @Test
+  public void testCommitWithoutBeginForgetsExistingFiles() throws Exception {
+    DateTime backupTime = DateTime.now();
+    backup(backupTime, true);
+
+    schedules.commit();
+
+    assertTrue(schedules.isDue(SCOPE_NAME, INTERVAL_MINUTES));
+    assertNull(schedules.getExistingFileNames(SCOPE_NAME));
+    assertEquals(backupTime, schedules.getLastWalkTime(SCOPE_NAME));
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    backup(DateTime.now(), true);
+
+    schedules.clear();
+
+    assertTrue(schedules.isDue(SCOPE_NAME, INTERVAL_MINUTES));
+    assertNull(schedules.getLastWalkTime(SCOPE_NAME));
+  }
+
+  /**
+   * Backs up the scope, and returns the existing files it recorded.
+   */
+  private Set<String> backup(DateTime backupTime, boolean forceWalk)
+      throws Exception {
+    Set<String> existingFiles = new HashSet<>();
+    schedules.begin(backupTime);
+    new ScheduledScope(wrappedScope, SCOPE_NAME, INTERVAL_MINUTES, schedules,
+        forceWalk).addFiles(JENKINS_HOME, null, existingFiles);
+    schedules.commit();
+    return existingFiles;
+  }
+
+  /**
+   * A scope which only records the given existing files, and counts its
+   * walks.
+   */
+  private static final class CountingScope implements Scope {
+    private final String[] names;
+    private int walks;
+
+    CountingScope(String... names) {
+      this.names = names;
+    }
+
+    @Override
+    public void addFiles(Path jenkinsHome, Volume.Creator creator,
+        Set<String> existingFileNames) {
+      walks++;
+      existingFileNames.addAll(Arrays.asList(names));
+    }
+
+    @Override
+    public void extractFiles(Path jenkinsHome, Volume.Extractor extractor,
+        boolean overwrite, Map<String, Boolean> existingFileMetadataMap) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.jenkins.plugins.cloudbackup.metrics.MeteredStorage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link CachingStorage}.
+ */
+public class CachingStorageTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Storage remoteStorage;
+  private Path cacheDir;
+  private Path workDir;
+
+  @Before
+  public void setUp() throws Exception {
+    remoteStorage = spy(
+        new LocalFileStorage(tempFolder.newFolder("remote").toPath()));
+    cacheDir = tempFolder.newFolder("cache").toPath();
+    workDir = tempFolder.newFolder("work").toPath();
+  }
+
+  @Test
+  public void testLoadFile_loadedFile_shouldLoadFromCache() throws Exception {
+    CachingStorage storage = new CachingStorage(remoteStorage, cacheDir, 100);
+    storage.storeFile(createFile("volume", 10), "backup-1.zip");
+
+    storage.loadFile("backup-1.zip", workDir.resolve("first"));
+    Path target = workDir.resolve("second");
+    storage.loadFile("backup-1.zip", target);
+
+    verify(remoteStorage, times(1)).loadFile(anyString(), any(Path.class));
+    assertArrayEquals(new byte[10], Files.readAllBytes(target));
+  }
+
+  @Test
+  public void testStoreFile_shouldNotCache() throws Exception {
+    CachingStorage storage = new CachingStorage(remoteStorage, cacheDir, 100);
+    storage.storeFile(createFile("volume", 10), "backup-1.zip");
+
+    verify(remoteStorage).storeFile(any(Path.class), anyString());
+    assertFalse(Files.exists(cacheDir.resolve("backup-1.zip")));
+    assertEquals(0, storage.getCacheSizeBytes());
+  }
+
+  @Test
+  public void testLoadFile_cacheFull_shouldEvictLeastRecentlyUsed()
+      throws Exception {
+    CachingStorage storage = new CachingStorage(remoteStorage, cacheDir, 25);
+    storage.storeFile(createFile("a", 10), "backup-1.zip");
+    storage.storeFile(createFile("b", 10), "backup-2.zip");
+    storage.storeFile(createFile("c", 10), "backup-3.zip");
+    storage.loadFile("backup-1.zip", workDir.resolve("loaded-1"));
+    storage.loadFile("backup-2.zip", workDir.resolve("loaded-2"));
+    storage.loadFile("backup-1.zip", workDir.resolve("loaded-1"));
+    storage.loadFile("backup-3.zip", workDir.resolve("loaded-3"));
+
+    assertEquals(20, storage.getCacheSizeBytes());
+    assertTrue(Files.exists(cacheDir.resolve("backup-1.zip")));
+    assertFalse(Files.exists(cacheDir.resolve("backup-2.zip")));
+    assertTrue(Files.exists(cacheDir.resolve("backup-3.zip")));
+  }
+
+  @Test
+  public void testLoadFile_newInstance_shouldReuseCacheDirectory()
+      throws Exception {
+    remoteStorage.storeFile(createFile("volume", 10), "backup-1.zip");
+    new CachingStorage(remoteStorage, cacheDir, 100)
+        .loadFile("backup-1.zip", workDir.resolve("first"));
+
+    CachingStorage storage = new CachingStorage(remoteStorage, cacheDir, 100);
+    storage.loadFile("backup-1.zip", workDir.resolve("second"));
+
+    verify(remoteStorage, times(1)).loadFile(anyString(), any(Path.class));
+  }
+
+  @Test
+  public void testLoadFile_newWrappedStorage_shouldReuseCacheDirectory()
+      throws Exception {
+    remoteStorage.storeFile(createFile("volume", 10), "backup-1.zip");
+    new CachingStorage(wrap(remoteStorage), cacheDir, 100)
+        .loadFile("backup-1.zip", workDir.resolve("first"));
+
+    // e.g. after a restart, which wraps the storage again
+    CachingStorage storage =
+        new CachingStorage(wrap(remoteStorage), cacheDir, 100);
+    storage.loadFile("backup-1.zip", workDir.resolve("second"));
+
+    verify(remoteStorage, times(1)).loadFile(anyString(), any(Path.class));
+  }
+
+  @Test
+  public void testFindLatestBackup_shouldReadWrappedStorage()
+      throws Exception {
+    CachingStorage storage = new CachingStorage(remoteStorage, cacheDir, 100);
+    storage.updateLastBackup(Arrays.asList("backup-1.zip"));
+    // e.g. by another Jenkins instance
+    remoteStorage.updateLastBackup(Arrays.asList("backup-2.zip"));
+
+    assertEquals(Arrays.asList("backup-2.zip"), storage.findLatestBackup());
+    verify(remoteStorage).findLatestBackup();
+  }
+
+  @Test
+  public void testStoreFile_cachedFile_shouldEvict() throws Exception {
+    CachingStorage storage = new CachingStorage(remoteStorage, cacheDir, 100);
+    storage.storeFile(createFile("old", 10), "backup-1.zip");
+    storage.loadFile("backup-1.zip", workDir.resolve("loaded"));
+
+    storage.storeFile(createFile("new", 20), "backup-1.zip");
+    Path target = workDir.resolve("reloaded");
+    storage.loadFile("backup-1.zip", target);
+
+    assertArrayEquals(new byte[20], Files.readAllBytes(target));
+  }
+
+  @Test
+  public void testDeleteFile_shouldEvictAndDelete() throws Exception {
+    CachingStorage storage = new CachingStorage(remoteStorage, cacheDir, 100);
+    storage.storeFile(createFile("volume", 10), "backup-1.zip");
+    storage.loadFile("backup-1.zip", workDir.resolve("loaded"));
+    assertTrue(Files.exists(cacheDir.resolve("backup-1.zip")));
+
+    storage.deleteFile("backup-1.zip");
+
+    verify(remoteStorage).deleteFile("backup-1.zip");
+    assertFalse(Files.exists(cacheDir.resolve("backup-1.zip")));
+    assertTrue(storage.listFiles().isEmpty());
+    assertEquals(0, storage.getCacheSizeBytes());
+  }
+
+  /**
+   * Wraps the given storage the way the plugin does below the cache.
+   */
+  private static Storage wrap(Storage storage) {
+    return new RetryingStorage(new MeteredStorage(storage), 3, 0);
+  }
+
+  private Path createFile(String name, int size) throws Exception {
+    return Files.write(workDir.resolve(name), new byte[size]);
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Tests for {@link GcloudGcsStorage}.
+ */
+public class GcloudGcsStorageTest {
+  private static final String LAST_BACKUP_URL = "gs://bucket/last-backup";
+
+  private FakeGsutilRunner gsutil;
+  private GcloudGcsStorage storage;
+
+  @Before
+  public void setUp() throws Exception {
+    gsutil = new FakeGsutilRunner();
+    storage = new GcloudGcsStorage("bucket", gsutil);
+  }
+
+  @Test
+  public void testFindLatestBackup_shouldReadStatGeneration()
+      throws Exception {
+    gsutil.setObject(123, "# comment", "backup-1.zip");
+
+    assertEquals(Arrays.asList("backup-1.zip"), storage.findLatestBackup());
+    assertEquals(Arrays.asList(
+        "stat " + LAST_BACKUP_URL,
+        "cat " + LAST_BACKUP_URL + "#123"), gsutil.commands);
+  }
+
+  @Test
+  public void testFindLatestBackup_cached_shouldNotRunGsutil()
+      throws Exception {
+    gsutil.setObject(123, "backup-1.zip");
+    storage.findLatestBackup();
+    gsutil.commands.clear();
+
+    assertEquals(Arrays.asList("backup-1.zip"), storage.findLatestBackup());
+    assertTrue(gsutil.commands.isEmpty());
+  }
+
+  @Test
+  public void testFindLatestBackup_noObject_shouldReturnNull()
+      throws Exception {
+    assertNull(storage.findLatestBackup());
+  }
+
+  @Test
+  public void testUpdateLastBackup_shouldUseCreatedGeneration()
+      throws Exception {
+    gsutil.setObject(123, "backup-1.zip");
+    storage.findLatestBackup();
+
+    storage.updateLastBackup(Arrays.asList("backup-2.zip"));
+    storage.updateLastBackup(Arrays.asList("backup-3.zip"));
+
+    assertEquals(Arrays.asList(
+        "stat " + LAST_BACKUP_URL,
+        "cat " + LAST_BACKUP_URL + "#123",
+        "-h x-goog-if-generation-match:123 cp -v",
+        "-h x-goog-if-generation-match:124 cp -v"), gsutil.commands);
+    assertEquals(Arrays.asList("backup-3.zip"), storage.findLatestBackup());
+  }
+
+  @Test
+  public void testUpdateLastBackup_unchanged_shouldSkipUpload()
+      throws Exception {
+    gsutil.setObject(123, "backup-1.zip");
+    storage.findLatestBackup();
+    gsutil.commands.clear();
+
+    storage.updateLastBackup(Arrays.asList("backup-1.zip"));
+
+    assertTrue(gsutil.commands.isEmpty());
+  }
+
+  @Test
+  public void testUpdateLastBackup_notRead_shouldReadGenerationFirst()
+      throws Exception {
+    storage.updateLastBackup(Arrays.asList("backup-1.zip"));
+
+    assertEquals(Arrays.asList(
+        "stat " + LAST_BACKUP_URL,
+        "-h x-goog-if-generation-match:0 cp -v"), gsutil.commands);
+  }
+
+  @Test
+  public void testUpdateLastBackup_changedConcurrently_shouldThrowStale()
+      throws Exception {
+    gsutil.setObject(123, "backup-1.zip");
+    storage.findLatestBackup();
+    // e.g. by another Jenkins instance
+    gsutil.setObject(200, "backup-other.zip");
+
+    try {
+      storage.updateLastBackup(Arrays.asList("backup-2.zip"));
+      fail();
+    } catch (StaleMetadataException e) {
+      // expected
+    }
+    assertEquals(
+        Arrays.asList("backup-other.zip"), storage.findLatestBackup());
+  }
+
+  /**
+   * Emulates gsutil on a bucket containing a single last-backup object.
+   */
+  private static class FakeGsutilRunner
+      implements GcloudGcsStorage.GsutilRunner {
+    private final List<String> commands = new ArrayList<>();
+    private long generation;
+    private List<String> content = Collections.emptyList();
+
+    void setObject(long generation, String... content) {
+      this.generation = generation;
+      this.content = Arrays.asList(content);
+    }
+
+    @Override
+    public List<String> run(@Nullable Path inputFile,
+        @Nullable InputStream input, String... params) throws IOException {
+      List<String> args = Arrays.asList(params);
+      if (args.get(0).equals("stat")) {
+        commands.add("stat " + args.get(1));
+        if (generation == 0) {
+          throw new IOException("gsutil failed: No URLs matched");
+        }
+        return Arrays.asList(
+            args.get(1) + ":", "    Generation:   " + generation);
+      }
+      if (args.get(0).equals("cat")) {
+        commands.add("cat " + args.get(1));
+        if (!args.get(1).equals(LAST_BACKUP_URL + "#" + generation)) {
+          throw new IOException("gsutil failed: No URLs matched");
+        }
+        return content;
+      }
+      if (args.get(0).equals("-h") && args.get(2).equals("cp")) {
+        commands.add("-h " + args.get(1) + " cp -v");
+        if (!args.get(1).equals(
+            "x-goog-if-generation-match:" + generation)) {
+          throw new IOException("gsutil failed: PreconditionException: 412");
+        }
+        generation++;
+        content = Files.readAllLines(
+            Paths.get(args.get(4)), StandardCharsets.UTF_8);
+        return Arrays.asList(
+            "Copying file://" + args.get(4) + " [Content-Type=text/plain]...",
+            "Created: " + args.get(5) + "#" + generation);
+      }
+      throw new IOException("Unexpected gsutil command: " + args);
+    }
+  }
+}
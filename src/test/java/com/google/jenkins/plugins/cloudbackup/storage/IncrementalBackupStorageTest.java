@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.storage;
+
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Tests for {@link IncrementalBackupStorage}.
+ */
+public class IncrementalBackupStorageTest {
+  @Mock
+  private Storage storage;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+  }
+
+  @Test
+  public void testUpdateLastBackup_shouldAppendToLatestBackup()
+      throws Exception {
+    when(storage.findLatestBackup()).thenReturn(
+        new LinkedList<>(Arrays.asList("backup-1")));
+
+    new IncrementalBackupStorage(storage).updateLastBackup(
+        Arrays.asList("backup-2-incremental"));
+
+    InOrder inOrder = inOrder(storage);
+    inOrder.verify(storage).findLatestBackup();
+    inOrder.verify(storage).updateLastBackup(
+        Arrays.asList("backup-1", "backup-2-incremental"));
+  }
+
+  @Test
+  public void testUpdateLastBackup_staleMetadata_shouldRetryOnce()
+      throws Exception {
+    when(storage.findLatestBackup())
+        .thenReturn(new LinkedList<>(Arrays.asList("backup-1")))
+        .thenReturn(new LinkedList<>(Arrays.asList("backup-3")));
+    doThrow(new StaleMetadataException("stale", null)).when(storage)
+        .updateLastBackup(Arrays.asList("backup-1", "backup-4-incremental"));
+    doNothing().when(storage)
+        .updateLastBackup(Arrays.asList("backup-3", "backup-4-incremental"));
+
+    new IncrementalBackupStorage(storage).updateLastBackup(
+        Arrays.asList("backup-4-incremental"));
+
+    InOrder inOrder = inOrder(storage);
+    inOrder.verify(storage).findLatestBackup();
+    inOrder.verify(storage).updateLastBackup(
+        Arrays.asList("backup-1", "backup-4-incremental"));
+    inOrder.verify(storage).findLatestBackup();
+    inOrder.verify(storage).updateLastBackup(
+        Arrays.asList("backup-3", "backup-4-incremental"));
+  }
+
+  @Test(expected = StaleMetadataException.class)
+  public void testUpdateLastBackup_staleMetadataTwice_shouldFail()
+      throws Exception {
+    when(storage.findLatestBackup()).thenReturn(
+        new LinkedList<>(Arrays.asList("backup-1")));
+    doThrow(new StaleMetadataException("stale", null)).when(storage)
+        .updateLastBackup(Arrays.asList("backup-1", "backup-2-incremental"));
+
+    new IncrementalBackupStorage(storage).updateLastBackup(
+        Arrays.asList("backup-2-incremental"));
+  }
+}
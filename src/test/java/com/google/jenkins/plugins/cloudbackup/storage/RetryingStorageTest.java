@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link RetryingStorage}.
+ */
+public class RetryingStorageTest {
+  private static final Path LOCAL_FILE = Paths.get("/tmp/backup.zip");
+
+  @Mock
+  private Storage storage;
+
+  private final List<Long> sleeps = new ArrayList<>();
+  private RetryingStorage retryingStorage;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    retryingStorage = new RetryingStorage(storage, 3, 100,
+        new RetryingStorage.Sleeper() {
+          @Override
+          public void sleep(long millis) {
+            sleeps.add(millis);
+          }
+        });
+  }
+
+  @Test
+  public void testStoreFile_transientFailures_shouldRetryWithBackoff()
+      throws Exception {
+    doThrow(new IOException()).doThrow(new IOException()).doNothing()
+        .when(storage).storeFile(LOCAL_FILE, "backup.zip");
+
+    retryingStorage.storeFile(LOCAL_FILE, "backup.zip");
+
+    verify(storage, times(3)).storeFile(LOCAL_FILE, "backup.zip");
+    assertEquals(Arrays.asList(100L, 200L), sleeps);
+  }
+
+  @Test
+  public void testStoreFile_persistentFailure_shouldGiveUp()
+      throws Exception {
+    IOException failure = new IOException();
+    doThrow(failure).when(storage).storeFile(LOCAL_FILE, "backup.zip");
+
+    try {
+      retryingStorage.storeFile(LOCAL_FILE, "backup.zip");
+      fail("IOException expected");
+    } catch (IOException e) {
+      assertSame(failure, e);
+    }
+
+    verify(storage, times(4)).storeFile(LOCAL_FILE, "backup.zip");
+    assertEquals(Arrays.asList(100L, 200L, 400L), sleeps);
+  }
+
+  @Test
+  public void testLoadFile_missingFile_shouldNotRetry() throws Exception {
+    doThrow(new NoSuchFileException("backup.zip"))
+        .when(storage).loadFile("backup.zip", LOCAL_FILE);
+
+    try {
+      retryingStorage.loadFile("backup.zip", LOCAL_FILE);
+      fail("NoSuchFileException expected");
+    } catch (NoSuchFileException expected) {
+      // expected
+    }
+
+    verify(storage).loadFile("backup.zip", LOCAL_FILE);
+    assertEquals(0, sleeps.size());
+  }
+
+  @Test
+  public void testDeleteFiles_partialFailure_shouldRetryRemainingFiles()
+      throws Exception {
+    List<String> filenames = Arrays.asList("a.zip", "b.zip", "c.zip");
+    doThrow(new IOException()).when(storage).deleteFiles(filenames);
+    when(storage.listFiles()).thenReturn(Arrays.asList("b.zip", "d.zip"));
+
+    retryingStorage.deleteFiles(filenames);
+
+    verify(storage).deleteFiles(filenames);
+    verify(storage).deleteFiles(Arrays.asList("b.zip"));
+    assertEquals(Arrays.asList(100L), sleeps);
+  }
+
+  @Test
+  public void testDeleteFile_deletedDespiteFailure_shouldNotDeleteAgain()
+      throws Exception {
+    doThrow(new IOException()).when(storage).deleteFile("backup.zip");
+    when(storage.listFiles()).thenReturn(new ArrayList<String>());
+
+    retryingStorage.deleteFile("backup.zip");
+
+    verify(storage).deleteFile("backup.zip");
+  }
+
+  @Test
+  public void testUpdateLastBackup_staleMetadata_shouldNotRetry()
+      throws Exception {
+    doThrow(new StaleMetadataException("stale", null))
+        .when(storage).updateLastBackup(anyListOf(String.class));
+
+    try {
+      retryingStorage.updateLastBackup(Arrays.asList("backup.zip"));
+      fail("StaleMetadataException expected");
+    } catch (StaleMetadataException expected) {
+      // expected
+    }
+
+    verify(storage).updateLastBackup(Arrays.asList("backup.zip"));
+  }
+
+  @Test
+  public void testFindLatestBackup_transientFailure_shouldReturnResult()
+      throws Exception {
+    when(storage.findLatestBackup()).thenThrow(new IOException())
+        .thenReturn(Arrays.asList("backup.zip"));
+
+    assertEquals(Arrays.asList("backup.zip"),
+        retryingStorage.findLatestBackup());
+    assertEquals(Arrays.asList(100L), sleeps);
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.throttle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Ticker;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ResourceGovernor}.
+ */
+public class ResourceGovernorTest {
+  private static final double DELTA = 1e-9;
+
+  @Mock
+  private LoadProbe loadProbe;
+
+  private long nanos;
+  private ResourceGovernor governor;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    nanos = 0;
+    governor = new ResourceGovernor(loadProbe, new Ticker() {
+      @Override
+      public long read() {
+        return nanos;
+      }
+    });
+  }
+
+  @Test
+  public void testAcquire_noLimits_shouldNotProbeLoad() {
+    governor.acquireRead(Long.MAX_VALUE);
+    governor.acquireUpload(Long.MAX_VALUE);
+
+    assertFalse(governor.isReadLimited());
+    assertFalse(governor.isUploadLimited());
+    verify(loadProbe, never()).isUnderLoad();
+  }
+
+  @Test
+  public void testAcquire_underLoad_shouldBackOffAndRecover() {
+    governor.setLimits(Integer.MAX_VALUE, 0);
+    assertTrue(governor.isReadLimited());
+    assertFalse(governor.isUploadLimited());
+
+    when(loadProbe.isUnderLoad()).thenReturn(true);
+    governor.acquireRead(1);
+    assertEquals(0.5, governor.getScale(), DELTA);
+
+    // load is only probed every few seconds
+    governor.acquireRead(1);
+    assertEquals(0.5, governor.getScale(), DELTA);
+
+    for (int i = 0; i < 10; i++) {
+      advanceSeconds(5);
+      governor.acquireRead(1);
+    }
+    assertEquals(0.1, governor.getScale(), DELTA);
+
+    when(loadProbe.isUnderLoad()).thenReturn(false);
+    advanceSeconds(5);
+    governor.acquireRead(1);
+    assertEquals(0.2, governor.getScale(), DELTA);
+  }
+
+  @Test
+  public void testAcquire_noLoad_shouldKeepFullRate() {
+    governor.setLimits(Integer.MAX_VALUE, Integer.MAX_VALUE);
+    when(loadProbe.isUnderLoad()).thenReturn(false);
+
+    governor.acquireRead(1);
+    advanceSeconds(5);
+    governor.acquireUpload(1);
+
+    assertEquals(1.0, governor.getScale(), DELTA);
+  }
+
+  @Test
+  public void testAcquire_shouldProbeLoadOutsideOfLock() {
+    final List<Boolean> probedWithLock = new ArrayList<>();
+    final ResourceGovernor[] holder = new ResourceGovernor[1];
+    holder[0] = new ResourceGovernor(new LoadProbe() {
+      @Override
+      public boolean isUnderLoad() {
+        probedWithLock.add(Thread.holdsLock(holder[0]));
+        return true;
+      }
+    });
+    holder[0].setLimits(Integer.MAX_VALUE, 0);
+
+    holder[0].acquireRead(1);
+
+    assertEquals(Arrays.asList(false), probedWithLock);
+    assertEquals(0.5, holder[0].getScale(), DELTA);
+  }
+
+  private void advanceSeconds(long seconds) {
+    nanos += TimeUnit.SECONDS.toNanos(seconds);
+  }
+}
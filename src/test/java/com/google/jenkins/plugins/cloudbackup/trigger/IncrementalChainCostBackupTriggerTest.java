@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.trigger;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.google.jenkins.plugins.cloudbackup.CloudBackupPlugin;
+import jenkins.model.Jenkins;
+
+/**
+ * Tests for {@link IncrementalChainCostBackupTrigger}.
+ */
+public class IncrementalChainCostBackupTriggerTest {
+
+  @Mock private Jenkins jenkins;
+  @Mock private CloudBackupPlugin plugin;
+
+  private DateTime now;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+
+    setUpJenkinsInstance();
+    when(jenkins.getPlugin(eq(CloudBackupPlugin.class))).thenReturn(plugin);
+    when(plugin.getFullBackupSizeBytes()).thenReturn(1000L);
+
+    now = new DateTime(DateTimeZone.UTC);
+  }
+
+  private void setUpJenkinsInstance()
+      throws NoSuchFieldException, IllegalAccessException {
+    // make Jenkins.getInstance() return the mock
+    Field theInstance = Jenkins.class.getDeclaredField("theInstance");
+    theInstance.setAccessible(true);
+    theInstance.set(Jenkins.class, jenkins);
+  }
+
+  @Test
+  public void testShouldCreateBackup_belowLimits_shouldReturnFalse() {
+    when(plugin.getIncrementalBackupsSizeBytes()).thenReturn(499L);
+    when(plugin.getIncrementalBackupCount()).thenReturn(9);
+
+    assertFalse(new IncrementalChainCostBackupTrigger(50, 10)
+        .shouldCreateBackup(now));
+  }
+
+  @Test
+  public void testShouldCreateBackup_sizeLimitReached_shouldReturnTrue() {
+    when(plugin.getIncrementalBackupsSizeBytes()).thenReturn(500L);
+    when(plugin.getIncrementalBackupCount()).thenReturn(1);
+
+    assertTrue(new IncrementalChainCostBackupTrigger(50, 10)
+        .shouldCreateBackup(now));
+  }
+
+  @Test
+  public void testShouldCreateBackup_countLimitReached_shouldReturnTrue() {
+    when(plugin.getIncrementalBackupsSizeBytes()).thenReturn(1L);
+    when(plugin.getIncrementalBackupCount()).thenReturn(10);
+
+    assertTrue(new IncrementalChainCostBackupTrigger(50, 10)
+        .shouldCreateBackup(now));
+  }
+
+  @Test
+  public void testShouldCreateBackup_limitsDisabled_shouldReturnFalse() {
+    when(plugin.getIncrementalBackupsSizeBytes()).thenReturn(5000L);
+    when(plugin.getIncrementalBackupCount()).thenReturn(100);
+
+    assertFalse(new IncrementalChainCostBackupTrigger(0, 0)
+        .shouldCreateBackup(now));
+  }
+
+  @Test
+  public void testShouldCreateBackup_noPlugin_shouldReturnFalse() {
+    when(jenkins.getPlugin(eq(CloudBackupPlugin.class))).thenReturn(null);
+
+    assertFalse(new IncrementalChainCostBackupTrigger(50, 10)
+        .shouldCreateBackup(now));
+  }
+
+  @Test
+  public void testShouldCreateBackup_fullBackupSizeUnknown_shouldReturnFalse() {
+    when(plugin.getFullBackupSizeBytes()).thenReturn(0L);
+    when(plugin.getIncrementalBackupsSizeBytes()).thenReturn(5000L);
+
+    assertFalse(new IncrementalChainCostBackupTrigger(50, 0)
+        .shouldCreateBackup(now));
+  }
+}
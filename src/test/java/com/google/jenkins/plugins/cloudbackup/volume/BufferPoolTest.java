@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.volume;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+/**
+ * Tests for {@link BufferPool}.
+ */
+public class BufferPoolTest {
+
+  private byte[] content;
+
+  @Before
+  public void setUp() throws Exception {
+    // not a multiple of the buffer size
+    content = new byte[10 * 1000 + 7];
+    new Random(42).nextBytes(content);
+  }
+
+  @Test
+  public void testReuseReleasedBuffer() throws Exception {
+    BufferPool pool = new BufferPool(1024, false);
+
+    ByteBuffer first = pool.acquire();
+    ByteBuffer second = pool.acquire();
+    assertNotSame(first, second);
+    first.put((byte) 1);
+    pool.release(first);
+
+    ByteBuffer reused = pool.acquire();
+    assertSame(first, reused);
+    assertEquals(0, reused.position());
+    assertEquals(1024, reused.remaining());
+  }
+
+  @Test
+  public void testDirectBuffers() throws Exception {
+    BufferPool pool = new BufferPool(1024, true);
+
+    assertTrue(pool.acquire().isDirect());
+  }
+
+  @Test
+  public void testCopyChannelToStream() throws Exception {
+    for (boolean direct : new boolean[] {false, true}) {
+      BufferPool pool = new BufferPool(1024, direct);
+      ByteArrayOutputStream target = new ByteArrayOutputStream();
+
+      long copied = pool.copy(
+          Channels.newChannel(new ByteArrayInputStream(content)), target);
+
+      assertEquals(content.length, copied);
+      assertArrayEquals(content, target.toByteArray());
+    }
+  }
+
+  @Test
+  public void testCopyStreamToChannel() throws Exception {
+    for (boolean direct : new boolean[] {false, true}) {
+      BufferPool pool = new BufferPool(1024, direct);
+      ByteArrayOutputStream target = new ByteArrayOutputStream();
+
+      long copied = pool.copy(trickle(new ByteArrayInputStream(content)),
+          Channels.newChannel(target));
+
+      assertEquals(content.length, copied);
+      assertArrayEquals(content, target.toByteArray());
+    }
+  }
+
+  /**
+   * Returns a stream returning few bytes per read, like an inflater.
+   */
+  private static InputStream trickle(InputStream inputStream) {
+    return new FilterInputStream(inputStream) {
+      @Override
+      public int read(byte[] bytes, int offset, int length)
+          throws IOException {
+        return super.read(bytes, offset, Math.min(length, 100));
+      }
+    };
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.volume;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the file system calls and the time needed for the metadata
+ * operations of an extraction, with and without an {@link ExtractionSink}.
+ *
+ * The extraction is simulated for a tree like a Jenkins home, with many jobs
+ * that each have many builds of a few files. Without a sink, every entry
+ * checks whether it exists and creates its parent directories, which are at
+ * least two system calls for an existing directory. The first rounds warm
+ * up the JIT compiler. Run with
+ * {@code java ExtractionSinkBenchmark [jobs] [builds] [files] [rounds]}.
+ */
+public class ExtractionSinkBenchmark {
+
+  private static final String[] BUILD_FILES = {
+      "build.xml", "log", "changelog.xml", "injectedEnvVars.txt",
+      "junitResult.xml", "timestamper/timestamps"};
+
+  public static void main(String[] args) throws IOException {
+    int jobs = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    int builds = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+    int files = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+    int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+    Path target = Files.createTempDirectory(
+        ExtractionSinkBenchmark.class.getSimpleName());
+    try {
+      System.out.println(String.format(Locale.ENGLISH,
+          "%d files in %d directories", jobs * builds * files,
+          jobs * builds));
+      for (int round = 1; round <= rounds; round++) {
+        System.out.println("Round " + round);
+        for (boolean existing : new boolean[] {false, true}) {
+          String scenario = existing ? "existing home" : "empty home";
+          long start = System.nanoTime();
+          long calls = extractWithoutSink(target, jobs, builds, files);
+          report(scenario, "without sink", calls, start);
+          if (!existing) {
+            delete(target);
+          }
+          start = System.nanoTime();
+          calls = extractWithSink(target, jobs, builds, files);
+          report(scenario, "with sink", calls, start);
+        }
+        delete(target);
+      }
+    } finally {
+      delete(target);
+    }
+  }
+
+  private static long extractWithoutSink(Path target, int jobs, int builds,
+      int files) throws IOException {
+    long calls = 0;
+    for (int job = 0; job < jobs; job++) {
+      for (int build = 0; build < builds; build++) {
+        for (int file = 0; file < files; file++) {
+          Path path = path(target, job, build, file);
+          calls++;
+          if (!Files.exists(path)) {
+            calls++;
+            Files.createDirectories(path.getParent());
+            touch(path);
+          }
+        }
+      }
+    }
+    return calls;
+  }
+
+  private static long extractWithSink(Path target, int jobs, int builds,
+      int files) throws IOException {
+    ExtractionSink sink = new ExtractionSink();
+    for (int job = 0; job < jobs; job++) {
+      for (int build = 0; build < builds; build++) {
+        for (int file = 0; file < files; file++) {
+          Path path = path(target, job, build, file);
+          if (!sink.exists(path)) {
+            sink.createParentDirectories(path);
+            touch(path);
+            sink.created(path);
+          }
+        }
+      }
+    }
+    return sink.getFileSystemCalls();
+  }
+
+  private static Path path(Path target, int job, int build, int file) {
+    return target.resolve("jobs/job" + job + "/builds/" + build + "/"
+        + BUILD_FILES[file % BUILD_FILES.length] + (file / BUILD_FILES.length));
+  }
+
+  private static void touch(Path path) throws IOException {
+    // stands in for writing the contents, which is the same in both runs
+    Files.createFile(path);
+  }
+
+  private static void report(String scenario, String variant, long calls,
+      long startNanos) {
+    System.out.println(String.format(Locale.ENGLISH,
+        "%-14s %-13s %9d file system calls %7d ms", scenario, variant, calls,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+  }
+
+  private static void delete(Path directory) throws IOException {
+    if (!Files.exists(directory)) {
+      return;
+    }
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+          throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e)
+          throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
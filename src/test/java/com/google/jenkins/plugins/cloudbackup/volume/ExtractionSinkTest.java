@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.volume;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Tests for {@link ExtractionSink}.
+ */
+public class ExtractionSinkTest {
+
+  private Path tempDirectory;
+  private ExtractionSink sink;
+
+  @Before
+  public void setUp() throws Exception {
+    tempDirectory = Files.createTempDirectory(
+        ExtractionSinkTest.class.getSimpleName());
+    sink = new ExtractionSink();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Files.walkFileTree(tempDirectory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+          throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e)
+          throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  @Test
+  public void testCreateParentDirectoriesOnce() throws Exception {
+    sink.createParentDirectories(tempDirectory.resolve("a/b/file1"));
+    sink.createParentDirectories(tempDirectory.resolve("a/b/file2"));
+    sink.createParentDirectories(tempDirectory.resolve("a/file3"));
+
+    assertTrue(Files.isDirectory(tempDirectory.resolve("a/b")));
+    // a/b fails, then a and a/b are created
+    assertEquals(3, sink.getFileSystemCalls());
+  }
+
+  @Test
+  public void testExistsInCreatedDirectory() throws Exception {
+    Path directory = tempDirectory.resolve("dir");
+    sink.createDirectories(directory);
+    Files.createFile(directory.resolve("created"));
+    sink.created(directory.resolve("created"));
+
+    assertFalse(sink.exists(directory.resolve("missing1")));
+    assertFalse(sink.exists(directory.resolve("missing2")));
+    assertTrue(sink.exists(directory.resolve("created")));
+    // the creation, and one check of the created file
+    assertEquals(2, sink.getFileSystemCalls());
+  }
+
+  @Test
+  public void testExistsInExistingDirectory() throws Exception {
+    Path directory = tempDirectory.resolve("dir");
+    Files.createDirectory(directory);
+    Files.createFile(directory.resolve("existing"));
+    sink.createDirectories(directory);
+
+    assertTrue(sink.exists(directory.resolve("existing")));
+    assertFalse(sink.exists(directory.resolve("missing")));
+  }
+
+  @Test
+  public void testExistsInMissingDirectory() throws Exception {
+    assertFalse(sink.exists(tempDirectory.resolve("missing/file")));
+  }
+
+  @Test
+  public void testDanglingSymlinkDoesNotExist() throws Exception {
+    Path directory = tempDirectory.resolve("dir");
+    sink.createDirectories(directory);
+    Path symlink = directory.resolve("symlink");
+    Files.createSymbolicLink(symlink, Paths.get("-1"));
+    sink.created(symlink);
+
+    assertFalse(sink.exists(symlink));
+  }
+}
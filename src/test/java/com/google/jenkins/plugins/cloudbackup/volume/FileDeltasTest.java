@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.volume;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for {@link FileDeltas} and {@link BlockSignatures}.
+ */
+public class FileDeltasTest {
+
+  private Path tempDirectory;
+  private Path target;
+  private Random random;
+  private byte[] base;
+
+  @Before
+  public void setUp() throws Exception {
+    tempDirectory =
+        Files.createTempDirectory(FileDeltasTest.class.getSimpleName());
+    target = tempDirectory.resolve("file");
+    random = new Random(42);
+    // not a multiple of the block size
+    base = randomBytes(1000 * 1000 + 7);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Files.deleteIfExists(target);
+    Files.delete(tempDirectory);
+  }
+
+  @Test
+  public void testRollingHash() throws Exception {
+    int length = 100;
+    BlockSignatures.RollingHash rollingHash =
+        new BlockSignatures.RollingHash(base, 0, length);
+    for (int offset = 1; offset < 1000; offset++) {
+      rollingHash.roll(base[offset - 1], base[offset + length - 1]);
+      assertEquals(BlockSignatures.weakHash(base, offset, length),
+          rollingHash.getValue());
+    }
+  }
+
+  @Test
+  public void testSerializeSignatures() throws Exception {
+    BlockSignatures signatures = signaturesOf(base);
+
+    BlockSignatures deserialized =
+        BlockSignatures.fromByteArray(signatures.toByteArray());
+
+    assertEquals(base.length, deserialized.getFileSize());
+    assertEquals(signatures.getBlockSize(), deserialized.getBlockSize());
+    assertArrayEquals(signatures.toByteArray(), deserialized.toByteArray());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDeserializeTruncatedSignatures() throws Exception {
+    byte[] bytes = signaturesOf(base).toByteArray();
+
+    BlockSignatures.fromByteArray(Arrays.copyOf(bytes, bytes.length - 1));
+  }
+
+  @Test
+  public void testApplyDeltaOfModifiedFile() throws Exception {
+    ByteArrayOutputStream modified = new ByteArrayOutputStream();
+    modified.write(randomBytes(10));  // inserted
+    modified.write(base, 0, 300 * 1000);
+    modified.write(randomBytes(100));  // replaced
+    modified.write(base, 300 * 1000 + 100, 400 * 1000);
+    // removed 1000 bytes
+    modified.write(base, 701 * 1000 + 100, base.length - 701 * 1000 - 100);
+    modified.write(randomBytes(20));  // appended
+    byte[] current = modified.toByteArray();
+
+    byte[] delta = encode(base, current);
+
+    assertTrue("delta too large: " + delta.length, delta.length < 20 * 1000);
+    Files.write(target, base);
+    apply(delta);
+    assertArrayEquals(current, Files.readAllBytes(target));
+  }
+
+  @Test
+  public void testApplyDeltaOfUnrelatedFile() throws Exception {
+    byte[] current = randomBytes(5000);
+
+    Files.write(target, base);
+    apply(encode(base, current));
+
+    assertArrayEquals(current, Files.readAllBytes(target));
+  }
+
+  @Test
+  public void testApplyDeltaOfEmptyFile() throws Exception {
+    Files.write(target, base);
+    apply(encode(base, new byte[0]));
+
+    assertEquals(0, Files.size(target));
+  }
+
+  @Test
+  public void testApplyDeltaTwice() throws Exception {
+    byte[] current = Arrays.copyOf(base, base.length + 100);
+    byte[] delta = encode(base, current);
+
+    Files.write(target, base);
+    apply(delta);
+    apply(delta);
+
+    assertArrayEquals(current, Files.readAllBytes(target));
+  }
+
+  @Test
+  public void testApplyDeltaToWrongBase() throws Exception {
+    byte[] current = Arrays.copyOf(base, base.length + 100);
+    byte[] delta = encode(base, current);
+    byte[] wrongBase = randomBytes(base.length);
+
+    Files.write(target, wrongBase);
+    try {
+      apply(delta);
+      fail("Expected IOException");
+    } catch (IOException e) {
+      // expected
+    }
+
+    assertArrayEquals(wrongBase, Files.readAllBytes(target));
+  }
+
+  private BlockSignatures signaturesOf(byte[] bytes) throws IOException {
+    return BlockSignatures.compute(
+        Channels.newChannel(new ByteArrayInputStream(bytes)), bytes.length,
+        null);
+  }
+
+  private byte[] encode(byte[] baseBytes, byte[] currentBytes)
+      throws IOException {
+    ByteArrayOutputStream delta = new ByteArrayOutputStream();
+    FileDeltas.encode(signaturesOf(baseBytes),
+        Channels.newChannel(new ByteArrayInputStream(currentBytes)), delta);
+    return delta.toByteArray();
+  }
+
+  private void apply(byte[] delta) throws IOException {
+    FileDeltas.apply(new ByteArrayInputStream(delta), target);
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+}
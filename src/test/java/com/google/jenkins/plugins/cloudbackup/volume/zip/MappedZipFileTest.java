@@ -0,0 +1,163 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.volume.zip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.io.ByteStreams;
+
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipException;
+
+/**
+ * Tests for {@link MappedZipFile}.
+ */
+public class MappedZipFileTest {
+
+  private Path tempDirectory;
+  private Path zipPath;
+  private byte[] largeContent;
+
+  @Before
+  public void setUp() throws Exception {
+    tempDirectory = Files.createTempDirectory(
+        MappedZipFileTest.class.getSimpleName());
+    zipPath = tempDirectory.resolve("test.zip");
+    largeContent = new byte[200 * 1024];
+    new Random(42).nextBytes(largeContent);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Files.deleteIfExists(zipPath);
+    Files.deleteIfExists(tempDirectory);
+  }
+
+  @Test
+  public void testReadEntries() throws Exception {
+    writeZip(Zip64Mode.AsNeeded);
+
+    try (MappedZipFile zipFile = new MappedZipFile(zipPath)) {
+      verifyEntries(zipFile);
+    }
+  }
+
+  @Test
+  public void testReadAcrossSegments() throws Exception {
+    writeZip(Zip64Mode.AsNeeded);
+
+    // the large entries span many segments
+    try (MappedZipFile zipFile = new MappedZipFile(zipPath, 4096)) {
+      verifyEntries(zipFile);
+    }
+  }
+
+  @Test
+  public void testReadZip64() throws Exception {
+    writeZip(Zip64Mode.Always);
+
+    try (MappedZipFile zipFile = new MappedZipFile(zipPath, 4096)) {
+      verifyEntries(zipFile);
+    }
+  }
+
+  @Test
+  public void testTransferStoredEntry() throws Exception {
+    writeZip(Zip64Mode.AsNeeded);
+    ByteArrayOutputStream target = new ByteArrayOutputStream();
+
+    try (MappedZipFile zipFile = new MappedZipFile(zipPath, 4096)) {
+      MappedZipFile.Entry stored = zipFile.getEntriesInPhysicalOrder().get(2);
+      assertTrue(stored.isStored());
+      assertEquals(largeContent.length,
+          zipFile.transferTo(stored, Channels.newChannel(target)));
+    }
+    assertArrayEquals(largeContent, target.toByteArray());
+  }
+
+  @Test(expected = ZipException.class)
+  public void testNotAZipFile() throws Exception {
+    Files.write(zipPath, "not a zip file".getBytes(StandardCharsets.UTF_8));
+
+    new MappedZipFile(zipPath).close();
+  }
+
+  private void writeZip(Zip64Mode zip64Mode) throws IOException {
+    try (ZipArchiveOutputStream zipStream = new ZipArchiveOutputStream(
+        zipPath.toFile())) {
+      zipStream.setEncoding("UTF-8");
+      zipStream.setUseZip64(zip64Mode);
+      ZipArchiveEntry directory = new ZipArchiveEntry("dir/");
+      directory.setUnixMode(UnixStat.DIR_FLAG);
+      zipStream.putArchiveEntry(directory);
+      zipStream.closeArchiveEntry();
+      zipStream.putArchiveEntry(new ZipArchiveEntry("dir/deflated\u00e9"));
+      zipStream.write(largeContent);
+      zipStream.closeArchiveEntry();
+      ZipArchiveEntry stored = new ZipArchiveEntry("stored");
+      stored.setMethod(ZipArchiveEntry.STORED);
+      zipStream.putArchiveEntry(stored);
+      zipStream.write(largeContent);
+      zipStream.closeArchiveEntry();
+      ZipArchiveEntry symlink = new ZipArchiveEntry("link");
+      symlink.setUnixMode(UnixStat.LINK_FLAG | 0777);
+      zipStream.putArchiveEntry(symlink);
+      zipStream.write("dir/target".getBytes(StandardCharsets.UTF_8));
+      zipStream.closeArchiveEntry();
+    }
+  }
+
+  private void verifyEntries(MappedZipFile zipFile) throws IOException {
+    List<MappedZipFile.Entry> entries = zipFile.getEntriesInPhysicalOrder();
+    assertEquals(4, entries.size());
+    assertEquals("dir/", entries.get(0).getName());
+    assertTrue(entries.get(0).isDirectory());
+    assertEquals("dir/deflated\u00e9", entries.get(1).getName());
+    assertFalse(entries.get(1).isDirectory());
+    assertFalse(entries.get(1).isUnixSymlink());
+    assertArrayEquals(largeContent, read(zipFile, entries.get(1)));
+    assertEquals("stored", entries.get(2).getName());
+    assertArrayEquals(largeContent, read(zipFile, entries.get(2)));
+    assertTrue(entries.get(3).isUnixSymlink());
+    assertEquals("dir/target", zipFile.getUnixSymlink(entries.get(3)));
+  }
+
+  private static byte[] read(MappedZipFile zipFile, MappedZipFile.Entry entry)
+      throws IOException {
+    try (InputStream inputStream = zipFile.getInputStream(entry)) {
+      return ByteStreams.toByteArray(inputStream);
+    }
+  }
+}
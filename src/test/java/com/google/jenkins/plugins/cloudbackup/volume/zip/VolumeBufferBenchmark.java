@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.cloudbackup.volume.zip;
+
+import com.google.jenkins.plugins.cloudbackup.volume.BufferPool;
+import com.google.jenkins.plugins.cloudbackup.volume.ExtractionSink;
+import com.google.jenkins.plugins.cloudbackup.volume.Volume;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares creating and extracting a ZIP volume with buffer pools of
+ * different buffer sizes, with heap and direct buffers.
+ *
+ * The files and the volume are written to the given directory, so the
+ * benchmark can be run on a local SSD and on a network file system alike.
+ * Each configuration is measured once per round, the first rounds warm up
+ * the JIT compiler and the page cache. Run with
+ * {@code java VolumeBufferBenchmark [directory] [files] [kilobytes] [rounds]}.
+ */
+public class VolumeBufferBenchmark {
+
+  private static final int[] BUFFER_KILOBYTES = {8, 64, 256, 1024};
+
+  public static void main(String[] args) throws IOException {
+    Path parent = Paths.get(args.length > 0 ? args[0]
+        : System.getProperty("java.io.tmpdir"));
+    int files = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    int kilobytes = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+    int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+    Path directory = Files.createTempDirectory(parent,
+        VolumeBufferBenchmark.class.getSimpleName());
+    try {
+      Path source = directory.resolve("source");
+      createFiles(source, files, kilobytes);
+      System.out.println(String.format(Locale.ENGLISH,
+          "%d files of %d KB in %s", files, kilobytes, directory));
+      for (int round = 1; round <= rounds; round++) {
+        System.out.println("Round " + round);
+        for (boolean direct : new boolean[] {false, true}) {
+          for (int bufferKilobytes : BUFFER_KILOBYTES) {
+            ZipVolume volume = new ZipVolume();
+            volume.setBufferPool(
+                new BufferPool(bufferKilobytes * 1024, direct));
+            run(volume, source, directory, files,
+                String.format(Locale.ENGLISH, "%4d KB %-6s", bufferKilobytes,
+                    direct ? "direct" : "heap"));
+          }
+        }
+      }
+    } finally {
+      delete(directory);
+    }
+  }
+
+  private static void run(ZipVolume volume, Path source, Path directory,
+      int files, String name) throws IOException {
+    Path zip = directory.resolve("volume.zip");
+    Path target = directory.resolve("target");
+    long start = System.nanoTime();
+    try (Volume.Creator creator = volume.createNew(zip)) {
+      for (int i = 0; i < files; i++) {
+        creator.addFile(source.resolve("file" + i), "file" + i, null);
+      }
+    }
+    long created = System.nanoTime();
+    ExtractionSink sink = new ExtractionSink();
+    try (Volume.Extractor extractor = volume.extract(zip)) {
+      for (Volume.Entry entry : extractor) {
+        entry.extractTo(target.resolve(entry.getName()), sink);
+      }
+    }
+    long extracted = System.nanoTime();
+    System.out.println(String.format(Locale.ENGLISH,
+        "%s  create %6d ms  extract %6d ms", name,
+        TimeUnit.NANOSECONDS.toMillis(created - start),
+        TimeUnit.NANOSECONDS.toMillis(extracted - created)));
+    Files.delete(zip);
+    delete(target);
+  }
+
+  private static void createFiles(Path source, int files, int kilobytes)
+      throws IOException {
+    Files.createDirectories(source);
+    Random random = new Random(42);
+    byte[] content = new byte[kilobytes * 1024];
+    for (int i = 0; i < files; i++) {
+      // half random, half zeros, so deflating has some work to do
+      random.nextBytes(content);
+      for (int j = content.length / 2; j < content.length; j++) {
+        content[j] = 0;
+      }
+      Files.write(source.resolve("file" + i), content);
+    }
+  }
+
+  private static void delete(Path directory) throws IOException {
+    if (!Files.exists(directory)) {
+      return;
+    }
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+          throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e)
+          throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -18,6 +18,7 @@ package com.google.jenkins.plugins.cloudbackup.volume.zip;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.google.jenkins.plugins.cloudbackup.scope.Scopes;
 import com.google.jenkins.plugins.cloudbackup.volume.Volume;
@@ -326,6 +327,66 @@ public class ZipVolumeTest {
     assertEquals(EXISTING_FILE_CHANGED_CONTENT, existingFileText.get(0));
   }
 
+  @Test
+  public void testParallelExtraction() throws Exception {
+    // create
+    Path volumePath = tempDirectory.resolve("test.zip");
+    Map<String, Boolean> existingFilesMap = new HashMap<>();
+    try (Volume.Creator creator = zipVolume.createNew(volumePath)) {
+      creator.addFile(emptyDir, "emptyDir", null);
+      creator.addFile(validSymlink, "validSymlink",
+          Files.readAttributes(validSymlink, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+      for (int i = 0; i < 200; i++) {
+        String pathInVolume = "dir" + (i % 7) + "/sub" + (i % 3) + "/file" + i;
+        creator.addFile(fileInRoot, pathInVolume, null);
+        existingFilesMap.put(pathInVolume, false);
+      }
+    } // auto-close creator
+    existingFilesMap.put("emptyDir", false);
+    existingFilesMap.put("validSymlink", false);
+
+    // extract
+    Path extractPath = tempDirectory.resolve("extracted");
+    Files.createDirectory(extractPath);
+    zipVolume.setExtractionThreads(4);
+    try (Volume.Extractor extractor = zipVolume.extract(volumePath)) {
+      Scopes.extractAllFilesTo(extractPath, extractor, true, existingFilesMap);
+    } // auto-close extractor
+
+    // verify
+    assertTrue(Files.isDirectory(extractPath.resolve("emptyDir")));
+    assertTrue(Files.isSymbolicLink(extractPath.resolve("validSymlink")));
+    for (int i = 0; i < 200; i++) {
+      Path file = extractPath.resolve("dir" + (i % 7) + "/sub" + (i % 3) + "/file" + i);
+      assertEquals(Collections.singletonList("fileInRoot content"),
+          Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void testParallelExtractionFailureReportedOnClose() throws Exception {
+    // create
+    Path volumePath = tempDirectory.resolve("test.zip");
+    try (Volume.Creator creator = zipVolume.createNew(volumePath)) {
+      creator.addFile(existingFile, EXISTING_FILE, null);
+      creator.addFile(newFile, NEW_FILE, null);
+    } // auto-close creator
+
+    // extract, where a non-empty directory is in the way of a file
+    Path extractPath = tempDirectory.resolve("extracted");
+    Files.createDirectories(extractPath.resolve(NEW_FILE).resolve("blocking"));
+    zipVolume.setExtractionThreads(2);
+    Volume.Extractor extractor = zipVolume.extract(volumePath);
+    Scopes.extractAllFilesTo(extractPath, extractor, true, new HashMap<String, Boolean>());
+    try {
+      extractor.close();
+      fail("Failed extraction not reported");
+    } catch (IOException e) {
+      // expected
+    }
+    assertTrue(Files.exists(extractPath.resolve(EXISTING_FILE)));
+  }
+
   private static void deleteDirectory(Path dir) throws IOException {
     Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
       @Override